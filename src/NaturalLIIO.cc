@@ -282,6 +282,9 @@ bool parseMetadata(const char *rawLine, SynSearchCosts **costs,
     } else if (toSet == "skipNegationSearch") {
       opts->skipNegationSearch = to_bool(value);
       fprintf(stderr, "set skipNegationSearch to %u\n", to_bool(value));
+    } else if (toSet == "requestId") {
+      opts->requestId = strtoull(value.c_str(), NULL, 10);
+      opts->hasRequestId = true;
     } else if (toSet == "alignment") {
       if (alignments->size() < MAX_FUZZY_MATCHES) {
         alignments->push_back(parseAlignment(value));
@@ -629,6 +632,33 @@ string passOrFail(const double &truth, const bool &haveExpectedTruth,
   return "";
 }
 
+/**
+ * Tag a JSON response with the id of the request it answers, if the client
+ * sent one, and clear the id so it does not leak into the next request.
+ * This lets a client have several requests in flight on the same pipe.
+ */
+string tagResponse(const string &response, syn_search_options *opts) {
+  if (!opts->hasRequestId || response.empty() || response[0] != '{') {
+    opts->hasRequestId = false;
+    return response;
+  }
+  opts->hasRequestId = false;
+  return "{\"id\": " + to_string(opts->requestId) + ", " + response.substr(1);
+}
+
+/**
+ * Answer a tagged request which had no query in it with an empty result,
+ * so that a client waiting on that id is not left hanging. An untagged empty
+ * request (e.g., a stray blank line) still gets no response.
+ */
+void answerEmptyRequest(syn_search_options *opts) {
+  if (opts->hasRequestId) {
+    opts->hasRequestId = false;
+    printf("{\"id\": %lu}\n", (unsigned long) opts->requestId);
+    fflush(stdout);
+  }
+}
+
 //
 // readTreeFromStdin()
 //
@@ -719,10 +749,12 @@ uint32_t repl(const Graph *graph, JavaBridge *proc,
       fflush(stderr);
       printf("%s", passOrFail(truth, haveExpectedTruth, expectUnknown,
                               expectedTruth, &failedExamples).c_str());
-      printf("%s\n", response.c_str()); // Should be the only output to stdout
+      printf("%s\n", tagResponse(response, &opts).c_str()); // Should be the only output to stdout
       fflush(stdout);
       fprintf(stderr, "\n");
       fflush(stderr);
+    } else {
+      answerEmptyRequest(&opts);
     }
   }
 
@@ -769,10 +801,12 @@ uint32_t repl(const Graph *graph, const btree_set<uint64_t> *kb) {
       // Print
       fprintf(stderr, "\n");
       fflush(stderr);
-      printf("%s\n", response.c_str()); // Should be the only output to stdout
+      printf("%s\n", tagResponse(response, &opts).c_str()); // Should be the only output to stdout
       fflush(stdout);
       fprintf(stderr, "\n");
       fflush(stderr);
+    } else {
+      answerEmptyRequest(&opts);
     }
 
     // Clean up trees
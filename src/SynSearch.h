@@ -1259,6 +1259,14 @@ struct syn_search_options {
   // 
   /** If true, only run entailment from the true state. */
   bool skipNegationSearch;
+  /**
+   * The id of the request currently being read, if the client tagged it
+   * with a '%requestId = n' line. This is echoed as the "id" field of the
+   * response, and cleared once the response is written.
+   */
+  uint64_t requestId;
+  /** If true, requestId is set for the current request. */
+  bool hasRequestId;
 
   /**
    * Create the input options for a Search.
@@ -1286,6 +1294,8 @@ struct syn_search_options {
     this->checkFringe = checkFringe;
     this->silent = silent;
     this->skipNegationSearch = false;
+    this->requestId = 0;
+    this->hasRequestId = false;
   }
 
   syn_search_options() {
@@ -1295,6 +1305,8 @@ struct syn_search_options {
     this->checkFringe =         true;
     this->silent =              false;
     this->skipNegationSearch =  false;
+    this->requestId =           0;
+    this->hasRequestId =        false;
   }
 };
 
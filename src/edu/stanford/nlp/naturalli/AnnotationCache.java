@@ -0,0 +1,161 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.util.Pair;
+import edu.stanford.nlp.util.Pointer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * A memoized version of {@link ProcessQuery#annotate(QRewrite, String, StanfordCoreNLP, Pointer, boolean)}.
+ * The cache is keyed on the whitespace-normalized sentence, the {@link QRewrite} configuration, and whether
+ * we are computing word senses; so, parsing and encoding a sentence is paid once per unique sentence.
+ *
+ * Entries are kept in an in-memory {@link LRUCache}. Optionally, they are also written to a {@link SegmentLog}
+ * of append-only segment files, so that the cache is shared across runs. Each record is the key, the CoNLL encoding,
+ * and the human-readable encoding, as length-prefixed UTF-8 strings.
+ * The encoding depends on the vocabulary and the annotators, so the segments are fingerprinted with both, and
+ * discarded if either changes.
+ *
+ * @author Gabor Angeli
+ */
+public class AnnotationCache {
+
+  private final LRUCache<String, Pair<String, String>> memory;
+  /** The records on disk, or null if we only cache in memory. */
+  private final SegmentLog disk;
+
+  /**
+   * Create a new annotation cache.
+   *
+   * @param maxSize The maximum number of annotations to keep in memory.
+   * @param segmentDir The directory to persist annotations to, or null to only cache in memory.
+   * @param fingerprint A fingerprint of the vocabulary and the annotator properties the annotations were computed with;
+   *                    see {@link AnnotationCache#fingerprint(Properties)}. Persisted annotations with a different
+   *                    fingerprint are discarded.
+   *
+   * @throws IOException Thrown if we could not read or create the segment directory.
+   */
+  public AnnotationCache(int maxSize, File segmentDir, String fingerprint) throws IOException {
+    this.memory = new LRUCache<>(maxSize);
+    this.disk = segmentDir == null ? null : new SegmentLog(segmentDir, "segment", 2, fingerprint);
+  }
+
+  /**
+   * The fingerprint of annotations made with the given annotator properties, and the current models;
+   * see {@link StaticResources#MODEL_FINGERPRINT}.
+   */
+  public static String fingerprint(Properties annotatorProperties) {
+    return StaticResources.MODEL_FINGERPRINT.get() + "\t" + new TreeMap<>(annotatorProperties);
+  }
+
+  /** The normalized cache key for a sentence. */
+  static String key(QRewrite qrewrite, String line, boolean doSense) {
+    return qrewrite.configuration() + "\t" + doSense + "\t" + line.trim().replaceAll("\\s+", " ");
+  }
+
+  /** Read a record from disk, if it is there. */
+  private Pair<String, String> readFromDisk(String key) throws IOException {
+    byte[][] fields = disk.read(key);
+    if (fields == null) {
+      return null;
+    }
+    return Pair.makePair(new String(fields[0], StandardCharsets.UTF_8), new String(fields[1], StandardCharsets.UTF_8));
+  }
+
+  /** Append a record to disk. */
+  private void writeToDisk(String key, Pair<String, String> value) throws IOException {
+    disk.append(key, value.first.getBytes(StandardCharsets.UTF_8), value.second.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Annotate a sentence, or return the cached annotation if we have seen this sentence before.
+   *
+   * @see ProcessQuery#annotate(QRewrite, String, StanfordCoreNLP, Pointer, boolean)
+   */
+  public String annotate(QRewrite qrewrite, String line, StanfordCoreNLP pipeline, Pointer<String> debugDump, boolean doSense) {
+    Pair<String, String> value = get(key(qrewrite, line, doSense), () -> {
+      Pointer<String> readable = new Pointer<>();
+      String conll = ProcessQuery.annotate(qrewrite, line, pipeline, readable, doSense);
+      return Pair.makePair(conll, readable.dereference().orElse(""));
+    });
+    debugDump.set(value.second);
+    return value.first;
+  }
+
+  /**
+   * Annotate a sentence, or return the cached annotation if we have seen this sentence before.
+   * A pipeline is only leased from the pool if the sentence is not cached.
+   *
+   * @see ProcessQuery#annotate(QRewrite, String, StanfordCoreNLP, Pointer, boolean)
+   */
+  public String annotate(QRewrite qrewrite, String line, PipelinePool pipelines, Pointer<String> debugDump, boolean doSense) {
+    Pair<String, String> value = get(key(qrewrite, line, doSense), () -> {
+      Pointer<String> readable = new Pointer<>();
+      String conll;
+      try (PipelinePool.Lease lease = pipelines.lease()) {
+        conll = ProcessQuery.annotate(qrewrite, line, lease.pipeline, readable, doSense);
+      }
+      return Pair.makePair(conll, readable.dereference().orElse(""));
+    });
+    debugDump.set(value.second);
+    return value.first;
+  }
+
+  /**
+   * Get a value from the cache, checking memory and then disk, or else compute and cache it.
+   *
+   * @param key The normalized key of the value.
+   * @param compute The function to compute the (CoNLL, human readable) annotation, if it is not cached.
+   */
+  Pair<String, String> get(String key, Supplier<Pair<String, String>> compute) {
+    // Check memory
+    Pair<String, String> value = memory.get(key);
+    // Check disk
+    if (value == null && disk != null) {
+      try {
+        value = readFromDisk(key);
+      } catch (IOException e) {
+        System.err.println("Could not read annotation cache: " + e.getMessage());
+      }
+      if (value != null) {
+        memory.put(key, value);
+      }
+    }
+    // Compute
+    if (value == null) {
+      value = compute.get();
+      memory.put(key, value);
+      if (disk != null) {
+        try {
+          writeToDisk(key, value);
+        } catch (IOException e) {
+          System.err.println("Could not write annotation cache: " + e.getMessage());
+        }
+      }
+    }
+    return value;
+  }
+
+  /** The in-memory cache, e.g., for its hit and miss counts. */
+  public LRUCache<String, Pair<String, String>> memory() {
+    return memory;
+  }
+
+  /** The number of annotations stored on disk. */
+  public int diskSize() {
+    return disk == null ? 0 : disk.size();
+  }
+
+  /** Close the current segment file. The cache can still be used afterwards. */
+  public void close() throws IOException {
+    if (disk != null) {
+      disk.close();
+    }
+  }
+}
@@ -1,70 +1,194 @@
 package edu.stanford.nlp.naturalli;
 
-import edu.stanford.nlp.pipeline.StanfordCoreNLP;
-import edu.stanford.nlp.semgraph.SemanticGraph;
+import edu.stanford.nlp.util.ArgumentParser;
 import edu.stanford.nlp.util.Pointer;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A bridge to the C code, so that multiple bits of functionality can be consolidated in a single
  * runtime.
  *
+ * Every line of input is a request: 'P' or 'Q' followed by a sentence, to be annotated as a premise or a query.
+ * An untagged request is annotated in order, and answered with its trees, each followed by a blank line,
+ * and then a third newline to signify the end of the response.
+ *
+ * A request may instead be tagged with an id, as "#id P sentence" (or "#id Q sentence"). Tagged requests are
+ * annotated in parallel on a pool of worker threads, each with its own pipeline, and are answered as soon as they
+ * finish, in whatever order that is. A tagged response is a header line "#id n", where n is the number of trees,
+ * followed by the n trees, each followed by a blank line. A failed (or empty) request has no trees.
+ * A client should not mix tagged and untagged requests.
+ *
+ * Alternately, if a socket is given, requests are served over a Unix domain socket; see {@link CBridgeServer}.
+ *
  * @author Gabor Angeli
  */
 public class CBridge {
-  public static void main(String[] args) throws IOException {
-    // Create pipeline
-    StanfordCoreNLP premisePipeline = ProcessPremise.constructPipeline();
-    StanfordCoreNLP queryPipeline   = ProcessQuery.constructPipeline();
-    // Load static resources
-    StaticResources.load();
 
-    // Read input
-    System.err.println(CBridge.class.getSimpleName() + " is ready for input");
-    BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+  @ArgumentParser.Option(name="threads", gloss="The number of tagged requests to annotate in parallel")
+  private static int THREADS = System.getenv("CBRIDGE_THREADS") == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(System.getenv("CBRIDGE_THREADS"));
+
+  @ArgumentParser.Option(name="socket", gloss="If set, serve requests on this Unix domain socket (see CBridgeServer) rather than stdin")
+  private static String SOCKET = System.getenv("CBRIDGE_SOCKET") == null ? "" : System.getenv("CBRIDGE_SOCKET");
+
+  /**
+   * Annotate a single request.
+   *
+   * @param request The request: 'P' or 'Q' followed by the sentence to annotate.
+   * @param trees [output] The CoNLL encoding of every tree, each ending in a newline.
+   * @param debugOut [output] The human readable annotations, to be written to stderr.
+   */
+  static void annotate(String request, List<String> trees, StringBuilder debugOut) {
+    switch (request.charAt(0)) {
+      case 'P':
+        String premise = request.substring(1);
+        debugOut.append("Annotating premise: '").append(premise).append("'\n");
+        premise = QRewrite.FOR_PREMISE.rewriteGloss(premise);
+        for (EntailmentCache.Entailment entailment : StaticResources.ENTAILMENT_CACHE.get().forwardEntailments(premise, "parse", false,
+            EnumSet.of(EntailmentCache.Field.CONLL, EntailmentCache.Field.READABLE))) {
+          trees.add(entailment.conll);
+          debugOut.append(entailment.readable).append("\n");
+        }
+        break;
+      case 'Q':
+        debugOut.append("Annotating query: '").append(request.substring(1)).append("'\n");
+        Pointer<String> debug = new Pointer<>();
+        try (PipelinePool.Lease lease = ProcessQuery.pipelinePool().lease()) {
+          trees.add(ProcessQuery.annotate(QRewrite.FOR_QUERY, request.substring(1), lease.pipeline, debug, true));
+        }
+        debug.dereference().ifPresent(x -> debugOut.append(x).append("\n"));
+        break;
+      default:
+        throw new RuntimeException("Line must begin with 'P' or 'Q'!");
+    }
+  }
+
+  /** Write a response to stdout (and its debug output to stderr), without interleaving it with any other response. */
+  private static void respond(String response, StringBuilder debugOut) {
+    synchronized (System.out) {
+      System.err.print(debugOut);
+      System.out.print(response);
+      // Flush the streams
+      System.out.flush();
+      System.err.flush();
+    }
+  }
+
+  /** Annotate an untagged request, and write its response. */
+  private static void handleUntagged(String request) {
+    StringBuilder debugOut = new StringBuilder();
+    List<String> trees = new ArrayList<>();
+    StringBuilder response = new StringBuilder();
+    try {
+      annotate(request, trees, debugOut);
+      for (String tree : trees) {
+        response.append(tree).append("\n");
+      }
+      response.append("\n");  // A third newline to signify stop
+    } catch (Throwable t) {
+      t.printStackTrace();
+      for (String tree : trees) {
+        response.append(tree).append("\n");
+      }
+      response.append("\n\n");
+    }
+    respond(response.toString(), debugOut);
+  }
+
+  /** Annotate a tagged request, and write its tagged response. */
+  private static void handleTagged(String id, String request) {
+    StringBuilder debugOut = new StringBuilder();
+    List<String> trees = new ArrayList<>();
+    try {
+      annotate(request, trees, debugOut);
+    } catch (Throwable t) {
+      t.printStackTrace();
+      trees.clear();
+    }
+    StringBuilder response = new StringBuilder();
+    response.append("#").append(id).append(" ").append(trees.size()).append("\n");
+    for (String tree : trees) {
+      response.append(tree).append("\n");
+    }
+    respond(response.toString(), debugOut);
+  }
+
+  /**
+   * Answer every request on the given input, until it ends or a tagged request has no id.
+   * A tagged request with no space after its id (e.g., "#42") has no sentence to annotate, and is answered like a
+   * failed request, with no trees. A tagged request with no id at all ("#") cannot be answered, so we stop reading
+   * rather than leave the client waiting; the client sees the end of our output.
+   *
+   * @param reader The requests, one per line.
+   * @param workers The workers to annotate tagged requests on.
+   */
+  static void serve(BufferedReader reader, Executor workers) throws IOException {
     String line;
     while ((line = reader.readLine()) != null) {
       line = line.trim();
       if (!"".equals(line)) {
-        try {
-          switch (line.charAt(0)) {
-            case 'P':
-              String premise = line.substring(1);
-              System.err.println("Annotating premise: '" + premise + "'");
-              premise = QRewrite.FOR_PREMISE.rewriteGloss(premise);
-              for (SentenceFragment fragment : ProcessPremise.forwardEntailments(premise, premisePipeline)) {
-                SemanticGraph tree = fragment.parseTree;
-                Pointer<String> debug = new Pointer<>();
-                String annotated = ProcessQuery.conllDump(tree, debug, false, false);
-                System.out.println(annotated);
-                debug.dereference().ifPresent(System.err::println);
-              }
-              break;
-            case 'Q':
-              System.err.println("Annotating query: '" + line.substring(1) + "'");
-              Pointer<String> debug = new Pointer<>();
-              String annotated = ProcessQuery.annotate(QRewrite.FOR_QUERY, line.substring(1), queryPipeline, debug, true);
-              debug.dereference().ifPresent(System.err::println);
-              System.out.println(annotated);
-              break;
-            default:
-              throw new RuntimeException("Line must begin with 'P' or 'Q'!");
+        if (line.charAt(0) == '#') {
+          // Case: a tagged request
+          int space = line.indexOf(' ');
+          String id = space < 0 ? line.substring(1) : line.substring(1, space);
+          if (id.isEmpty()) {
+            System.err.println("Tagged request without an id; closing: " + line);
+            return;
+          }
+          if (space < 0) {
+            System.err.println("Tagged request without a sentence: " + line);
+            respond("#" + id + " 0\n", new StringBuilder());
+            continue;
           }
-          System.out.println();  // A third newline to signify stop
-          // Flush the streams
-          System.out.flush();
-          System.err.flush();
-        } catch (Throwable t) {
-          t.printStackTrace();
-          System.out.println();
-          System.out.println();
-          System.out.flush();
-          System.err.flush();
+          String request = line.substring(space + 1).trim();
+          workers.execute(() -> handleTagged(id, request));
+        } else {
+          // Case: an untagged request
+          handleUntagged(line);
         }
       }
     }
   }
+
+  public static void main(String[] args) throws IOException {
+    ArgumentParser.fillOptions(CBridge.class, args);
+    // Create pipeline
+    ProcessPremise.pipelinePool("parse").lease().close();
+    ProcessQuery.pipelinePool().lease().close();
+    // Load static resources
+    StaticResources.load();
+    // Create the workers for tagged requests
+    ThreadPoolExecutor workers = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(THREADS * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+
+    // Case: serve on a socket
+    if (!"".equals(SOCKET)) {
+      try (CBridgeServer server = new CBridgeServer(Paths.get(SOCKET), workers, request -> {
+        List<String> trees = new ArrayList<>();
+        StringBuilder debugOut = new StringBuilder();
+        annotate(request, trees, debugOut);
+        System.err.print(debugOut);
+        return trees;
+      })) {
+        server.serve();
+      }
+      workers.shutdown();
+      return;
+    }
+
+    // Read input
+    System.err.println(CBridge.class.getSimpleName() + " is ready for input");
+    serve(new BufferedReader(new InputStreamReader(System.in)), workers);
+    workers.shutdown();
+  }
 }
@@ -0,0 +1,210 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.stanford.nlp.util.Pair;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Serves {@link CBridge} requests over a Unix domain socket, so that many search processes on the same host can
+ * share a single warm JVM, with its CoreNLP models and static resources already loaded.
+ * This requires Java 16 or later; the rest of CBridge does not.
+ *
+ * Every client connection may have many requests in flight. All integers are 32 bit and big-endian, and all strings
+ * are UTF-8:
+ * <ul>
+ *   <li>A request is the request id, the length of the request in bytes, and the request itself
+ *       ('P' or 'Q' followed by the sentence).</li>
+ *   <li>A response is the request id, the number of trees, and then for each tree the length of its CoNLL encoding
+ *       in bytes, and the encoding itself. A failed request has no trees.</li>
+ * </ul>
+ * Responses are written as their requests finish, which is not necessarily the order they were sent in.
+ *
+ * @author Gabor Angeli
+ */
+public class CBridgeServer implements AutoCloseable {
+
+  /** The largest request we will read, so that a corrupt length does not exhaust memory. */
+  private static final int MAX_REQUEST_LENGTH = 1024 * 1024;
+
+  private final Path socketPath;
+  private final ServerSocketChannel server;
+  private final ExecutorService workers;
+  private final Function<String, List<String>> annotator;
+
+  /**
+   * Bind a server to a socket. Any stale socket file at that path (e.g., from a crashed server) is replaced.
+   *
+   * @param socketPath The path of the socket to listen on.
+   * @param workers The pool to annotate requests on.
+   * @param annotator The function to annotate a request into its CoNLL trees; e.g., {@link CBridge#annotate(String, List, StringBuilder)}.
+   *                  If this throws an exception, the request is answered with no trees.
+   *
+   * @throws IOException Thrown if we could not bind to the socket.
+   */
+  public CBridgeServer(Path socketPath, ExecutorService workers, Function<String, List<String>> annotator) throws IOException {
+    this.socketPath = socketPath;
+    this.workers = workers;
+    this.annotator = annotator;
+    Files.deleteIfExists(socketPath);
+    this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    this.server.bind(UnixDomainSocketAddress.of(socketPath));
+  }
+
+  /** Read exactly the remaining bytes of the buffer. */
+  private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+  }
+
+  /**
+   * Read a request frame.
+   * @return The id and the request, or null if the client closed the connection.
+   */
+  private static Pair<Integer, String> readRequest(SocketChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(8);
+    try {
+      readFully(channel, header);
+    } catch (EOFException e) {
+      return null;
+    }
+    int id = header.getInt();
+    int length = header.getInt();
+    if (length < 0 || length > MAX_REQUEST_LENGTH) {
+      throw new IOException("Bad request length: " + length);
+    }
+    ByteBuffer body = ByteBuffer.allocate(length);
+    readFully(channel, body);
+    return Pair.makePair(id, StandardCharsets.UTF_8.decode(body).toString());
+  }
+
+  /** Encode a response frame. */
+  static ByteBuffer encodeResponse(int id, List<String> trees) {
+    List<byte[]> encoded = new ArrayList<>(trees.size());
+    int length = 8;
+    for (String tree : trees) {
+      byte[] bytes = tree.getBytes(StandardCharsets.UTF_8);
+      encoded.add(bytes);
+      length += 4 + bytes.length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    buffer.putInt(id);
+    buffer.putInt(encoded.size());
+    for (byte[] bytes : encoded) {
+      buffer.putInt(bytes.length);
+      buffer.put(bytes);
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /** Close a client connection once nothing refers to it any more. */
+  private static void release(SocketChannel channel, AtomicInteger references) {
+    if (references.decrementAndGet() == 0) {
+      try {
+        channel.close();
+      } catch (IOException ignored) { }
+    }
+  }
+
+  /** Annotate a request, and write its response to the client. */
+  private void handle(SocketChannel channel, int id, String request) {
+    List<String> trees;
+    try {
+      trees = annotator.apply(request);
+    } catch (Throwable t) {
+      t.printStackTrace();
+      trees = new ArrayList<>();
+    }
+    ByteBuffer response = encodeResponse(id, trees);
+    try {
+      // Reads and writes on a channel do not block each other, but concurrent writes would interleave
+      synchronized (channel) {
+        while (response.hasRemaining()) {
+          channel.write(response);
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("Could not respond to request " + id + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Read every request from a client, and hand them to the workers.
+   * The client may close its end of the connection once it has sent its requests; the connection is only closed
+   * on our end once every one of those requests has been answered.
+   */
+  private void serveClient(SocketChannel channel) {
+    // One reference for this reader, and one for every request in flight
+    AtomicInteger references = new AtomicInteger(1);
+    try {
+      Pair<Integer, String> request;
+      while ((request = readRequest(channel)) != null) {
+        final int id = request.first;
+        final String text = request.second;
+        references.incrementAndGet();
+        try {
+          workers.submit(() -> {
+            try {
+              handle(channel, id, text);
+            } finally {
+              release(channel, references);
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          release(channel, references);
+          throw e;
+        }
+      }
+    } catch (IOException | RejectedExecutionException e) {
+      System.err.println("Dropping CBridge client: " + e.getMessage());
+    } finally {
+      release(channel, references);
+    }
+  }
+
+  /**
+   * Accept clients until the server is closed. Each client is read on its own thread; the annotation itself
+   * happens on the shared workers.
+   */
+  public void serve() throws IOException {
+    System.err.println(CBridge.class.getSimpleName() + " is listening on " + socketPath);
+    while (true) {
+      SocketChannel channel;
+      try {
+        channel = server.accept();
+      } catch (ClosedChannelException e) {
+        return;
+      }
+      Thread reader = new Thread(() -> serveClient(channel), "cbridge-client");
+      reader.setDaemon(true);
+      reader.start();
+    }
+  }
+
+  /** Stop accepting clients, and remove the socket file. */
+  @Override
+  public void close() throws IOException {
+    server.close();
+    Files.deleteIfExists(socketPath);
+  }
+}
@@ -0,0 +1,274 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.stanford.nlp.io.IOUtils;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * A dependency tree, as it is handed to the C++ search: one row per (possibly multi-word) token, with the token's
+ * word index, governor, incoming dependency arc, word sense, POS tag, and quantifier scope.
+ * This is computed by {@link ProcessQuery#conllTree(edu.stanford.nlp.semgraph.SemanticGraph, boolean, boolean)},
+ * and can be written out either as the tab separated CoNLL text that SynSearch.cc parses, or in a compact binary form.
+ *
+ * The binary form is a frame of big-endian values: the number of tokens as an int, followed by 17 bytes per token:
+ * <ol>
+ *   <li>The word index, as an int.</li>
+ *   <li>The governor, as a byte. As in the text format, this is 1-indexed, with 0 for the root.</li>
+ *   <li>The incoming dependency arc, as a byte; see {@link ConllTree#readDependencyIndex(String)}.</li>
+ *   <li>The word sense, as a byte.</li>
+ *   <li>The POS tag, as an ASCII byte.</li>
+ *   <li>The subject monotonicity, subject quantifier type, subject span begin, and subject span end, as bytes.</li>
+ *   <li>The object monotonicity, object quantifier type, object span begin, and object span end, as bytes.</li>
+ *   <li>Flags, as a byte; the lowest bit marks a location (meronym) trigger.</li>
+ * </ol>
+ * Monotonicities and quantifier types are the MONOTONE_* and QUANTIFIER_TYPE_* constants of Types.h, and spans are
+ * 1-indexed like the text format. If the token is not a quantifier (or the scope was cut off), all four bytes of the
+ * scope are -1.
+ *
+ * @author Gabor Angeli
+ */
+class ConllTree {
+
+  /** The size of a single token in the binary encoding. */
+  static final int BYTES_PER_TOKEN = 17;
+
+  /** The marker for a missing quantifier scope in the binary encoding. */
+  static final byte ABSENT = -1;
+
+  // Constants from Types.h
+  private static final byte MONOTONE_UP = 0;
+  private static final byte MONOTONE_DOWN = 1;
+  private static final byte MONOTONE_FLAT = 2;
+  private static final byte QUANTIFIER_TYPE_BOTH = 0;
+  private static final byte QUANTIFIER_TYPE_ADDITIVE = 1;
+  private static final byte QUANTIFIER_TYPE_MULTIPLICATIVE = 2;
+  private static final byte QUANTIFIER_TYPE_NONE = 3;
+
+  /** The packed monotonicity of a missing object scope: flat, with no quantifier type; see {@link ConllTree#signatureBits(String)}. */
+  static final int NO_SIGNATURE_BITS = MONOTONE_FLAT | (QUANTIFIER_TYPE_NONE << 2);
+
+  /** The number of tokens in the tree. */
+  final int length;
+  /** The human readable gloss of each token. */
+  final String[] gloss;
+  /** The vocabulary index of each token. */
+  final int[] word;
+  /** The governor of each token, 1-indexed, with 0 for the root. */
+  final int[] governor;
+  /** The incoming dependency arc of each token, e.g., "nsubj". */
+  final String[] relation;
+  /** The word sense of each token. */
+  final int[] sense;
+  /** The single character POS tag of each token. */
+  final char[] posTag;
+  /** The monotonicity signature of the subject of each quantifier (see {@link edu.stanford.nlp.naturalli.Operator#monotonicitySignature(Monotonicity, MonotonicityType)}), or null. */
+  final String[] subjMono;
+  /** The 1-indexed span of the subject of each quantifier, if {@link ConllTree#subjMono} is set. */
+  final int[] subjBegin, subjEnd;
+  /** The monotonicity signature of the object of each quantifier, or null. */
+  final String[] objMono;
+  /** The 1-indexed span of the object of each quantifier, if {@link ConllTree#objMono} is set. */
+  final int[] objBegin, objEnd;
+  /** Whether each token is a location (meronym) trigger. */
+  final boolean[] location;
+  /** The index of the incoming arc of each token, once {@link ConllTree#arcs(Map)} has computed it. */
+  private int[] arcs = null;
+  /** The dependency index {@link ConllTree#arcs} was computed with. */
+  private Map<String, Integer> arcsIndex = null;
+
+  ConllTree(int length) {
+    this.length = length;
+    this.gloss = new String[length];
+    this.word = new int[length];
+    this.governor = new int[length];
+    this.relation = new String[length];
+    this.sense = new int[length];
+    this.posTag = new char[length];
+    this.subjMono = new String[length];
+    this.subjBegin = new int[length];
+    this.subjEnd = new int[length];
+    this.objMono = new String[length];
+    this.objBegin = new int[length];
+    this.objEnd = new int[length];
+    this.location = new boolean[length];
+  }
+
+  /**
+   * Write the tree as CoNLL text, as parsed by the Tree constructor in SynSearch.cc.
+   *
+   * @param readableDump [output] The human readable version of the tree, with glosses in place of word indices.
+   */
+  String toConll(StringBuilder readableDump) {
+    StringBuilder production = new StringBuilder();
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < length; ++i) {
+      b.setLength(0);
+      b.append("\t").append(governor[i])
+          .append("\t").append(relation[i])
+          .append("\t").append(sense[i])
+          .append("\t").append(posTag[i]);
+      if (subjMono[i] == null) {
+        b.append("\t-\t-");
+      } else {
+        b.append("\t").append(subjMono[i]).append("\t").append(subjBegin[i]).append("-").append(subjEnd[i]);
+      }
+      if (objMono[i] == null) {
+        b.append("\t-\t-");
+      } else {
+        b.append("\t").append(objMono[i]).append("\t").append(objBegin[i]).append("-").append(objEnd[i]);
+      }
+      if (location[i]) {
+        b.append("\tl");
+      }
+      b.append("\n");
+      production.append(word[i]).append(b);
+      readableDump.append(i + 1).append("\t").append(gloss[i]).append(b);
+    }
+    return production.toString();
+  }
+
+  /** Check that a value fits in an unsigned byte, as the C++ tree stores it. */
+  private static byte toByte(int value, String field) {
+    if (value < 0 || value > 255) {
+      throw new IllegalArgumentException("The " + field + " does not fit in a byte: " + value);
+    }
+    return (byte) value;
+  }
+
+  /**
+   * Pack the monotonicity and quantifier type of a signature into the low four bits of a byte, as the
+   * quantifier_monotonicity struct in SynSearch.h does: the monotonicity in bits 0-1, and the type in bits 2-3.
+   * This is the same mapping as stringToMonotonicity() in SynSearch.cc.
+   */
+  static int signatureBits(String signature) {
+    switch (signature) {
+      case "monotone": return MONOTONE_UP | (QUANTIFIER_TYPE_NONE << 2);
+      case "additive": return MONOTONE_UP | (QUANTIFIER_TYPE_ADDITIVE << 2);
+      case "multiplicative": return MONOTONE_UP | (QUANTIFIER_TYPE_MULTIPLICATIVE << 2);
+      case "additive-multiplicative": return MONOTONE_UP | (QUANTIFIER_TYPE_BOTH << 2);
+      case "antitone": return MONOTONE_DOWN | (QUANTIFIER_TYPE_NONE << 2);
+      case "anti-additive": return MONOTONE_DOWN | (QUANTIFIER_TYPE_ADDITIVE << 2);
+      case "anti-multiplicative": return MONOTONE_DOWN | (QUANTIFIER_TYPE_MULTIPLICATIVE << 2);
+      case "anti-additive-multiplicative": return MONOTONE_DOWN | (QUANTIFIER_TYPE_BOTH << 2);
+      case "nonmonotone": return MONOTONE_FLAT | (QUANTIFIER_TYPE_NONE << 2);
+      default: throw new IllegalArgumentException("Bad monotonicity marker: " + signature);
+    }
+  }
+
+  /**
+   * The index of a dependency arc, as indexDependency() in C++ computes it. Unknown arcs are indexed as the size
+   * of the index.
+   */
+  static int relationIndex(String relation, Map<String, Integer> dependencyIndex) {
+    Integer index = dependencyIndex.get(relation.toLowerCase());
+    return index == null ? dependencyIndex.size() : index;
+  }
+
+  /**
+   * The index of the incoming arc of every token; see {@link ConllTree#relationIndex(String, Map)}.
+   * This is computed once per tree (and dependency index), so that encoding and hashing a tree look up its arcs once.
+   * The tokens must not change afterwards.
+   */
+  synchronized int[] arcs(Map<String, Integer> dependencyIndex) {
+    if (arcs == null || arcsIndex != dependencyIndex) {
+      int[] indices = new int[length];
+      for (int i = 0; i < length; ++i) {
+        indices[i] = relationIndex(relation[i], dependencyIndex);
+      }
+      arcs = indices;
+      arcsIndex = dependencyIndex;
+    }
+    return arcs;
+  }
+
+  /** Write a quantifier scope, or the absent marker if there is none. */
+  private static void putScope(ByteBuffer buffer, String signature, int begin, int end) {
+    if (signature == null) {
+      buffer.put(ABSENT).put(ABSENT).put(ABSENT).put(ABSENT);
+    } else {
+      int bits = signatureBits(signature);
+      buffer.put((byte) (bits & 0x3)).put((byte) (bits >> 2));
+      buffer.put(toByte(begin, "span begin")).put(toByte(end, "span end"));
+    }
+  }
+
+  /**
+   * Write the tree in the binary encoding (see the class documentation), starting at the buffer's position.
+   * If the buffer is too small, a larger one is allocated, with the contents of the old one copied over.
+   * This way, a single buffer can be reused for every tree:
+   *
+   * <pre>
+   *   buffer.clear();
+   *   buffer = tree.encode(buffer, dependencyIndex);
+   *   buffer.flip();
+   * </pre>
+   *
+   * @param buffer The buffer to write into.
+   * @param dependencyIndex The index of every dependency arc; see {@link StaticResources#DEPENDENCY_INDEX}.
+   *                        Unknown arcs are written as the size of the index, as indexDependency() does in C++.
+   *
+   * @return The buffer the tree was written into; this is the argument buffer unless it had to be grown.
+   */
+  ByteBuffer encode(ByteBuffer buffer, Map<String, Integer> dependencyIndex) {
+    int needed = 4 + BYTES_PER_TOKEN * length;
+    if (buffer.remaining() < needed) {
+      ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+      buffer.flip();
+      larger.put(buffer);
+      buffer = larger;
+    }
+    int[] arcs = arcs(dependencyIndex);
+    buffer.putInt(length);
+    for (int i = 0; i < length; ++i) {
+      buffer.putInt(word[i]);
+      buffer.put(toByte(governor[i], "governor"));
+      buffer.put(toByte(arcs[i], "relation"));
+      buffer.put(toByte(sense[i], "word sense"));
+      buffer.put((byte) posTag[i]);
+      putScope(buffer, subjMono[i], subjBegin[i], subjEnd[i]);
+      putScope(buffer, objMono[i], objBegin[i], objEnd[i]);
+      buffer.put((byte) (location[i] ? 0x1 : 0x0));
+    }
+    return buffer;
+  }
+
+  /**
+   * Read the index of every dependency arc, matching the DEP_* constants that the rc script generates into
+   * Models.h from the same file (see dep2header and dep2string in rc). The arcs are the ones in the natural logic
+   * insertion table (the table {@link edu.stanford.nlp.naturalli.NaturalLogicRelation#forDependencyInsertion(String)}
+   * is generated from), numbered in sorted order. The ids assume the header was generated with a C (byte order)
+   * sort collation.
+   *
+   * @param file The natural logic insertion table; by default, etc/depInsert2rel.tab.
+   *
+   * @return A map from the lowercased dependency arc to its index.
+   */
+  static Map<String, Integer> readDependencyIndex(String file) {
+    // Map each arc to the name of its constant, and each constant to its index
+    Map<String, String> arcToConstant = new HashMap<>();
+    SortedSet<String> lines = new TreeSet<>();
+    for (String line : IOUtils.readLines(file)) {
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      String arc = line.split("\t", -1)[0].replace("prepc_", "prep_");
+      String constant = arc.replace("\\\\/", "").replace("vs.", "vs").replace(":", "_").toUpperCase();
+      // The C++ string literal unescapes the backslashes
+      arcToConstant.put(arc.replace("\\\\", "\\").toLowerCase(), constant);
+      lines.add(line.replace("prepc_", "prep_").replace("\\\\/", "").replace("vs.", "vs").replace(":", "_"));
+    }
+    Map<String, Integer> constantToIndex = new HashMap<>();
+    int index = 0;
+    for (String line : lines) {
+      constantToIndex.put(line.split("\t", -1)[0].toUpperCase(), index);  // as with #define, the last one wins
+      index += 1;
+    }
+    // Index the arcs
+    Map<String, Integer> arcToIndex = new HashMap<>();
+    for (Map.Entry<String, String> entry : arcToConstant.entrySet()) {
+      arcToIndex.put(entry.getKey(), constantToIndex.get(entry.getValue()));
+    }
+    return Collections.unmodifiableMap(arcToIndex);
+  }
+}
@@ -0,0 +1,329 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.stanford.nlp.io.RuntimeIOException;
+import edu.stanford.nlp.util.RuntimeInterruptedException;
+import edu.stanford.nlp.util.logging.Redwood;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * A staged pipeline for processing a large corpus, one line at a time: a reader, a bounded queue of lines,
+ * a number of workers (each with its own state; e.g., its own CoreNLP pipeline), and a single writer.
+ *
+ * <ul>
+ *   <li>The reader runs on the calling thread, and skips blank lines. Every other line gets a sequence number,
+ *       counting from 0.</li>
+ *   <li>The workers process the lines in parallel. A worker which throws an exception on a line logs it, and the
+ *       line is dropped.</li>
+ *   <li>The writer gets the output of every line. If the pipeline is ordered, it gets them in the order the lines
+ *       were read; otherwise, in whatever order they finish. If the writer throws an exception, the pipeline stops:
+ *       nothing more is read, processed, or written, and the exception is rethrown from
+ *       {@link CorpusPipeline#run(BufferedReader)}.</li>
+ * </ul>
+ *
+ * The number of lines in flight (read but not yet written) is bounded, so that a slow writer, a slow worker, or
+ * a single slow line (holding up an ordered writer) blocks the reader rather than filling memory.
+ * Progress is logged every so many lines, with the throughput of each stage and of each worker.
+ *
+ * @param <W> The type of the state of each worker; e.g., {@link edu.stanford.nlp.pipeline.StanfordCoreNLP}.
+ * @param <O> The type of the output of a line.
+ *
+ * @author Gabor Angeli
+ */
+public class CorpusPipeline<W, O> {
+
+  /** A line, with its sequence number. */
+  private static class Item<E> {
+    /** The sequence number of the line; or -1 to signal the end of the input. */
+    final long index;
+    final E value;
+
+    Item(long index, E value) {
+      this.index = index;
+      this.value = value;
+    }
+  }
+
+  /** The name of the pipeline, for logging. */
+  public final String name;
+  private final int threads;
+  private final boolean ordered;
+  private final Supplier<W> newWorker;
+  private final BiFunction<W, String, O> process;
+  private final BiConsumer<Long, O> write;
+
+  private final BlockingQueue<Item<String>> lines;
+  private final BlockingQueue<Item<O>> outputs = new LinkedBlockingQueue<>();
+  private final Semaphore inFlight;
+
+  /** How often to log progress, in lines written. */
+  private long logEvery = 1000;
+  /** Where to log progress. */
+  private PrintStream log = System.err;
+
+  private final AtomicLong read = new AtomicLong(0);
+  private final AtomicLong processed = new AtomicLong(0);
+  private final AtomicLong failed = new AtomicLong(0);
+  private final AtomicLong written = new AtomicLong(0);
+  private final AtomicLong processNanos = new AtomicLong(0);
+  private final AtomicLongArray processedByWorker;
+  /** The first exception thrown by the writer, if any. Once this is set, the pipeline is winding down. */
+  private final AtomicReference<Throwable> writeError = new AtomicReference<>(null);
+  private long startTime = System.currentTimeMillis();
+
+  /**
+   * Create a new pipeline.
+   *
+   * @param name The name of the pipeline, for logging.
+   * @param threads The number of workers.
+   * @param queueSize The number of lines to read ahead of the workers. At most twice this, plus the number of
+   *                  workers, lines are in flight at once.
+   * @param ordered If true, write the outputs in the order of the input.
+   * @param newWorker Create the state of a worker. This is called once per worker, on the calling thread,
+   *                  before anything is read.
+   * @param process Process a line (never blank) on a worker, with the worker's state.
+   * @param write Write the output of a line, with the sequence number of the line. This is always called from the
+   *              same thread.
+   */
+  public CorpusPipeline(String name, int threads, int queueSize, boolean ordered,
+                        Supplier<W> newWorker, BiFunction<W, String, O> process, BiConsumer<Long, O> write) {
+    if (threads < 1 || queueSize < 1) {
+      throw new IllegalArgumentException("A corpus pipeline needs at least one thread and a queue: " + threads + " / " + queueSize);
+    }
+    this.name = name;
+    this.threads = threads;
+    this.ordered = ordered;
+    this.newWorker = newWorker;
+    this.process = process;
+    this.write = write;
+    this.lines = new ArrayBlockingQueue<>(queueSize);
+    this.inFlight = new Semaphore(queueSize * 2 + threads);
+    this.processedByWorker = new AtomicLongArray(threads);
+  }
+
+  /** Log progress every this many lines written. */
+  public CorpusPipeline<W, O> logEvery(long lines) {
+    this.logEvery = lines;
+    return this;
+  }
+
+  /** Log progress (and errors) to this stream, rather than stderr. */
+  public CorpusPipeline<W, O> logTo(PrintStream log) {
+    this.log = log;
+    return this;
+  }
+
+  /** The body of a worker thread. */
+  private void work(int workerIndex, W state) {
+    try {
+      while (true) {
+        Item<String> line = lines.take();
+        if (line.index < 0) {
+          return;
+        }
+        if (writeError.get() != null) {
+          // The writer failed, so the output would not be written anyway: skip the line, but let the writer see it
+          outputs.add(new Item<>(line.index, null));
+          continue;
+        }
+        long start = System.nanoTime();
+        O output = null;
+        try {
+          output = process.apply(state, line.value);
+        } catch (Throwable t) {
+          failed.incrementAndGet();
+          log.println("[" + name + "] Error processing line " + line.index + ": " + t.getMessage());
+        }
+        processNanos.addAndGet(System.nanoTime() - start);
+        processed.incrementAndGet();
+        processedByWorker.incrementAndGet(workerIndex);
+        outputs.add(new Item<>(line.index, output));
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeInterruptedException(e);
+    } finally {
+      outputs.add(new Item<>(-1, null));
+    }
+  }
+
+  /**
+   * Write a single output, and let the reader read another line.
+   * If the writer has failed, the output is dropped; the first failure is kept to be rethrown from run().
+   */
+  private void writeOne(Item<O> item) {
+    try {
+      if (item.value != null && writeError.get() == null) {
+        write.accept(item.index, item.value);
+      }
+    } catch (Throwable t) {
+      if (writeError.compareAndSet(null, t)) {
+        log.println("[" + name + "] Error writing line " + item.index + "; stopping: " + t.getMessage());
+      }
+    }
+    long numWritten = written.incrementAndGet();
+    inFlight.release();
+    if (numWritten % logEvery == 0) {
+      log.println(progress());
+    }
+  }
+
+  /** The body of the writer thread. */
+  private void writeAll() {
+    TreeMap<Long, Item<O>> pending = new TreeMap<>();
+    long next = 0;
+    int workersDone = 0;
+    try {
+      while (workersDone < threads) {
+        Item<O> item = outputs.take();
+        if (item.index < 0) {
+          workersDone += 1;
+        } else if (!ordered) {
+          writeOne(item);
+        } else {
+          // Hold on to the output until everything before it is written
+          pending.put(item.index, item);
+          while (!pending.isEmpty() && pending.firstKey() == next) {
+            writeOne(pending.pollFirstEntry().getValue());
+            next += 1;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeInterruptedException(e);
+    }
+  }
+
+  /**
+   * Run the pipeline over every line of the input, returning once every line has been written.
+   * A pipeline can only be run once.
+   *
+   * @param input The input to read lines from.
+   * @return The number of lines read (not counting blank lines).
+   *
+   * @throws IOException Thrown if the input could not be read (every line read before the exception is still
+   *                     written), or if the writer threw an IOException (wrapped in a RuntimeIOException).
+   */
+  public long run(BufferedReader input) throws IOException {
+    // Create the workers (this can be slow, and should fail before we start reading)
+    List<W> states = new ArrayList<>();
+    for (int i = 0; i < threads; ++i) {
+      states.add(newWorker.get());
+    }
+    startTime = System.currentTimeMillis();
+    for (int i = 0; i < threads; ++i) {
+      final int workerIndex = i;
+      W state = states.get(i);
+      Thread worker = new Thread(() -> work(workerIndex, state), name + "-worker-" + i);
+      worker.setDaemon(true);
+      worker.start();
+    }
+    Thread writer = new Thread(this::writeAll, name + "-writer");
+    writer.setDaemon(true);
+    writer.start();
+
+    try {
+      // Read the input
+      String line;
+      while (writeError.get() == null && (line = input.readLine()) != null) {
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        inFlight.acquire();
+        lines.put(new Item<>(read.getAndIncrement(), line));
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeInterruptedException(e);
+    } finally {
+      // Stop the workers, and wait for everything to be written
+      try {
+        for (int i = 0; i < threads; ++i) {
+          lines.put(new Item<>(-1, null));
+        }
+        writer.join();
+      } catch (InterruptedException e) {
+        throw new RuntimeInterruptedException(e);
+      }
+    }
+    log.println(progress());
+    // Fail if the writer did
+    Throwable error = writeError.get();
+    if (error != null) {
+      if (error instanceof RuntimeIOException && error.getCause() instanceof IOException) {
+        throw (IOException) error.getCause();
+      } else if (error instanceof RuntimeException) {
+        throw (RuntimeException) error;
+      } else if (error instanceof Error) {
+        throw (Error) error;
+      } else {
+        throw new RuntimeException(error);
+      }
+    }
+    return read.get();
+  }
+
+  /** The number of lines read so far. */
+  public long read() {
+    return read.get();
+  }
+
+  /** The number of lines processed so far, including lines which failed. */
+  public long processed() {
+    return processed.get();
+  }
+
+  /** The number of lines which failed to process. */
+  public long failed() {
+    return failed.get();
+  }
+
+  /** The number of lines written so far, including lines which failed (and therefore wrote nothing). */
+  public long written() {
+    return written.get();
+  }
+
+  /** The number of lines processed by each worker so far. */
+  public long[] processedByWorker() {
+    long[] counts = new long[threads];
+    for (int i = 0; i < threads; ++i) {
+      counts[i] = processedByWorker.get(i);
+    }
+    return counts;
+  }
+
+  /**
+   * A summary of the progress of the pipeline, with the throughput of every stage and every worker
+   * in lines per second.
+   */
+  public String progress() {
+    long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+    DecimalFormat df = new DecimalFormat("0.0");
+    double busySeconds = ((double) processNanos.get()) / 1e9;
+    StringBuilder perWorker = new StringBuilder();
+    for (long count : processedByWorker()) {
+      perWorker.append(perWorker.length() == 0 ? "" : ", ").append(df.format(count * 1000.0 / elapsed));
+    }
+    return "[" + name + " " + Redwood.formatTimeDifference(elapsed) + "] " +
+        "read " + read() + " {" + df.format(read() * 1000.0 / elapsed) + " / second}; " +
+        "processed " + processed() + " {" + df.format(processed() * 1000.0 / elapsed) + " / second, " +
+        df.format(busySeconds <= 0.0 ? 0.0 : processed() / busySeconds) + " / second / thread; " + failed() + " failed}; " +
+        "written " + written() + " {" + df.format(written() * 1000.0 / elapsed) + " / second}; " +
+        "queued " + lines.size() + "; " +
+        "by worker {" + perWorker + "} / second";
+  }
+}
@@ -6,12 +6,11 @@ import edu.stanford.nlp.pipeline.StanfordCoreNLP;
 import edu.stanford.nlp.semgraph.SemanticGraph;
 import edu.stanford.nlp.util.CoreMap;
 import edu.stanford.nlp.util.ArgumentParser;
-import edu.stanford.nlp.util.StreamGobbler;
-import edu.stanford.nlp.util.logging.Redwood;
 
 import java.io.*;
-import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -24,67 +23,43 @@ import java.util.Properties;
  *   <li>The sentence itself.</li>
  * </ol>
  *
+ * The sentences are annotated and hashed in parallel, each thread with its own pipeline; see {@link CorpusPipeline}.
+ *
  * @author Gabor Angeli
  */
 public class CreateKnowledgeBase {
 
-  @ArgumentParser.Option(name="hash_tree", gloss="The executable path for hash_tree")
-  private static String hashTreeExe = "src/hash_tree";
-
   @ArgumentParser.Option(name="corpus", gloss="The stream (or file) to read the corpus from")
   private static InputStream corpus = System.in;
 
-  private static BufferedReader hasherOut;
-  private static Writer hasherIn;
+  @ArgumentParser.Option(name="threads", gloss="The number of sentences to annotate in parallel, each with its own pipeline")
+  private static int threads = System.getenv("KB_THREADS") == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(System.getenv("KB_THREADS"));
+
+  @ArgumentParser.Option(name="queue_size", gloss="The number of sentences to read ahead of the annotators")
+  private static int queueSize = 1000;
+
+  @ArgumentParser.Option(name="ordered", gloss="If true, write the hashes in the order of the corpus")
+  private static boolean ordered = true;
 
   /**
+   * Hash an entailed fragment, as hash_tree would.
    *
-   * @param fragment
-   * @return
+   * @param fragment The fragment to hash.
+   * @return The hash of the fragment, or {@link TreeHash#NO_HASH} if it could not be hashed.
    */
-  private static synchronized BigInteger hashEntailment(SemanticGraph fragment) {
-    // Get the c processor
-    if (hasherOut == null || hasherIn == null) {
-      try {
-        ProcessBuilder hasherBuilder = new ProcessBuilder(hashTreeExe);
-        Process hasher = hasherBuilder.start();
-        // Gobble errors
-        Writer errWriter = new BufferedWriter(new OutputStreamWriter(System.err));
-        StreamGobbler errGobbler = new StreamGobbler(hasher.getErrorStream(), errWriter);
-        errGobbler.start();
-
-        hasherOut = new BufferedReader(new InputStreamReader(hasher.getInputStream()));
-        hasherIn = new OutputStreamWriter(new BufferedOutputStream(hasher.getOutputStream()));
-
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
-
+  private static long hashEntailment(SemanticGraph fragment) {
     try {
-      String dump = ProcessQuery.conllDump(fragment, false, false);
-      // Write tree
-      hasherIn.write(dump);
-      hasherIn.write('\n');
-      hasherIn.flush();
-      //Read hash
-      return new BigInteger(hasherOut.readLine());
+      return TreeHash.hash(fragment);
     } catch (Exception e) {
       System.err.println("Exception from hasher: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
-      return new BigInteger("-1");
+      return TreeHash.NO_HASH;
     }
   }
 
   /**
-   *
-   * @param args
-   * @throws IOException
+   * Create the pipeline to annotate the corpus with.
    */
-  public static void main(String[] args) throws IOException {
-    ArgumentParser.fillOptions(CreateKnowledgeBase.class, args);
-    long startTime = System.currentTimeMillis();
-
-    // Create a StanfordCoreNLP pipeline
+  private static StanfordCoreNLP constructPipeline() {
     Properties props = new Properties();
     props.setProperty("annotators", "tokenize,ssplit,pos,lemma,depparse,natlog,openie");
     props.setProperty("openie.splitter.threshold", "0.10");
@@ -96,54 +71,70 @@ public class CreateKnowledgeBase {
 //    props.setProperty("openie.splitter.model", "/home/gabor/tmp/clauseSplitterModel_all.ser.gz");
 //    props.setProperty("openie.affinity_models", "/home/gabor/workspace/naturalli/etc/");
     props.setProperty("ssplit.isOneSentence", "true");
-    StanfordCoreNLP pipeline = new StanfordCoreNLP(props);
-
-    // Process the input
-    BufferedReader reader = new BufferedReader(new InputStreamReader(corpus));
-    String line;
-    int linesread = 0;
-    while ( (line = reader.readLine()) != null) {
-      // Variables we'll need
-      String id = "?";  // The default ID
-      Annotation doc;
+    return new StanfordCoreNLP(props);
+  }
 
-      // Read the sentence
-      if (line.trim().equals("")) { continue; }
-      if (line.contains("\t")) {
-        String[] fields = line.split("\t");
-        if (fields.length == 1) { continue; }
-        if (fields.length != 2) {
-          throw new IllegalArgumentException("Malformed line: " + line);
-        }
-        if (fields[1].trim().equals("")) { continue; }
-        id = fields[0].trim();
-        doc = new Annotation(fields[1].trim());
-      } else {
-        doc = new Annotation(line.trim());
+  /**
+   * Annotate a line of the corpus, and hash its entailments.
+   *
+   * @param pipeline The pipeline to annotate the sentence with.
+   * @param line The line of the corpus: either a sentence, or an id and a sentence separated by a tab.
+   *
+   * @return The lines of the knowledge base for this sentence: the id, a tab, and the hash of an entailment.
+   */
+  static List<String> hashLine(StanfordCoreNLP pipeline, String line) {
+    // Variables we'll need
+    String id = "?";  // The default ID
+    Annotation doc;
+    List<String> output = new ArrayList<>();
+
+    // Read the sentence
+    if (line.contains("\t")) {
+      String[] fields = line.split("\t");
+      if (fields.length == 1) { return output; }
+      if (fields.length != 2) {
+        throw new IllegalArgumentException("Malformed line: " + line);
       }
+      if (fields[1].trim().equals("")) { return output; }
+      id = fields[0].trim();
+      doc = new Annotation(fields[1].trim());
+    } else {
+      doc = new Annotation(line.trim());
+    }
 
-      // Annotate the sentence
-      pipeline.annotate(doc);
-      CoreMap sentence = doc.get(CoreAnnotations.SentencesAnnotation.class).get(0);
-      Collection<SentenceFragment> fragments = sentence.get(NaturalLogicAnnotations.EntailedSentencesAnnotation.class);
-      if (fragments != null) {
-        for (SentenceFragment fragment : fragments) {
-          // Add the hash
-          BigInteger hash = hashEntailment(fragment.parseTree);
-          if (!hash.equals(new BigInteger("-1"))) {
-            System.out.println(id + '\t' + hash.toString());
-          }
+    // Annotate the sentence
+    pipeline.annotate(doc);
+    CoreMap sentence = doc.get(CoreAnnotations.SentencesAnnotation.class).get(0);
+    Collection<SentenceFragment> fragments = sentence.get(NaturalLogicAnnotations.EntailedSentencesAnnotation.class);
+    if (fragments != null) {
+      for (SentenceFragment fragment : fragments) {
+        // Add the hash
+        long hash = hashEntailment(fragment.parseTree);
+        if (hash != TreeHash.NO_HASH) {
+          output.add(id + '\t' + Long.toUnsignedString(hash));
         }
       }
-
-      // Debug
-      linesread += 1;
-      if (linesread % 1000 == 0) {
-        System.err.println("  Read " + (linesread / 1000) + "k lines: " + Redwood.formatTimeDifference(System.currentTimeMillis() - startTime));
-      }
     }
+    return output;
+  }
 
+  /**
+   * Read the corpus, and write the hash of every entailment of every sentence to stdout.
+   *
+   * @param args The command line options; see the options on this class.
+   * @throws IOException Thrown if the corpus could not be read.
+   */
+  public static void main(String[] args) throws IOException {
+    ArgumentParser.fillOptions(CreateKnowledgeBase.class, args);
 
-
+    // Annotate and hash the corpus
+    PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)), false);
+    CorpusPipeline<StanfordCoreNLP, List<String>> kb = new CorpusPipeline<>(
+        CreateKnowledgeBase.class.getSimpleName(), threads, queueSize, ordered,
+        CreateKnowledgeBase::constructPipeline,
+        CreateKnowledgeBase::hashLine,
+        (index, lines) -> lines.forEach(out::println));
+    kb.run(new BufferedReader(new InputStreamReader(corpus)));
+    out.flush();
   }
 }
@@ -0,0 +1,317 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.util.Pointer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A memoized version of {@link ProcessPremise#streamForwardEntailments(String, StanfordCoreNLP)}, with the entailed
+ * trees already rendered as CoNLL and/or hashed, since that is all that the callers do with them.
+ * A caller asks for only the {@link Field}s it needs (e.g., {@link HashCorpus} only needs the hashes), and only those
+ * are computed and stored.
+ * The cache is keyed on the whitespace-normalized premise, the parser, the fields, and whether meronyms are marked in
+ * the dump; so, parsing a premise and generating its entailments is paid once per unique premise, which matters since
+ * the same premises (e.g., boilerplate science facts) recur constantly in our corpora.
+ *
+ * The entailments of a premise are deduplicated by their CoNLL dump, or by their hash if we only hash them.
+ * Concurrent requests for the same premise are also deduplicated: the first computes the entailments, and the rest
+ * wait for it.
+ *
+ * Entries are kept in an in-memory {@link LRUCache}, bounded by the approximate size of the entailments in bytes.
+ * Optionally, they are also written to a {@link SegmentLog}, so that re-runs start warm. Each record is the key, and
+ * the list of entailments: the number of entailments, followed by the gloss of each and whichever of its CoNLL dump,
+ * human readable dump (as length-prefixed UTF-8 strings) and hash were asked for.
+ *
+ * @author Gabor Angeli
+ */
+public class EntailmentCache {
+
+  /** A rendering of an entailed fragment that a caller may ask for. */
+  public enum Field {
+    /** The CoNLL dump of the fragment's tree. */
+    CONLL,
+    /** The human readable CoNLL dump of the fragment's tree. */
+    READABLE,
+    /** The hash of the fragment's tree. */
+    HASH,
+  }
+
+  /** A single entailed fragment of a premise. */
+  public static class Entailment {
+    /** The text of the fragment; see {@link SentenceFragment#toString()}. */
+    public final String gloss;
+    /**
+     * The CoNLL dump of the fragment's tree; see {@link ProcessQuery#conllDump(edu.stanford.nlp.semgraph.SemanticGraph, Pointer, boolean, boolean)}.
+     * This is null unless {@link Field#CONLL} was asked for.
+     */
+    public final String conll;
+    /** The human readable CoNLL dump of the fragment's tree. This is null unless {@link Field#READABLE} was asked for. */
+    public final String readable;
+    /**
+     * The hash of the fragment's tree, or {@link TreeHash#NO_HASH}; see {@link TreeHash#hash(edu.stanford.nlp.semgraph.SemanticGraph)}.
+     * This is {@link TreeHash#NO_HASH} unless {@link Field#HASH} was asked for.
+     */
+    public final long hash;
+
+    public Entailment(String gloss, String conll, String readable, long hash) {
+      this.gloss = gloss;
+      this.conll = conll;
+      this.readable = readable;
+      this.hash = hash;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+      return gloss;
+    }
+  }
+
+  private final LRUCache<String, List<Entailment>> memory;
+  /** The records on disk, or null if we only cache in memory. */
+  private final SegmentLog disk;
+  /** The premises being computed right now, so that concurrent requests for the same premise compute it once. */
+  private final ConcurrentHashMap<String, CompletableFuture<List<Entailment>>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Create a new entailment cache.
+   *
+   * @param maxBytes The approximate maximum size of the entailments to keep in memory, in bytes; see {@link EntailmentCache#weight(List)}.
+   * @param segmentDir The directory to persist entailments to, or null to only cache in memory.
+   * @param fingerprint A fingerprint of the models the entailments were computed with; persisted entailments
+   *                    with a different fingerprint are discarded. See {@link SegmentLog}.
+   *
+   * @throws IOException Thrown if we could not read or create the segment directory.
+   */
+  public EntailmentCache(long maxBytes, File segmentDir, String fingerprint) throws IOException {
+    this.memory = new LRUCache<>(maxBytes, EntailmentCache::weight);
+    this.disk = segmentDir == null ? null : new SegmentLog(segmentDir, "entailments", 1, fingerprint);
+  }
+
+  /**
+   * The approximate size of a list of entailments in memory, in bytes: two bytes per character of every string,
+   * plus a rough constant for the objects themselves.
+   */
+  static long weight(List<Entailment> entailments) {
+    long weight = 64;
+    for (Entailment entailment : entailments) {
+      weight += 64 + 2L * entailment.gloss.length();
+      weight += entailment.conll == null ? 0 : 40 + 2L * entailment.conll.length();
+      weight += entailment.readable == null ? 0 : 40 + 2L * entailment.readable.length();
+    }
+    return weight;
+  }
+
+  /** The normalized cache key for a premise. */
+  static String key(String parser, boolean doMeronym, Set<Field> fields, String premise) {
+    return parser + "\t" + doMeronym + "\t" + new TreeSet<>(fields) + "\t" + premise.trim().replaceAll("\\s+", " ");
+  }
+
+  /**
+   * Compute the entailments of a premise, uncached.
+   * A fragment which cannot be dumped or hashed is logged and skipped, unless we were asked for its dump and only
+   * its hash failed, in which case its hash is {@link TreeHash#NO_HASH}.
+   */
+  static List<Entailment> compute(String premise, StanfordCoreNLP pipeline, boolean doMeronym, Set<Field> fields) {
+    boolean dump = fields.contains(Field.CONLL) || fields.contains(Field.READABLE);
+    Map<Object, Entailment> entailments = new LinkedHashMap<>();
+    ProcessPremise.streamForwardEntailments(premise, pipeline).forEach(fragment -> {
+      try {
+        // Compute the tokens (and sanitize the arcs) of the tree once, for both the dump and the hash.
+        // The meronym triggers only go into the dump, so the hash is the same as TreeHash.hash(SemanticGraph).
+        ConllTree tree = ProcessQuery.conllTree(fragment.parseTree, false, doMeronym);
+        String conll = null;
+        Pointer<String> readable = new Pointer<>();
+        if (dump) {
+          conll = ProcessQuery.conllDump(fragment.parseTree, tree, readable);
+          if (entailments.containsKey(conll)) {
+            return;
+          }
+        }
+        long hash = TreeHash.NO_HASH;
+        if (fields.contains(Field.HASH)) {
+          try {
+            hash = TreeHash.hash(tree, StaticResources.DEPENDENCY_INDEX.get());
+          } catch (RuntimeException e) {
+            System.err.println("Could not hash entailment '" + fragment + "': " + e.getMessage());
+            if (!dump) {
+              return;
+            }
+          }
+        }
+        Object dedupeKey = dump ? conll : (Object) hash;
+        if (!entailments.containsKey(dedupeKey)) {
+          entailments.put(dedupeKey, new Entailment(fragment.toString(),
+              fields.contains(Field.CONLL) ? conll : null,
+              fields.contains(Field.READABLE) ? readable.dereference().orElse("") : null,
+              hash));
+        }
+      } catch (RuntimeException e) {
+        System.err.println("Could not dump entailment '" + fragment + "': " + e.getClass().getSimpleName() + ": " + e.getMessage());
+      }
+    });
+    return Collections.unmodifiableList(new ArrayList<>(entailments.values()));
+  }
+
+  /**
+   * Find the forward entailments of a premise, or return the cached entailments if we have seen it before.
+   *
+   * @param premise The premise.
+   * @param parser The parser of the pipeline; e.g., "parse" or "depparse". See {@link ProcessPremise#constructPipeline(String)}.
+   * @param pipeline The pipeline to annotate the premise with, if it is not cached.
+   * @param doMeronym If true, mark meronym triggers in the CoNLL dump.
+   * @param fields The renderings of each entailment to compute and store; the others are left empty.
+   */
+  public List<Entailment> forwardEntailments(String premise, String parser, StanfordCoreNLP pipeline, boolean doMeronym, Set<Field> fields) {
+    return get(key(parser, doMeronym, fields, premise), fields, () -> compute(premise, pipeline, doMeronym, fields));
+  }
+
+  /**
+   * Find the forward entailments of a premise, or return the cached entailments if we have seen it before.
+   * A pipeline is only leased from {@link ProcessPremise#pipelinePool(String)} if the premise is not cached.
+   *
+   * @see EntailmentCache#forwardEntailments(String, String, StanfordCoreNLP, boolean, Set)
+   */
+  public List<Entailment> forwardEntailments(String premise, String parser, boolean doMeronym, Set<Field> fields) {
+    return get(key(parser, doMeronym, fields, premise), fields, () -> {
+      try (PipelinePool.Lease lease = ProcessPremise.pipelinePool(parser).lease()) {
+        return compute(premise, lease.pipeline, doMeronym, fields);
+      }
+    });
+  }
+
+  /** Read a length-prefixed UTF-8 string. */
+  private static String readString(DataInput in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** Write a length-prefixed UTF-8 string. */
+  private static void writeString(DataOutput out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /** Read the entailments of a premise from disk, if they are there. The record has exactly the given fields. */
+  private List<Entailment> readFromDisk(String key, Set<Field> fields) throws IOException {
+    byte[][] record = disk.read(key);
+    if (record == null) {
+      return null;
+    }
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record[0]));
+    int size = in.readInt();
+    List<Entailment> entailments = new ArrayList<>(size);
+    for (int i = 0; i < size; ++i) {
+      String gloss = readString(in);
+      String conll = fields.contains(Field.CONLL) ? readString(in) : null;
+      String readable = fields.contains(Field.READABLE) ? readString(in) : null;
+      long hash = fields.contains(Field.HASH) ? in.readLong() : TreeHash.NO_HASH;
+      entailments.add(new Entailment(gloss, conll, readable, hash));
+    }
+    return Collections.unmodifiableList(entailments);
+  }
+
+  /** Append the entailments of a premise to disk, with only the given fields. */
+  private void writeToDisk(String key, Set<Field> fields, List<Entailment> entailments) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(entailments.size());
+    for (Entailment entailment : entailments) {
+      writeString(out, entailment.gloss);
+      if (fields.contains(Field.CONLL)) {
+        writeString(out, entailment.conll);
+      }
+      if (fields.contains(Field.READABLE)) {
+        writeString(out, entailment.readable);
+      }
+      if (fields.contains(Field.HASH)) {
+        out.writeLong(entailment.hash);
+      }
+    }
+    disk.append(key, bytes.toByteArray());
+  }
+
+  /**
+   * Get the entailments of a premise from the cache, checking memory and then disk, or else compute and cache them.
+   * If another thread is already computing them, wait for it instead.
+   *
+   * @param key The normalized key of the premise.
+   * @param fields The fields of the entailments, as in the key.
+   * @param compute The function to compute the entailments, if they are not cached.
+   */
+  List<Entailment> get(String key, Set<Field> fields, Supplier<List<Entailment>> compute) {
+    // Check memory
+    List<Entailment> value = memory.get(key);
+    if (value != null) {
+      return value;
+    }
+    // Wait for whoever is computing this already
+    CompletableFuture<List<Entailment>> mine = new CompletableFuture<>();
+    CompletableFuture<List<Entailment>> theirs = inFlight.putIfAbsent(key, mine);
+    if (theirs != null) {
+      try {
+        return theirs.join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw e;
+      }
+    }
+    try {
+      // Check disk
+      if (disk != null) {
+        try {
+          value = readFromDisk(key, fields);
+        } catch (IOException e) {
+          System.err.println("Could not read entailment cache: " + e.getMessage());
+        }
+      }
+      // Compute
+      if (value == null) {
+        value = compute.get();
+        if (disk != null) {
+          try {
+            writeToDisk(key, fields, value);
+          } catch (IOException e) {
+            System.err.println("Could not write entailment cache: " + e.getMessage());
+          }
+        }
+      }
+      memory.put(key, value);
+      mine.complete(value);
+      return value;
+    } catch (RuntimeException | Error e) {
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, mine);
+    }
+  }
+
+  /** The in-memory cache, e.g., for its hit and miss counts. */
+  public LRUCache<String, List<Entailment>> memory() {
+    return memory;
+  }
+
+  /** The number of premises stored on disk. */
+  public int diskSize() {
+    return disk == null ? 0 : disk.size();
+  }
+
+  /** Close the current segment file. The cache can still be used afterwards. */
+  public void close() throws IOException {
+    if (disk != null) {
+      disk.close();
+    }
+  }
+}
@@ -0,0 +1,399 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.stanford.nlp.util.ArgumentParser;
+import edu.stanford.nlp.util.logging.Redwood;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorted, deduplicated runs of hashed facts -- (fact hash, sentence index) pairs -- and an external merge sort over
+ * them, so that building the fact database does not round trip every hash through decimal text.
+ *
+ * <ul>
+ *   <li>{@link FactRuns.Writer} buffers pairs off-heap, and whenever the buffer fills up, sorts and deduplicates it
+ *       in place and writes it out as a run.</li>
+ *   <li>{@link FactRuns.Reader} reads a run back, one pair at a time.</li>
+ *   <li>{@link FactRuns#merge(List, FactConsumer)} merges any number of runs into a single sorted, deduplicated
+ *       stream; e.g., into a single run ({@link FactRuns#mergeToRun(List, File)}) or into a knowledge base
+ *       ({@link FactRuns#mergeToKB(List, File)}). This class' main method does the same from the command line.</li>
+ * </ul>
+ *
+ * A run is a little-endian file: the magic number "NLF1" as an int, the number of pairs as a long, and then 12 bytes
+ * per pair: the hash as a long, and the sentence index as an int. Pairs are sorted by the hash as an unsigned value
+ * (the order of a uint64_t in C++), and then by sentence index, with no duplicates.
+ *
+ * The knowledge base is the format that write_kb writes and readKB() in FactDB.cc reads: every unique hash as a
+ * little-endian uint64_t, with no header. Since it is sorted, readKB() can also bulk load it.
+ *
+ * @author Gabor Angeli
+ */
+public class FactRuns {
+
+  /** The magic number at the start of a run ("NLF1"). */
+  static final int MAGIC = 0x4E4C4631;
+  /** The size of the header of a run: the magic number and the number of pairs. */
+  static final int HEADER_BYTES = 4 + 8;
+  /** The size of a single (hash, sentence) pair in a run. */
+  static final int BYTES_PER_FACT = 8 + 4;
+
+  @ArgumentParser.Option(name="runs", gloss="The runs to merge", required=true)
+  private static List<File> runs = new ArrayList<>();
+  @ArgumentParser.Option(name="out.kb", gloss="Write the unique hashes in the runs as a knowledge base, as write_kb would")
+  private static File kbOutput = null;
+  @ArgumentParser.Option(name="out.run", gloss="Write the merged (hash, sentence) pairs as a single run")
+  private static File runOutput = null;
+
+  private FactRuns() { }  // static methods
+
+  /** Something that accepts a stream of (hash, sentence) pairs. */
+  @FunctionalInterface
+  public interface FactConsumer {
+    void accept(long hash, int sentence) throws IOException;
+  }
+
+  /** Compare two pairs: by hash as an unsigned value, and then by sentence. */
+  static int compare(long hashA, int sentenceA, long hashB, int sentenceB) {
+    int hashOrder = Long.compareUnsigned(hashA, hashB);
+    return hashOrder != 0 ? hashOrder : Integer.compare(sentenceA, sentenceB);
+  }
+
+  /**
+   * Buffers (hash, sentence) pairs off-heap, and writes them out as sorted, deduplicated runs of at most
+   * a fixed number of pairs. The memory used is fixed at construction, regardless of how many pairs are added.
+   * This is not threadsafe; e.g., add pairs from the writer of a {@link CorpusPipeline}.
+   */
+  public static class Writer implements Closeable {
+    private final File directory;
+    private final String prefix;
+    private final int runSize;
+    /** The pairs of the current run, as they will be written to disk. */
+    private final ByteBuffer buffer;
+    private int size = 0;
+    private final List<File> runs = new ArrayList<>();
+    private long pairsAdded = 0;
+    private long pairsWritten = 0;
+
+    /**
+     * Create a new run writer.
+     *
+     * @param directory The directory to write the runs into.
+     * @param prefix The prefix of the name of every run; the runs are named prefix.00000.run, prefix.00001.run, etc.
+     * @param runSize The most pairs to buffer before sorting them and writing them out, at 12 bytes each.
+     */
+    public Writer(File directory, String prefix, int runSize) {
+      if (runSize < 1 || runSize > (Integer.MAX_VALUE - HEADER_BYTES) / BYTES_PER_FACT) {
+        throw new IllegalArgumentException("Invalid run size: " + runSize);
+      }
+      this.directory = directory;
+      this.prefix = prefix;
+      this.runSize = runSize;
+      this.buffer = ByteBuffer.allocateDirect(HEADER_BYTES + runSize * BYTES_PER_FACT).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Add a pair, writing out a run if the buffer is full. */
+    public void add(long hash, int sentence) throws IOException {
+      if (size == runSize) {
+        flush();
+      }
+      int offset = HEADER_BYTES + size * BYTES_PER_FACT;
+      buffer.putLong(offset, hash);
+      buffer.putInt(offset + 8, sentence);
+      size += 1;
+      pairsAdded += 1;
+    }
+
+    /** Add a pair, checking that the sentence index fits in a run. */
+    public void add(long hash, long sentence) throws IOException {
+      if (sentence < 0 || sentence > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Sentence index does not fit in a run: " + sentence);
+      }
+      add(hash, (int) sentence);
+    }
+
+    private long hash(int i) {
+      return buffer.getLong(HEADER_BYTES + i * BYTES_PER_FACT);
+    }
+
+    private int sentence(int i) {
+      return buffer.getInt(HEADER_BYTES + i * BYTES_PER_FACT + 8);
+    }
+
+    private int compare(int i, int j) {
+      return FactRuns.compare(hash(i), sentence(i), hash(j), sentence(j));
+    }
+
+    private void swap(int i, int j) {
+      long hash = hash(i);
+      int sentence = sentence(i);
+      buffer.putLong(HEADER_BYTES + i * BYTES_PER_FACT, hash(j));
+      buffer.putInt(HEADER_BYTES + i * BYTES_PER_FACT + 8, sentence(j));
+      buffer.putLong(HEADER_BYTES + j * BYTES_PER_FACT, hash);
+      buffer.putInt(HEADER_BYTES + j * BYTES_PER_FACT + 8, sentence);
+    }
+
+    /** Sort the pairs in [begin, end) in place: a quicksort, recursing on the smaller half. */
+    private void sort(int begin, int end) {
+      while (end - begin > 16) {
+        // Median of three pivot, moved to the front
+        int middle = (begin + end) >>> 1;
+        if (compare(middle, begin) < 0) { swap(middle, begin); }
+        if (compare(end - 1, begin) < 0) { swap(end - 1, begin); }
+        if (compare(end - 1, middle) < 0) { swap(end - 1, middle); }
+        swap(begin, middle);
+        // Partition
+        int lo = begin + 1;
+        int hi = end - 1;
+        while (true) {
+          while (compare(lo, begin) < 0) { lo += 1; }
+          while (compare(hi, begin) > 0) { hi -= 1; }
+          if (lo >= hi) { break; }
+          swap(lo, hi);
+          lo += 1;
+          hi -= 1;
+        }
+        swap(begin, hi);
+        if (hi - begin < end - hi) {
+          sort(begin, hi);
+          begin = hi + 1;
+        } else {
+          sort(hi + 1, end);
+          end = hi;
+        }
+      }
+      // Insertion sort the rest
+      for (int i = begin + 1; i < end; ++i) {
+        for (int j = i; j > begin && compare(j, j - 1) < 0; --j) {
+          swap(j, j - 1);
+        }
+      }
+    }
+
+    /** Sort and deduplicate the buffered pairs, and write them out as a run. */
+    public void flush() throws IOException {
+      if (size == 0) {
+        return;
+      }
+      // Sort + deduplicate
+      sort(0, size);
+      int unique = 1;
+      for (int i = 1; i < size; ++i) {
+        if (compare(i, unique - 1) != 0) {
+          if (i != unique) {
+            buffer.putLong(HEADER_BYTES + unique * BYTES_PER_FACT, hash(i));
+            buffer.putInt(HEADER_BYTES + unique * BYTES_PER_FACT + 8, sentence(i));
+          }
+          unique += 1;
+        }
+      }
+      // Write
+      buffer.putInt(0, MAGIC);
+      buffer.putLong(4, unique);
+      File run = new File(directory, String.format("%s.%05d.run", prefix, runs.size()));
+      try (FileChannel channel = FileChannel.open(run.toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        buffer.clear();
+        buffer.limit(HEADER_BYTES + unique * BYTES_PER_FACT);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        buffer.clear();
+      }
+      runs.add(run);
+      pairsWritten += unique;
+      size = 0;
+    }
+
+    /** The runs written so far, in the order they were written. */
+    public List<File> runs() {
+      return Collections.unmodifiableList(runs);
+    }
+
+    /** The number of pairs added so far. */
+    public long pairsAdded() {
+      return pairsAdded;
+    }
+
+    /** The number of pairs written to runs so far, after deduplicating each run. */
+    public long pairsWritten() {
+      return pairsWritten;
+    }
+
+    /** Write out the last run. */
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
+  /** Reads a run, one pair at a time. */
+  public static class Reader implements Closeable {
+    private final DataInputStream in;
+    /** The number of pairs left to read, after the current one. */
+    private long remaining;
+    private long hash;
+    private int sentence;
+
+    public Reader(File run) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+      if (Integer.reverseBytes(in.readInt()) != MAGIC) {
+        in.close();
+        throw new IOException("Not a run of hashed facts (bad magic number): " + run);
+      }
+      this.remaining = Long.reverseBytes(in.readLong());
+    }
+
+    /**
+     * Read the next pair.
+     * @return False if the run is exhausted.
+     */
+    public boolean next() throws IOException {
+      if (remaining == 0) {
+        return false;
+      }
+      hash = Long.reverseBytes(in.readLong());
+      sentence = Integer.reverseBytes(in.readInt());
+      remaining -= 1;
+      return true;
+    }
+
+    /** The hash of the current pair. */
+    public long hash() {
+      return hash;
+    }
+
+    /** The sentence index of the current pair. */
+    public int sentence() {
+      return sentence;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Merge a number of runs (a k-way merge, with a heap of the head of every run) into a single stream of pairs,
+   * sorted as a run is, and deduplicated across runs.
+   *
+   * @param runs The runs to merge.
+   * @param output The consumer of the merged pairs.
+   *
+   * @return The number of pairs passed to the consumer.
+   */
+  public static long merge(List<File> runs, FactConsumer output) throws IOException {
+    PriorityQueue<Reader> heads = new PriorityQueue<>(Math.max(1, runs.size()),
+        (a, b) -> compare(a.hash(), a.sentence(), b.hash(), b.sentence()));
+    List<Reader> readers = new ArrayList<>();
+    try {
+      for (File run : runs) {
+        Reader reader = new Reader(run);
+        readers.add(reader);
+        if (reader.next()) {
+          heads.add(reader);
+        }
+      }
+      long count = 0;
+      boolean first = true;
+      long lastHash = 0;
+      int lastSentence = 0;
+      while (!heads.isEmpty()) {
+        Reader head = heads.poll();
+        long hash = head.hash();
+        int sentence = head.sentence();
+        if (first || hash != lastHash || sentence != lastSentence) {
+          output.accept(hash, sentence);
+          count += 1;
+          first = false;
+          lastHash = hash;
+          lastSentence = sentence;
+        }
+        if (head.next()) {
+          heads.add(head);
+        }
+      }
+      return count;
+    } finally {
+      for (Reader reader : readers) {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * Merge a number of runs into a single run.
+   * @return The number of pairs in the merged run.
+   */
+  public static long mergeToRun(List<File> runs, File output) throws IOException {
+    File tmp = new File(output.getPath() + ".tmp");
+    long count;
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+      out.writeInt(Integer.reverseBytes(MAGIC));
+      out.writeLong(0L);  // the count, filled in below
+      count = merge(runs, (hash, sentence) -> {
+        out.writeLong(Long.reverseBytes(hash));
+        out.writeInt(Integer.reverseBytes(sentence));
+      });
+    }
+    // Fill in the count
+    try (RandomAccessFile file = new RandomAccessFile(tmp, "rw")) {
+      file.seek(4);
+      file.writeLong(Long.reverseBytes(count));
+    }
+    if (!tmp.renameTo(output)) {
+      throw new IOException("Could not move merged run to " + output);
+    }
+    return count;
+  }
+
+  /**
+   * Merge a number of runs into a knowledge base, as write_kb would write it: every unique hash
+   * (ignoring sentences), as a little-endian uint64_t.
+   * @return The number of unique hashes in the knowledge base.
+   */
+  public static long mergeToKB(List<File> runs, File output) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 16))) {
+      long[] count = new long[]{ 0 };
+      boolean[] first = new boolean[]{ true };
+      long[] lastHash = new long[]{ 0 };
+      merge(runs, (hash, sentence) -> {
+        if (first[0] || hash != lastHash[0]) {
+          out.writeLong(Long.reverseBytes(hash));
+          count[0] += 1;
+          first[0] = false;
+          lastHash[0] = hash;
+        }
+      });
+      return count[0];
+    }
+  }
+
+  /**
+   * Merge runs written by {@link HashCorpus} into a single run, or into a knowledge base.
+   */
+  public static void main(String[] args) throws IOException {
+    ArgumentParser.fillOptions(FactRuns.class, args);
+    if (kbOutput == null && runOutput == null) {
+      throw new IllegalArgumentException("Nothing to do: set out.kb and/or out.run");
+    }
+    long startTime = System.currentTimeMillis();
+    if (runOutput != null) {
+      long count = mergeToRun(runs, runOutput);
+      System.err.println("[" + Redwood.formatTimeDifference(System.currentTimeMillis() - startTime) + "] Merged " + runs.size() + " runs into " + count + " pairs: " + runOutput);
+    }
+    if (kbOutput != null) {
+      // Merging the single merged run is cheaper than merging the originals again
+      List<File> input = runOutput != null ? Collections.singletonList(runOutput) : runs;
+      long count = mergeToKB(input, kbOutput);
+      System.err.println("[" + Redwood.formatTimeDifference(System.currentTimeMillis() - startTime) + "] Wrote " + count + " unique facts: " + kbOutput);
+    }
+  }
+}
@@ -1,138 +1,154 @@
 package edu.stanford.nlp.naturalli;
 
 import edu.stanford.nlp.pipeline.StanfordCoreNLP;
-import edu.stanford.nlp.semgraph.SemanticGraph;
+import edu.stanford.nlp.io.RuntimeIOException;
 import edu.stanford.nlp.util.ArgumentParser;
-import edu.stanford.nlp.util.StreamGobbler;
-import edu.stanford.nlp.util.logging.Redwood;
 
 import java.io.*;
-import java.math.BigInteger;
-import java.util.HashSet;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 /**
  * A script that takes a block of text as input, one sentence per line, and dumps a table of hashed
  * facts and a table of sentences linked to those facts.
+ * The hashed facts can be written as text, or as sorted binary runs to be merged into the fact database
+ * with {@link FactRuns}.
  *
  * @author Gabor Angeli
  */
 @SuppressWarnings("FieldCanBeLocal")
 public class HashCorpus {
 
-  @ArgumentParser.Option(name="hash_tree.exe", gloss="The location of the hash_tree utility")
-  private static String hashTreeExe = "/home/gabor/workspace/naturalli/src/hash_tree";
-
   @ArgumentParser.Option(name="in", gloss="Input to read from")
   private static InputStream in = System.in;
   @ArgumentParser.Option(name="err", gloss="Output to debug to")
   private static PrintStream err = System.err;
 
-  @ArgumentParser.Option(name="mod", gloss="The number of parallel jobs")
+  @ArgumentParser.Option(name="mod", gloss="The number of parallel jobs (e.g., on different machines), each with its own shard of the corpus")
   private static int mod = 1;
   @ArgumentParser.Option(name="offset", gloss="The index of this job, in [0, mod)")
   private static int offset = 0;
 
-  @ArgumentParser.Option(name="out.hashes", gloss="The file to write the hashed facts to", required=true)
+  @ArgumentParser.Option(name="threads", gloss="The number of worker threads in this job, each with its own CoreNLP pipeline")
+  private static int threads = System.getenv("HASH_CORPUS_THREADS") == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(System.getenv("HASH_CORPUS_THREADS"));
+  @ArgumentParser.Option(name="queue_size", gloss="The number of sentences to read ahead of the workers")
+  private static int queueSize = 1000;
+
+  @ArgumentParser.Option(name="out.hashes", gloss="The file to write the hashed facts to, as text")
   private static PrintStream hashOutput = null;
+  @ArgumentParser.Option(name="out.runs", gloss="The directory to write the hashed facts to, as sorted binary runs (see FactRuns)")
+  private static File runOutput = null;
+  @ArgumentParser.Option(name="run_size", gloss="The number of hashed facts to buffer (at 12 bytes each) before sorting them into a run")
+  private static int runSize = 1 << 24;
   @ArgumentParser.Option(name="out.sentences", gloss="The file to write the indexed sentences to", required=true)
   private static PrintStream sentenceOutput = null;
 
-  private static BufferedReader hasherOut;
-  private static Writer hasherIn;
-
-  private static synchronized BigInteger hashEntailment(SemanticGraph fragment) {
-    // Get the java processor
-
-    // Get the c processor
-    if (hasherOut == null || hasherIn == null) {
-      try {
-        ProcessBuilder hasherBuilder = new ProcessBuilder(hashTreeExe);
-        Process hasher = hasherBuilder.start();
-        // Gobble errors
-        Writer errWriter = new BufferedWriter(new OutputStreamWriter(err));
-        StreamGobbler errGobbler = new StreamGobbler(hasher.getErrorStream(), errWriter);
-        errGobbler.start();
+  /**
+   * Normalize a line of the corpus into the sentence we index: trimmed, and ending in punctuation.
+   */
+  private static String normalize(String line) {
+    line = line.trim();
+    if ((line.charAt(line.length() - 1) >= 'a' && line.charAt(line.length() - 1) <= 'z') ||
+        (line.charAt(line.length() - 1) >= 'A' && line.charAt(line.length() - 1) <= 'Z') ) {
+      line = line + ".";
+    }
+    return line;
+  }
 
-        hasherOut = new BufferedReader(new InputStreamReader(hasher.getInputStream()));
-        hasherIn = new OutputStreamWriter(new BufferedOutputStream(hasher.getOutputStream()));
+  /** A sentence of the corpus, with the hashes of its entailed facts. */
+  private static class HashedSentence {
+    final String sentence;
+    /** The unique hashes of the facts entailed by the sentence, in the order they were found. */
+    final Set<Long> hashes = new LinkedHashSet<>();
+    /** The error we hit processing this sentence, if any. The sentence is written regardless. */
+    String error = null;
 
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+    HashedSentence(String sentence) {
+      this.sentence = sentence;
     }
+  }
 
+  /**
+   * Hash the facts entailed by a sentence. This is called from many workers at once.
+   * The entailments (and their hashes) are cached, since the same sentences recur throughout a corpus;
+   * see {@link StaticResources#ENTAILMENT_CACHE}.
+   */
+  private static HashedSentence hashSentence(StanfordCoreNLP pipeline, String line) {
+    HashedSentence hashed = new HashedSentence(normalize(line));
     try {
-      String dump = ProcessQuery.conllDump(fragment, false, false);
-      if (dump.trim().equals("")) {
-        return new BigInteger("-1");
-      } else {
-        // Write tree
-        hasherIn.write(dump);
-        hasherIn.write('\n');
-        hasherIn.flush();
-        //Read hash
-        return new BigInteger(hasherOut.readLine());
+      for (EntailmentCache.Entailment entailment : StaticResources.ENTAILMENT_CACHE.get().forwardEntailments(hashed.sentence, "depparse", pipeline, false, EnumSet.of(EntailmentCache.Field.HASH))) {
+        if (entailment.hash != 0 && entailment.hash != TreeHash.NO_HASH) {
+          hashed.hashes.add(entailment.hash);
+        }
       }
-    } catch (IOException | NullPointerException e) {
-      System.err.println("Exception from hasher: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
-      return new BigInteger("-1");
-    } catch (IllegalStateException e) {
-      System.err.println("IllegalStateException: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
-      return new BigInteger("-1");
+    } catch (Throwable e) {
+      hashed.error = e.getMessage();
     }
+    return hashed;
   }
 
+  /**
+   * Hash the corpus on {@link HashCorpus#threads} workers in this JVM, each with its own CoreNLP pipeline.
+   * Sentence indices are assigned in input order, exactly as the single threaded loop assigned them: the i'th
+   * (non-blank) line of this job gets index offset + i * mod. So, jobs on different machines can still split a
+   * corpus with --mod and --offset, and the outputs are the same for any number of threads.
+   * A sentence and its hashes are written together, from a single thread, so the two outputs always agree.
+   * If an output cannot be written, hashing stops and the error is thrown from here.
+   */
   public static void main(String[] args) throws IOException {
     ArgumentParser.fillOptions(new Class[]{HashCorpus.class, StaticResources.class}, args);
-
-    StanfordCoreNLP pipeline = ProcessPremise.constructPipeline("depparse");
-
-    BufferedReader stdin = new BufferedReader(new InputStreamReader(in));
-    String line;
-    int linesProcessed = 0;
-    long startTime = System.currentTimeMillis();
-    int sentenceIndex = offset;
-
-    while ((line = stdin.readLine()) != null) {
-      line = line.trim();
-      if (line.equals("")) { continue; }
-      if ((line.charAt(line.length() - 1) >= 'a' && line.charAt(line.length() - 1) <= 'z') ||
-          (line.charAt(line.length() - 1) >= 'A' && line.charAt(line.length() - 1) <= 'Z') ) {
-        line = line + ".";
-      }
-      // Write the sentence info
-      sentenceOutput.println(sentenceIndex + "\t" + line.replace("\t", " "));
-
-      // Write hash(es)
-      try {
-        Set<BigInteger> hashes = new HashSet<>();
-        for (SentenceFragment entailment : ProcessPremise.forwardEntailments(line, pipeline)) {
-          BigInteger hash = hashEntailment(entailment.parseTree);
-          if (hash.compareTo(new BigInteger("0")) > 0) {
-            hashes.add(hash);
-          }
-        }
-        for (BigInteger hash : hashes) {
-          hashOutput.println(hash + "\t" + sentenceIndex);
-        }
-      } catch (Throwable e) {
-        err.println("Error processing sentence " + sentenceIndex + ": " + e.getMessage());
-      }
-
-      // Update sentence index
-      sentenceIndex += mod;
-
-      // Debug
-      linesProcessed += 1;
-      if (linesProcessed % 1000 == 0) {
-        long currTime = System.currentTimeMillis();
-        long sentPerSec = linesProcessed / ( (currTime - startTime)  / 1000 );
-        err.println("[" + Redwood.formatTimeDifference(currTime - startTime) + "] Processed " + linesProcessed + " sentences {" + sentPerSec + " sentences / second}... ");
+    if (hashOutput == null && runOutput == null) {
+      throw new IllegalArgumentException("Nowhere to write the hashed facts: set out.hashes and/or out.runs");
+    }
+    FactRuns.Writer runs = null;
+    if (runOutput != null) {
+      if (!runOutput.isDirectory() && !runOutput.mkdirs()) {
+        throw new IOException("Could not create run directory: " + runOutput);
       }
+      runs = new FactRuns.Writer(runOutput, "facts-" + offset, runSize);
     }
+    final FactRuns.Writer runWriter = runs;
+
+    CorpusPipeline<StanfordCoreNLP, HashedSentence> corpusPipeline = new CorpusPipeline<>(
+        HashCorpus.class.getSimpleName(), threads, queueSize, true,
+        () -> ProcessPremise.constructPipeline("depparse"),
+        HashCorpus::hashSentence,
+        (seq, hashed) -> {
+          long sentenceIndex = offset + seq * mod;
+          // Write the sentence info
+          sentenceOutput.println(sentenceIndex + "\t" + hashed.sentence.replace("\t", " "));
+          // Write hash(es)
+          if (hashed.error != null) {
+            err.println("Error processing sentence " + sentenceIndex + ": " + hashed.error);
+          }
+          for (long hash : hashed.hashes) {
+            if (hashOutput != null) {
+              hashOutput.println(Long.toUnsignedString(hash) + "\t" + sentenceIndex);
+            }
+            if (runWriter != null) {
+              try {
+                runWriter.add(hash, sentenceIndex);
+              } catch (IOException e) {
+                throw new RuntimeIOException(e);
+              }
+            }
+          }
+          // A PrintStream swallows its errors, so check for them here rather than silently losing the output
+          if (sentenceOutput.checkError() || (hashOutput != null && hashOutput.checkError())) {
+            throw new RuntimeIOException(new IOException("Could not write sentence " + sentenceIndex));
+          }
+        }).logTo(err);
+    corpusPipeline.run(new BufferedReader(new InputStreamReader(in)));
 
     sentenceOutput.close();
-    hashOutput.close();
+    if (hashOutput != null) {
+      hashOutput.close();
+    }
+    if (runWriter != null) {
+      runWriter.close();
+      err.println("Wrote " + runWriter.pairsWritten() + " hashed facts in " + runWriter.runs().size() + " runs to " + runOutput +
+          "; merge them with " + FactRuns.class.getName());
+    }
   }
 }
@@ -0,0 +1,199 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.stanford.nlp.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A vocabulary read directly from the vocabulary file (etc/vocab.tab.gz), for when there is no compiled
+ * {@link VocabularyIndex}.
+ *
+ * The file is read exactly once: the case-sensitive phrases, the lowercased phrases and the reverse mapping
+ * from word index to phrase are all filled in the same pass.
+ * The lines are parsed in parallel chunks, and are then merged back in file order, so that
+ * duplicate entries resolve the same way as they would for a HashMap filled line by line (the last line wins).
+ *
+ * @author Gabor Angeli
+ */
+public class InMemoryVocabulary implements Vocabulary {
+
+  /** The number of lines to parse in a single parallel chunk. */
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  /**
+   * A simple open-addressed hash map from Strings to ints, to avoid boxing the word indices.
+   */
+  private static class StringIntMap {
+    private String[] keys = new String[1 << 16];
+    private int[] values = new int[1 << 16];
+    private int size = 0;
+
+    /** Returns the value for the key, or -1 if it is not in the map. */
+    private int get(String key) {
+      int mask = keys.length - 1;
+      for (int i = mix(key.hashCode()) & mask; keys[i] != null; i = (i + 1) & mask) {
+        if (keys[i].equals(key)) {
+          return values[i];
+        }
+      }
+      return -1;
+    }
+
+    private void put(String key, int value) {
+      if (2 * (size + 1) > keys.length) {
+        resize();
+      }
+      int mask = keys.length - 1;
+      int i = mix(key.hashCode()) & mask;
+      while (keys[i] != null) {
+        if (keys[i].equals(key)) {
+          values[i] = value;
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+      keys[i] = key;
+      values[i] = value;
+      size += 1;
+    }
+
+    private void resize() {
+      String[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new String[oldKeys.length * 2];
+      values = new int[oldValues.length * 2];
+      size = 0;
+      for (int i = 0; i < oldKeys.length; ++i) {
+        if (oldKeys[i] != null) {
+          put(oldKeys[i], oldValues[i]);
+        }
+      }
+    }
+
+    private static int mix(int hash) {
+      return hash ^ (hash >>> 16);
+    }
+  }
+
+  /**
+   * A parsed chunk of the vocabulary file.
+   */
+  private static class Chunk {
+    private final int[] indices;
+    private final String[] glosses;
+    private final String[] lowercaseGlosses;
+
+    private Chunk(List<String> lines) {
+      indices = new int[lines.size()];
+      glosses = new String[lines.size()];
+      lowercaseGlosses = new String[lines.size()];
+      for (int i = 0; i < lines.size(); ++i) {
+        String line = lines.get(i);
+        int tab = line.indexOf('\t');
+        int end = line.indexOf('\t', tab + 1);
+        indices[i] = Integer.parseInt(line.substring(0, tab));
+        glosses[i] = line.substring(tab + 1, end < 0 ? line.length() : end);
+        lowercaseGlosses[i] = glosses[i].toLowerCase();  // note: this is the same instance if the gloss is already lowercase
+      }
+    }
+  }
+
+  private final StringIntMap phrases = new StringIntMap();
+  private final StringIntMap lowercasePhrases = new StringIntMap();
+  private String[] surfaceForms = new String[1 << 16];
+  private int maxIndex = 0;
+
+  private InMemoryVocabulary() { }
+
+  /** Add a parsed chunk to the vocabulary. This must be called in file order. */
+  private void merge(Chunk chunk) {
+    for (int i = 0; i < chunk.indices.length; ++i) {
+      int index = chunk.indices[i];
+      phrases.put(chunk.glosses[i], index);
+      lowercasePhrases.put(chunk.lowercaseGlosses[i], index);
+      if (index >= surfaceForms.length) {
+        surfaceForms = Arrays.copyOf(surfaceForms, Math.max(index + 1, surfaceForms.length * 2));
+      }
+      surfaceForms[index] = chunk.glosses[i];
+      maxIndex = Math.max(maxIndex, index + 1);
+    }
+  }
+
+  /**
+   * Read a vocabulary file, in a single pass.
+   *
+   * @param vocabFile The vocabulary file; e.g., etc/vocab.tab.gz.
+   * @return The vocabulary defined by that file.
+   * @throws IOException Thrown if we could not read the file.
+   */
+  public static InMemoryVocabulary load(String vocabFile) throws IOException {
+    InMemoryVocabulary vocab = new InMemoryVocabulary();
+    int maxPending = 2 * ForkJoinPool.commonPool().getParallelism() + 1;
+    Deque<CompletableFuture<Chunk>> pending = new ArrayDeque<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(IOUtils.getInputStreamFromURLOrClasspathOrFileSystem(vocabFile), StandardCharsets.UTF_8))) {
+      List<String> lines = new ArrayList<>(CHUNK_SIZE);
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(line);
+        if (lines.size() >= CHUNK_SIZE) {
+          final List<String> chunk = lines;
+          pending.addLast(CompletableFuture.supplyAsync(() -> new Chunk(chunk)));
+          lines = new ArrayList<>(CHUNK_SIZE);
+          // Don't get too far ahead of the merge
+          while (pending.size() >= maxPending) {
+            vocab.merge(pending.removeFirst().join());
+          }
+        }
+      }
+      if (!lines.isEmpty()) {
+        pending.addLast(CompletableFuture.completedFuture(new Chunk(lines)));
+      }
+    }
+    while (!pending.isEmpty()) {
+      vocab.merge(pending.removeFirst().join());
+    }
+    return vocab;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int size() {
+    return phrases.size;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int get(String gloss) {
+    return phrases.get(gloss);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getLowercase(String lowercaseGloss) {
+    return lowercasePhrases.get(lowercaseGloss);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String gloss(int index) {
+    return index < 0 || index >= maxIndex ? null : surfaceForms[index];
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int maxIndex() {
+    return maxIndex;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Iterable<String> phrases() {
+    return () -> Arrays.stream(phrases.keys).filter(Objects::nonNull).iterator();
+  }
+}
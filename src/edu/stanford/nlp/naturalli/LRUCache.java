@@ -0,0 +1,186 @@
+package edu.stanford.nlp.naturalli;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A bounded, thread-safe cache which evicts the least recently used entries, and keeps
+ * track of its hits and misses.
+ *
+ * The cache is split into segments by the hash of the key, each of which is its own LRU map behind its own lock,
+ * so that concurrent readers rarely contend. The eviction order is therefore only approximately LRU across the
+ * whole cache.
+ *
+ * By default, the cache is bounded by its number of entries. It can instead be bounded by the total weight of its
+ * values (e.g., their approximate size in bytes), given a function to weigh each value.
+ *
+ * @author Gabor Angeli
+ */
+public class LRUCache<K, V> {
+
+  /** The number of segments to split the cache into. This must be a power of two. */
+  private static final int NUM_SEGMENTS = 16;
+
+  private final LinkedHashMap<K, V>[] segments;
+  /** The total weight of the values in each segment, guarded by the segment's lock. */
+  private final long[] segmentWeights;
+  private final long maxSize;
+  private final long maxSegmentWeight;
+  private final ToLongFunction<? super V> weigher;
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+
+  /**
+   * Create a new cache.
+   * @param maxSize The maximum number of entries in the cache. If this is 0, the cache never stores anything.
+   */
+  public LRUCache(int maxSize) {
+    this(maxSize, value -> 1L);
+  }
+
+  /**
+   * Create a new cache, bounded by the total weight of its values.
+   * @param maxWeight The maximum total weight of the values in the cache. If this is 0, the cache never stores anything.
+   * @param weigher The weight of a value; e.g., its approximate size in bytes. This must not change while it is cached.
+   */
+  @SuppressWarnings("unchecked")
+  public LRUCache(long maxWeight, ToLongFunction<? super V> weigher) {
+    this.maxSize = maxWeight;
+    this.weigher = weigher;
+    this.maxSegmentWeight = (maxWeight + NUM_SEGMENTS - 1) / NUM_SEGMENTS;
+    this.segments = new LinkedHashMap[NUM_SEGMENTS];
+    this.segmentWeights = new long[NUM_SEGMENTS];
+    for (int i = 0; i < NUM_SEGMENTS; ++i) {
+      segments[i] = new LinkedHashMap<>(16, 0.75f, true);
+    }
+  }
+
+  /** The index of the segment responsible for a key. */
+  private static int segmentIndex(Object key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    return hash & (NUM_SEGMENTS - 1);
+  }
+
+  /** The segment responsible for a key. */
+  private LinkedHashMap<K, V> segment(Object key) {
+    return segments[segmentIndex(key)];
+  }
+
+  /**
+   * Get a value from the cache.
+   * @return The cached value, or null if the key is not in the cache.
+   */
+  public V get(K key) {
+    LinkedHashMap<K, V> segment = segment(key);
+    V value;
+    synchronized (segment) {
+      value = segment.get(key);
+    }
+    if (value == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return value;
+  }
+
+  /**
+   * Add a value to the cache, evicting the least recently used entries until the cache is within its bound.
+   * A value heavier than a whole segment of the cache is not cached.
+   */
+  public void put(K key, V value) {
+    if (maxSize <= 0) {
+      return;
+    }
+    long weight = weigher.applyAsLong(value);
+    if (weight > maxSegmentWeight) {
+      return;
+    }
+    int index = segmentIndex(key);
+    LinkedHashMap<K, V> segment = segments[index];
+    synchronized (segment) {
+      V old = segment.put(key, value);
+      segmentWeights[index] += weight - (old == null ? 0 : weigher.applyAsLong(old));
+      Iterator<Map.Entry<K, V>> eldest = segment.entrySet().iterator();
+      while (segmentWeights[index] > maxSegmentWeight) {
+        segmentWeights[index] -= weigher.applyAsLong(eldest.next().getValue());
+        eldest.remove();
+      }
+    }
+  }
+
+  /**
+   * Get a value from the cache, or compute and cache it if it is not there.
+   * The value is computed outside of any lock, so two threads may compute the same value at once.
+   */
+  public V computeIfAbsent(K key, Function<? super K, ? extends V> fn) {
+    V value = get(key);
+    if (value == null) {
+      value = fn.apply(key);
+      if (value != null) {
+        put(key, value);
+      }
+    }
+    return value;
+  }
+
+  /** The number of entries in the cache. */
+  public int size() {
+    int size = 0;
+    for (LinkedHashMap<K, V> segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  /** The total weight of the values in the cache; this is the number of entries, if the values are not weighed. */
+  public long weight() {
+    long weight = 0;
+    for (int i = 0; i < NUM_SEGMENTS; ++i) {
+      synchronized (segments[i]) {
+        weight += segmentWeights[i];
+      }
+    }
+    return weight;
+  }
+
+  /** The maximum total weight of the cache; this is the maximum number of entries, if the values are not weighed. */
+  public long maxSize() {
+    return maxSize;
+  }
+
+  /** The number of lookups which found their key in the cache. */
+  public long hits() {
+    return hits.get();
+  }
+
+  /** The number of lookups which did not find their key in the cache. */
+  public long misses() {
+    return misses.get();
+  }
+
+  /** Remove every entry from the cache, and reset the hit and miss counters. */
+  public void clear() {
+    for (int i = 0; i < NUM_SEGMENTS; ++i) {
+      synchronized (segments[i]) {
+        segments[i].clear();
+        segmentWeights[i] = 0;
+      }
+    }
+    hits.set(0);
+    misses.set(0);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return "LRUCache[size=" + size() + ", weight=" + weight() + "/" + maxSize + ", hits=" + hits() + ", misses=" + misses() + "]";
+  }
+}
@@ -24,6 +24,8 @@ public class MinimalSynset implements Synset, Serializable {
   private final String defn;
   private String[] splitDefn;
   private Map<String, Integer> indexOf = new HashMap<>();
+  /** A cache of the interned id of the definition in the {@link SenseIndex}, plus 2; 0 if not yet computed. */
+  transient int senseDefinitionId = 0;
 
   public MinimalSynset(byte synsetType, String[] wordForms, String defn) {
     this.synsetType = synsetType;
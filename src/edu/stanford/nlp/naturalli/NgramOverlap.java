@@ -0,0 +1,170 @@
+package edu.stanford.nlp.naturalli;
+
+import java.util.Arrays;
+
+/**
+ * Computes the greedy Lesk overlap between a fixed context and many candidate definitions, with the same
+ * semantics as {@link WSD#lesk(String[], String[], int, int)}: the longest matches (up to 5 tokens) are taken first,
+ * each token can only be part of a single match, and a match of length n contributes n^2 to the overlap.
+ *
+ * Rather than scanning every pair of start positions for every match length, the n-grams of the context are
+ * hashed once into a table per length, and the n-grams of each definition are looked up in it.
+ * The table keeps the occurrences of every n-gram in increasing order, so the first free match we find is
+ * the same one the nested scan would have found.
+ *
+ * This is not thread-safe; it keeps its tables and masks as reusable scratch space.
+ *
+ * @author Gabor Angeli
+ */
+public class NgramOverlap {
+
+  /** The length of the longest n-gram we match. */
+  public static final int MAX_NGRAM_LENGTH = 5;
+  /** The multiplier for the polynomial hash of an n-gram. */
+  private static final long PRIME = 0x100000001b3L;
+
+  /**
+   * A hash table of every n-gram in a token sequence, for each n-gram length.
+   * The occurrences of an n-gram are chained in increasing order of their start position.
+   */
+  private static class NgramTable {
+    private int[] tokens = new int[0];
+    private int length = 0;
+    /** The hash of the n-gram of length (n + 1) starting at each position. */
+    private long[][] hashes = new long[MAX_NGRAM_LENGTH][0];
+    /** The next occurrence in the same bucket, or -1. */
+    private int[][] next = new int[MAX_NGRAM_LENGTH][0];
+    /** The first occurrence in each bucket, or -1. */
+    private int[][] buckets = new int[MAX_NGRAM_LENGTH][0];
+    private int mask = 0;
+
+    private void index(int[] tokens, int length) {
+      this.tokens = tokens;
+      this.length = length;
+      if (hashes[0].length < length) {
+        int capacity = Math.max(length, 2 * hashes[0].length);
+        for (int n = 0; n < MAX_NGRAM_LENGTH; ++n) {
+          hashes[n] = new long[capacity];
+          next[n] = new int[capacity];
+        }
+      }
+      int numBuckets = Integer.highestOneBit(Math.max(1, length)) << 1;
+      if (buckets[0].length < numBuckets) {
+        for (int n = 0; n < MAX_NGRAM_LENGTH; ++n) {
+          buckets[n] = new int[numBuckets];
+        }
+      }
+      mask = numBuckets - 1;
+      for (int n = 0; n < MAX_NGRAM_LENGTH; ++n) {
+        Arrays.fill(buckets[n], 0, numBuckets, -1);
+        long[] hash = hashes[n];
+        // Insert in decreasing order, so that the chains are in increasing order
+        for (int start = length - n - 1; start >= 0; --start) {
+          hash[start] = n == 0 ? tokens[start] : hashes[n - 1][start] * PRIME + tokens[start + n];
+          int bucket = bucket(hash[start]);
+          next[n][start] = buckets[n][bucket];
+          buckets[n][bucket] = start;
+        }
+      }
+    }
+
+    private int bucket(long hash) {
+      long mixed = hash * 0x9E3779B97F4A7C15L;
+      return (int) (mixed >>> 32) & mask;
+    }
+  }
+
+  /** The table over the context. */
+  private final NgramTable context = new NgramTable();
+  /** The table over the current definition, if it is the longer of the two sequences. */
+  private final NgramTable definition = new NgramTable();
+  private boolean[] contextMask = new boolean[0];
+  private boolean[] definitionMask = new boolean[0];
+  /** Scratch space for the hashes of the n-grams of the shorter sequence. */
+  private final NgramTable probe = new NgramTable();
+
+  /**
+   * Set the context that definitions are scored against. This hashes every n-gram of the context.
+   *
+   * @param tokens The (filtered) context tokens. This array is not copied, and must not change until the next call.
+   * @param length The number of tokens in the context.
+   */
+  public void setContext(int[] tokens, int length) {
+    context.index(tokens, length);
+    if (contextMask.length < length) {
+      contextMask = new boolean[Math.max(length, 2 * contextMask.length)];
+    }
+  }
+
+  /**
+   * Compute the greedy overlap between the current context and a definition.
+   *
+   * @param tokens The (filtered) definition tokens.
+   * @param length The number of tokens in the definition.
+   *
+   * @return The sum of the squared lengths of the greedy matches.
+   */
+  public int overlap(int[] tokens, int length) {
+    if (definitionMask.length < length) {
+      definitionMask = new boolean[Math.max(length, 2 * definitionMask.length)];
+    }
+    Arrays.fill(contextMask, 0, context.length, false);
+    Arrays.fill(definitionMask, 0, length, false);
+    if (length <= context.length) {
+      probe.index(tokens, length);
+      return greedy(probe, definitionMask, context, contextMask);
+    } else {
+      definition.index(tokens, length);
+      return greedy(context, contextMask, definition, definitionMask);
+    }
+  }
+
+  /** Helper for greedy() */
+  private static boolean allFalse(boolean[] mask, int start, int until) {
+    for (int i = start; i < until; ++i) {
+      if (mask[i]) { return false; }
+    }
+    return true;
+  }
+
+  /** Helper for greedy() */
+  private static boolean allEqual(int[] a, int startA, int[] b, int startB, int length) {
+    for (int i = 0; i < length; ++i) {
+      if (a[startA + i] != b[startB + i]) { return false; }
+    }
+    return true;
+  }
+
+  /**
+   * The greedy matching itself. For each length, and for each start position in the shorter sequence in order,
+   * take the first free occurrence of that n-gram in the longer sequence.
+   */
+  private static int greedy(NgramTable shorter, boolean[] shortMask, NgramTable longer, boolean[] longMask) {
+    int sum = 0;
+    int longestLength = shorter.length > MAX_NGRAM_LENGTH ? MAX_NGRAM_LENGTH : shorter.length;
+    for (int length = longestLength; length >= 1; --length) {
+      int n = length - 1;
+      for (int shortStart = 0; shortStart <= shorter.length - length; ++shortStart) {
+        if (!allFalse(shortMask, shortStart, shortStart + length)) {
+          continue;
+        }
+        long hash = shorter.hashes[n][shortStart];
+        for (int longStart = longer.buckets[n][longer.bucket(hash)]; longStart >= 0; longStart = longer.next[n][longStart]) {
+          if (longer.hashes[n][longStart] == hash &&
+              allEqual(shorter.tokens, shortStart, longer.tokens, longStart, length) &&
+              allFalse(longMask, longStart, longStart + length)) {
+            for (int i = shortStart; i < shortStart + length; ++i) {
+              shortMask[i] = true;
+            }
+            for (int i = longStart; i < longStart + length; ++i) {
+              longMask[i] = true;
+            }
+            sum += length * length;
+            break;
+          }
+        }
+      }
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,230 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.util.RuntimeInterruptedException;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A pool of identically configured {@link StanfordCoreNLP} pipelines, so that many threads can annotate at once
+ * without sharing a single pipeline. A thread leases a pipeline, annotates with it, and returns it when it is done:
+ *
+ * <pre>
+ *   try (PipelinePool.Lease lease = ProcessPremise.pipelinePool("depparse").lease()) {
+ *     lease.pipeline.annotate(ann);
+ *   }
+ * </pre>
+ *
+ * Pipelines are constructed lazily, up to the size of the pool; once every pipeline is leased, callers wait for one
+ * to be returned. There is a single pool per configuration (e.g., "premise:depparse" vs. "premise:parse"), shared
+ * across the whole JVM; see {@link PipelinePool#of(String, Supplier)}.
+ *
+ * The pool keeps track of how long callers wait for a pipeline, and how much of the time its pipelines are in use.
+ *
+ * @author Gabor Angeli
+ */
+public class PipelinePool {
+
+  /** Every pool, by its configuration. */
+  private static final Map<String, PipelinePool> POOLS = new ConcurrentHashMap<>();
+
+  /**
+   * A pipeline leased from the pool. Closing the lease returns the pipeline to the pool.
+   */
+  public final class Lease implements AutoCloseable {
+    /** The pipeline. This must not be used after the lease is closed. */
+    public final StanfordCoreNLP pipeline;
+    private final long leasedAt = System.nanoTime();
+    private boolean returned = false;
+
+    private Lease(StanfordCoreNLP pipeline) {
+      this.pipeline = pipeline;
+    }
+
+    /** Return the pipeline to the pool. Closing a lease more than once has no effect. */
+    @Override
+    public void close() {
+      if (!returned) {
+        returned = true;
+        release(this);
+      }
+    }
+  }
+
+  /** The configuration of this pool, e.g., "premise:depparse". */
+  public final String name;
+  private final int maxSize;
+  private final Supplier<StanfordCoreNLP> factory;
+  private final BlockingQueue<StanfordCoreNLP> idle = new LinkedBlockingQueue<>();
+  private final AtomicInteger created = new AtomicInteger(0);
+  private final long createdAt = System.nanoTime();
+
+  private final AtomicLong leases = new AtomicLong(0);
+  private final AtomicLong waits = new AtomicLong(0);
+  private final AtomicLong waitNanos = new AtomicLong(0);
+  private final AtomicLong maxWaitNanos = new AtomicLong(0);
+  private final AtomicLong busyNanos = new AtomicLong(0);
+
+  /**
+   * Create a new pool. Most callers should use {@link PipelinePool#of(String, Supplier)} instead, to share
+   * pipelines with the rest of the JVM.
+   *
+   * @param name The configuration of the pipelines in this pool, for the metrics.
+   * @param maxSize The maximum number of pipelines to construct.
+   * @param factory The function to construct a new pipeline.
+   */
+  public PipelinePool(String name, int maxSize, Supplier<StanfordCoreNLP> factory) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("A pipeline pool must have at least one pipeline: " + maxSize);
+    }
+    this.name = name;
+    this.maxSize = maxSize;
+    this.factory = factory;
+  }
+
+  /**
+   * Get the shared pool for a configuration, creating it if this is the first time we have seen the configuration.
+   * The pool has up to pipeline_pool_size pipelines (see {@link StaticResources}).
+   *
+   * @param name The configuration, e.g., "premise:depparse". Every pipeline built by the factory must be configured
+   *             identically for a given name.
+   * @param factory The function to construct a new pipeline for this configuration.
+   */
+  public static PipelinePool of(String name, Supplier<StanfordCoreNLP> factory) {
+    return POOLS.computeIfAbsent(name, x -> new PipelinePool(name, StaticResources.pipelinePoolSize, factory));
+  }
+
+  /** Every shared pool, e.g., to log their metrics. */
+  public static List<PipelinePool> pools() {
+    return new ArrayList<>(POOLS.values());
+  }
+
+  /**
+   * Lease a pipeline, constructing one if every existing pipeline is in use and the pool is not full,
+   * or else waiting for one to be returned.
+   */
+  public Lease lease() {
+    StanfordCoreNLP pipeline = idle.poll();
+    // Try to construct a new pipeline
+    while (pipeline == null) {
+      int size = created.get();
+      if (size >= maxSize) {
+        break;
+      }
+      if (created.compareAndSet(size, size + 1)) {
+        try {
+          pipeline = factory.get();
+        } catch (RuntimeException | Error e) {
+          created.decrementAndGet();
+          throw e;
+        }
+      }
+    }
+    // Wait for a pipeline
+    if (pipeline == null) {
+      long start = System.nanoTime();
+      try {
+        pipeline = idle.take();
+      } catch (InterruptedException e) {
+        throw new RuntimeInterruptedException(e);
+      }
+      long waited = System.nanoTime() - start;
+      waits.incrementAndGet();
+      waitNanos.addAndGet(waited);
+      maxWaitNanos.accumulateAndGet(waited, Math::max);
+    }
+    leases.incrementAndGet();
+    return new Lease(pipeline);
+  }
+
+  /** Run a function with a leased pipeline, returning the pipeline afterwards. */
+  public <E> E apply(Function<StanfordCoreNLP, E> fn) {
+    try (Lease lease = lease()) {
+      return fn.apply(lease.pipeline);
+    }
+  }
+
+  /** Return a pipeline to the pool. */
+  private void release(Lease lease) {
+    busyNanos.addAndGet(System.nanoTime() - lease.leasedAt);
+    idle.add(lease.pipeline);
+  }
+
+  /**
+   * Add a pipeline that was already constructed elsewhere (e.g., for training) to the pool.
+   * The pipeline must be configured like the rest of the pool. If the pool is full, this does nothing.
+   */
+  public void add(StanfordCoreNLP pipeline) {
+    int size;
+    do {
+      size = created.get();
+      if (size >= maxSize) {
+        return;
+      }
+    } while (!created.compareAndSet(size, size + 1));
+    idle.add(pipeline);
+  }
+
+  /** The maximum number of pipelines in the pool. */
+  public int maxSize() {
+    return maxSize;
+  }
+
+  /** The number of pipelines constructed so far. */
+  public int size() {
+    return created.get();
+  }
+
+  /** The number of pipelines leased so far. */
+  public long leases() {
+    return leases.get();
+  }
+
+  /** The number of leases which had to wait for a pipeline to be returned. */
+  public long waits() {
+    return waits.get();
+  }
+
+  /** The total time spent waiting for a pipeline, in milliseconds. */
+  public double totalWaitMillis() {
+    return ((double) waitNanos.get()) / 1e6;
+  }
+
+  /** The longest time a single lease waited for a pipeline, in milliseconds. */
+  public double maxWaitMillis() {
+    return ((double) maxWaitNanos.get()) / 1e6;
+  }
+
+  /**
+   * The fraction of the time the pool's pipelines have been leased out, since the pool was created.
+   * A utilization near 1.0 with long waits means the pool is too small.
+   */
+  public double utilization() {
+    int size = created.get();
+    if (size == 0) {
+      return 0.0;
+    }
+    double elapsed = (double) (System.nanoTime() - createdAt);
+    return Math.min(1.0, ((double) busyNanos.get()) / (elapsed * size));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    DecimalFormat df = new DecimalFormat("0.0");
+    return "PipelinePool[" + name + ": size=" + size() + "/" + maxSize +
+        ", leases=" + leases() + ", waits=" + waits() +
+        ", wait=" + df.format(totalWaitMillis()) + "ms (max " + df.format(maxWaitMillis()) + "ms)" +
+        ", utilization=" + new DecimalFormat("0.0%").format(utilization()) + "]";
+  }
+}
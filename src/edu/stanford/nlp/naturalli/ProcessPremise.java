@@ -13,7 +13,9 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * A helper to find the forward entailments for a given input query, and dump all of the entailed
@@ -23,29 +25,63 @@ import java.util.stream.Collectors;
  */
 public class ProcessPremise {
 
-  public static Collection<SentenceFragment> forwardEntailments(String input, StanfordCoreNLP pipeline) {
+  /**
+   * Find the forward entailments of an input, lazily: the input itself (as a fragment per sentence), followed by
+   * the sentences entailed by each sentence, skipping empty fragments.
+   * The input is annotated before this returns, so the pipeline can be reused (or returned to its pool) right away;
+   * but nothing else is collected until the stream is consumed. So, a caller that needs only some of the
+   * entailments should filter and limit the stream (or use
+   * {@link ProcessPremise#forwardEntailments(String, StanfordCoreNLP, Predicate, long)}), rather than filter the
+   * collection of every entailment.
+   *
+   * @param input The premise to find the entailments of.
+   * @param pipeline The pipeline to annotate the input with; see {@link ProcessPremise#constructPipeline(String)}.
+   *
+   * @return A stream of the entailments of the input, starting with the input itself.
+   *
+   * @throws IllegalArgumentException Thrown if the input does not have a single sentence.
+   */
+  public static Stream<SentenceFragment> streamForwardEntailments(String input, StanfordCoreNLP pipeline) {
     // Run CoreNLP
     Annotation ann = new Annotation(input);
     pipeline.annotate(ann);
-    // Collect the entailments
-    List<SentenceFragment> entailments = new ArrayList<>();
-    for (CoreMap sentence : ann.get(CoreAnnotations.SentencesAnnotation.class)) {
-      entailments.add(new SentenceFragment(sentence.get(SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation.class), true, false));
-      entailments.addAll(sentence.get(NaturalLogicAnnotations.EntailedSentencesAnnotation.class).stream().collect(Collectors.toList()));
-    }
-    // In case nothing was produced
-    if (entailments.isEmpty()) {
-      entailments.add(new SentenceFragment(ann.get(CoreAnnotations.SentencesAnnotation.class).get(0).get(SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation.class), true, false));
-    }
-    // Clean the entailments
-    Iterator<SentenceFragment> iter = entailments.iterator();
-    while (iter.hasNext()) {
-      if (iter.next().words.isEmpty()) {
-        iter.remove();
-      }
+    List<CoreMap> sentences = ann.get(CoreAnnotations.SentencesAnnotation.class);
+    if (sentences == null || sentences.isEmpty()) {
+      throw new IllegalArgumentException("No sentences in premise: '" + input + "'");
     }
-    // Return
-    return entailments;
+    // Stream the entailments
+    return sentences.stream()
+        .flatMap(sentence -> Stream.concat(
+            Stream.of(sentence.get(SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation.class))
+                .map(tree -> new SentenceFragment(tree, true, false)),
+            sentence.get(NaturalLogicAnnotations.EntailedSentencesAnnotation.class).stream()))
+        .filter(fragment -> !fragment.words.isEmpty());
+  }
+
+  /**
+   * Find the forward entailments of an input, keeping only the first few that match a filter.
+   * The filter is checked before later entailments are collected, and nothing past the limit is collected at all.
+   *
+   * @param input The premise to find the entailments of.
+   * @param pipeline The pipeline to annotate the input with.
+   * @param filter The entailments to keep.
+   * @param limit The most entailments to return.
+   *
+   * @return A stream of at most limit entailments which match the filter.
+   *
+   * @see ProcessPremise#streamForwardEntailments(String, StanfordCoreNLP)
+   */
+  public static Stream<SentenceFragment> forwardEntailments(String input, StanfordCoreNLP pipeline,
+                                                           Predicate<SentenceFragment> filter, long limit) {
+    return streamForwardEntailments(input, pipeline).filter(filter).limit(limit);
+  }
+
+  /**
+   * Find every forward entailment of an input.
+   * @see ProcessPremise#streamForwardEntailments(String, StanfordCoreNLP)
+   */
+  public static Collection<SentenceFragment> forwardEntailments(String input, StanfordCoreNLP pipeline) {
+    return streamForwardEntailments(input, pipeline).collect(Collectors.toList());
   }
 
   @SuppressWarnings({"unchecked", "UnusedDeclaration"})
@@ -75,7 +111,15 @@ public class ProcessPremise {
   }
 
   public static StanfordCoreNLP constructPipeline(String parser) {
-    Properties props = new Properties() {{
+    return new StanfordCoreNLP(pipelineProperties(parser), false);
+  }
+
+  /**
+   * The properties of the pipeline from {@link ProcessPremise#constructPipeline(String)}; e.g., to fingerprint a cache
+   * of its annotations.
+   */
+  public static Properties pipelineProperties(String parser) {
+    return new Properties() {{
       setProperty("annotators", "tokenize,ssplit,pos,ing,lemma,"+parser+",natlog,qrewrite,openie");
       setProperty("customAnnotatorClass.ing","edu.stanford.nlp.naturalli.VerbIngTranslator");
       setProperty("customAnnotatorClass.qrewrite","edu.stanford.nlp.naturalli.ProcessPremise$QRewriteAnnotator");
@@ -83,7 +127,13 @@ public class ProcessPremise {
       setProperty("tokenize.class", "PTBTokenizer");
       setProperty("tokenize.language", "en");
     }};
-    return new StanfordCoreNLP(props, false);
+  }
+
+  /**
+   * The shared pool of pipelines from {@link ProcessPremise#constructPipeline(String)}, for this parser.
+   */
+  public static PipelinePool pipelinePool(String parser) {
+    return PipelinePool.of("premise:" + parser, () -> constructPipeline(parser));
   }
 
   public static void main(String[] args) throws IOException {
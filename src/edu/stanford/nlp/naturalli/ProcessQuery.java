@@ -2,7 +2,7 @@ package edu.stanford.nlp.naturalli;
 
 import edu.smu.tspell.wordnet.Synset;
 
-import edu.stanford.nlp.international.Language;
+import edu.stanford.nlp.ie.machinereading.structure.Span;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.IndexedWord;
 import edu.stanford.nlp.pipeline.Annotation;
@@ -15,12 +15,13 @@ import edu.stanford.nlp.semgraph.semgrex.SemgrexPattern;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.stats.Counters;
-import edu.stanford.nlp.trees.GrammaticalRelation;
+import edu.stanford.nlp.util.Lazy;
 import edu.stanford.nlp.util.Pair;
 import edu.stanford.nlp.util.Pointer;
 import edu.stanford.nlp.util.StringUtils;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
@@ -68,59 +69,39 @@ public class ProcessQuery {
   }
 
   /**
-   * Compute the most likely sense for a given word.
+   * Compute the most likely sense for every token in a sentence, replacing the tokens with ones carrying their sense.
+   * The senses are all computed in one batch; see {@link WSD#senseAll(String[], List, String[])}.
    *
-   * @param wordAsInt The indexed word we are computing the sense for.
-   * @param gloss The gloss of the word we are computing the sense for.
-   * @param sentence The sentence this word is in (for POS tags).
-   * @param words The context this word is in (for Lesk context).
-   * @param spanStart The start span of the word we are getting the sense of.
-   * @param spanEnd The end span of the word we are getting the sense of.
-   *
-   * @return The sense of the given word.
+   * @param tokens The tokens to compute the senses for. These are updated in place.
+   * @param words The words of the sentence (for Lesk context).
+   * @param posTags The POS tags of the sentence.
    */
-  private static int computeSense(int wordAsInt, String gloss, List<IndexedWord> sentence, String[] words,
-                                  int spanStart, int spanEnd) {
-    // Check if its a quantifire
-    if (Operator.GLOSSES.contains(gloss.toLowerCase())) {
-      return 0;
-    }
-
-    // Get the best Synset
-    Optional<Synset> synset;
-    if (sentence.get(spanStart).tag() != null) {
-      Counter<String> posCounts = new ClassicCounter<>();
-      for (int i = spanStart; i < spanEnd; ++i) {
-        String pos = sentence.get(i).tag();
-        if (pos.startsWith("N") ||
-            pos.startsWith("V") ||
-            pos.startsWith("J") ||
-            pos.startsWith("R") ) {
-          posCounts.incrementCount(pos);
-        }
-      }
-      String pos;
-      if (posCounts.size() > 0) {
-        pos = Counters.argmax(posCounts, (x, y) -> {
-          if (x.startsWith("N")) { return -1; }
-          if (y.startsWith("N")) { return 1; }
-          if (x.startsWith("R")) { return 1; }
-          if (y.startsWith("R")) { return -1; }
-          return x.compareTo(y);
-        });
-      } else {
-        pos = "???";
+  private static void computeSenses(List<Token> tokens, String[] words, String[] posTags) {
+    // Collect the spans to sense
+    List<Span> spans = new ArrayList<>(tokens.size());
+    List<Integer> tokenIndices = new ArrayList<>(tokens.size());
+    for (int i = 0; i < tokens.size(); ++i) {
+      Token token = tokens.get(i);
+      String gloss = StringUtils.join(words, token.originalStartIndex, token.originalEndIndex, " ");
+      // Check if its a quantifire
+      if (!Operator.GLOSSES.contains(gloss.toLowerCase())) {
+        spans.add(new Span(token.originalStartIndex, token.originalEndIndex));
+        tokenIndices.add(i);
       }
-      synset = WSD.sense(words, spanStart, spanEnd, pos, gloss);
-    } else {
-      synset = WSD.sense(words, spanStart, spanEnd, "???", gloss);
     }
 
-    // match the Synset to an index
-    if (synset.isPresent()) {
-      return Optional.ofNullable(StaticResources.SENSE_INDEXER.get().get(wordAsInt)).map(x -> x.get(synset.get().getDefinition())).orElse(0);
-    } else {
-      return 0;
+    // Get the best Synsets
+    List<Optional<Synset>> synsets = WSD.senseAll(words, spans, posTags);
+
+    // match the Synsets to an index
+    for (int k = 0; k < synsets.size(); ++k) {
+      Optional<Synset> synset = synsets.get(k);
+      if (synset.isPresent()) {
+        Token token = tokens.get(tokenIndices.get(k));
+        int sense = StaticResources.SENSE_INDEXER.get().sense(token.word, synset.get());
+        tokens.set(tokenIndices.get(k), new Token(token.gloss, token.word, sense, token.posTag, token.operatorInfo,
+            token.originalStartIndex, token.originalEndIndex));
+      }
     }
   }
 
@@ -211,76 +192,97 @@ public class ProcessQuery {
   }
 
 
+  /** The arc into an operator, as NaturalLI sees it. */
+  private static final String OPERATOR_RELATION = "op";
+
   /**
-   * Perform a number of sanity rewrites on the incoming tree. For instance:
+   * The sanitized form of every dependency arc in the natural logic insertion table (see
+   * {@link StaticResources#DEPENDENCY_INDEX}), and of the 'prepc_' form of each of its 'prep_' arcs.
+   * This is built once, and never changes; arcs which are not in it are sanitized as they are seen.
+   */
+  private static final Lazy<Map<String, String>> SANITIZED_RELATIONS = Lazy.of(() -> {
+    Map<String, String> table = new HashMap<>();
+    table.put(OPERATOR_RELATION, computeSanitizedRelation(OPERATOR_RELATION));
+    for (String arc : StaticResources.DEPENDENCY_INDEX.get().keySet()) {
+      table.put(arc, computeSanitizedRelation(arc));
+      if (arc.startsWith("prep_")) {
+        String prepc = arc.replace("prep_", "prepc_");
+        table.put(prepc, computeSanitizedRelation(prepc));
+      }
+    }
+    return Collections.unmodifiableMap(table);
+  });
+
+  /**
+   * Sanitize a dependency arc (which is not into an operator) for NaturalLI:
    *
    * <ul>
-   *   <li>Replace arcs into opreators with the special 'op' arc.</li>
    *   <li>Replace 'prepc_' with 'prep_'</li>
-   *   <li>Filter out unknown arcs.</li>
+   *   <li>Replace unknown arcs with 'nmod:dep' or 'dep'.</li>
    * </ul>
    *
-   * @param tree The tree to sanitize IN PLACE.
+   * @param relation The arc, as the parser wrote it.
+   * @return The arc, as NaturalLI should see it.
    */
-  private static void sanitizeTreeForNaturalli(SemanticGraph tree) {
-    List<SemanticGraphEdge> toRemove = new ArrayList<>();
-    List<SemanticGraphEdge> toAdd = new ArrayList<>();
-
-    // Register rewrites
-    for (SemanticGraphEdge edge : tree.edgeIterable()) {
-      String rel = edge.getRelation().toString().toLowerCase();
-      OperatorSpec operator = edge.getDependent().backingLabel().get(NaturalLogicAnnotations.OperatorAnnotation.class);
-      if (operator != null && operator.instance == Operator.IMPLICIT_NAMED_ENTITY) {
-        // Remove named entity operators (these just bugger things up)
-        operator = null;
-        edge.getDependent().backingLabel().remove(NaturalLogicAnnotations.OperatorAnnotation.class);
-      }
-      if (operator != null) {
-        // Replace arcs into operators with 'op'
-        toRemove.add(edge);
-        synchronized (SemanticGraphEdge.class) {
-          toAdd.add(new SemanticGraphEdge(edge.getGovernor(), edge.getDependent(), GrammaticalRelation.valueOf(Language.Any, "op"), edge.getWeight(), edge.isExtra()));
-        }
-      } else if (rel.startsWith("prepc_")) {
-        // Rewrite 'prepc_' edges to 'prep_'
-        String newRel = rel.replace("prepc_", "prep_");
-        toRemove.add(edge);
-        synchronized (SemanticGraphEdge.class) {
-          toAdd.add(new SemanticGraphEdge(edge.getGovernor(), edge.getDependent(), GrammaticalRelation.valueOf(Language.Any, newRel), edge.getWeight(), edge.isExtra()));
-        }
-      }
-    }
-
-    // Perform rewrites
-    for (SemanticGraphEdge e : toRemove) {
-      tree.removeEdge(e);
+  private static String computeSanitizedRelation(String relation) {
+    String rel = relation.toLowerCase();
+    String sanitized = relation;
+    if (rel.startsWith("prepc_")) {
+      // Rewrite 'prepc_' edges to 'prep_'
+      sanitized = rel = rel.replace("prepc_", "prep_");
     }
-    for (SemanticGraphEdge e : toAdd) {
-      tree.addEdge(e.getGovernor(), e.getDependent(), e.getRelation(), e.getWeight(), e.isExtra());
-    }
-    toRemove.clear();
-    toAdd.clear();
-
-    // Filter unknown edges
-    for (SemanticGraphEdge edge : tree.edgeIterable()) {
-      String rel = edge.getRelation().toString().toLowerCase();
-      if (!NaturalLogicRelation.knownDependencyArc(rel)) {
-        toRemove.add(edge);
-        if (rel.startsWith("nmod:")) {
-          toAdd.add(new SemanticGraphEdge(edge.getGovernor(), edge.getDependent(), GrammaticalRelation.valueOf(Language.Any, "nmod:dep"), edge.getWeight(), edge.isExtra()));
-        } else {
-          toAdd.add(new SemanticGraphEdge(edge.getGovernor(), edge.getDependent(), GrammaticalRelation.valueOf(Language.Any, "dep"), edge.getWeight(), edge.isExtra()));
-        }
-      }
+    if (!NaturalLogicRelation.knownDependencyArc(rel)) {
+      // Filter unknown edges
+      sanitized = rel.startsWith("nmod:") ? "nmod:dep" : "dep";
     }
+    return sanitized;
+  }
+
+  /**
+   * Sanitize a dependency arc (which is not into an operator) for NaturalLI; see
+   * {@link ProcessQuery#computeSanitizedRelation(String)}.
+   * The arcs of the insertion table are looked up in a precomputed table, so the lowercasing and checking is done
+   * once per known arc rather than once per edge. Any other arc is sanitized from scratch each time, so that a
+   * parser emitting novel arcs cannot grow the table.
+   *
+   * @param relation The arc, as the parser wrote it.
+   * @return The arc, as NaturalLI should see it.
+   */
+  static String sanitizeRelation(String relation) {
+    String sanitized = SANITIZED_RELATIONS.get().get(relation);
+    return sanitized != null ? sanitized : computeSanitizedRelation(relation);
+  }
 
-    // Perform rewrites (pass 2)
-    for (SemanticGraphEdge e : toRemove) {
-      tree.removeEdge(e);
+  /**
+   * The operator on a word, as NaturalLI sees it. Named entity operators on words with a governor are ignored
+   * (these just bugger things up).
+   *
+   * @param tree The tree the word is in.
+   * @param word The word to find the operator of.
+   * @return The operator on the word, or null if there is none.
+   */
+  private static OperatorSpec operator(SemanticGraph tree, IndexedWord word) {
+    OperatorSpec operator = word.get(NaturalLogicAnnotations.OperatorAnnotation.class);
+    if (operator != null && operator.instance == Operator.IMPLICIT_NAMED_ENTITY && tree.incomingEdgeIterator(word).hasNext()) {
+      return null;
     }
-    for (SemanticGraphEdge e : toAdd) {
-      tree.addEdge(e.getGovernor(), e.getDependent(), e.getRelation(), e.getWeight(), e.isExtra());
+    return operator;
+  }
+
+  /**
+   * The arc of an edge, as NaturalLI sees it: arcs into operators are replaced with the special 'op' arc, and every
+   * other arc is sanitized with {@link ProcessQuery#sanitizeRelation(String)}.
+   * The tree itself is never modified, so the same tree can be dumped from many threads at once.
+   *
+   * @param tree The tree the edge is in.
+   * @param edge The edge to find the arc of.
+   * @return The arc of the edge, as NaturalLI should see it.
+   */
+  private static String sanitizedRelation(SemanticGraph tree, SemanticGraphEdge edge) {
+    if (operator(tree, edge.getDependent()) != null) {
+      return sanitizeRelation(OPERATOR_RELATION);
     }
+    return sanitizeRelation(edge.getRelation().toString());
   }
 
   /**
@@ -312,10 +314,63 @@ public class ProcessQuery {
    * @return A string, which can be passed into NaturalLI
    */
   public static String conllDump(SemanticGraph tree, Pointer<String> readableDump, boolean doSense, boolean doMeronym) {
+    return conllDump(tree, conllTree(tree, doSense, doMeronym), readableDump);
+  }
+
+  /**
+   * Write the given tree into the format NaturalLI expects as input, from its already computed tokens.
+   * This lets a caller which also hashes the tree (see {@link TreeHash#hash(ConllTree, java.util.Map)}) compute
+   * its tokens, and sanitize its arcs, only once.
+   * @param tree The tree to dump, as a SemanticGraph.
+   * @param conll The tokens of the tree; see {@link ProcessQuery#conllTree(SemanticGraph, boolean, boolean)}.
+   * @param readableDump A pointer to the return string, but without the indexing to make it much easier to read.
+   * @return A string, which can be passed into NaturalLI
+   */
+  static String conllDump(SemanticGraph tree, ConllTree conll, Pointer<String> readableDump) {
     if (tree.size() == 0) {
       readableDump.set("<too short>\t0\troot\t0\n\n");
       return "0\t0\troot\t0\n\n";
     }
+    if (conll.length == 0) {
+      return "\n";
+    }
+    StringBuilder debug = new StringBuilder();
+    String production = conll.toConll(debug);
+    readableDump.set(debug.toString());
+    return production;
+  }
+
+  /**
+   * Write the given tree into the binary encoding of the NaturalLI input format; see {@link ConllTree}.
+   * This carries the same information as {@link ProcessQuery#conllDump(SemanticGraph, Pointer, boolean, boolean)},
+   * without building (or, on the other end, parsing) any text.
+   *
+   * @param tree The tree to dump, as a SemanticGraph.
+   * @param buffer The buffer to write the tree into, starting at its position. This can be reused across trees.
+   * @param doSense If true, encode the word senses into the tree (this is generally a bit expensive)
+   * @param doMeronym If true, find Meronym triggers as well.
+   * @return The buffer the tree was written into. This is a new, larger buffer if the tree did not fit into the given one.
+   */
+  public static ByteBuffer conllDump(SemanticGraph tree, ByteBuffer buffer, boolean doSense, boolean doMeronym) {
+    return conllTree(tree, doSense, doMeronym).encode(buffer, StaticResources.DEPENDENCY_INDEX.get());
+  }
+
+  /**
+   * Compute the tokens of the given tree, as NaturalLI sees them. This is the common half of the text and binary
+   * encodings of the tree.
+   * @param tree The tree to dump, as a SemanticGraph.
+   * @param doSense If true, compute the word senses of the tokens (this is generally a bit expensive)
+   * @param doMeronym If true, find Meronym triggers as well.
+   * @return The tree, as NaturalLI tokens. This has no tokens if no word in the tree could be indexed.
+   */
+  static ConllTree conllTree(SemanticGraph tree, boolean doSense, boolean doMeronym) {
+    if (tree.size() == 0) {
+      ConllTree conll = new ConllTree(1);
+      conll.gloss[0] = "<too short>";
+      conll.relation[0] = "root";
+      conll.posTag[0] = '?';
+      return conll;
+    }
     if (tree.getRoots().size() == 0) {
       throw new IllegalArgumentException("Tree has no roots!");
     }
@@ -324,9 +379,6 @@ public class ProcessQuery {
     @SuppressWarnings("unchecked")
     Set<IndexedWord> meronymTargets = doMeronym ? meronymTargets(tree) : (Set<IndexedWord>) Collections.EMPTY_SET;
 
-    // Sanitize the tree
-    sanitizeTreeForNaturalli(tree);
-
     // Variables
     List<IndexedWord> sentence = new ArrayList<>();
     List<Boolean> isMeronymTarget = new ArrayList<>();
@@ -372,7 +424,7 @@ public class ProcessQuery {
             add = false;
           }
           if (!operator.isPresent()) {
-            operator = Optional.ofNullable(sentence.get(k).get(NaturalLogicAnnotations.OperatorAnnotation.class));
+            operator = Optional.ofNullable(operator(tree, sentence.get(k)));
           }
         }
         // Find the most likely POS tag
@@ -392,14 +444,17 @@ public class ProcessQuery {
           for (int k = start; k < end; ++k) {
             accountedFor.set(k);
           }
-          // Find the word sense of the word
-          int sense = doSense ? computeSense(wordAsInt, gloss, sentence, words, start, end) : 0;
-          // Add
-          conllTokenByStartIndex.add(new Token(gloss, wordAsInt, sense, tag, operator, start, end));
+          // Add (the word senses are filled in below, all at once)
+          conllTokenByStartIndex.add(new Token(gloss, wordAsInt, 0, tag, operator, start, end));
         }
       }
     });
 
+    // Find the word senses of the words
+    if (doSense) {
+      computeSenses(conllTokenByStartIndex, words, posTags);
+    }
+
     // Add UNKs
     for (int k = 0; k < sentence.size(); ++k) {
       if (!accountedFor.get(k)) {
@@ -408,7 +463,7 @@ public class ProcessQuery {
     }
     // Sort the tokens
     if (conllTokenByStartIndex.size() == 0) {
-      return "\n";
+      return new ConllTree(0);
     }
     Collections.sort(conllTokenByStartIndex);
 
@@ -427,75 +482,50 @@ public class ProcessQuery {
       int governorIndex = -1;
       if (parentIndex[root] >= 0) {
         SemanticGraphEdge incomingSemGraphEdge = tree.incomingEdgeIterator(sentence.get(root)).next();
-        incomingEdge = incomingSemGraphEdge.getRelation().toString();
+        incomingEdge = sanitizedRelation(tree, incomingSemGraphEdge);
         governorIndex = originalToTokenizedIndex(conllTokenByStartIndex, treeToSentenceIndex[incomingSemGraphEdge.getGovernor().index() - 1]);
       }
       return Pair.makePair(governorIndex, incomingEdge);
     }).collect(Collectors.toList());
 
-    // Dump String
-    StringBuilder production = new StringBuilder();
-    StringBuilder debug = new StringBuilder();
+    // Fill in the tokens
+    ConllTree conll = new ConllTree(conllTokenByStartIndex.size());
     boolean hasRoot = false;
     for (int i = 0; i < conllTokenByStartIndex.size(); ++i) {
       Token token = conllTokenByStartIndex.get(i);
       Pair<Integer, String> incomingEdge = governors.get(i);
-      // Encode tree
-      production.append(token.word);
-      debug.append(i + 1).append("\t").append(token.gloss);//.append("\t").append(token.word);
-      StringBuilder b = new StringBuilder();
+      conll.gloss[i] = token.gloss;
+      conll.word[i] = token.word;
       if (incomingEdge.first < 0) { hasRoot = true; }
-      b.append("\t").append(incomingEdge.first + 1)
-          .append("\t").append(incomingEdge.second);
+      conll.governor[i] = incomingEdge.first + 1;
+      conll.relation[i] = incomingEdge.second;
       // Word sense
-      b.append("\t").append(token.sense);
+      conll.sense[i] = token.sense;
       // POS tag
-      b.append("\t").append(token.posTag);
+      conll.posTag[i] = token.posTag;
       // Operator info
       if (token.operatorInfo.isPresent()) {
         // (if present)
         OperatorSpec operatorInfo = token.operatorInfo.get();
         Operator operator = operatorInfo.instance;
-        if (operatorInfo.subjectBegin >= treeToSentenceIndex.length || treeToSentenceIndex[operatorInfo.subjectBegin] >= sentence.size()) {
-          b.append("\t-\t-\t-\t-");  // The operator is actually just wiped out
-        } else {
-          assert operatorInfo.subjectBegin < treeToSentenceIndex.length;
-          b.append("\t").append(Operator.monotonicitySignature(operator.subjMono, operator.subjType));
-          b.append("\t")
-              .append(originalToTokenizedIndex(conllTokenByStartIndex, treeToSentenceIndex[operatorInfo.subjectBegin]) + 1)
-              .append("-")
-              .append(originalToTokenizedIndex(conllTokenByStartIndex, treeToSentenceIndex[Math.min(operatorInfo.subjectEnd, treeToSentenceIndex.length - 1)]) + 1);
-          if (operator.isUnary()) {
-            b.append("\t-\t-");
-          } else {
-            if (operatorInfo.objectBegin >= treeToSentenceIndex.length || treeToSentenceIndex[operatorInfo.objectBegin] >= sentence.size()) {
-              b.append("\t-\t-");  // Case: we chopped off the second half of a quantifier scope  (all cats like dogs -> all cats)
-            } else {
-              assert operatorInfo.objectBegin < treeToSentenceIndex.length;
-              b.append("\t").append(Operator.monotonicitySignature(operator.objMono, operator.objType));
-              b.append("\t")
-                  .append(originalToTokenizedIndex(conllTokenByStartIndex, treeToSentenceIndex[operatorInfo.objectBegin]) + 1)
-                  .append("-")
-                  .append(originalToTokenizedIndex(conllTokenByStartIndex, treeToSentenceIndex[Math.min(operatorInfo.objectEnd, treeToSentenceIndex.length - 1)]) + 1);
-            }
+        if (operatorInfo.subjectBegin < treeToSentenceIndex.length && treeToSentenceIndex[operatorInfo.subjectBegin] < sentence.size()) {
+          // (else, the operator is actually just wiped out)
+          conll.subjMono[i] = Operator.monotonicitySignature(operator.subjMono, operator.subjType);
+          conll.subjBegin[i] = originalToTokenizedIndex(conllTokenByStartIndex, treeToSentenceIndex[operatorInfo.subjectBegin]) + 1;
+          conll.subjEnd[i] = originalToTokenizedIndex(conllTokenByStartIndex, treeToSentenceIndex[Math.min(operatorInfo.subjectEnd, treeToSentenceIndex.length - 1)]) + 1;
+          if (!operator.isUnary() &&
+              operatorInfo.objectBegin < treeToSentenceIndex.length && treeToSentenceIndex[operatorInfo.objectBegin] < sentence.size()) {
+            // (else, we chopped off the second half of a quantifier scope  (all cats like dogs -> all cats))
+            conll.objMono[i] = Operator.monotonicitySignature(operator.objMono, operator.objType);
+            conll.objBegin[i] = originalToTokenizedIndex(conllTokenByStartIndex, treeToSentenceIndex[operatorInfo.objectBegin]) + 1;
+            conll.objEnd[i] = originalToTokenizedIndex(conllTokenByStartIndex, treeToSentenceIndex[Math.min(operatorInfo.objectEnd, treeToSentenceIndex.length - 1)]) + 1;
           }
         }
-      } else {
-        // (if not present)
-        b.append("\t-\t-\t-\t-");
       }
       // Check for location trigger
-      boolean isLocation = false;
       for (int k = token.originalStartIndex; k < token.originalEndIndex; ++k) {
-        isLocation |= isMeronymTarget.get(k);
-      }
-      if (isLocation){
-        b.append("\tl");
+        conll.location[i] |= isMeronymTarget.get(k);
       }
-      // Trailing newline
-      b.append("\n");
-      production.append(b.toString());
-      debug.append(b.toString());
     }
 
     // Sanity check
@@ -503,9 +533,7 @@ public class ProcessQuery {
       throw new IllegalArgumentException("Tree has no root: " + tree);
     }
 
-
-    readableDump.set(debug.toString());
-    return production.toString();
+    return conll;
   }
 
   protected static StanfordCoreNLP constructPipeline() {
@@ -521,6 +549,13 @@ public class ProcessQuery {
     return new StanfordCoreNLP(props, false);
   }
 
+  /**
+   * The shared pool of pipelines from {@link ProcessQuery#constructPipeline()}.
+   */
+  public static PipelinePool pipelinePool() {
+    return PipelinePool.of("query", ProcessQuery::constructPipeline);
+  }
+
   protected static String annotateHumanReadable(String line, StanfordCoreNLP pipeline) {
     return annotateHumanReadable(new QRewrite(""), line, pipeline);
   }
@@ -11,6 +11,7 @@ import edu.stanford.nlp.trees.GrammaticalRelation;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * A class to rewrite sentences so they match the semantics of natural logic better.
@@ -35,6 +36,14 @@ public class QRewrite {
     this.filters.addAll(Arrays.asList(filters.split(",")));
   }
 
+  /**
+   * The filters this rewriter applies, as a canonical (sorted, comma-separated) string.
+   * Two rewriters with the same configuration rewrite every sentence the same way.
+   */
+  public String configuration() {
+    return filters.stream().filter(x -> !x.isEmpty()).sorted().collect(Collectors.joining(","));
+  }
+
   /**
    * Rewrite the raw gloss of a sentence.
    * @param input The sentence to rewrite.
@@ -0,0 +1,214 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.stanford.nlp.io.IOUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A directory of append-only segment files, mapping string keys to a fixed number of binary fields.
+ * This is the persistent half of the caches in this package (e.g., {@link AnnotationCache}): values are appended as
+ * they are computed, and on startup, the segments are scanned to build an index from the 64 bit hash of each key to
+ * its record. A record is only returned if its full key matches.
+ *
+ * A record is the key (as UTF-8) followed by each of its fields, each prefixed by its length as an int.
+ * A segment ending in a partial record (e.g., we crashed while writing it) is truncated to its last full record.
+ *
+ * The values in a log are only valid for the models they were computed with (e.g., the vocabulary), so the log is
+ * opened with a fingerprint of those models, which is kept in a manifest next to the segments. If the fingerprint in
+ * the manifest does not match (or there is no manifest), the old segments are discarded.
+ *
+ * @author Gabor Angeli
+ */
+class SegmentLog implements Closeable {
+
+  /** The size at which we start a new segment file. */
+  private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+  /** The number of bits of a record's location which encode the offset in its segment. */
+  private static final int OFFSET_BITS = 40;
+
+  private final File directory;
+  private final String prefix;
+  private final int numFields;
+  /** The location of every record, as (segment &lt;&lt; OFFSET_BITS) | offset, keyed by the hash of its key. */
+  private final Map<Long, Long> index = new HashMap<>();
+  private int currentSegment = 0;
+  private RandomAccessFile writer = null;
+
+  /**
+   * Open (or create) a segment log.
+   *
+   * @param directory The directory of the segments.
+   * @param prefix The prefix of the name of every segment; the segments are named prefix-00000.log, etc.
+   * @param numFields The number of fields in every record, not counting the key.
+   * @param fingerprint A fingerprint of whatever the values depend on; segments written with a different fingerprint
+   *                    are discarded. See {@link StaticResources#MODEL_FINGERPRINT}.
+   *
+   * @throws IOException Thrown if we could not read or create the directory, or could not discard stale segments.
+   */
+  SegmentLog(File directory, String prefix, int numFields, String fingerprint) throws IOException {
+    this.directory = directory;
+    this.prefix = prefix;
+    this.numFields = numFields;
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Could not create cache directory: " + directory);
+    }
+    checkManifest((numFields + "\t" + fingerprint).trim());
+    while (segmentFile(currentSegment).exists()) {
+      scan(currentSegment);
+      currentSegment += 1;
+    }
+    if (currentSegment > 0 && segmentFile(currentSegment - 1).length() < MAX_SEGMENT_SIZE) {
+      currentSegment -= 1;  // keep appending to the last segment
+    }
+  }
+
+  /** The file for the given segment. */
+  private File segmentFile(int segment) {
+    return new File(directory, String.format("%s-%05d.log", prefix, segment));
+  }
+
+  /**
+   * Make sure that every segment in the directory was written with this fingerprint.
+   * Stale segments are deleted, and the manifest is rewritten.
+   */
+  private void checkManifest(String fingerprint) throws IOException {
+    File manifest = new File(directory, prefix + ".manifest");
+    if (manifest.exists()) {
+      if (fingerprint.equals(IOUtils.slurpFile(manifest).trim())) {
+        return;
+      }
+      System.err.println("[" + prefix + "] Models changed; discarding the old segments in " + directory);
+    } else if (segmentFile(0).exists()) {
+      System.err.println("[" + prefix + "] No manifest; discarding the old segments in " + directory);
+    }
+    for (int segment = 0; segmentFile(segment).exists(); ++segment) {
+      if (!segmentFile(segment).delete()) {
+        throw new IOException("Could not delete stale segment: " + segmentFile(segment));
+      }
+    }
+    IOUtils.writeStringToFile(fingerprint, manifest.getPath(), "utf-8");
+  }
+
+  /** A 64 bit FNV-1a hash of a key, for the index. */
+  private static long hash(String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); ++i) {
+      hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /** Read a length-prefixed field. */
+  private static byte[] readField(DataInput in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  /** Write a length-prefixed field. */
+  private static void writeField(DataOutput out, byte[] value) throws IOException {
+    out.writeInt(value.length);
+    out.write(value);
+  }
+
+  /** Index the records of a segment, truncating a trailing partial record. */
+  private void scan(int segment) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw")) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.getFD())));
+      long offset = 0;
+      long length = file.length();
+      try {
+        record:
+        while (offset < length) {
+          // Read the lengths of the fields, making sure the record is complete
+          long end = offset;
+          int keyLength = in.readInt();
+          end += 4 + keyLength;
+          if (keyLength < 0 || end > length) { break; }
+          byte[] key = new byte[keyLength];
+          in.readFully(key);
+          for (int field = 0; field < numFields; ++field) {
+            if (end + 4 > length) { break record; }
+            int fieldLength = in.readInt();
+            end += 4 + fieldLength;
+            if (fieldLength < 0 || end > length) { break record; }
+            in.skipBytes(fieldLength);
+          }
+          // Index the record
+          index.put(hash(new String(key, StandardCharsets.UTF_8)), (((long) segment) << OFFSET_BITS) | offset);
+          offset = end;
+        }
+      } catch (EOFException ignored) {
+      }
+      if (offset < length) {
+        System.err.println("Truncating partial record in " + segmentFile(segment) + " at " + offset);
+        file.setLength(offset);
+      }
+    }
+  }
+
+  /**
+   * Read a record, if it is there and its key matches.
+   * @return The fields of the record, or null if it is not in the log.
+   */
+  synchronized byte[][] read(String key) throws IOException {
+    Long location = index.get(hash(key));
+    if (location == null) {
+      return null;
+    }
+    int segment = (int) (location >>> OFFSET_BITS);
+    long offset = location & ((1L << OFFSET_BITS) - 1);
+    try (RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "r")) {
+      file.seek(offset);
+      if (!new String(readField(file), StandardCharsets.UTF_8).equals(key)) {
+        return null;  // a hash collision
+      }
+      byte[][] fields = new byte[numFields][];
+      for (int i = 0; i < numFields; ++i) {
+        fields[i] = readField(file);
+      }
+      return fields;
+    }
+  }
+
+  /** Append a record to the current segment. */
+  synchronized void append(String key, byte[]... fields) throws IOException {
+    if (fields.length != numFields) {
+      throw new IllegalArgumentException("Expected " + numFields + " fields; got " + fields.length);
+    }
+    if (writer == null || writer.length() >= MAX_SEGMENT_SIZE) {
+      if (writer != null) {
+        writer.close();
+        currentSegment += 1;
+      }
+      writer = new RandomAccessFile(segmentFile(currentSegment), "rw");
+    }
+    long offset = writer.length();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    writeField(out, key.getBytes(StandardCharsets.UTF_8));
+    for (byte[] field : fields) {
+      writeField(out, field);
+    }
+    writer.seek(offset);
+    writer.write(bytes.toByteArray());
+    index.put(hash(key), (((long) currentSegment) << OFFSET_BITS) | offset);
+  }
+
+  /** The number of records in the log. */
+  synchronized int size() {
+    return index.size();
+  }
+
+  /** Close the current segment file. The log can still be used afterwards. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (writer != null) {
+      writer.close();
+      writer = null;
+    }
+  }
+}
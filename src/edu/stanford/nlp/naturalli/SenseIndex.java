@@ -0,0 +1,134 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.smu.tspell.wordnet.Synset;
+import edu.stanford.nlp.io.IOUtils;
+
+import java.util.*;
+
+/**
+ * A mapping from a word and one of its WordNet synsets to the sense index of that word, as defined
+ * by the sense file (etc/sense.tab.gz).
+ *
+ * The synset definitions are interned to dense integer ids once, at load time. The senses are then stored
+ * in flat arrays, grouped by word and sorted by definition id, so that a lookup is a binary search over the
+ * (few) senses of a single word.
+ *
+ * @author Gabor Angeli
+ */
+public class SenseIndex {
+
+  /** The interned id of every synset definition. */
+  private final Map<String, Integer> definitionIds;
+  /** The start of the senses for each word, in {@link SenseIndex#definitions} and {@link SenseIndex#senses}. */
+  private final int[] wordOffsets;
+  /** The definition ids, sorted within each word. */
+  private final int[] definitions;
+  /** The sense of the word for the corresponding definition id. */
+  private final int[] senses;
+
+  private SenseIndex(Map<String, Integer> definitionIds, int[] wordOffsets, int[] definitions, int[] senses) {
+    this.definitionIds = definitionIds;
+    this.wordOffsets = wordOffsets;
+    this.definitions = definitions;
+    this.senses = senses;
+  }
+
+  /**
+   * Read the sense index from a sense file.
+   * If a (word, definition) pair appears more than once, the last line wins.
+   *
+   * @param senseFile The file to read; e.g., etc/sense.tab.gz.
+   * @return The sense index defined by that file.
+   */
+  public static SenseIndex load(String senseFile) {
+    Map<String, Integer> definitionIds = new HashMap<>();
+    Map<Long, Integer> senseMap = new HashMap<>();
+    int maxWord = -1;
+    for (String line : IOUtils.readLines(senseFile)) {
+      String[] fields = line.split("\t");
+      int word = Integer.parseInt(fields[0]);
+      Integer definition = definitionIds.get(fields[2]);
+      if (definition == null) {
+        definition = definitionIds.size();
+        definitionIds.put(fields[2], definition);
+      }
+      senseMap.put((((long) word) << 32) | definition, Integer.parseInt(fields[1]));
+      maxWord = Math.max(maxWord, word);
+    }
+
+    // Lay out the senses, sorted by word and then definition id
+    long[] keys = new long[senseMap.size()];
+    int k = 0;
+    for (long key : senseMap.keySet()) {
+      keys[k++] = key;
+    }
+    Arrays.sort(keys);
+    int[] wordOffsets = new int[maxWord + 2];
+    int[] definitions = new int[keys.length];
+    int[] senses = new int[keys.length];
+    for (int i = 0; i < keys.length; ++i) {
+      wordOffsets[(int) (keys[i] >>> 32) + 1] += 1;
+      definitions[i] = (int) keys[i];
+      senses[i] = senseMap.get(keys[i]);
+    }
+    for (int word = 0; word <= maxWord; ++word) {
+      wordOffsets[word + 1] += wordOffsets[word];
+    }
+    return new SenseIndex(definitionIds, wordOffsets, definitions, senses);
+  }
+
+  /**
+   * Get the interned id of a synset definition.
+   * @return The id of the definition, or -1 if no word has a sense with this definition.
+   */
+  public int definitionId(String definition) {
+    Integer id = definitionIds.get(definition);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * Get the sense of a word, given the interned id of its synset definition.
+   *
+   * @param word The index of the word, from {@link StaticResources#INDEXER}.
+   * @param definitionId The id of the synset definition, from {@link SenseIndex#definitionId(String)}.
+   *
+   * @return The sense of the word, or 0 (the default sense) if this is not a known sense of the word.
+   */
+  public int sense(int word, int definitionId) {
+    if (word < 0 || word >= wordOffsets.length - 1 || definitionId < 0) {
+      return 0;
+    }
+    int i = Arrays.binarySearch(definitions, wordOffsets[word], wordOffsets[word + 1], definitionId);
+    return i < 0 ? 0 : senses[i];
+  }
+
+  /**
+   * Get the sense of a word, given its synset.
+   * For a {@link MinimalSynset} or a {@link SynsetStore.StoredSynset}, the definition id is cached on the
+   * synset itself, so that we only hash the definition the first time we see the synset.
+   *
+   * @param word The index of the word, from {@link StaticResources#INDEXER}.
+   * @param synset The synset of the word.
+   *
+   * @return The sense of the word, or 0 (the default sense) if this is not a known sense of the word.
+   */
+  public int sense(int word, Synset synset) {
+    int definitionId;
+    if (synset instanceof SynsetStore.StoredSynset) {
+      SynsetStore.StoredSynset s = (SynsetStore.StoredSynset) synset;
+      if (s.senseDefinitionId == 0) {
+        s.senseDefinitionId = definitionId(s.getDefinition()) + 2;
+      }
+      definitionId = s.senseDefinitionId - 2;
+    } else if (synset instanceof MinimalSynset) {
+      MinimalSynset s = (MinimalSynset) synset;
+      if (s.senseDefinitionId == 0) {
+        s.senseDefinitionId = definitionId(s.getDefinition()) + 2;
+      }
+      definitionId = s.senseDefinitionId - 2;
+    } else {
+      definitionId = definitionId(synset.getDefinition());
+    }
+    return sense(word, definitionId);
+  }
+}
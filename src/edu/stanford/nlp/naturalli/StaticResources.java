@@ -1,19 +1,23 @@
 package edu.stanford.nlp.naturalli;
 
 import edu.smu.tspell.wordnet.Synset;
-import edu.smu.tspell.wordnet.SynsetType;
 import edu.smu.tspell.wordnet.WordNetDatabase;
 import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.io.RuntimeIOException;
 import edu.stanford.nlp.semgraph.semgrex.SemgrexPattern;
 import edu.stanford.nlp.util.ArgumentParser;
-import edu.stanford.nlp.util.Interner;
 import edu.stanford.nlp.util.Lazy;
 import edu.stanford.nlp.util.Pair;
 import edu.stanford.nlp.util.logging.Redwood;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
 
 /**
  * Static resources; e.g., indexers.
@@ -27,31 +31,94 @@ public class StaticResources {
   @ArgumentParser.Option(name="vocab_file", gloss="The location of the vocabulary file")
   private static String vocabFile = System.getenv("VOCAB_FILE") == null ? "etc/vocab.tab.gz" : System.getenv("VOCAB_FILE");
 
+  @ArgumentParser.Option(name="vocab_index", gloss="The location of the compiled vocabulary index; see VocabularyIndex. If it exists, it is used in place of vocab_file")
+  private static String vocabIndexFile = System.getenv("VOCAB_INDEX") == null ? "etc/vocab.idx" : System.getenv("VOCAB_INDEX");
+
   @ArgumentParser.Option(name="sense_file", gloss="The location of the sense mapping file")
   private static String senseFile = System.getenv("VOCAB_FILE") == null ? "etc/sense.tab.gz" : System.getenv("SENSE_FILE");
 
   @ArgumentParser.Option(name="wordnet_file", gloss="The location of the WordNet synset mapping file")
   private static String wordnetFile = System.getenv("WORDNET_FILE") == null ? "etc/wordnet.tab.gz" : System.getenv("WORDNET_FILE");
 
-  private static Lazy<Map<String, Integer>> PHRASE_INDEXER = Lazy.of( () ->new HashMap<String, Integer>() {{
-    long startTime = System.currentTimeMillis();
-    System.err.print("Reading phrase indexer...");
-    for (String line : IOUtils.readLines(vocabFile)) {
-      String[] fields = line.split("\t");
-      put(fields[1], Integer.parseInt(fields[0]));
-    }
-    System.err.println("done. [" + Redwood.formatTimeDifference(System.currentTimeMillis() - startTime) + "]");
-  }});
+  @ArgumentParser.Option(name="wordnet_threads", gloss="The number of threads to use when re-computing the WordNet synset mapping file")
+  private static int wordnetThreads = System.getenv("WORDNET_THREADS") == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(System.getenv("WORDNET_THREADS"));
+
+  @ArgumentParser.Option(name="synset_index", gloss="The location of the compiled synset store; see SynsetStore. It is created from wordnet_file if it does not exist")
+  private static String synsetIndexFile = System.getenv("SYNSET_INDEX") == null ? "etc/wordnet.idx" : System.getenv("SYNSET_INDEX");
+
+  @ArgumentParser.Option(name="sense_cache_size", gloss="The maximum number of word sense decisions to cache; see WSD#senseCache()")
+  static int senseCacheSize = System.getenv("SENSE_CACHE_SIZE") == null ? 100000 : Integer.parseInt(System.getenv("SENSE_CACHE_SIZE"));
+
+  @ArgumentParser.Option(name="dependency_file", gloss="The location of the natural logic insertion table, which defines the dependency arc indices")
+  private static String dependencyFile = System.getenv("DEPENDENCY_FILE") == null ? "etc/depInsert2rel.tab" : System.getenv("DEPENDENCY_FILE");
+
+  @ArgumentParser.Option(name="entailment_cache_mb", gloss="The approximate maximum size of the forward entailments of premises to cache in memory, in megabytes; see EntailmentCache")
+  private static int entailmentCacheMB = System.getenv("ENTAILMENT_CACHE_MB") == null ? 512 : Integer.parseInt(System.getenv("ENTAILMENT_CACHE_MB"));
+
+  @ArgumentParser.Option(name="entailment_cache_dir", gloss="The directory to persist the forward entailments of premises to, across runs; or empty to only cache in memory")
+  private static String entailmentCacheDir = System.getenv("ENTAILMENT_CACHE_DIR") == null ? "" : System.getenv("ENTAILMENT_CACHE_DIR");
+
+  @ArgumentParser.Option(name="pipeline_pool_size", gloss="The maximum number of CoreNLP pipelines to construct for each configuration; see PipelinePool")
+  static int pipelinePoolSize = System.getenv("PIPELINE_POOL_SIZE") == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(System.getenv("PIPELINE_POOL_SIZE"));
 
-  private static Lazy<Map<String, Integer>> LOWERCASE_PHRASE_INDEXER = Lazy.of( () -> new HashMap<String, Integer>() {{
+  /**
+   * The vocabulary. This is the memory-mapped compiled index if it exists, or else the vocabulary file
+   * read into memory in a single pass. See {@link StaticResources#loadVocabulary(String, String)}.
+   */
+  public static Lazy<Vocabulary> VOCABULARY = Lazy.of( () -> loadVocabulary(vocabFile, vocabIndexFile));
+
+  /**
+   * Load the vocabulary: the memory-mapped compiled index if it exists, or else the vocabulary file read into memory
+   * in a single pass. An index which was not compiled from the current vocabulary file (e.g., the vocabulary was
+   * regenerated, and the old index left in place) is recompiled; if that fails, we fall back to the vocabulary file.
+   *
+   * @param vocabFile The vocabulary file; e.g., etc/vocab.tab.gz.
+   * @param vocabIndexFile The compiled vocabulary index; e.g., etc/vocab.idx. See {@link VocabularyIndex}.
+   */
+  static Vocabulary loadVocabulary(String vocabFile, String vocabIndexFile) {
     long startTime = System.currentTimeMillis();
-    System.err.print("Reading lowercase phrase indexer...");
-    for (String line : IOUtils.readLines(vocabFile)) {
-      String[] fields = line.split("\t");
-      put(fields[1].toLowerCase(), Integer.parseInt(fields[0]));
+    if (new File(vocabIndexFile).exists()) {
+      System.err.print("Mapping vocabulary index...");
+      try {
+        VocabularyIndex index = null;
+        try {
+          index = VocabularyIndex.load(vocabIndexFile);
+        } catch (IllegalArgumentException e) {
+          System.err.print("[" + e.getMessage() + "]...");
+        }
+        // If we have no vocabulary file to check against, trust the index
+        if (index == null || (new File(vocabFile).exists() && !index.source().equals(fileStamp(vocabFile)))) {
+          System.err.print("[not compiled from " + vocabFile + "; recompiling]...");
+          VocabularyIndex.compile(vocabFile, new File(vocabIndexFile));
+          index = VocabularyIndex.load(vocabIndexFile);
+        }
+        System.err.println("done. [" + Redwood.formatTimeDifference(System.currentTimeMillis() - startTime) + "]");
+        return index;
+      } catch (IOException | RuntimeIOException e) {
+        System.err.print("failed! [" + e.getMessage() + "]...");
+      }
     }
-    System.err.println("done. [" + Redwood.formatTimeDifference(System.currentTimeMillis() - startTime) + "]");
-  }});
+    System.err.print("Reading vocabulary...");
+    try {
+      InMemoryVocabulary vocab = InMemoryVocabulary.load(vocabFile);
+      System.err.println("done. [" + Redwood.formatTimeDifference(System.currentTimeMillis() - startTime) + "]");
+      return vocab;
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  }
+
+  /** Look up a phrase in the vocabulary, as written. Returns null if the phrase is unknown. */
+  private static Integer phraseIndex(String gloss) {
+    int index = VOCABULARY.get().get(gloss);
+    return index < 0 ? null : index;
+  }
+
+  /** Look up an already lowercased phrase in the lowercased vocabulary. Returns null if the phrase is unknown. */
+  private static Integer lowercasePhraseIndex(String lowercaseGloss) {
+    int index = VOCABULARY.get().getLowercase(lowercaseGloss);
+    return index < 0 ? null : index;
+  }
 
   public static Function<String, Integer> INDEXER = (String gloss) -> {
     boolean isLower = true;
@@ -61,17 +128,17 @@ public class StaticResources {
       }
     }
     if (isLower) {
-      Integer index = PHRASE_INDEXER.get().get(gloss);
+      Integer index = phraseIndex(gloss);
       return index == null ? -1 : index;
     } else {
       String lower = gloss.toLowerCase();
-      Integer index = LOWERCASE_PHRASE_INDEXER.get().get(lower);
+      Integer index = lowercasePhraseIndex(lower);
       if (index != null) {
-        Integer betterIndex = PHRASE_INDEXER.get().get(gloss);
+        Integer betterIndex = phraseIndex(gloss);
         if (betterIndex != null) {
           return betterIndex;
         }
-        betterIndex = PHRASE_INDEXER.get().get(lower);
+        betterIndex = phraseIndex(lower);
         if (betterIndex != null) {
           return betterIndex;
         }
@@ -81,81 +148,161 @@ public class StaticResources {
     }
   };
 
-  public static Lazy<Map<Integer, String>> SURFACE_FORM = Lazy.of( () ->new HashMap<Integer, String>() {{
-    long startTime = System.currentTimeMillis();
-    System.err.print("Reading phrase indexer (index->gloss)...");
-    for (String line : IOUtils.readLines(vocabFile)) {
-      String[] fields = line.split("\t");
-      put(Integer.parseInt(fields[0]), fields[1]);
-    }
-    System.err.println("done. [" + Redwood.formatTimeDifference(System.currentTimeMillis() - startTime) + "]");
-  }});
+  public static Lazy<Map<Integer, String>> SURFACE_FORM = Lazy.of( () -> VOCABULARY.get().asSurfaceFormMap() );
 
-  public static Lazy<Map<Integer, Map<String, Integer>>> SENSE_INDEXER = Lazy.of(() -> Collections.unmodifiableMap(new HashMap<Integer, Map<String, Integer>>() {{
+  public static Lazy<SenseIndex> SENSE_INDEXER = Lazy.of(() -> {
     long startTime = System.currentTimeMillis();
     System.err.print("Reading sense indexer...");
-    for (String line : IOUtils.readLines(senseFile)) {
-      String[] fields = line.split("\t");
-      int word = Integer.parseInt(fields[0]);
-      Map<String, Integer> definitions = this.get(word);
-      if (definitions == null) {
-        definitions = new HashMap<>();
-        put(word, definitions);
+    SenseIndex index = SenseIndex.load(senseFile);
+    System.err.println("done. [" + Redwood.formatTimeDifference(System.currentTimeMillis() - startTime) + "]");
+    return index;
+  });
+
+  /**
+   * Read the synsets of every phrase in the vocabulary, as a Java serialized map. If the map
+   * has not been saved yet, compute it from WordNet and save it.
+   * The computation is checkpointed, so an interrupted rebuild resumes where it left off; see {@link SynsetMapBuilder}.
+   */
+  private static Map<Pair<String, Integer>, Synset[]> readSynsetMap() {
+    String file = wordnetFile;
+    Map<Pair<String, Integer>, Synset[]> map = new HashMap<>();
+    try {
+      map = IOUtils.readObjectFromURLOrClasspathOrFileSystem(file);
+    } catch (IOException e) {
+      System.err.print("[no saved model; re-computing on " + wordnetThreads + " threads]...{");
+      WordNetDatabase wordnet = WordNetDatabase.getFileInstance();
+      SynsetMapBuilder builder = new SynsetMapBuilder(
+          (phrase, type) -> type == null ? wordnet.getSynsets(phrase) : wordnet.getSynsets(phrase, type),
+          new File(file + ".shards"), wordnetThreads);
+      try {
+        map = builder.build(VOCABULARY.get().phrases());
+      } catch (IOException e1) {
+        throw new RuntimeIOException(e1);
+      }
+      System.err.print("}...");
+      try {
+        IOUtils.writeObjectToFile(map, file);
+        builder.clearCheckpoints();
+      } catch (IOException e1) {
+        e1.printStackTrace();
       }
-      definitions.put(fields[2], Integer.parseInt(fields[1]));
+    } catch (ClassNotFoundException e) {
+      throw new RuntimeException(e);
     }
-    System.err.println("done. [" + Redwood.formatTimeDifference(System.currentTimeMillis() - startTime) + "]");
-  }}));
-
-  public static Lazy<Map<Pair<String, Integer>, Synset[]>> SYNSETS = new Lazy<Map<Pair<String, Integer>, Synset[]>>() {
-    @Override
-    protected Map<Pair<String, Integer>, Synset[]> compute() {
-      long startTime = System.currentTimeMillis();
-      System.err.print("Reading synsets...");
-      String file = wordnetFile;
-      Map<Pair<String, Integer>, Synset[]> map = new HashMap<>();
+    return map;
+  }
+
+  /**
+   * The WordNet synsets of every phrase in the vocabulary. This is the memory-mapped compiled store if it exists;
+   * otherwise, the store is compiled from the serialized synset map (which is itself computed from WordNet if
+   * it does not exist). See {@link StaticResources#loadSynsets(String, String, Supplier)}.
+   */
+  public static Lazy<SynsetStore> SYNSETS = Lazy.of(() -> loadSynsets(wordnetFile, synsetIndexFile, StaticResources::readSynsetMap));
+
+  /**
+   * Load the WordNet synsets: the memory-mapped compiled store if it exists and was compiled from the current
+   * synset map file; otherwise, the store is (re)compiled from the synset map.
+   *
+   * @param wordnetFile The serialized synset map; e.g., etc/wordnet.tab.gz.
+   * @param synsetIndexFile The compiled synset store; e.g., etc/wordnet.idx. See {@link SynsetStore}.
+   * @param synsetMap Reads (or computes, and saves to the wordnet file) the synset map.
+   */
+  static SynsetStore loadSynsets(String wordnetFile, String synsetIndexFile,
+                                 Supplier<Map<Pair<String, Integer>, Synset[]>> synsetMap) {
+    long startTime = System.currentTimeMillis();
+    System.err.print("Reading synsets...");
+    if (new File(synsetIndexFile).exists()) {
       try {
-        map = IOUtils.readObjectFromURLOrClasspathOrFileSystem(file);
-      } catch (IOException e) {
-        System.err.print("[no saved model; re-computing]...{");
-        Interner<MinimalSynset> interner = new Interner<>();
-        WordNetDatabase wordnet = WordNetDatabase.getFileInstance();
-        int count = 0;
-        int incr = PHRASE_INDEXER.get().size() / 100;
-        for (String entry : PHRASE_INDEXER.get().keySet()) {
-          if ( (++count % incr) == 0) {
-            System.err.print("-");
-          }
-          for (SynsetType type : SynsetType.ALL_TYPES) {
-            Synset[] synsets = wordnet.getSynsets(entry, type);
-            if (synsets != null && synsets.length > 0) {
-              for (int i = 0; i < synsets.length; ++i) {
-                synsets[i] = interner.intern(new MinimalSynset(synsets[i]));
-              }
-              map.put(Pair.makePair(entry, type.getCode()), synsets);
-            }
-          }
-          Synset[] allSynsets = wordnet.getSynsets(entry);
-          if (allSynsets != null) {
-            for (int i = 0; i < allSynsets.length; ++i) {
-              allSynsets[i] = interner.intern(new MinimalSynset(allSynsets[i]));
-            }
-            map.put(Pair.makePair(entry, null), allSynsets);
-          }
+        SynsetStore store = SynsetStore.load(synsetIndexFile);
+        // If we have no synset map to check against, trust the store
+        if (!new File(wordnetFile).exists() || store.source().equals(fileStamp(wordnetFile))) {
+          System.err.println("done. [" + Redwood.formatTimeDifference(System.currentTimeMillis() - startTime) + "]");
+          return store;
         }
-        System.err.print("}...");
-        try {
-          IOUtils.writeObjectToFile(map, file);
-        } catch (IOException e1) {
-          e1.printStackTrace();
-        }
-      } catch (ClassNotFoundException e) {
-        throw new RuntimeException(e);
+        System.err.print("[" + synsetIndexFile + " not compiled from " + wordnetFile + "]...");
+      } catch (IOException | IllegalArgumentException e) {
+        System.err.print("[could not map " + synsetIndexFile + ": " + e.getMessage() + "]...");
       }
-      System.err.println("done. [" + Redwood.formatTimeDifference(System.currentTimeMillis() - startTime) + "]");
-      return map;
     }
-  };
+    Map<Pair<String, Integer>, Synset[]> map = synsetMap.get();
+    SynsetStore store;
+    try {
+      System.err.print("[compiling to " + synsetIndexFile + "]...");
+      SynsetStore.compile(map, fileStamp(wordnetFile), new File(synsetIndexFile));
+      store = SynsetStore.load(synsetIndexFile);
+    } catch (IOException e) {
+      e.printStackTrace();
+      store = SynsetStore.fromMap(map);
+    }
+    System.err.println("done. [" + Redwood.formatTimeDifference(System.currentTimeMillis() - startTime) + "]");
+    return store;
+  }
+
+  /**
+   * The index of every dependency arc, as the C++ code numbers them; see {@link ConllTree#readDependencyIndex(String)}.
+   */
+  public static Lazy<Map<String, Integer>> DEPENDENCY_INDEX = Lazy.of(() -> ConllTree.readDependencyIndex(dependencyFile));
+
+  /**
+   * A fingerprint of the contents of a file: its length and CRC32, or "missing" if it does not exist.
+   */
+  static String fileFingerprint(String path) throws IOException {
+    File file = new File(path);
+    if (!file.exists()) {
+      return "missing";
+    }
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[1 << 16];
+    try (InputStream in = new FileInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        crc.update(buffer, 0, read);
+      }
+    }
+    return file.length() + ":" + Long.toHexString(crc.getValue());
+  }
+
+  /**
+   * A cheap fingerprint of a file, to check that something compiled from it is still up to date:
+   * its length and modification time, or "missing" if it does not exist.
+   * Unlike {@link StaticResources#fileFingerprint(String)}, this does not read the file.
+   */
+  static String fileStamp(String path) {
+    File file = new File(path);
+    if (!file.exists()) {
+      return "missing";
+    }
+    return file.length() + ":" + file.lastModified();
+  }
+
+  /**
+   * A fingerprint of the models that the encoded trees depend on: the vocabulary (the index, if it exists, as in
+   * {@link StaticResources#VOCABULARY}, along with the vocabulary file it should have been compiled from) and the
+   * dependency arc indices. Anything persisted which contains word or
+   * arc indices (e.g., a {@link SegmentLog}) should be tagged with this, so that it is discarded when the models change.
+   */
+  public static Lazy<String> MODEL_FINGERPRINT = Lazy.of(() -> {
+    try {
+      String vocab = new File(vocabIndexFile).exists() ? vocabIndexFile : vocabFile;
+      return "vocab=" + fileFingerprint(vocab) + "\tvocabSource=" + fileStamp(vocabFile) +
+          "\tdependencies=" + fileFingerprint(dependencyFile);
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  });
+
+  /**
+   * The cache of the forward entailments of every premise, shared by everything in this JVM; see {@link EntailmentCache}.
+   */
+  public static Lazy<EntailmentCache> ENTAILMENT_CACHE = Lazy.of(() -> {
+    try {
+      return new EntailmentCache(entailmentCacheMB * 1024L * 1024L, "".equals(entailmentCacheDir) ? null : new File(entailmentCacheDir),
+          // The parser is part of the key of every entry, so the properties of any one parser's pipeline will do here
+          MODEL_FINGERPRINT.get() + "\t" + new TreeMap<>(ProcessPremise.pipelineProperties("parse")));
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  });
 
   static {
   }
@@ -330,9 +477,12 @@ public class StaticResources {
   }});
 
   /**
-   * Load the static resources (this really just amounts to loading the class via the classloader).
+   * Load the static resources. This loads the class via the classloader, and reads the vocabulary
+   * so that the first query does not have to wait on it.
    */
-  public static void load() { }
+  public static void load() {
+    VOCABULARY.get();
+  }
 
   /**
    * Test out loading the static resources. This function doesn't actually do anything interesting
@@ -0,0 +1,231 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.smu.tspell.wordnet.Synset;
+import edu.smu.tspell.wordnet.SynsetType;
+import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.util.Pair;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes the WordNet synsets of every phrase in the vocabulary; that is, the map
+ * which is saved to the wordnet file (etc/wordnet.tab.gz) and compiled into the {@link SynsetStore}.
+ *
+ * The phrases are sorted, and split into fixed-size shards, which are computed in parallel on a fork-join pool.
+ * Every finished shard is checkpointed to disk, so that an interrupted rebuild picks up where it left off
+ * rather than starting over. The checkpoints are only reused if they were computed from the same
+ * set of phrases.
+ *
+ * @author Gabor Angeli
+ */
+public class SynsetMapBuilder {
+
+  /** The number of phrases in a single shard. */
+  private static final int SHARD_SIZE = 10000;
+
+  /**
+   * A lookup of the synsets of a phrase; e.g., from a {@link edu.smu.tspell.wordnet.WordNetDatabase}.
+   */
+  public interface SynsetLookup {
+    /**
+     * Get the synsets of a phrase.
+     * @param phrase The phrase to look up.
+     * @param type The part of speech of the synsets, or null for every part of speech.
+     * @return The synsets, or null if there are none.
+     */
+    Synset[] getSynsets(String phrase, SynsetType type);
+  }
+
+  private final SynsetLookup wordnet;
+  private final File checkpointDir;
+  private final int numThreads;
+  /** A thread-safe replacement for {@link edu.stanford.nlp.util.Interner}, shared across shards. */
+  private final ConcurrentHashMap<MinimalSynset, MinimalSynset> interner = new ConcurrentHashMap<>();
+
+  /**
+   * Create a new builder.
+   *
+   * @param wordnet The source of the synsets.
+   * @param checkpointDir The directory to save finished shards to. This is created if it does not exist.
+   * @param numThreads The number of threads to compute shards on.
+   */
+  public SynsetMapBuilder(SynsetLookup wordnet, File checkpointDir, int numThreads) {
+    this.wordnet = wordnet;
+    this.checkpointDir = checkpointDir;
+    this.numThreads = numThreads;
+  }
+
+  /** Intern a synset, across every thread. */
+  private MinimalSynset intern(MinimalSynset synset) {
+    MinimalSynset existing = interner.putIfAbsent(synset, synset);
+    return existing == null ? synset : existing;
+  }
+
+  /** Compute the synsets for a single shard of phrases. */
+  private HashMap<Pair<String, Integer>, Synset[]> computeShard(List<String> phrases) {
+    HashMap<Pair<String, Integer>, Synset[]> map = new HashMap<>();
+    for (String entry : phrases) {
+      for (SynsetType type : SynsetType.ALL_TYPES) {
+        Synset[] synsets = wordnet.getSynsets(entry, type);
+        if (synsets != null && synsets.length > 0) {
+          for (int i = 0; i < synsets.length; ++i) {
+            synsets[i] = intern(new MinimalSynset(synsets[i]));
+          }
+          map.put(Pair.makePair(entry, type.getCode()), synsets);
+        }
+      }
+      Synset[] allSynsets = wordnet.getSynsets(entry, null);
+      if (allSynsets != null) {
+        for (int i = 0; i < allSynsets.length; ++i) {
+          allSynsets[i] = intern(new MinimalSynset(allSynsets[i]));
+        }
+        map.put(Pair.makePair(entry, null), allSynsets);
+      }
+    }
+    return map;
+  }
+
+  /** Read a checkpointed shard, re-interning its synsets so that they are shared with the other shards. */
+  private HashMap<Pair<String, Integer>, Synset[]> readShard(File file) throws IOException, ClassNotFoundException {
+    HashMap<Pair<String, Integer>, Synset[]> map = IOUtils.readObjectFromFile(file);
+    for (Synset[] synsets : map.values()) {
+      for (int i = 0; i < synsets.length; ++i) {
+        synsets[i] = intern((MinimalSynset) synsets[i]);
+      }
+    }
+    return map;
+  }
+
+  /**
+   * Get a shard, either from its checkpoint or by computing (and then checkpointing) it.
+   */
+  private HashMap<Pair<String, Integer>, Synset[]> shard(int shardIndex, List<String> phrases) {
+    File file = new File(checkpointDir, String.format("shard-%05d.ser.gz", shardIndex));
+    if (file.exists()) {
+      try {
+        return readShard(file);
+      } catch (IOException | ClassNotFoundException | ClassCastException e) {
+        System.err.print("[could not read " + file + "; re-computing]...");
+      }
+    }
+    HashMap<Pair<String, Integer>, Synset[]> map = computeShard(phrases);
+    try {
+      // Write to a temporary file first, so that an interrupted write never looks like a finished shard
+      File tmp = new File(checkpointDir, file.getName() + ".tmp");
+      IOUtils.writeObjectToFile(map, tmp);
+      if (!tmp.renameTo(file)) {
+        System.err.print("[could not checkpoint " + file + "]...");
+      }
+    } catch (IOException e) {
+      System.err.print("[could not checkpoint " + file + ": " + e.getMessage() + "]...");
+    }
+    return map;
+  }
+
+  /**
+   * A fingerprint of the phrases, so that we never resume from the shards of a different vocabulary.
+   */
+  private static String fingerprint(List<String> phrases) {
+    long hash = 0xcbf29ce484222325L;
+    for (String phrase : phrases) {
+      hash = (hash ^ phrase.hashCode()) * 0x100000001b3L;
+    }
+    return phrases.size() + "\t" + SHARD_SIZE + "\t" + Long.toHexString(hash);
+  }
+
+  /**
+   * Make sure the checkpoint directory exists, and that every shard in it is from this set of phrases.
+   * Stale shards are deleted.
+   */
+  private void prepareCheckpointDir(String fingerprint) throws IOException {
+    File manifest = new File(checkpointDir, "manifest");
+    if (manifest.exists()) {
+      if (fingerprint.equals(IOUtils.slurpFile(manifest).trim())) {
+        return;
+      }
+      System.err.print("[vocabulary changed; discarding old shards]...");
+    }
+    if (!checkpointDir.exists() && !checkpointDir.mkdirs()) {
+      throw new IOException("Could not create checkpoint directory: " + checkpointDir);
+    }
+    File[] stale = checkpointDir.listFiles();
+    if (stale != null) {
+      for (File file : stale) {
+        if (file.getName().startsWith("shard-") && !file.delete()) {
+          throw new IOException("Could not delete stale shard: " + file);
+        }
+      }
+    }
+    IOUtils.writeStringToFile(fingerprint, manifest.getPath(), "utf-8");
+  }
+
+  /**
+   * Compute the synsets of every phrase.
+   *
+   * @param phrases The phrases to look up; e.g., every phrase in the vocabulary.
+   * @return A map from (phrase, synset type code) to the synsets of that phrase, as they were saved
+   *         in the old single-threaded wordnet file. A null type code denotes every part of speech.
+   *
+   * @throws IOException Thrown if we could not set up the checkpoint directory.
+   */
+  public Map<Pair<String, Integer>, Synset[]> build(Iterable<String> phrases) throws IOException {
+    // Sort the phrases, so the shards are the same from run to run
+    List<String> sorted = new ArrayList<>();
+    for (String phrase : phrases) {
+      sorted.add(phrase);
+    }
+    Collections.sort(sorted);
+    prepareCheckpointDir(fingerprint(sorted));
+
+    // Compute the shards
+    int numShards = (sorted.size() + SHARD_SIZE - 1) / SHARD_SIZE;
+    int incr = Math.max(1, numShards / 100);
+    AtomicInteger finished = new AtomicInteger(0);
+    ForkJoinPool pool = new ForkJoinPool(numThreads);
+    List<ForkJoinTask<HashMap<Pair<String, Integer>, Synset[]>>> shards = new ArrayList<>(numShards);
+    try {
+      for (int shardI = 0; shardI < numShards; ++shardI) {
+        final int shardIndex = shardI;
+        final List<String> shardPhrases = sorted.subList(shardI * SHARD_SIZE, Math.min(sorted.size(), (shardI + 1) * SHARD_SIZE));
+        shards.add(pool.submit(() -> {
+          HashMap<Pair<String, Integer>, Synset[]> shard = shard(shardIndex, shardPhrases);
+          if (finished.incrementAndGet() % incr == 0) {
+            System.err.print("-");
+          }
+          return shard;
+        }));
+      }
+
+      // Merge the shards
+      Map<Pair<String, Integer>, Synset[]> map = new HashMap<>();
+      for (ForkJoinTask<HashMap<Pair<String, Integer>, Synset[]>> shard : shards) {
+        map.putAll(shard.join());
+      }
+      return map;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Delete the checkpointed shards, once the full map has been saved.
+   */
+  public void clearCheckpoints() {
+    File[] files = checkpointDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (!file.delete()) {
+          System.err.print("[could not delete " + file + "]...");
+        }
+      }
+    }
+    if (!checkpointDir.delete()) {
+      System.err.print("[could not delete " + checkpointDir + "]...");
+    }
+  }
+}
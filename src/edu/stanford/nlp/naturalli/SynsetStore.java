@@ -0,0 +1,588 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.smu.tspell.wordnet.Synset;
+import edu.smu.tspell.wordnet.SynsetType;
+import edu.smu.tspell.wordnet.WordNetException;
+import edu.smu.tspell.wordnet.WordSense;
+import edu.stanford.nlp.util.Pair;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A compact, columnar store of the WordNet synsets for every phrase in the vocabulary.
+ * This replaces the Java-serialized Map&lt;Pair&lt;String, Integer&gt;, Synset[]&gt; we used to load on startup.
+ * The store is compiled once with {@link SynsetStore#compile(Map, String, File)}, and is then memory-mapped.
+ *
+ * The file consists of:
+ *
+ * <ol>
+ *   <li>The fingerprint of the file the synsets were read from; see {@link SynsetStore#source()}.</li>
+ *   <li>A sorted dictionary of every token in a definition and every word form. Token ids are positions
+ *       in this dictionary.</li>
+ *   <li>Every distinct synset, stored once, as columns: a type byte, the token ids of its word forms,
+ *       the token ids of its (whitespace tokenized) definition, and the raw definition.</li>
+ *   <li>A sorted table of (phrase, synset type) keys, each pointing to its list of synsets.</li>
+ * </ol>
+ *
+ * Looking up the synsets of a phrase is a binary search which does not allocate; the synsets themselves
+ * are lazily materialized as {@link SynsetStore.StoredSynset} views, which are cached and reused.
+ *
+ * @author Gabor Angeli
+ */
+public class SynsetStore {
+
+  /** The magic number at the start of the file ("NLS2"). */
+  private static final int MAGIC = 0x4E4C5332;
+
+  /**
+   * A table of strings, stored as UTF-16 chars in the buffer.
+   * {@link StringTable#indexOf(String)} is only valid if the table was written in sorted order.
+   */
+  private static class StringTable {
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int offsetsBase;
+    private final int charsBase;
+    /** The position in the buffer just past the end of this table. */
+    private final int end;
+
+    private StringTable(ByteBuffer buffer, int start) {
+      this.buffer = buffer;
+      this.size = buffer.getInt(start);
+      this.offsetsBase = start + 4;
+      this.charsBase = offsetsBase + 4 * (size + 1);
+      int numChars = buffer.getInt(offsetsBase + 4 * size);
+      this.end = charsBase + 4 * ((numChars + 1) / 2);
+    }
+
+    private int length(int i) {
+      return buffer.getInt(offsetsBase + 4 * (i + 1)) - buffer.getInt(offsetsBase + 4 * i);
+    }
+
+    private String get(int i) {
+      int begin = buffer.getInt(offsetsBase + 4 * i);
+      int length = length(i);
+      char[] chars = new char[length];
+      for (int k = 0; k < length; ++k) {
+        chars[k] = buffer.getChar(charsBase + 2 * (begin + k));
+      }
+      return new String(chars);
+    }
+
+    /** Compare the string at position i to the given string, as {@link String#compareTo(String)} would. */
+    private int compare(int i, String other) {
+      int begin = buffer.getInt(offsetsBase + 4 * i);
+      int length = length(i);
+      int limit = Math.min(length, other.length());
+      for (int k = 0; k < limit; ++k) {
+        char c = buffer.getChar(charsBase + 2 * (begin + k));
+        if (c != other.charAt(k)) {
+          return c - other.charAt(k);
+        }
+      }
+      return length - other.length();
+    }
+
+    /** Returns the position of the given string, or -1 if it is not in the table. */
+    private int indexOf(String value) {
+      int low = 0;
+      int high = size - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int cmp = compare(mid, value);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -1;
+    }
+
+    private static void write(List<String> sorted, DataOutputStream out) throws IOException {
+      out.writeInt(sorted.size());
+      int offset = 0;
+      for (String value : sorted) {
+        out.writeInt(offset);
+        offset += value.length();
+      }
+      out.writeInt(offset);
+      for (String value : sorted) {
+        out.writeChars(value);
+      }
+      if (offset % 2 != 0) {
+        out.writeChar(0);
+      }
+    }
+  }
+
+  /**
+   * A ragged array of ints, stored as an offset table followed by the values.
+   */
+  private static class IntLists {
+    private final ByteBuffer buffer;
+    private final int offsetsBase;
+    private final int valuesBase;
+    /** The position in the buffer just past the end of this table. */
+    private final int end;
+
+    private IntLists(ByteBuffer buffer, int start, int size) {
+      this.buffer = buffer;
+      this.offsetsBase = start;
+      this.valuesBase = offsetsBase + 4 * (size + 1);
+      this.end = valuesBase + 4 * buffer.getInt(offsetsBase + 4 * size);
+    }
+
+    private int length(int i) {
+      return buffer.getInt(offsetsBase + 4 * (i + 1)) - buffer.getInt(offsetsBase + 4 * i);
+    }
+
+    private int get(int i, int k) {
+      return buffer.getInt(valuesBase + 4 * (buffer.getInt(offsetsBase + 4 * i) + k));
+    }
+
+    private static void write(List<int[]> lists, DataOutputStream out) throws IOException {
+      int offset = 0;
+      for (int[] list : lists) {
+        out.writeInt(offset);
+        offset += list.length;
+      }
+      out.writeInt(offset);
+      for (int[] list : lists) {
+        for (int value : list) {
+          out.writeInt(value);
+        }
+      }
+    }
+  }
+
+  /**
+   * A view of a single synset in the store. These are created lazily, and cached by the store.
+   * Every field which requires decoding a string is also computed lazily, and cached.
+   */
+  public static class StoredSynset implements Synset {
+    private final SynsetStore store;
+    /** The id of this synset in the store. */
+    public final int id;
+    private String[] wordForms;
+    private String definition;
+    private String[] splitDefinition;
+    /** A cache of the interned id of the definition in the {@link SenseIndex}, plus 2; 0 if not yet computed. */
+    int senseDefinitionId = 0;
+
+    private StoredSynset(SynsetStore store, int id) {
+      this.store = store;
+      this.id = id;
+    }
+
+    @Override
+    public SynsetType getType() {
+      int code = store.buffer.get(store.typesBase + id);
+      for (SynsetType cand : SynsetType.ALL_TYPES) {
+        if (cand.getCode() == code) {
+          return cand;
+        }
+      }
+      throw new IllegalStateException();
+    }
+
+    @Override
+    public String[] getWordForms() {
+      if (wordForms == null) {
+        String[] forms = new String[store.wordForms.length(id)];
+        for (int i = 0; i < forms.length; ++i) {
+          forms[i] = store.tokens.get(store.wordForms.get(id, i));
+        }
+        wordForms = forms;
+      }
+      return wordForms;
+    }
+
+    /**
+     * The index of the given word form in this synset, or the number of word forms if it is not a word form
+     * of this synset. This mirrors {@link MinimalSynset#indexOf(String)}, but does not allocate.
+     */
+    public int indexOf(String gloss) {
+      int numWordForms = store.wordForms.length(id);
+      for (int i = numWordForms - 1; i >= 0; --i) {
+        if (store.tokens.compare(store.wordForms.get(id, i), gloss) == 0) {
+          return i;
+        }
+      }
+      return numWordForms;
+    }
+
+    @Override
+    public String getDefinition() {
+      if (definition == null) {
+        definition = store.definitions.get(id);
+      }
+      return definition;
+    }
+
+    /** The definition, split on whitespace. This mirrors {@link MinimalSynset#splitDefinition()}. */
+    public String[] splitDefinition() {
+      if (splitDefinition == null) {
+        String[] split = new String[definitionLength()];
+        for (int i = 0; i < split.length; ++i) {
+          split[i] = store.tokens.get(definitionToken(i));
+        }
+        splitDefinition = split;
+      }
+      return splitDefinition;
+    }
+
+    /** The number of tokens in the definition. */
+    public int definitionLength() {
+      return store.definitionTokens.length(id);
+    }
+
+    /** The token id of the i'th token of the definition; see {@link SynsetStore#tokenId(String)}. */
+    public int definitionToken(int i) {
+      return store.definitionTokens.get(id, i);
+    }
+
+    @Override
+    public WordSense[] getAntonyms(String s) throws WordNetException {
+      throw new IllegalStateException("Method not implemented");
+    }
+
+    @Override
+    public WordSense[] getDerivationallyRelatedForms(String s) throws WordNetException {
+      throw new IllegalStateException("Method not implemented");
+    }
+
+    @Override
+    public int getTagCount(String s) {
+      throw new IllegalStateException("Method not implemented");
+    }
+
+    @Override
+    public String[] getUsageExamples() {
+      throw new IllegalStateException("Method not implemented");
+    }
+
+    @Override
+    public String toString() {
+      return getDefinition();
+    }
+  }
+
+  private final ByteBuffer buffer;
+  private final String source;
+  private final StringTable tokens;
+  private final int numSynsets;
+  private final int typesBase;
+  private final IntLists wordForms;
+  private final IntLists definitionTokens;
+  private final StringTable definitions;
+  private final StringTable keyGlosses;
+  private final int keyTypesBase;
+  private final IntLists keySynsets;
+  private final StoredSynset[] views;
+  /** The definitions of every synset, as scored by Lesk; computed lazily. */
+  private volatile LeskDefinitions leskDefinitions = null;
+
+  /**
+   * The definitions of every synset, truncated to {@link WSD#MAX_DEFINITION_LENGTH} tokens and with stop
+   * words removed, as a ragged array of token ids.
+   */
+  private static class LeskDefinitions {
+    private final int[] offsets;
+    private final int[] tokens;
+
+    private LeskDefinitions(SynsetStore store) {
+      boolean[] isStopWord = new boolean[store.tokens.size];
+      for (int i = 0; i < isStopWord.length; ++i) {
+        isStopWord[i] = WSD.isStopWord(store.tokens.get(i));
+      }
+      offsets = new int[store.numSynsets + 1];
+      int[] tokens = new int[1 << 16];
+      int size = 0;
+      for (int id = 0; id < store.numSynsets; ++id) {
+        int length = Math.min(WSD.MAX_DEFINITION_LENGTH, store.definitionTokens.length(id));
+        if (size + length > tokens.length) {
+          tokens = Arrays.copyOf(tokens, Math.max(size + length, tokens.length * 2));
+        }
+        for (int i = 0; i < length; ++i) {
+          int token = store.definitionTokens.get(id, i);
+          if (!isStopWord[token]) {
+            tokens[size++] = token;
+          }
+        }
+        offsets[id + 1] = size;
+      }
+      this.tokens = Arrays.copyOf(tokens, size);
+    }
+  }
+
+  /**
+   * Create a synset store from a buffer; generally, this is a memory-mapped file.
+   * @see SynsetStore#load(String)
+   */
+  public SynsetStore(ByteBuffer buffer) {
+    this.buffer = buffer;
+    if (buffer.limit() < 8 || buffer.getInt(0) != MAGIC) {
+      throw new IllegalArgumentException("Not a compiled synset store (bad magic number)");
+    }
+    StringTable header = new StringTable(buffer, 4);
+    this.source = header.get(0);
+    this.tokens = new StringTable(buffer, header.end);
+    this.numSynsets = buffer.getInt(tokens.end);
+    this.typesBase = tokens.end + 4;
+    this.wordForms = new IntLists(buffer, typesBase + 4 * ((numSynsets + 3) / 4), numSynsets);
+    this.definitionTokens = new IntLists(buffer, wordForms.end, numSynsets);
+    this.definitions = new StringTable(buffer, definitionTokens.end);
+    this.keyGlosses = new StringTable(buffer, definitions.end);
+    this.keyTypesBase = keyGlosses.end;
+    this.keySynsets = new IntLists(buffer, keyTypesBase + 4 * keyGlosses.size, keyGlosses.size);
+    this.views = new StoredSynset[numSynsets];
+  }
+
+  /**
+   * Memory-map a compiled synset store.
+   * @param file The file to map, as produced by {@link SynsetStore#compile(Map, String, File)}.
+   * @return A synset store backed by a read-only mapping of the file.
+   * @throws IOException Thrown if we could not map the file.
+   */
+  public static SynsetStore load(String file) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+      return new SynsetStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Create an in-memory synset store from a map of synsets, without writing it to disk.
+   * @see SynsetStore#compile(Map, String, File)
+   */
+  public static SynsetStore fromMap(Map<Pair<String, Integer>, Synset[]> synsets) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      compile(synsets, "", bytes);
+      return new SynsetStore(ByteBuffer.wrap(bytes.toByteArray()));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);  // should be impossible for a byte array
+    }
+  }
+
+  /**
+   * The fingerprint of the file the synsets were read from (see {@link StaticResources#fileStamp(String)}), or
+   * the empty string if they were not read from a file. If this does not match the file any more, the store is stale.
+   */
+  public String source() {
+    return source;
+  }
+
+  /** The number of distinct synsets in the store. */
+  public int numSynsets() {
+    return numSynsets;
+  }
+
+  /**
+   * Get the id of a token, in the dictionary shared by the word forms and the definitions.
+   * @return The id of the token, or -1 if no synset uses it.
+   */
+  public int tokenId(String token) {
+    return tokens.indexOf(token);
+  }
+
+  /**
+   * Get the definition of a synset as it is scored by Lesk in {@link WSD}: the first
+   * {@link WSD#MAX_DEFINITION_LENGTH} tokens, without stop words.
+   * The filtered definitions of every synset are computed the first time this is called.
+   *
+   * @param id The id of the synset.
+   * @param into The buffer to copy the token ids into. This must have room for
+   *             {@link WSD#MAX_DEFINITION_LENGTH} tokens.
+   *
+   * @return The number of tokens copied into the buffer.
+   */
+  public int leskDefinition(int id, int[] into) {
+    LeskDefinitions lesk = leskDefinitions;
+    if (lesk == null) {
+      synchronized (this) {
+        lesk = leskDefinitions;
+        if (lesk == null) {
+          lesk = new LeskDefinitions(this);
+          leskDefinitions = lesk;
+        }
+      }
+    }
+    int start = lesk.offsets[id];
+    int length = lesk.offsets[id + 1] - start;
+    System.arraycopy(lesk.tokens, start, into, 0, length);
+    return length;
+  }
+
+  /**
+   * Find the synsets for a phrase and part of speech. This does not allocate.
+   *
+   * @param gloss The phrase to look up.
+   * @param typeCode The {@link SynsetType#getCode()} of the part of speech.
+   *
+   * @return A handle to the synsets of the phrase, to be passed into {@link SynsetStore#numSynsets(int)} and
+   *         {@link SynsetStore#synset(int, int)}; or -1 if the phrase has no synsets for this part of speech.
+   */
+  public int find(String gloss, int typeCode) {
+    int low = 0;
+    int high = keyGlosses.size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = keyGlosses.compare(mid, gloss);
+      if (cmp == 0) {
+        cmp = buffer.getInt(keyTypesBase + 4 * mid) - typeCode;
+      }
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /** The number of synsets for a key returned by {@link SynsetStore#find(String, int)}. */
+  public int numSynsets(int key) {
+    return keySynsets.length(key);
+  }
+
+  /** The i'th synset for a key returned by {@link SynsetStore#find(String, int)}, in WordNet's order. */
+  public StoredSynset synset(int key, int i) {
+    return synset(keySynsets.get(key, i));
+  }
+
+  /** The synset with the given id. */
+  public StoredSynset synset(int id) {
+    StoredSynset view = views[id];
+    if (view == null) {
+      view = new StoredSynset(this, id);
+      views[id] = view;  // note: racing here is harmless; we may just create the view twice
+    }
+    return view;
+  }
+
+  /**
+   * Get all of the synsets for a phrase and part of speech, as an array.
+   * This mirrors the map we used to keep in {@link StaticResources#SYNSETS}.
+   *
+   * @return The synsets, or null if there are none.
+   */
+  public Synset[] get(String gloss, int typeCode) {
+    int key = find(gloss, typeCode);
+    if (key < 0) {
+      return null;
+    }
+    Synset[] rtn = new Synset[numSynsets(key)];
+    for (int i = 0; i < rtn.length; ++i) {
+      rtn[i] = synset(key, i);
+    }
+    return rtn;
+  }
+
+  /**
+   * Compile a map of synsets into the binary format read by this class.
+   *
+   * The store is written next to the output and then moved into place, so that a process which has the old store
+   * mapped never sees a partially written file.
+   *
+   * @param synsets The synsets, keyed by phrase and synset type code (or null, for all types).
+   * @param source The fingerprint of the file the synsets were read from; see {@link SynsetStore#source()}.
+   * @param output The file to write the store to.
+   *
+   * @throws IOException Thrown if we could not write the output file.
+   */
+  public static void compile(Map<Pair<String, Integer>, Synset[]> synsets, String source, File output) throws IOException {
+    File tmp = new File(output.getPath() + ".tmp");
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+      compile(synsets, source, out);
+    }
+    Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** @see SynsetStore#compile(Map, String, File) */
+  public static void compile(Map<Pair<String, Integer>, Synset[]> synsets, String source, OutputStream rawOut) throws IOException {
+    DataOutputStream out = new DataOutputStream(rawOut);
+
+    // Collect the distinct synsets
+    Map<MinimalSynset, Integer> synsetIds = new HashMap<>();
+    List<MinimalSynset> distinct = new ArrayList<>();
+    SortedSet<String> dictionary = new TreeSet<>();
+    for (Synset[] values : synsets.values()) {
+      for (Synset synset : values) {
+        MinimalSynset minimal = synset instanceof MinimalSynset ? (MinimalSynset) synset : new MinimalSynset(synset);
+        if (!synsetIds.containsKey(minimal)) {
+          synsetIds.put(minimal, distinct.size());
+          distinct.add(minimal);
+          Collections.addAll(dictionary, minimal.getWordForms());
+          Collections.addAll(dictionary, minimal.splitDefinition());
+        }
+      }
+    }
+    List<String> sortedDictionary = new ArrayList<>(dictionary);
+    Map<String, Integer> tokenIds = new HashMap<>();
+    for (int i = 0; i < sortedDictionary.size(); ++i) {
+      tokenIds.put(sortedDictionary.get(i), i);
+    }
+
+    // Sort the keys
+    List<Pair<String, Integer>> keys = new ArrayList<>(synsets.keySet());
+    keys.sort((a, b) -> {
+      int cmp = a.first.compareTo(b.first);
+      return cmp != 0 ? cmp : Integer.compare(typeCode(a.second), typeCode(b.second));
+    });
+
+    // Write the file
+    out.writeInt(MAGIC);
+    StringTable.write(Collections.singletonList(source), out);
+    StringTable.write(sortedDictionary, out);
+    out.writeInt(distinct.size());
+    for (MinimalSynset synset : distinct) {
+      out.writeByte(synset.getType().getCode());
+    }
+    for (int i = distinct.size(); i % 4 != 0; ++i) {
+      out.writeByte(0);
+    }
+    List<int[]> wordForms = new ArrayList<>();
+    List<int[]> definitionTokens = new ArrayList<>();
+    List<String> definitions = new ArrayList<>();
+    for (MinimalSynset synset : distinct) {
+      wordForms.add(Arrays.stream(synset.getWordForms()).mapToInt(tokenIds::get).toArray());
+      definitionTokens.add(Arrays.stream(synset.splitDefinition()).mapToInt(tokenIds::get).toArray());
+      definitions.add(synset.getDefinition());
+    }
+    IntLists.write(wordForms, out);
+    IntLists.write(definitionTokens, out);
+    StringTable.write(definitions, out);
+    List<String> keyGlosses = new ArrayList<>();
+    for (Pair<String, Integer> key : keys) {
+      keyGlosses.add(key.first);
+    }
+    StringTable.write(keyGlosses, out);
+    for (Pair<String, Integer> key : keys) {
+      out.writeInt(typeCode(key.second));
+    }
+    List<int[]> keySynsets = new ArrayList<>();
+    for (Pair<String, Integer> key : keys) {
+      keySynsets.add(Arrays.stream(synsets.get(key))
+          .mapToInt(s -> synsetIds.get(s instanceof MinimalSynset ? (MinimalSynset) s : new MinimalSynset(s))).toArray());
+    }
+    IntLists.write(keySynsets, out);
+    out.flush();
+  }
+
+  /** The type code we store for a key; the 'all types' key (null) is stored as 0. */
+  private static int typeCode(Integer type) {
+    return type == null ? 0 : type;
+  }
+}
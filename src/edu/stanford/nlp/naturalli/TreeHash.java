@@ -0,0 +1,181 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.stanford.nlp.semgraph.SemanticGraph;
+
+import java.util.Map;
+
+/**
+ * A port of the hash of a dependency tree in SynSearch.cc (Tree::hash(), with hashEdge() and hashQuantifiers()),
+ * so that facts can be hashed in the JVM rather than by piping every tree through the hash_tree executable.
+ * This is a pure function of the tree, and is safe to call from many threads at once.
+ *
+ * The hash of a tree is the XOR of the hash of every dependency edge (governor word, dependent word, and arc),
+ * and of the hash of every non-existential quantifier. Like the C++ code with the default TWO_PASS_HASH,
+ * every edge and quantifier is hashed with 64 bit FNV-1a over its packed (little-endian) representation.
+ *
+ * @author Gabor Angeli
+ */
+public class TreeHash {
+
+  /** The hash of a tree that could not be hashed; e.g., because it is empty. This is what hash_tree prints. */
+  public static final long NO_HASH = -1L;
+
+  /** The longest tree the C++ Tree can hold; see MAX_QUERY_LENGTH in configure.ac. */
+  static final int MAX_QUERY_LENGTH = 39;
+
+  /** The most quantifiers the C++ Tree keeps track of; see MAX_QUANTIFIER_COUNT in configure.ac. */
+  static final int MAX_QUANTIFIER_COUNT = 6;
+
+  /** The word of the governor of the root; see TREE_ROOT_WORD in SynSearch.h. */
+  private static final int TREE_ROOT_WORD = 0x0;
+
+  /** The number of bits in a word; see VOCABULARY_ENTROPY in configure.ac. */
+  private static final int VOCABULARY_MASK = (1 << 24) - 1;
+
+  /** If true, hash with FNV-1a (the default in configure.ac); otherwise, hash with {@link TreeHash#mix(long)}. */
+  private static final boolean TWO_PASS_HASH = true;
+
+  private static final long FNV1_64_INIT = 0xcbf29ce484222325L;
+  private static final long FNV_64_PRIME = 0x100000001b3L;
+
+  private TreeHash() { }  // static methods
+
+  /** Hash the lowest bytes of a value, least significant byte first, with 64 bit FNV-1a; see fnv_64a_buf(). */
+  static long fnv64a(long value, int numBytes) {
+    long hash = FNV1_64_INIT;
+    for (int i = 0; i < numBytes; ++i) {
+      hash ^= (value >>> (8 * i)) & 0xFF;
+      hash *= FNV_64_PRIME;
+    }
+    return hash;
+  }
+
+  /** The mixing function used in place of FNV if TWO_PASS_HASH is off; see mix() in SynSearch.cc. */
+  static long mix(long u) {
+    long v = u * 3935559000370003845L + 2691343689449507681L;
+    v ^= v >>> 21;
+    v ^= v << 37;
+    v ^= v >>> 4;
+    v *= 4768777513237032717L;
+    v ^= v << 20;
+    v ^= v >>> 41;
+    v ^= v << 5;
+    return v;
+  }
+
+  /**
+   * Hash a dependency edge, packed as the dependency_edge struct in SynSearch.h: the governor in bits 0-23,
+   * the dependent in bits 24-47, the arc in bits 48-55, and a zero byte.
+   *
+   * @param governor The word of the governor of the edge.
+   * @param dependent The word of the dependent of the edge.
+   * @param relation The index of the arc; see {@link ConllTree#relationIndex(String, Map)}.
+   * @param arcs The dependency arc indices for the arcs that are treated specially.
+   */
+  static long hashEdge(int governor, int dependent, int relation, Arcs arcs) {
+    // Collapse relations which are 'equivalent'
+    if (relation == arcs.neg) {
+      relation = arcs.det;
+    }
+    if (relation == arcs.op) {
+      return 0x0;
+    }
+    // Hash edge
+    long edge = ((long) (governor & VOCABULARY_MASK))
+        | (((long) (dependent & VOCABULARY_MASK)) << 24)
+        | (((long) (relation & 0xFF)) << 48);
+    return TWO_PASS_HASH ? fnv64a(edge, 8) : mix(edge);
+  }
+
+  /**
+   * Hash a quantifier, packed as the quantifier_monotonicity struct in SynSearch.h: the subject in bits 0-3 and the
+   * object in bits 4-7 (see {@link ConllTree#signatureBits(String)}).
+   * Existential quantifiers do not contribute to the hash.
+   */
+  static long hashQuantifier(int quantifier) {
+    // If there is no quantifier, don't start hashing it.
+    if (quantifier == 0) {
+      return 0x0;
+    }
+    // If the quantifier is existential, don't hash it.
+    int subjMono = quantifier & 0x3;
+    int subjType = (quantifier >> 2) & 0x3;
+    int objMono = (quantifier >> 4) & 0x3;
+    int objType = (quantifier >> 6) & 0x3;
+    if (subjMono == 0 && (subjType == 1 || subjType == 0) &&
+        (objMono == 2 || (objMono == 0 && (objType == 1 || objType == 0)))) {
+      return 0x0;
+    }
+    return TWO_PASS_HASH ? fnv64a(quantifier, 1) : mix(quantifier);
+  }
+
+  /**
+   * Hash a tree, as hash_tree would hash its CoNLL dump.
+   *
+   * @param tree The tree to hash; see {@link ProcessQuery#conllTree(SemanticGraph, boolean, boolean)}.
+   * @param dependencyIndex The index of every dependency arc; see {@link StaticResources#DEPENDENCY_INDEX}.
+   *
+   * @return The hash of the tree, or {@link TreeHash#NO_HASH} if the tree is empty or too long for the C++ Tree.
+   */
+  static long hash(ConllTree tree, Map<String, Integer> dependencyIndex) {
+    if (tree.length == 0 || tree.length > MAX_QUERY_LENGTH) {
+      return NO_HASH;
+    }
+    Arcs arcs = Arcs.of(dependencyIndex);
+    int[] relations = tree.arcs(dependencyIndex);
+    long value = 0x0;
+    // Hash edges
+    int numQuantifiers = 0;
+    for (int i = 0; i < tree.length; ++i) {
+      int governor = tree.governor[i] == 0 ? TREE_ROOT_WORD : tree.word[tree.governor[i] - 1];
+      value ^= hashEdge(governor, tree.word[i], relations[i], arcs);
+      // Hash quantifiers
+      if (tree.subjMono[i] != null && numQuantifiers < MAX_QUANTIFIER_COUNT) {
+        int objBits = tree.objMono[i] == null ? ConllTree.NO_SIGNATURE_BITS : ConllTree.signatureBits(tree.objMono[i]);
+        value ^= hashQuantifier(ConllTree.signatureBits(tree.subjMono[i]) | (objBits << 4));
+        numQuantifiers += 1;
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Hash a dependency tree, as hash_tree would hash its CoNLL dump (without word senses or meronyms).
+   *
+   * @param tree The tree to hash.
+   *
+   * @return The hash of the tree, or {@link TreeHash#NO_HASH} if the tree is empty or too long for the C++ Tree.
+   *         To match the output of hash_tree, print this with {@link Long#toUnsignedString(long)}.
+   */
+  public static long hash(SemanticGraph tree) {
+    return hash(ProcessQuery.conllTree(tree, false, false), StaticResources.DEPENDENCY_INDEX.get());
+  }
+
+  /** The indices of the arcs that hashEdge() treats specially. */
+  static class Arcs {
+    /** The arcs of the last dependency index we hashed with; this is almost always the only one. */
+    private static volatile Arcs last = null;
+
+    final Map<String, Integer> dependencyIndex;
+    final int neg;
+    final int det;
+    final int op;
+
+    Arcs(Map<String, Integer> dependencyIndex) {
+      this.dependencyIndex = dependencyIndex;
+      this.neg = ConllTree.relationIndex("neg", dependencyIndex);
+      this.det = ConllTree.relationIndex("det", dependencyIndex);
+      this.op = ConllTree.relationIndex("op", dependencyIndex);
+    }
+
+    /** The special arcs of the given dependency index, looked up once rather than on every hash. */
+    static Arcs of(Map<String, Integer> dependencyIndex) {
+      Arcs arcs = last;
+      if (arcs == null || arcs.dependencyIndex != dependencyIndex) {
+        arcs = new Arcs(dependencyIndex);
+        last = arcs;
+      }
+      return arcs;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package edu.stanford.nlp.naturalli;
+
+import java.util.*;
+
+/**
+ * A mapping between phrases and their word indices, as defined by the vocabulary file (etc/vocab.tab.gz).
+ * There are two implementations: a memory-mapped compiled index ({@link VocabularyIndex}), and an in-memory
+ * version read directly from the vocabulary file ({@link InMemoryVocabulary}).
+ *
+ * @author Gabor Angeli
+ */
+public interface Vocabulary {
+
+  /** The number of distinct phrases in the vocabulary. */
+  int size();
+
+  /**
+   * Get the index of a phrase, exactly as written.
+   * @return The index of the phrase, or -1 if it is not in the vocabulary.
+   */
+  int get(String gloss);
+
+  /**
+   * Get the index of a phrase, matching against the lowercased vocabulary.
+   * @param lowercaseGloss The phrase to look up. This should already be lowercased.
+   * @return The index of the phrase, or -1 if it is not in the vocabulary.
+   */
+  int getLowercase(String lowercaseGloss);
+
+  /**
+   * Get the surface form of a word index.
+   * @return The surface form of the word, or null if the index is not in the vocabulary.
+   */
+  String gloss(int index);
+
+  /** One more than the largest word index in the vocabulary. */
+  int maxIndex();
+
+  /** All of the (case-sensitive) phrases in the vocabulary. */
+  Iterable<String> phrases();
+
+  /**
+   * A read-only map view of the vocabulary, from word index to surface form.
+   * This is the map exposed by {@link StaticResources#SURFACE_FORM}.
+   */
+  default Map<Integer, String> asSurfaceFormMap() {
+    return new AbstractMap<Integer, String>() {
+      @Override
+      public String get(Object key) {
+        return key instanceof Integer ? gloss((Integer) key) : null;
+      }
+      @Override
+      public boolean containsKey(Object key) {
+        return get(key) != null;
+      }
+      @Override
+      public Set<Entry<Integer, String>> entrySet() {
+        Set<Entry<Integer, String>> entries = new LinkedHashSet<>();
+        for (int i = 0; i < maxIndex(); ++i) {
+          String gloss = gloss(i);
+          if (gloss != null) {
+            entries.add(new SimpleImmutableEntry<>(i, gloss));
+          }
+        }
+        return entries;
+      }
+    };
+  }
+}
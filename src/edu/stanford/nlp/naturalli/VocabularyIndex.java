@@ -0,0 +1,415 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.util.logging.Redwood;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A compact, read-only binary version of the vocabulary file (etc/vocab.tab.gz).
+ * The file is compiled once with {@link VocabularyIndex#compile(String, File)} (or this class' main method),
+ * and is then read through a {@link MappedByteBuffer}, so that loading it is near-instant and the pages are shared
+ * between every JVM on the same machine.
+ *
+ * The file consists of a header (recording which vocabulary file it was compiled from; see
+ * {@link VocabularyIndex#source()}), followed by two tables -- one for the phrase as written, and one for the
+ * lowercased phrase -- and a reverse index from word index to phrase. Each table is:
+ *
+ * <ol>
+ *   <li>A sorted arena of UTF-8 encoded phrases, with an offset table into the arena.</li>
+ *   <li>The word index of each phrase in the arena.</li>
+ *   <li>A hash-and-displace perfect hash: a seed for each bucket, and a slot table pointing into the arena.</li>
+ * </ol>
+ *
+ * @author Gabor Angeli
+ */
+public class VocabularyIndex implements Vocabulary {
+
+  /** The magic number at the start of the file ("NLV2"). */
+  private static final int MAGIC = 0x4E4C5632;
+  /** The average number of keys in each perfect hash bucket. */
+  private static final int KEYS_PER_BUCKET = 4;
+  /** The number of slots in the perfect hash, per key. */
+  private static final double SLOTS_PER_KEY = 1.25;
+
+  /**
+   * A single perfect-hashed table of phrases, as a view into the mapped buffer.
+   */
+  private static class Table {
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int numBuckets;
+    private final int numSlots;
+    private final int offsetsBase;
+    private final int idsBase;
+    private final int seedsBase;
+    private final int slotsBase;
+    private final int arenaBase;
+    /** The position in the buffer just past the end of this table. */
+    private final int end;
+
+    private Table(ByteBuffer buffer, int start) {
+      this.buffer = buffer;
+      this.size = buffer.getInt(start);
+      this.numBuckets = buffer.getInt(start + 4);
+      this.numSlots = buffer.getInt(start + 8);
+      int arenaLength = buffer.getInt(start + 12);
+      this.offsetsBase = start + 16;
+      this.idsBase = offsetsBase + 4 * (size + 1);
+      this.seedsBase = idsBase + 4 * size;
+      this.slotsBase = seedsBase + 4 * numBuckets;
+      this.arenaBase = slotsBase + 4 * numSlots;
+      this.end = arenaBase + ((arenaLength + 3) & ~3);
+    }
+
+    /** The phrase at the given (sorted) position in the arena. */
+    private String phrase(int position) {
+      int begin = buffer.getInt(offsetsBase + 4 * position);
+      int length = buffer.getInt(offsetsBase + 4 * (position + 1)) - begin;
+      byte[] bytes = new byte[length];
+      for (int i = 0; i < length; ++i) {
+        bytes[i] = buffer.get(arenaBase + begin + i);
+      }
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Returns the word index for the given UTF-8 phrase, or -1 if it is not in the table. */
+    private int get(byte[] key) {
+      if (size == 0) {
+        return -1;
+      }
+      long hash = hash(key);
+      int seed = buffer.getInt(seedsBase + 4 * bucket(hash, numBuckets));
+      int position = buffer.getInt(slotsBase + 4 * slot(hash, seed, numSlots));
+      if (position < 0) {
+        return -1;
+      }
+      // Check that this is actually our key
+      int begin = buffer.getInt(offsetsBase + 4 * position);
+      int length = buffer.getInt(offsetsBase + 4 * (position + 1)) - begin;
+      if (length != key.length) {
+        return -1;
+      }
+      for (int i = 0; i < length; ++i) {
+        if (buffer.get(arenaBase + begin + i) != key[i]) {
+          return -1;
+        }
+      }
+      return buffer.getInt(idsBase + 4 * position);
+    }
+  }
+
+  private final ByteBuffer buffer;
+  private final String source;
+  private final Table phrases;
+  private final Table lowercasePhrases;
+  private final int reverseSize;
+  private final int reverseBase;
+
+  /**
+   * Create a vocabulary index from a buffer; generally, this is a memory-mapped file.
+   * @see VocabularyIndex#load(String)
+   */
+  public VocabularyIndex(ByteBuffer buffer) {
+    this.buffer = buffer;
+    if (buffer.limit() < 8 || buffer.getInt(0) != MAGIC) {
+      throw new IllegalArgumentException("Not a compiled vocabulary index (bad magic number)");
+    }
+    int sourceLength = buffer.getInt(4);
+    byte[] sourceBytes = new byte[sourceLength];
+    for (int i = 0; i < sourceLength; ++i) {
+      sourceBytes[i] = buffer.get(8 + i);
+    }
+    this.source = new String(sourceBytes, StandardCharsets.UTF_8);
+    this.phrases = new Table(buffer, 8 + ((sourceLength + 3) & ~3));
+    this.lowercasePhrases = new Table(buffer, phrases.end);
+    this.reverseSize = buffer.getInt(lowercasePhrases.end);
+    this.reverseBase = lowercasePhrases.end + 4;
+  }
+
+  /**
+   * Memory-map a compiled vocabulary index.
+   * @param file The file to map, as produced by {@link VocabularyIndex#compile(String, File)}.
+   * @return A vocabulary index backed by a read-only mapping of the file.
+   * @throws IOException Thrown if we could not map the file.
+   */
+  public static VocabularyIndex load(String file) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+      return new VocabularyIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * The fingerprint of the vocabulary file this index was compiled from; see {@link StaticResources#fileStamp(String)}.
+   * If this does not match the vocabulary file any more, the index is stale.
+   */
+  public String source() {
+    return source;
+  }
+
+  /** The number of distinct phrases in the vocabulary. */
+  @Override
+  public int size() {
+    return phrases.size;
+  }
+
+  /**
+   * Get the index of a phrase, exactly as written.
+   * @return The index of the phrase, or -1 if it is not in the vocabulary.
+   */
+  @Override
+  public int get(String gloss) {
+    return phrases.get(gloss.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Get the index of a phrase, matching against the lowercased vocabulary.
+   * @param lowercaseGloss The phrase to look up. This should already be lowercased.
+   * @return The index of the phrase, or -1 if it is not in the vocabulary.
+   */
+  @Override
+  public int getLowercase(String lowercaseGloss) {
+    return lowercasePhrases.get(lowercaseGloss.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Get the surface form of a word index.
+   * @return The surface form of the word, or null if the index is not in the vocabulary.
+   */
+  @Override
+  public String gloss(int index) {
+    if (index < 0 || index >= reverseSize) {
+      return null;
+    }
+    int position = buffer.getInt(reverseBase + 4 * index);
+    return position < 0 ? null : phrases.phrase(position);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int maxIndex() {
+    return reverseSize;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Iterable<String> phrases() {
+    return () -> new Iterator<String>() {
+      private int position = 0;
+      @Override
+      public boolean hasNext() {
+        return position < phrases.size;
+      }
+      @Override
+      public String next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return phrases.phrase(position++);
+      }
+    };
+  }
+
+  /** A 64 bit FNV-1a hash of the phrase bytes. */
+  private static long hash(byte[] key) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : key) {
+      hash ^= (b & 0xff);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /** The bucket a given hash falls into. */
+  private static int bucket(long hash, int numBuckets) {
+    return (int) Long.remainderUnsigned(hash >>> 32, numBuckets);
+  }
+
+  /** The slot a given hash falls into, given the displacement seed of its bucket. */
+  private static int slot(long hash, int seed, int numSlots) {
+    long h = hash ^ ((seed + 1) * 0x9E3779B97F4A7C15L);
+    h ^= (h >>> 33);
+    h *= 0xff51afd7ed558ccdL;
+    h ^= (h >>> 33);
+    return (int) Long.remainderUnsigned(h, numSlots);
+  }
+
+  /** Compare two UTF-8 strings, as unsigned bytes. */
+  private static int compareBytes(byte[] a, byte[] b) {
+    int length = Math.min(a.length, b.length);
+    for (int i = 0; i < length; ++i) {
+      int diff = (a[i] & 0xff) - (b[i] & 0xff);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  /**
+   * Write a single table of the index.
+   *
+   * @param phrases The phrases to write, mapped to their word index.
+   * @param out The stream to write to.
+   *
+   * @return The position in the sorted arena of every phrase.
+   */
+  private static Map<String, Integer> writeTable(Map<String, Integer> phrases, DataOutputStream out) throws IOException {
+    // Sort the phrases
+    int size = phrases.size();
+    byte[][] keys = new byte[size][];
+    String[] glosses = phrases.keySet().toArray(new String[size]);
+    Arrays.sort(glosses, (a, b) -> compareBytes(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8)));
+    Map<String, Integer> positions = new HashMap<>();
+    int arenaLength = 0;
+    for (int i = 0; i < size; ++i) {
+      keys[i] = glosses[i].getBytes(StandardCharsets.UTF_8);
+      positions.put(glosses[i], i);
+      arenaLength += keys[i].length;
+    }
+
+    // Compute the perfect hash
+    int numBuckets = Math.max(1, size / KEYS_PER_BUCKET);
+    int numSlots = Math.max(1, (int) (size * SLOTS_PER_KEY));
+    List<List<Integer>> buckets = new ArrayList<>(numBuckets);
+    for (int i = 0; i < numBuckets; ++i) {
+      buckets.add(new ArrayList<>());
+    }
+    long[] hashes = new long[size];
+    for (int i = 0; i < size; ++i) {
+      hashes[i] = hash(keys[i]);
+      buckets.get(bucket(hashes[i], numBuckets)).add(i);
+    }
+    Integer[] bucketOrder = new Integer[numBuckets];
+    for (int i = 0; i < numBuckets; ++i) {
+      bucketOrder[i] = i;
+    }
+    Arrays.sort(bucketOrder, (a, b) -> buckets.get(b).size() - buckets.get(a).size());  // largest buckets first
+    int[] seeds = new int[numBuckets];
+    int[] slots = new int[numSlots];
+    Arrays.fill(slots, -1);
+    for (int bucketIndex : bucketOrder) {
+      List<Integer> bucket = buckets.get(bucketIndex);
+      if (bucket.isEmpty()) {
+        break;
+      }
+      int[] candidates = new int[bucket.size()];
+      SEED: for (int seed = 0; ; ++seed) {
+        for (int k = 0; k < bucket.size(); ++k) {
+          candidates[k] = slot(hashes[bucket.get(k)], seed, numSlots);
+          if (slots[candidates[k]] >= 0) {
+            continue SEED;
+          }
+          for (int j = 0; j < k; ++j) {
+            if (candidates[j] == candidates[k]) {
+              continue SEED;
+            }
+          }
+        }
+        seeds[bucketIndex] = seed;
+        for (int k = 0; k < bucket.size(); ++k) {
+          slots[candidates[k]] = bucket.get(k);
+        }
+        break;
+      }
+    }
+
+    // Write the table
+    out.writeInt(size);
+    out.writeInt(numBuckets);
+    out.writeInt(numSlots);
+    out.writeInt(arenaLength);
+    int offset = 0;
+    for (byte[] key : keys) {
+      out.writeInt(offset);
+      offset += key.length;
+    }
+    out.writeInt(offset);
+    for (String gloss : glosses) {
+      out.writeInt(phrases.get(gloss));
+    }
+    for (int seed : seeds) {
+      out.writeInt(seed);
+    }
+    for (int slot : slots) {
+      out.writeInt(slot);
+    }
+    for (byte[] key : keys) {
+      out.write(key);
+    }
+    for (int i = arenaLength; i % 4 != 0; ++i) {
+      out.write(0);
+    }
+    return positions;
+  }
+
+  /**
+   * Compile a vocabulary file into the binary format read by this class.
+   * Duplicate entries are resolved the same way as the in-memory indexers in {@link StaticResources}:
+   * the last line of the file wins.
+   * The index is written next to the output and then moved into place, so that a process which has the old index
+   * mapped never sees a partially written file.
+   *
+   * @param vocabFile The vocabulary file to read; e.g., etc/vocab.tab.gz.
+   * @param output The file to write the index to.
+   *
+   * @throws IOException Thrown if we could not write the output file.
+   */
+  public static void compile(String vocabFile, File output) throws IOException {
+    Map<String, Integer> phrases = new HashMap<>();
+    Map<String, Integer> lowercasePhrases = new HashMap<>();
+    Map<Integer, String> surfaceForms = new HashMap<>();
+    int maxIndex = -1;
+    for (String line : IOUtils.readLines(vocabFile, "utf-8")) {
+      String[] fields = line.split("\t");
+      int index = Integer.parseInt(fields[0]);
+      phrases.put(fields[1], index);
+      lowercasePhrases.put(fields[1].toLowerCase(), index);
+      surfaceForms.put(index, fields[1]);
+      maxIndex = Math.max(maxIndex, index);
+    }
+
+    byte[] source = StaticResources.fileStamp(vocabFile).getBytes(StandardCharsets.UTF_8);
+    File tmp = new File(output.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(source.length);
+      out.write(source);
+      for (int i = source.length; i % 4 != 0; ++i) {
+        out.write(0);
+      }
+      Map<String, Integer> positions = writeTable(phrases, out);
+      writeTable(lowercasePhrases, out);
+      // Write the reverse index
+      // Note: every surface form is in the case-sensitive table, even if it now maps to a different index
+      out.writeInt(maxIndex + 1);
+      for (int i = 0; i <= maxIndex; ++i) {
+        String gloss = surfaceForms.get(i);
+        out.writeInt(gloss == null ? -1 : positions.get(gloss));
+      }
+    }
+    Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Compile a vocabulary file into a vocabulary index.
+   * Usage: VocabularyIndex [vocab.tab.gz] [vocab.idx]
+   */
+  public static void main(String[] args) throws IOException {
+    String vocabFile = args.length > 0 ? args[0] : "etc/vocab.tab.gz";
+    String output = args.length > 1 ? args[1] : "etc/vocab.idx";
+    long startTime = System.currentTimeMillis();
+    System.err.print("Compiling " + vocabFile + " to " + output + "...");
+    compile(vocabFile, new File(output));
+    System.err.println("done. [" + Redwood.formatTimeDifference(System.currentTimeMillis() - startTime) + "]");
+  }
+}
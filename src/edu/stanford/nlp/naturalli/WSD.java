@@ -2,7 +2,13 @@ package edu.stanford.nlp.naturalli;
 
 import edu.smu.tspell.wordnet.Synset;
 import edu.smu.tspell.wordnet.SynsetType;
+import edu.stanford.nlp.ie.machinereading.structure.Span;
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.stats.Counter;
+import edu.stanford.nlp.stats.Counters;
+import edu.stanford.nlp.util.Lazy;
 import edu.stanford.nlp.util.Pair;
+import edu.stanford.nlp.util.StringUtils;
 
 import java.util.*;
 
@@ -13,6 +19,143 @@ import java.util.*;
  */
 public class WSD {
 
+  /** The number of tokens of a synset definition we consider for Lesk. */
+  static final int MAX_DEFINITION_LENGTH = 20;
+
+  /**
+   * A sentence encoded as the token ids of a {@link SynsetStore}, along with the scratch buffers for
+   * the integer Lesk scorer; see {@link WSD#lesk(LeskContext, int, int, int)}.
+   * A context is reused for every sentence a thread disambiguates, and is therefore not thread-safe;
+   * use {@link LeskContext#get()} to get the one for the current thread.
+   */
+  public static class LeskContext {
+    /** The marker for a stop word in the encoded sentence. Unknown words are encoded as -1. */
+    private static final int STOP_WORD = -2;
+    private static final ThreadLocal<LeskContext> CONTEXT = ThreadLocal.withInitial(LeskContext::new);
+
+    private SynsetStore store = null;
+    private int[] sentence = new int[64];
+    private int length = 0;
+    private final int[] definition = new int[MAX_DEFINITION_LENGTH];
+    private int[] context = new int[64];
+    /** The overlap engine, hashing the context for the span [contextStart, contextEnd) we last scored. */
+    private final NgramOverlap overlap = new NgramOverlap();
+    private int contextStart = -1;
+    private int contextEnd = -1;
+    /** A hash of the filtered context for the span we last scored; see {@link WSD#SENSE_CACHE}. */
+    private long contextHash = 0;
+
+    /** Get the context for the current thread. */
+    public static LeskContext get() {
+      return CONTEXT.get();
+    }
+
+    /**
+     * Encode a sentence, overwriting the previous sentence in this context.
+     *
+     * @param store The synset store whose token ids we should encode into.
+     * @param words The words of the sentence.
+     *
+     * @return This context, for convenience.
+     */
+    public LeskContext encode(SynsetStore store, String[] words) {
+      this.store = store;
+      if (words.length > sentence.length) {
+        int capacity = Math.max(words.length, sentence.length * 2);
+        sentence = new int[capacity];
+        context = new int[capacity];
+      }
+      for (int i = 0; i < words.length; ++i) {
+        sentence[i] = isStopWord(words[i]) ? STOP_WORD : store.tokenId(words[i]);
+      }
+      length = words.length;
+      contextStart = -1;
+      contextEnd = -1;
+      return this;
+    }
+
+    /** The synset store this context was encoded against. */
+    public SynsetStore store() {
+      return store;
+    }
+
+    /**
+     * Set the Lesk context to be the sentence without the given span (nor stop words), unless it already is.
+     * This hashes the n-grams of the context for the overlap engine, and computes {@link LeskContext#contextHash}.
+     */
+    private void ignore(int ignoreStart, int ignoreEnd) {
+      if (ignoreStart == contextStart && ignoreEnd == contextEnd) {
+        return;
+      }
+      int bLength = 0;
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < length; ++i) {
+        if ( (i < ignoreStart || i >= ignoreEnd) && (i > ignoreStart - 10 || i < ignoreEnd + 10) ) {  // cap the context to 10 words
+          int w = sentence[i];
+          if (w != STOP_WORD) {
+            context[bLength++] = w;
+            hash = (hash ^ w) * 0x100000001b3L;
+          }
+        }
+      }
+      overlap.setContext(context, bLength);
+      contextHash = (hash ^ bLength) * 0x100000001b3L;
+      contextStart = ignoreStart;
+      contextEnd = ignoreEnd;
+    }
+  }
+
+  /**
+   * The key of a cached sense: the phrase, its synsets in the store (which also determines its coarse
+   * part of speech), and the Lesk context it was disambiguated in.
+   * Words unknown to the store are all encoded the same, so they share cache entries, as they share Lesk scores.
+   */
+  private static final class SenseKey {
+    private final SynsetStore store;
+    private final int synsetsKey;
+    private final String gloss;
+    private final long contextHash;
+
+    private SenseKey(SynsetStore store, int synsetsKey, String gloss, long contextHash) {
+      this.store = store;
+      this.synsetsKey = synsetsKey;
+      this.gloss = gloss;
+      this.contextHash = contextHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof SenseKey)) return false;
+      SenseKey that = (SenseKey) o;
+      return store == that.store && synsetsKey == that.synsetsKey && contextHash == that.contextHash && gloss.equals(that.gloss);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = synsetsKey;
+      result = 31 * result + gloss.hashCode();
+      result = 31 * result + (int) (contextHash ^ (contextHash >>> 32));
+      return result;
+    }
+  }
+
+  /**
+   * A cache of the sense chosen for a phrase in a given context, so that repeated sentences skip Lesk entirely.
+   * The size is set by the sense_cache_size option in {@link StaticResources}.
+   */
+  private static final Lazy<LRUCache<SenseKey, Integer>> SENSE_CACHE = Lazy.of(() -> new LRUCache<>(StaticResources.senseCacheSize));
+
+  /** The cache of disambiguated senses, e.g., for its hit and miss counts. */
+  public static LRUCache<?, ?> senseCache() {
+    return SENSE_CACHE.get();
+  }
+
+  /** Returns true if this word should be ignored when computing Lesk. */
+  static boolean isStopWord(String word) {
+    return STOP_WORDS.contains(word);
+  }
+
   /** Helper for lesk() */
   private static boolean allEqual(String[] a, int startA, String[] b, int startB, int length) {
     for (int i = 0; i < length; ++i) {
@@ -37,7 +180,7 @@ public class WSD {
   public static int lesk(String[] unfilteredA, String[] unfilteredB, int bIgnoreStart, int bIgnoreEnd) {
     // Filter stop words
     List<String> a = new ArrayList<>(unfilteredA.length);
-    for (int i = 0; i < (unfilteredA.length > 20 ? 20 : unfilteredA.length); ++i) {
+    for (int i = 0; i < (unfilteredA.length > MAX_DEFINITION_LENGTH ? MAX_DEFINITION_LENGTH : unfilteredA.length); ++i) {
       String w = unfilteredA[i];
       if (!STOP_WORDS.contains(w)) { a.add(w); }
 
@@ -62,7 +205,7 @@ public class WSD {
 
     // Run greedy lesk
     int sum = 0;
-    int longestLength = tokensShort.length > 5 ? 5 : tokensShort.length;
+    int longestLength = tokensShort.length > NgramOverlap.MAX_NGRAM_LENGTH ? NgramOverlap.MAX_NGRAM_LENGTH : tokensShort.length;
     for (int length = longestLength; length >= 1; --length) {
       for (int shortStart = 0; shortStart <= tokensShort.length - length; ++shortStart) {
         for (int longStart = 0; longStart <= tokensLong.length - length; ++longStart) {
@@ -90,6 +233,42 @@ public class WSD {
     return lesk(a.split("\\s+"), b.split("\\s+"), 0, 0);
   }
 
+  /**
+   * Compute the Lesk overlap between a synset and the sentence in a context.
+   * This computes the same value as {@link WSD#lesk(String[], String[], int, int)}, but over token ids,
+   * and without allocating. The n-grams of the context are hashed once, and reused for every synset
+   * scored against the same span of the sentence; see {@link NgramOverlap}.
+   *
+   * @param context The encoded sentence, and our scratch buffers.
+   * @param synsetId The id of the synset in the context's synset store.
+   * @param bIgnoreStart The start of the span in the sentence to ignore; generally, the word we are disambiguating.
+   * @param bIgnoreEnd The end of the span in the sentence to ignore, exclusive.
+   */
+  public static int lesk(LeskContext context, int synsetId, int bIgnoreStart, int bIgnoreEnd) {
+    // Hash the context, if we have not already for this span
+    context.ignore(bIgnoreStart, bIgnoreEnd);
+
+    // Run greedy lesk
+    int aLength = context.store.leskDefinition(synsetId, context.definition);
+    return context.overlap.overlap(context.definition, aLength);
+  }
+
+  /**
+   * Helper for sense(): score the i'th synset of a word, given its Lesk overlap with the context and
+   * the index of the word in the synset's word forms.
+   */
+  private static double score(int leskOverlap, int i, int wordFormIndex) {
+    // (reward for high lesk)
+    int leskVal = leskOverlap - 1;
+    double lesk = leskVal < 0 ? 0.0 : leskVal;
+    // (penalty for going to less frequent senses)
+    double sensePrior = -1.01 * i;
+    // (penalty for not being the primary sense)
+    double glossPriority = 2.01 * -(wordFormIndex > 0 ? 0.0 : wordFormIndex);
+    // (compute argmax)
+    return lesk + sensePrior + glossPriority;
+  }
+
   @SuppressWarnings("unchecked")
   public static int sense(String[] rawContext, int glossStart, int glossEnd, Synset[] synsets, String gloss) {
     // Find the best match
@@ -101,7 +280,11 @@ public class WSD {
       Synset synset = synsets[i];
       String[] definition;
       int wordFormIndex;
-      if (synset instanceof MinimalSynset) {
+      if (synset instanceof SynsetStore.StoredSynset) {
+        SynsetStore.StoredSynset s = (SynsetStore.StoredSynset) synset;
+        definition = s.splitDefinition();
+        wordFormIndex = s.indexOf(gloss);
+      } else if (synset instanceof MinimalSynset) {
         MinimalSynset s = (MinimalSynset) synset;
         definition = s.splitDefinition();
         wordFormIndex = s.indexOf(gloss);
@@ -110,15 +293,7 @@ public class WSD {
         wordFormIndex = Arrays.asList(synset.getWordForms()).indexOf(gloss);
       }
       // Computation
-      // (reward for high lesk)
-      int leskVal = lesk(definition, rawContext, glossStart, glossEnd)  - 1;
-      double lesk = leskVal < 0 ? 0.0 : leskVal;
-      // (penalty for going to less frequent senses)
-      double sensePrior = -1.01 * i;
-      // (penalty for not being the primary sense)
-      double glossPriority = 2.01 * -(wordFormIndex > 0 ? 0.0 : wordFormIndex);
-      // (compute argmax)
-      double score = lesk + sensePrior + glossPriority;
+      double score = score(lesk(definition, rawContext, glossStart, glossEnd), i, wordFormIndex);
       if (score > max) {
         max = score;
         argmax = i;
@@ -127,9 +302,67 @@ public class WSD {
     return argmax;
   }
 
-  @SuppressWarnings("unchecked")
+  /**
+   * Like {@link WSD#sense(String[], int, int, Synset[], String)}, but reading the candidate synsets directly
+   * from the synset store, and scoring them with the integer Lesk scorer.
+   *
+   * @param context The sentence, encoded against the synset store.
+   * @param key The key of the word's synsets, from {@link SynsetStore#find(String, int)}.
+   * @return The index of the best synset for this key.
+   */
+  public static int sense(LeskContext context, int glossStart, int glossEnd, int key, String gloss) {
+    // Check the cache
+    SynsetStore store = context.store;
+    context.ignore(glossStart, glossEnd);
+    SenseKey cacheKey = new SenseKey(store, key, gloss, context.contextHash);
+    Integer cached = SENSE_CACHE.get().get(cacheKey);
+    if (cached != null) {
+      return cached;
+    }
+
+    // Find the best match
+    double max = Double.NEGATIVE_INFINITY;
+    int argmax = -1;
+    int numSynsets = store.numSynsets(key);
+    int endLimit = numSynsets > 31 ? 32 : numSynsets;
+    for (int i = 0; i < endLimit; ++i) {
+      SynsetStore.StoredSynset synset = store.synset(key, i);
+      double score = score(lesk(context, synset.id, glossStart, glossEnd), i, synset.indexOf(gloss));
+      if (score > max) {
+        max = score;
+        argmax = i;
+      }
+    }
+    SENSE_CACHE.get().put(cacheKey, argmax);
+    return argmax;
+  }
+
+  /**
+   * Disambiguate a word in a sentence.
+   * This encodes the sentence into the current thread's {@link LeskContext}; to disambiguate many words in the
+   * same sentence, encode it once and call {@link WSD#sense(LeskContext, int, int, String, String)} instead.
+   */
   public static Optional<Synset> sense(String[] context, int glossStart, int glossEnd, String pos, String gloss) {
+    return sense(LeskContext.get().encode(StaticResources.SYNSETS.get(), context), glossStart, glossEnd, pos, gloss);
+  }
 
+  /**
+   * Disambiguate a word in a sentence.
+   *
+   * @param context The sentence, encoded against the synset store; see {@link LeskContext#encode(SynsetStore, String[])}.
+   * @param glossStart The index of the first word of the phrase we are disambiguating.
+   * @param glossEnd The index just past the last word of the phrase we are disambiguating.
+   * @param pos The part of speech tag of the phrase.
+   * @param gloss The phrase we are disambiguating.
+   *
+   * @return The most likely synset of the phrase, if it has any synsets.
+   */
+  public static Optional<Synset> sense(LeskContext context, int glossStart, int glossEnd, String pos, String gloss) {
+    return senseKey(context, glossStart, glossEnd, findSynsets(context.store, gloss, synsetTypeCode(pos)), gloss);
+  }
+
+  /** Get the {@link SynsetType#getCode()} for a POS tag, or -1 if the tag does not correspond to a synset type. */
+  private static int synsetTypeCode(String pos) {
     SynsetType t = null;
     if (pos.startsWith("N")) {
       t = SynsetType.NOUN;
@@ -140,19 +373,94 @@ public class WSD {
     } else if (pos.startsWith("R")) {
       t = SynsetType.ADVERB;
     }
-    // Get synsets
-    Synset[] synsets = StaticResources.SYNSETS.get().get(Pair.makePair(gloss, t == null ? -1 : t.getCode()));  // enforce POS
-    if (synsets == null) {
-      synsets = StaticResources.SYNSETS.get().get(Pair.makePair(gloss.toLowerCase(), t == null ? -1 : t.getCode()));  // try lowercase?
+    return t == null ? -1 : t.getCode();
+  }
+
+  /** Find the synsets of a phrase, falling back to the lowercased phrase. */
+  private static int findSynsets(SynsetStore store, String gloss, int typeCode) {
+    int key = store.find(gloss, typeCode);  // enforce POS
+    if (key < 0) {
+      key = store.find(gloss.toLowerCase(), typeCode);  // try lowercase?
     }
-    // Do the WSD
-    if (synsets == null || synsets.length == 0) {
+    return key;
+  }
+
+  /** Helper for sense(): disambiguate between the synsets of a key, if there is more than one. */
+  private static Optional<Synset> senseKey(LeskContext context, int glossStart, int glossEnd, int key, String gloss) {
+    SynsetStore store = context.store;
+    if (key < 0 || store.numSynsets(key) == 0) {
       return Optional.empty();
-    } else if (synsets.length == 1) {
-      return Optional.of(synsets[0]);
+    } else if (store.numSynsets(key) == 1) {
+      return Optional.of(store.synset(key, 0));
     } else {
-      return Optional.of(synsets[sense(context, glossStart, glossEnd, synsets, gloss)]);
+      return Optional.of(store.synset(key, sense(context, glossStart, glossEnd, key, gloss)));
+    }
+  }
+
+  /**
+   * Get the most likely part of speech of a span, for the purpose of looking up its synsets.
+   * This prefers nouns, then verbs and adjectives, then adverbs; and ignores tags with no corresponding synset type.
+   *
+   * @param posTags The POS tags of the sentence, or null if the sentence is not tagged.
+   * @param start The start of the span.
+   * @param end The end of the span, exclusive.
+   *
+   * @return The POS tag of the span, or "???" if there is none.
+   */
+  static String spanPos(String[] posTags, int start, int end) {
+    if (posTags == null || posTags[start] == null) {
+      return "???";
+    }
+    Counter<String> posCounts = new ClassicCounter<>();
+    for (int i = start; i < end; ++i) {
+      String pos = posTags[i];
+      if (pos.startsWith("N") ||
+          pos.startsWith("V") ||
+          pos.startsWith("J") ||
+          pos.startsWith("R") ) {
+        posCounts.incrementCount(pos);
+      }
+    }
+    if (posCounts.size() > 0) {
+      return Counters.argmax(posCounts, (x, y) -> {
+        if (x.startsWith("N")) { return -1; }
+        if (y.startsWith("N")) { return 1; }
+        if (x.startsWith("R")) { return 1; }
+        if (y.startsWith("R")) { return -1; }
+        return x.compareTo(y);
+      });
+    } else {
+      return "???";
+    }
+  }
+
+  /**
+   * Disambiguate every span of a sentence at once.
+   * The sentence is encoded once, and the synsets of a phrase are only looked up once for every part of speech
+   * it appears with. The result is the same as calling
+   * {@link WSD#sense(String[], int, int, String, String)} for each span with its {@link WSD#spanPos(String[], int, int)}.
+   *
+   * @param context The words of the sentence.
+   * @param spans The spans to disambiguate. The gloss of a span is its words, joined by a space.
+   * @param posTags The POS tags of the sentence, or null if the sentence is not tagged.
+   *
+   * @return The most likely synset of each span, in the same order as the spans.
+   */
+  public static List<Optional<Synset>> senseAll(String[] context, List<Span> spans, String[] posTags) {
+    LeskContext leskContext = LeskContext.get().encode(StaticResources.SYNSETS.get(), context);
+    Map<Pair<String, Integer>, Integer> keys = new HashMap<>();
+    List<Optional<Synset>> synsets = new ArrayList<>(spans.size());
+    for (Span span : spans) {
+      String gloss = StringUtils.join(context, span.start(), span.end(), " ");
+      Pair<String, Integer> phrase = Pair.makePair(gloss, synsetTypeCode(spanPos(posTags, span.start(), span.end())));
+      Integer key = keys.get(phrase);
+      if (key == null) {
+        key = findSynsets(leskContext.store, gloss, phrase.second);
+        keys.put(phrase, key);
+      }
+      synsets.add(senseKey(leskContext, span.start(), span.end(), key, gloss));
     }
+    return synsets;
   }
 
   private static final Set<String> STOP_WORDS = Collections.unmodifiableSet(new HashSet<String>(){{
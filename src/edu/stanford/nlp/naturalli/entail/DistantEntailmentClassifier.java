@@ -3,12 +3,12 @@ package edu.stanford.nlp.naturalli.entail;
 import edu.stanford.nlp.classify.Classifier;
 import edu.stanford.nlp.classify.WeightedRVFDataset;
 import edu.stanford.nlp.ling.RVFDatum;
+import edu.stanford.nlp.naturalli.PipelinePool;
 import edu.stanford.nlp.naturalli.ProcessPremise;
 import edu.stanford.nlp.pipeline.StanfordCoreNLP;
 import edu.stanford.nlp.simple.Sentence;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.stats.Counters;
-import edu.stanford.nlp.util.Lazy;
 import edu.stanford.nlp.util.Pair;
 import edu.stanford.nlp.util.Trilean;
 
@@ -31,26 +31,37 @@ public class DistantEntailmentClassifier implements EntailmentClassifier {
   public final EntailmentFeaturizer featurizer;
   public final Classifier<Trilean, String> pZGivenX;
 
-  private Lazy<StanfordCoreNLP> pipeline = Lazy.of(() -> ProcessPremise.constructPipeline("depparse"));
+  /**
+   * The pipelines to annotate the latent premises with: the shared premise pipelines, or a private pool holding
+   * only the pipeline we were constructed with.
+   */
+  private final PipelinePool pipelines;
 
   public DistantEntailmentClassifier(EntailmentFeaturizer featurizer, Classifier<Trilean, String> classifier) {
     this.featurizer = featurizer;
     this.pZGivenX = classifier;
+    this.pipelines = ProcessPremise.pipelinePool("depparse");
   }
 
+  /**
+   * Create a classifier which annotates with the given pipeline (e.g., the one it was trained with).
+   * The pipeline is not shared with the rest of the JVM, since it may be configured differently from the shared
+   * premise pipelines; so, this classifier scores one pair at a time.
+   */
   public DistantEntailmentClassifier(EntailmentFeaturizer featurizer, Classifier<Trilean, String> classifier, StanfordCoreNLP pipeline) {
-    this(featurizer, classifier);
-    this.pipeline = Lazy.from(pipeline);
+    this.featurizer = featurizer;
+    this.pZGivenX = classifier;
+    this.pipelines = new PipelinePool("distant", 1, () -> pipeline);
   }
 
   @Override
   public Trilean classify(Sentence premise, Sentence hypothesis, Optional<String> focus, Optional<Double> luceneScore) {
-    return classify(new DistantEntailmentPair(Trilean.UNKNOWN, premise.text(), hypothesis.text(), focus, luceneScore, pipeline.get()));
+    return classify(pipelines.apply(pipeline -> new DistantEntailmentPair(Trilean.UNKNOWN, premise.text(), hypothesis.text(), focus, luceneScore, pipeline)));
   }
 
   @Override
   public double truthScore(Sentence premise, Sentence hypothesis, Optional<String> focus, Optional<Double> luceneScore) {
-    return truthScore(new DistantEntailmentPair(Trilean.UNKNOWN, premise.text(), hypothesis.text(), focus, luceneScore, pipeline.get()));
+    return truthScore(pipelines.apply(pipeline -> new DistantEntailmentPair(Trilean.UNKNOWN, premise.text(), hypothesis.text(), focus, luceneScore, pipeline)));
   }
 
   @SuppressWarnings("SuspiciousNameCombination")
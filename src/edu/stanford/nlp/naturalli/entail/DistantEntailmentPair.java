@@ -49,7 +49,7 @@ class DistantEntailmentPair {
   public DistantEntailmentPair(Trilean truth, String premise, String conclusion, Optional<String> focus, Optional<Double> luceneScore, StanfordCoreNLP pipeline) {
     this(
         truth,
-        ProcessPremise.forwardEntailments(premise, pipeline).stream().map(Sentence::new).limit(255).collect(Collectors.toList()),
+        ProcessPremise.forwardEntailments(premise, pipeline, x -> true, 255).map(Sentence::new).collect(Collectors.toList()),
         new Sentence(conclusion),
         focus, luceneScore);
   }
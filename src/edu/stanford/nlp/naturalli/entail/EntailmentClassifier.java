@@ -12,6 +12,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 
 import static edu.stanford.nlp.util.logging.Redwood.Util.log;
@@ -38,30 +39,62 @@ public interface EntailmentClassifier {
     return truthScore(new Sentence(premise), new Sentence(hypothesis), focus, luceneScore);
   }
 
+  /**
+   * Annotate a hypothesis with everything {@link EntailmentClassifier#truthScore(Sentence, Sentence, Optional, Optional)}
+   * will need from it, before it is shared across threads by the parallel versions of
+   * {@link EntailmentClassifier#bestScore(List, String, Optional, Optional, Function, Executor)} and
+   * {@link EntailmentClassifier#aveScore(List, String, Optional, Optional, Function, Executor)}.
+   * By default, this runs the lemmatizer and computes the keyphrase spans, which is what the featurizer reads.
+   */
+  default void prepareHypothesis(Sentence hypothesis) {
+    hypothesis.lemmas();
+    hypothesis.algorithms().keyphraseSpans();
+  }
+
+  /**
+   * Start any slow, external work that scoring this hypothesis against these premises will need (e.g., a NaturalLI
+   * search), without waiting for it. A caller which is about to score several hypotheses in a row can send them all
+   * ahead, so that the work for the later ones overlaps with scoring the earlier ones.
+   * The caller must call {@link EntailmentClassifier#clearPrefetched()} once it is done with these hypotheses,
+   * whether or not it scored all of them.
+   * By default, this does nothing.
+   */
+  default void prefetch(List<String> premises, String hypothesis) {
+  }
+
+  /**
+   * Forget the work started by {@link EntailmentClassifier#prefetch(List, String)} which was never asked for
+   * (e.g., because scoring an earlier hypothesis failed).
+   * By default, this does nothing.
+   */
+  default void clearPrefetched() {
+  }
+
   default Pair<Sentence, Double> bestScore(List<String> premises, String hypothesis,
                                            Optional<String> focus, Optional<List<Double>> luceneScores,
                                            Function<Integer, Double> decay) {
+    return bestScore(premises, hypothesis, focus, luceneScores, decay, PremiseScores.DIRECT);
+  }
+
+  /**
+   * Like {@link EntailmentClassifier#bestScore(List, String, Optional, Optional, Function)}, but score the premises
+   * on the given executor. The result is the same as scoring them in order, including which premise wins a tie.
+   */
+  default Pair<Sentence, Double> bestScore(List<String> premises, String hypothesis,
+                                           Optional<String> focus, Optional<List<Double>> luceneScores,
+                                           Function<Integer, Double> decay, Executor executor) {
     double max = Double.NEGATIVE_INFINITY;
     Sentence argmax = null;
-    Sentence hypothesisSentence = new Sentence(hypothesis);
+    PremiseScores premiseScores = PremiseScores.compute(this, premises, hypothesis, focus, luceneScores, executor);
     for (int i = 0; i < premises.size(); ++i) {
-      Sentence premiseSentence = new Sentence(premises.get(i));
-      // Score the entailment pair
-      double score = truthScore(premiseSentence, hypothesisSentence, focus, luceneScores.isPresent() ? Optional.of(luceneScores.get().get(i)) : Optional.empty());
-      // Discount the score if the focus is not present
-      if (focus.isPresent() &&
-          !focus.get().contains(" ") &&
-          !premiseSentence.text().toLowerCase().replaceAll("\\s+", " ").contains(focus.get().toLowerCase().replaceAll("\\s+", " "))) {
-        score *= 0.25;
-      }
-      score *= decay.apply(i);
+      double score = premiseScores.scores[i] * decay.apply(i);
       // Check score
       assert !Double.isNaN(score);
       assert Double.isFinite(score);
       // Incorporate it into the max calculation
       if (score > max) {
         max = score;
-        argmax = premiseSentence;
+        argmax = premiseScores.premises[i];
       }
     }
     return Pair.makePair(argmax, max);
@@ -75,28 +108,29 @@ public interface EntailmentClassifier {
   default Pair<Sentence, Double> aveScore(List<String> premises, String hypothesis,
                                           Optional<String> focus, Optional<List<Double>> luceneScores,
                                           Function<Integer, Double> decay) {
+    return aveScore(premises, hypothesis, focus, luceneScores, decay, PremiseScores.DIRECT);
+  }
+
+  /**
+   * Like {@link EntailmentClassifier#aveScore(List, String, Optional, Optional, Function)}, but score the premises
+   * on the given executor. The result is the same as scoring them in order.
+   */
+  default Pair<Sentence, Double> aveScore(List<String> premises, String hypothesis,
+                                          Optional<String> focus, Optional<List<Double>> luceneScores,
+                                          Function<Integer, Double> decay, Executor executor) {
     double sum = 0.0;
     double max = Double.NEGATIVE_INFINITY;
     Sentence argmax = null;
-    Sentence hypothesisSentence = new Sentence(hypothesis);
+    PremiseScores premiseScores = PremiseScores.compute(this, premises, hypothesis, focus, luceneScores, executor);
     for (int i = 0; i < premises.size(); ++i) {
-      Sentence premiseSentence = new Sentence(premises.get(i));
-      // Score the entailment pair
-      double score = truthScore(premiseSentence, hypothesisSentence, focus, luceneScores.isPresent() ? Optional.of(luceneScores.get().get(i)) : Optional.empty());
-      // Discount the score if the focus is not present
-      if (focus.isPresent() &&
-          !focus.get().contains(" ") &&
-          !premiseSentence.text().toLowerCase().replaceAll("\\s+", " ").contains(focus.get().toLowerCase().replaceAll("\\s+", " "))) {
-        score *= 0.25;
-      }
-      score *= decay.apply(i);
+      double score = premiseScores.scores[i] * decay.apply(i);
       // Check score
       assert !Double.isNaN(score);
       assert Double.isFinite(score);
       // Incorporate it into the max calculation
       if (score > max) {
         max = score;
-        argmax = premiseSentence;
+        argmax = premiseScores.premises[i];
       }
       // Compute the sum
       sum += score;
@@ -0,0 +1,42 @@
+package edu.stanford.nlp.naturalli.entail;
+
+import edu.stanford.nlp.ie.machinereading.structure.Span;
+import edu.stanford.nlp.simple.Sentence;
+import edu.stanford.nlp.simple.SentenceAlgorithms;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A hypothesis, which is scored against every one of its premises.
+ * This is a regular {@link Sentence}, except that it computes its keyphrase spans only once, rather than once per
+ * premise, since the featurizer asks for them on every entailment pair
+ * (see {@link EntailmentFeaturizer#align(EntailmentPair, java.util.Optional, boolean)}).
+ *
+ * @author Gabor Angeli
+ */
+class HypothesisSentence extends Sentence {
+
+  /** The keyphrase spans of this sentence, once they have been computed. */
+  private volatile List<Span> cachedKeyphraseSpans = null;
+
+  HypothesisSentence(String text) {
+    super(text);
+  }
+
+  /** {@inheritDoc} The returned algorithms share this sentence's keyphrase spans. */
+  @Override
+  public SentenceAlgorithms algorithms() {
+    return new SentenceAlgorithms(this) {
+      @Override
+      public List<Span> keyphraseSpans() {
+        List<Span> spans = cachedKeyphraseSpans;
+        if (spans == null) {
+          spans = Collections.unmodifiableList(super.keyphraseSpans());
+          cachedKeyphraseSpans = spans;
+        }
+        return spans;
+      }
+    };
+  }
+}
@@ -1,6 +1,7 @@
 package edu.stanford.nlp.naturalli.entail;
 
 import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.naturalli.PipelinePool;
 import edu.stanford.nlp.simple.Sentence;
 import edu.stanford.nlp.util.ArgumentParser;
 import edu.stanford.nlp.util.Pair;
@@ -13,6 +14,7 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static edu.stanford.nlp.util.logging.Redwood.Util.*;
 
@@ -32,6 +34,12 @@ public class MultipleChoiceSolver {
   @ArgumentParser.Option(name="data", gloss="The file to evaluate on")
   public static File DATA_FILE = new File("etc/aristo/eval_train_allcorpora.tab");
 
+  @ArgumentParser.Option(name="threads", gloss="The number of (question, answer) pairs to score in parallel. 1 scores them in order on the main thread. The classifier must be threadsafe to use more than 1.")
+  public static int THREADS = 1;
+
+  @ArgumentParser.Option(name="premise_threads", gloss="The number of premises of an answer to score in parallel. 1 scores them in order on the thread scoring the answer. The classifier must be threadsafe to use more than 1.")
+  public static int PREMISE_THREADS = 1;
+
   private static final DecimalFormat percent = new DecimalFormat("0.000%");
 
 
@@ -104,19 +112,54 @@ public class MultipleChoiceSolver {
   }
 
 
-  private static int predict(EntailmentClassifier classifier, MultipleChoiceQuestion question, Optional<TestState> testState) {
+  /**
+   * Score a single answer to a question, returning the score and the premise which best supports it.
+   * The premises of the answer are scored on the given executor (see {@link MultipleChoiceSolver#PREMISE_THREADS}).
+   */
+  private static Pair<Sentence, Double> score(EntailmentClassifier classifier, MultipleChoiceQuestion question, int qI,
+                                              Executor premiseExecutor) {
+    return classifier.bestScore(
+        question.premises.get(qI),
+        question.hypotheses.get(qI),
+        Optional.of(question.focuses.get(qI)),
+        Optional.of(question.luceneScores.get(qI)),
+        i -> 1.0,
+        premiseExecutor
+    );
+  }
+
+
+  private static int predict(EntailmentClassifier classifier, MultipleChoiceQuestion question, Executor premiseExecutor,
+                             Optional<TestState> testState) {
+    List<Pair<Sentence, Double>> supports = new ArrayList<>();
+    try {
+      // Send the slow queries for every answer ahead (e.g., to NaturalLI), so they overlap with scoring the earlier answers
+      for (int qI = 0; qI < question.size(); ++qI) {
+        classifier.prefetch(question.premises.get(qI), question.hypotheses.get(qI));
+      }
+      for (int qI = 0; qI < question.size(); ++qI) {
+        supports.add(score(classifier, question, qI, premiseExecutor));
+      }
+    } finally {
+      // Don't hold on to the queries of answers we never got to
+      classifier.clearPrefetched();
+    }
+    return predict(question, supports, testState);
+  }
+
+
+  /**
+   * Pick the answer to a question, given the (already computed) score of every answer.
+   * This is where we log, so that the output is the same regardless of the order in which the scores were computed.
+   */
+  private static int predict(MultipleChoiceQuestion question, List<Pair<Sentence, Double>> supports, Optional<TestState> testState) {
     startTrack(question.hypotheses.get(question.answer));
     int argmax = -1;
     double max = Double.NEGATIVE_INFINITY;
     double min = Double.POSITIVE_INFINITY;
     List<Double> scores = new ArrayList<>();
     for (int qI = 0; qI < question.size(); ++qI) {
-      Pair<Sentence, Double> support = classifier.bestScore(
-          question.premises.get(qI),
-          question.hypotheses.get(qI),
-          Optional.of(question.focuses.get(qI)),
-          Optional.of(question.luceneScores.get(qI))
-      );
+      Pair<Sentence, Double> support = supports.get(qI);
       double score = support.second;
       scores.add(score);
 
@@ -154,15 +197,75 @@ public class MultipleChoiceSolver {
   }
 
 
+  /**
+   * Score every (question, answer) pair on a bounded pool of threads.
+   * When the pool's queue is full, the main thread scores the pair itself, so we never queue up the whole dataset.
+   *
+   * @return For each question in order, the score of each of its answers in order.
+   */
+  private static List<List<Pair<Sentence, Double>>> scoreInParallel(EntailmentClassifier classifier,
+                                                                    Collection<MultipleChoiceQuestion> questions,
+                                                                    int numThreads, Executor premiseExecutor) {
+    ThreadPoolExecutor exec = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(numThreads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+    try {
+      // Fan out
+      List<List<Future<Pair<Sentence, Double>>>> futures = new ArrayList<>();
+      for (MultipleChoiceQuestion question : questions) {
+        List<Future<Pair<Sentence, Double>>> answers = new ArrayList<>();
+        for (int qI = 0; qI < question.size(); ++qI) {
+          final int answer = qI;
+          answers.add(exec.submit(() -> score(classifier, question, answer, premiseExecutor)));
+        }
+        futures.add(answers);
+      }
+      // Collect, in order
+      List<List<Pair<Sentence, Double>>> supports = new ArrayList<>();
+      for (List<Future<Pair<Sentence, Double>>> answers : futures) {
+        List<Pair<Sentence, Double>> scores = new ArrayList<>();
+        for (Future<Pair<Sentence, Double>> future : answers) {
+          scores.add(future.get());
+        }
+        supports.add(scores);
+      }
+      return supports;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      exec.shutdownNow();
+    }
+  }
+
+
   private static double accuracy(EntailmentClassifier classifier, Collection<MultipleChoiceQuestion> questions) {
     int correct = 0;
     TestState state = new TestState();
     List<MultipleChoiceQuestion> missed = new ArrayList<>();
-    for (MultipleChoiceQuestion question : questions) {
-      if (predict(classifier, question, Optional.of(state)) == question.answer) {
-        correct += 1;
-      } else {
-        missed.add(question);
+    ExecutorService premiseExecutor = PREMISE_THREADS > 1 ? Executors.newFixedThreadPool(PREMISE_THREADS) : null;
+    try {
+      Executor executor = premiseExecutor != null ? premiseExecutor : PremiseScores.DIRECT;
+      Iterator<List<Pair<Sentence, Double>>> supports = THREADS > 1
+          ? scoreInParallel(classifier, questions, THREADS, executor).iterator()
+          : null;
+      for (MultipleChoiceQuestion question : questions) {
+        int prediction = supports != null
+            ? predict(question, supports.next(), Optional.of(state))
+            : predict(classifier, question, executor, Optional.of(state));
+        if (prediction == question.answer) {
+          correct += 1;
+        } else {
+          missed.add(question);
+        }
+      }
+    } finally {
+      if (premiseExecutor != null) {
+        premiseExecutor.shutdownNow();
       }
     }
 
@@ -221,6 +324,9 @@ public class MultipleChoiceSolver {
       log("Best alignment @ " + argmax + " with score " + max);
     }
 
+    for (PipelinePool pool : PipelinePool.pools()) {
+      log(pool);
+    }
     endTrack("main");
   }
 }
@@ -7,6 +7,7 @@ import edu.stanford.nlp.classify.RVFDataset;
 import edu.stanford.nlp.io.IOUtils;
 import edu.stanford.nlp.io.RuntimeIOException;
 import edu.stanford.nlp.ling.RVFDatum;
+import edu.stanford.nlp.naturalli.PipelinePool;
 import edu.stanford.nlp.naturalli.ProcessQuery;
 import edu.stanford.nlp.naturalli.QRewrite;
 import edu.stanford.nlp.pipeline.StanfordCoreNLP;
@@ -33,7 +34,7 @@ import static edu.stanford.nlp.util.logging.Redwood.Util.log;
  * @author Gabor Angeli
  */
 public class NaturalLIAlignmentClassifier implements EntailmentClassifier {
-  private static final Lazy<StanfordCoreNLP> pipeline = Lazy.of(() -> {
+  private static final PipelinePool pipelines = PipelinePool.of("alignment", () -> {
     Properties props = new Properties() {{
       setProperty("annotators", "tokenize,ssplit,pos,ing,lemma,depparse,natlog,qrewrite");
       setProperty("customAnnotatorClass.ing","edu.stanford.nlp.naturalli.VerbIngTranslator");
@@ -83,12 +84,18 @@ public class NaturalLIAlignmentClassifier implements EntailmentClassifier {
   @Override
   public double truthScore(Sentence premise, Sentence hypothesis, Optional<String> focus, Optional<Double> luceneScore) {
     try {
-      naturalli.second.write(toParseTree(premise.text()));
-      naturalli.second.write("\n");
-      naturalli.second.write(toParseTree(hypothesis.text()));
-      naturalli.second.write("\n");
-      naturalli.second.flush();
-      String json = naturalli.first.readLine();
+      String premiseTree = toParseTree(premise.text());
+      String hypothesisTree = toParseTree(hypothesis.text());
+      String json;
+      // The process answers requests in order, so a request and its response must not interleave with another thread's
+      synchronized (naturalli) {
+        naturalli.second.write(premiseTree);
+        naturalli.second.write("\n");
+        naturalli.second.write(hypothesisTree);
+        naturalli.second.write("\n");
+        naturalli.second.flush();
+        json = naturalli.first.readLine();
+      }
       Features feats = new Gson().fromJson(json, Features.class);
       double score =
           0.084991765 * feats.count_aligned +
@@ -140,7 +147,7 @@ public class NaturalLIAlignmentClassifier implements EntailmentClassifier {
   private static String toParseTree(String text) {
     Pointer<String> debug = new Pointer<>();
     try {
-      return ProcessQuery.annotate(QRewrite.FOR_PREMISE, text, pipeline.get(), debug, true);
+      return pipelines.apply(pipeline -> ProcessQuery.annotate(QRewrite.FOR_PREMISE, text, pipeline, debug, true));
     } catch (AssertionError e) {
       err("Assertion error when processing sentence: " + text);
       return "cats\t0\troot\t0";
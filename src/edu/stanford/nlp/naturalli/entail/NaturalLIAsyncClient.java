@@ -0,0 +1,178 @@
+package edu.stanford.nlp.naturalli.entail;
+
+import edu.stanford.nlp.util.StreamGobbler;
+
+import java.io.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A pipelined connection to a single NaturalLI search process (e.g., src/naturalli_search).
+ *
+ * Every request is prefixed with a "%requestId = n" line, which the search program echoes back as the "id" field
+ * of its JSON response. So, a caller does not have to wait for the response to one query before sending the next:
+ * requests are written to the pipe as soon as they are ready, and a reader thread completes the future of each
+ * request as its response arrives. The search program still runs the queries one at a time, but encoding the next
+ * query (e.g., parsing it with CoreNLP) now overlaps with the search for the current one.
+ *
+ * A response without an id (e.g., from an older search program) is matched to the oldest outstanding request,
+ * since the search program answers requests in order.
+ * A request with no query in it is rejected here, rather than sent: an older search program would never answer it.
+ *
+ * @author Gabor Angeli
+ */
+public class NaturalLIAsyncClient {
+
+  /**
+   * The id field, as the search program writes it at the start of its response. The id may be the only field,
+   * if the request was empty.
+   */
+  private static final Pattern ID_FIELD = Pattern.compile("^\\{\"id\": *([0-9]+)(, *|(?=}))");
+
+  private final Process process;
+  private final BufferedReader fromNaturalLI;
+  private final Writer toNaturalLI;
+  /** The requests which have not been answered yet, by their id. */
+  private final ConcurrentNavigableMap<Long, CompletableFuture<String>> pending = new ConcurrentSkipListMap<>();
+  private final AtomicLong nextId = new AtomicLong(0);
+  /** Set once the search program has closed its output; every later request fails with this exception. */
+  private volatile IOException failure = null;
+
+  /**
+   * Start a search process, and send it the setup commands.
+   *
+   * @param searchProgram The search program to run.
+   * @param setupCommands The commands to send to the process when it starts, e.g., "%strictCosts = true".
+   * @param errWriter The writer to copy the stderr of the process to.
+   *
+   * @throws IOException Thrown if we could not start the process.
+   */
+  public NaturalLIAsyncClient(String searchProgram, List<String> setupCommands, Writer errWriter) throws IOException {
+    process = new ProcessBuilder(searchProgram).start();
+    // Gobble naturalli.stderr to real stderr
+    new StreamGobbler(process.getErrorStream(), errWriter).start();
+    // Create the pipe
+    fromNaturalLI = new BufferedReader(new InputStreamReader(process.getInputStream()));
+    toNaturalLI = new OutputStreamWriter(new BufferedOutputStream(process.getOutputStream()));
+    // Set some parameters
+    for (String command : setupCommands) {
+      toNaturalLI.write(command);
+      toNaturalLI.write("\n");
+    }
+    toNaturalLI.flush();
+    // Read the responses
+    Thread reader = new Thread(this::readResponses, "naturalli-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /** The body of the reader thread: match every response line to its request. */
+  private void readResponses() {
+    try {
+      String line;
+      while ((line = fromNaturalLI.readLine()) != null) {
+        Matcher matcher = ID_FIELD.matcher(line);
+        CompletableFuture<String> future;
+        String response;
+        if (matcher.find()) {
+          future = pending.remove(Long.parseLong(matcher.group(1)));
+          response = "{" + line.substring(matcher.end());
+        } else {
+          Map.Entry<Long, CompletableFuture<String>> oldest = pending.pollFirstEntry();
+          future = oldest == null ? null : oldest.getValue();
+          response = line;
+        }
+        if (future != null) {
+          future.complete(response);
+        } else {
+          System.err.println("Got a NaturalLI response with no outstanding request: " + line);
+        }
+      }
+      failure = new EOFException("NaturalLI process closed its output");
+    } catch (IOException e) {
+      failure = e;
+    }
+    // Fail everything still in flight
+    while (!pending.isEmpty()) {
+      Map.Entry<Long, CompletableFuture<String>> entry = pending.pollFirstEntry();
+      if (entry != null) {
+        entry.getValue().completeExceptionally(failure);
+      }
+    }
+  }
+
+  /**
+   * Returns true if the request has a query in it; that is, any line which is not blank, a comment ('#'), or a
+   * directive ('%').
+   */
+  static boolean hasQuery(String request) {
+    for (String line : request.split("\n")) {
+      if (!line.trim().isEmpty() && line.charAt(0) != '#' && line.charAt(0) != '%') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Send a query to the search process, without waiting for its response.
+   *
+   * @param request The full request to send, including the premises, the hypothesis, and the blank line
+   *                which starts the search.
+   * @return A future for the response line from NaturalLI (a JSON object), without its id field.
+   *         This fails with an IOException if the process dies before responding, or with an
+   *         IllegalArgumentException if the request has no query in it.
+   */
+  public CompletableFuture<String> query(String request) {
+    CompletableFuture<String> future = new CompletableFuture<>();
+    if (!hasQuery(request)) {
+      future.completeExceptionally(new IllegalArgumentException("Empty NaturalLI request"));
+      return future;
+    }
+    if (failure != null) {
+      future.completeExceptionally(failure);
+      return future;
+    }
+    long id = nextId.getAndIncrement();
+    // Register before writing, so the response can never arrive before its future
+    pending.put(id, future);
+    try {
+      synchronized (toNaturalLI) {
+        toNaturalLI.write("%requestId = ");
+        toNaturalLI.write(Long.toString(id));
+        toNaturalLI.write("\n");
+        toNaturalLI.write(request);
+        toNaturalLI.flush();
+      }
+    } catch (IOException e) {
+      pending.remove(id);
+      future.completeExceptionally(e);
+    }
+    // The process may have died while we were registering
+    if (failure != null && pending.remove(id) != null) {
+      future.completeExceptionally(failure);
+    }
+    return future;
+  }
+
+  /** Returns true if the search process is still running, and has not closed its output. */
+  public boolean isHealthy() {
+    return failure == null && process.isAlive();
+  }
+
+  /** The number of requests which have been sent, but not yet answered. */
+  public int pending() {
+    return pending.size();
+  }
+
+  /** Kill the search process. Any outstanding requests fail. */
+  public void close() {
+    process.destroy();
+  }
+}
@@ -3,11 +3,14 @@ package edu.stanford.nlp.naturalli.entail;
 import com.google.gson.Gson;
 import edu.stanford.nlp.classify.Classifier;
 import edu.stanford.nlp.classify.LinearClassifier;
+import edu.stanford.nlp.io.RuntimeIOException;
+import edu.stanford.nlp.naturalli.AnnotationCache;
+import edu.stanford.nlp.naturalli.EntailmentCache;
+import edu.stanford.nlp.naturalli.PipelinePool;
 import edu.stanford.nlp.naturalli.ProcessPremise;
 import edu.stanford.nlp.naturalli.ProcessQuery;
 import edu.stanford.nlp.naturalli.QRewrite;
-import edu.stanford.nlp.naturalli.SentenceFragment;
-import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.naturalli.StaticResources;
 import edu.stanford.nlp.simple.Sentence;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
@@ -15,6 +18,10 @@ import edu.stanford.nlp.util.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -43,6 +50,22 @@ public class NaturalLIClassifier implements EntailmentClassifier {
   @ArgumentParser.Option(name="naturalli.outcache", gloss="The cache to write from")
   private static String NATURALLI_OUTCACHE = "tmp/naturalli.cacheout";
 
+  @ArgumentParser.Option(name="naturalli.workers", gloss="The number of NaturalLI search processes to run queries on in parallel")
+  private static int NATURALLI_WORKERS = Runtime.getRuntime().availableProcessors();
+
+  /** The parameters to set on every NaturalLI search process. */
+  private static final List<String> NATURALLI_PARAMETERS = Collections.unmodifiableList(Arrays.asList(
+      "%strictCosts = true"
+//      "%skipNegationSearch=true",
+//      "%maxTicks=500000"
+  ));
+
+  @ArgumentParser.Option(name="naturalli.annotation_cache", gloss="The directory to persist parsed premises and hypotheses to, across runs; or empty to only cache in memory")
+  private static String ANNOTATION_CACHE_DIR = "";
+
+  @ArgumentParser.Option(name="naturalli.annotation_cache_size", gloss="The number of parsed premises and hypotheses to cache in memory")
+  private static int ANNOTATION_CACHE_SIZE = 100000;
+
   static final String COUNT_ALIGNED      = "count_aligned";
   static final String COUNT_ALIGNABLE    = "count_alignable";
   static final String COUNT_UNALIGNED    = "count_unaligned";
@@ -166,8 +189,7 @@ public class NaturalLIClassifier implements EntailmentClassifier {
   public final Classifier<Trilean, String> impl;
   public final EntailmentFeaturizer featurizer;
 
-  private BufferedReader fromNaturalLI;
-  private OutputStreamWriter toNaturalLI;
+  private NaturalLISearchPool searchPool;
   private final Counter<String> weights;
   private Lazy<Pair<BufferedReader, OutputStreamWriter>> naturalliFeaturizer
       = Lazy.of(() -> {
@@ -179,9 +201,24 @@ public class NaturalLIClassifier implements EntailmentClassifier {
   });
 
 
-  private final Lazy<StanfordCoreNLP> pipeline = Lazy.of(() -> ProcessPremise.constructPipeline("parse") );
+  private final PipelinePool pipelines = ProcessPremise.pipelinePool("parse");
 
-  private final Map<NaturalLIQuery, NaturalLIResponse> naturalliCache = new HashMap<>();
+  /** A cache of the CoNLL encoding of every sentence we have parsed, shared across every classifier. */
+  private static final Lazy<AnnotationCache> annotationCache = Lazy.of(() -> {
+    try {
+      return new AnnotationCache(ANNOTATION_CACHE_SIZE, "".equals(ANNOTATION_CACHE_DIR) ? null : new File(ANNOTATION_CACHE_DIR),
+          AnnotationCache.fingerprint(ProcessPremise.pipelineProperties("parse")));
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  });
+
+  private final Map<NaturalLIQuery, NaturalLIResponse> naturalliCache = new ConcurrentHashMap<>();
+  /**
+   * The queries sent ahead by {@link NaturalLIClassifier#prefetch(List, String)}, which have not been asked for yet.
+   * The caller clears these with {@link NaturalLIClassifier#clearPrefetched()} once it is done with a question.
+   */
+  private final Map<NaturalLIQuery, CompletableFuture<NaturalLIResponse>> prefetched = new ConcurrentHashMap<>();
   private PrintWriter naturalliWriteCache;
   private PrintWriter queryStream;
 
@@ -207,7 +244,7 @@ public class NaturalLIClassifier implements EntailmentClassifier {
   }
 
   /**
-   * Initialize the pipe to NaturalLI.
+   * Initialize the pool of pipes to NaturalLI.
    */
   private synchronized void init() {
     try {
@@ -231,55 +268,8 @@ public class NaturalLIClassifier implements EntailmentClassifier {
         }});
 
 
-      forceTrack("Creating connection to NaturalLI");
-      ProcessBuilder searcherBuilder = new ProcessBuilder(searchProgram);
-      final Process searcher = searcherBuilder.start();
-      Runtime.getRuntime().addShutdownHook(new Thread() {
-        @Override
-        public void run() {
-          searcher.destroy();
-        }
-
-      });
-      // Gobble naturalli.stderr to real stderr
-//      Writer errWriter = new BufferedWriter(new FileWriter(new File("/dev/null")));
-      Writer errWriter = new OutputStreamWriter(System.err);
-      StreamGobbler errGobbler = new StreamGobbler(searcher.getErrorStream(), errWriter);
-      errGobbler.start();
-      Thread t = new Thread() {
-        public void run() {
-          while (true) {
-            try {
-              errWriter.flush();
-              Thread.sleep(100);
-            } catch (IOException | InterruptedException ignored) {
-            }
-          }
-        }
-      };
-      t.setDaemon(true);
-      t.start();
-      // (make sure we flush stderr on exit)
-      Runtime.getRuntime().addShutdownHook(new Thread() {
-        @Override public void run() {
-          try {
-            errWriter.close();
-          } catch (IOException ignored) { }
-        }
-      });
-
-      // Create the pipe
-      fromNaturalLI = new BufferedReader(new InputStreamReader(searcher.getInputStream()));
-      toNaturalLI = new OutputStreamWriter(new BufferedOutputStream(searcher.getOutputStream()));
-
-      // Set some parameters
-      toNaturalLI.write("%strictCosts = true\n");
-//      toNaturalLI.write("%skipNegationSearch=true\n");
-      //toNaturalLI.write("%maxTicks=500000\n");
-      toNaturalLI.flush();
-
-
-      endTrack("Creating connection to NaturalLI");
+      // Create the pool of searchers
+      searchPool = new NaturalLISearchPool(searchProgram, NATURALLI_WORKERS, NATURALLI_PARAMETERS);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -289,7 +279,7 @@ public class NaturalLIClassifier implements EntailmentClassifier {
   private String toParseTree(String text) {
     Pointer<String> debug = new Pointer<>();
     try {
-      String annotated = ProcessQuery.annotate(QRewrite.FOR_PREMISE, text, pipeline.get(), debug, true);
+      String annotated = annotationCache.get().annotate(QRewrite.FOR_PREMISE, text, pipelines, debug, true);
       return annotated;
     } catch (AssertionError e) {
       err("Assertion error when processing sentence: " + text);
@@ -313,11 +303,61 @@ public class NaturalLIClassifier implements EntailmentClassifier {
    * @return A triple: the truth of the hypothesis, the best alignment, and the best soft alignment scores.
    * @throws IOException Thrown if the pipe to NaturalLI is broken.
    */
-  private synchronized NaturalLIResponse queryNaturalLI(List<String> premises, String hypothesis) throws IOException {
+  private NaturalLIResponse queryNaturalLI(List<String> premises, String hypothesis) throws IOException {
+    CompletableFuture<NaturalLIResponse> response = prefetched.remove(new NaturalLIQuery(premises, hypothesis));
+    if (response == null) {
+      response = queryNaturalLIAsync(premises, hypothesis);
+    }
+    try {
+      return response.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for NaturalLI");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Send the NaturalLI query for this hypothesis ahead; {@link NaturalLIClassifier#bestScore(List, String, Optional, Optional, Function)}
+   * picks up its response rather than querying again.
+   * The query is parsed on the calling thread, so sending the queries for every answer of a question in a row has
+   * NaturalLI search for the first answers while we are still parsing the later ones (and, with more than one
+   * search process, search for several answers at once).
+   */
+  @Override
+  public void prefetch(List<String> premises, String hypothesis) {
+    if (NATURALLI_WEIGHT > 0.0) {
+      prefetched.computeIfAbsent(new NaturalLIQuery(premises, hypothesis), query -> queryNaturalLIAsync(premises, hypothesis));
+    }
+  }
+
+  /**
+   * Drop the queries sent ahead by {@link NaturalLIClassifier#prefetch(List, String)} which were never asked for.
+   * Their searches still finish, but we no longer hold on to them.
+   */
+  @Override
+  public void clearPrefetched() {
+    prefetched.clear();
+  }
+
+  /**
+   * Send a query to NaturalLI, without waiting for the search to finish.
+   * The premises and hypothesis are parsed on the calling thread, so that a caller can parse its next query
+   * while NaturalLI is still searching for this one; see {@link NaturalLIClassifier#prefetch(List, String)}.
+   *
+   * @see NaturalLIClassifier#queryNaturalLI(List, String)
+   */
+  CompletableFuture<NaturalLIResponse> queryNaturalLIAsync(List<String> premises, String hypothesis) {
     NaturalLIQuery query = new NaturalLIQuery(premises, hypothesis);
-    if (naturalliCache.containsKey(query)) {
-      return naturalliCache.get(query);
+    NaturalLIResponse cached = naturalliCache.get(query);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
     }
+    StringBuilder toNaturalLI = new StringBuilder();
 
     // Write the premises
     // Note: we write all the premises first so that the index of the costs
@@ -328,13 +368,11 @@ public class NaturalLIClassifier implements EntailmentClassifier {
         String tree = toParseTree(premise);
         if (tree.split("\n").length > 30) {
           // Tree is too long; don't write it or else the program will crash
-          toNaturalLI.write(toParseTree("cats have tails"));
-          queryStream.println(toParseTree("cats have tails"));
+          toNaturalLI.append(toParseTree("cats have tails"));
         } else {
-          toNaturalLI.write(tree);
-          queryStream.println(tree);
+          toNaturalLI.append(tree);
         }
-        toNaturalLI.write("\n");
+        toNaturalLI.append("\n");
       } catch (Exception e) {
         err("Caught exception: " + e.getClass().getSimpleName() + ": " + e.getMessage());
       }
@@ -342,22 +380,15 @@ public class NaturalLIClassifier implements EntailmentClassifier {
 
     // Write entailments
     for (String premise : premises) {
-      for (SentenceFragment entailment : ProcessPremise.forwardEntailments(premise, pipeline.get())) {
-        if (!entailment.toString().equals(premise)) {
-          try {
-            String tree = ProcessQuery.conllDump(entailment.parseTree, new Pointer<>(), false, true);
-            if (tree.split("\n").length > 30) {
-              // Tree is too long; don't write it or else the program will crash
-              toNaturalLI.write(toParseTree("cats have tails"));
-              queryStream.println(toParseTree("cats have tails"));
-            } else {
-              toNaturalLI.write(tree);
-              queryStream.println(tree);
-            }
-            toNaturalLI.write("\n");
-          } catch (Exception e) {
-            err("Caught exception: " + e.getClass().getSimpleName() + ": " + e.getMessage());
+      for (EntailmentCache.Entailment entailment : StaticResources.ENTAILMENT_CACHE.get().forwardEntailments(premise, "parse", true, EnumSet.of(EntailmentCache.Field.CONLL))) {
+        if (!entailment.gloss.equals(premise)) {
+          if (entailment.conll.split("\n").length > 30) {
+            // Tree is too long; don't write it or else the program will crash
+            toNaturalLI.append(toParseTree("cats have tails"));
+          } else {
+            toNaturalLI.append(entailment.conll);
           }
+          toNaturalLI.append("\n");
         }
       }
     }
@@ -369,25 +400,29 @@ public class NaturalLIClassifier implements EntailmentClassifier {
       if (hypothesis.contains(",")) {
         endIndex = Math.min(endIndex, hypothesis.indexOf(","));
       }
-      toNaturalLI.write(toParseTree(hypothesis.substring(0, endIndex)));
+      toNaturalLI.append(toParseTree(hypothesis.substring(0, endIndex)));
     } else {
-      toNaturalLI.write(toParseTree(hypothesis));
+      toNaturalLI.append(hypothesisTree);
     }
 
     // Start the search
-    toNaturalLI.write("\n\n");
-    toNaturalLI.flush();
-    queryStream.println("\n");
-    queryStream.flush();
+    toNaturalLI.append("\n\n");
+    String request = toNaturalLI.toString();
+    synchronized (queryStream) {
+      queryStream.println(request);
+      queryStream.flush();
+    }
 
     // Read the result
-    Matcher matcher;
-    String json = fromNaturalLI.readLine();
-    Gson gson = new Gson();
-    NaturalLIResponse response = gson.fromJson(json, NaturalLIResponse.class);
-    naturalliWriteCache.println(gson.toJson(new NaturalLIPair(query, response)));
-    naturalliWriteCache.flush();
-    return response;
+    return searchPool.queryAsync(request).thenApply(json -> {
+      Gson gson = new Gson();
+      NaturalLIResponse response = gson.fromJson(json, NaturalLIResponse.class);
+      synchronized (naturalliWriteCache) {
+        naturalliWriteCache.println(gson.toJson(new NaturalLIPair(query, response)));
+        naturalliWriteCache.flush();
+      }
+      return response;
+    });
   }
 
 
@@ -457,6 +492,17 @@ public class NaturalLIClassifier implements EntailmentClassifier {
     return sum;
   }
 
+  /**
+   * This classifier scores all of the premises together (e.g., in a single NaturalLI query), so it does not score them
+   * on the executor; this is the same as {@link NaturalLIClassifier#bestScore(List, String, Optional, Optional, Function)}.
+   */
+  @Override
+  public Pair<Sentence, Double> bestScore(List<String> premisesText, String hypothesisText,
+                                          Optional<String> focus, Optional<List<Double>> luceneScores,
+                                          Function<Integer, Double> decay, Executor executor) {
+    return bestScore(premisesText, hypothesisText, focus, luceneScores, decay);
+  }
+
   @Override
   public Pair<Sentence, Double> bestScore(List<String> premisesText, String hypothesisText,
                                           Optional<String> focus, Optional<List<Double>> luceneScores,
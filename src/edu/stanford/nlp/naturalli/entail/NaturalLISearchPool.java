@@ -0,0 +1,222 @@
+package edu.stanford.nlp.naturalli.entail;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static edu.stanford.nlp.util.logging.Redwood.Util.*;
+
+/**
+ * A pool of NaturalLI search processes (e.g., src/naturalli_search), so that concurrent queries are not all
+ * serialized behind a single search.
+ *
+ * Each process is a {@link NaturalLIAsyncClient}, so a query is sent straight away to the process with the fewest
+ * outstanding requests, rather than waiting for an idle process. Before a query is sent, we check that the process
+ * is still alive; if a process has crashed, or crashes (i.e., closes its output) in the middle of a query, it is
+ * restarted, its setup commands (e.g., "%strictCosts = true") are replayed, and the query is retried once on the
+ * new process. A query which fails for any other reason (e.g., it is empty) is not retried.
+ *
+ * @author Gabor Angeli
+ */
+public class NaturalLISearchPool {
+
+  /**
+   * A single slot in the pool, holding the current search process for that slot.
+   */
+  private class Worker {
+    private final int id;
+    private volatile NaturalLIAsyncClient client;
+
+    private Worker(int id) throws IOException {
+      this.id = id;
+      this.client = new NaturalLIAsyncClient(searchProgram, setupCommands, errWriter);
+    }
+
+    /** Get the current process, restarting it first if it has died. */
+    private synchronized NaturalLIAsyncClient healthyClient() throws IOException {
+      if (!client.isHealthy()) {
+        restart(client, "process is not alive");
+      }
+      return client;
+    }
+
+    /**
+     * Restart the process, if it is still the given (failed) process.
+     * Every query in flight on a crashed process fails at once, and we only want to restart it once.
+     */
+    private synchronized NaturalLIAsyncClient restart(NaturalLIAsyncClient failed, String reason) throws IOException {
+      if (client == failed) {
+        warn("Restarting NaturalLI worker " + id + ": " + reason);
+        restarts.incrementAndGet();
+        failed.close();
+        client = new NaturalLIAsyncClient(searchProgram, setupCommands, errWriter);
+      }
+      return client;
+    }
+  }
+
+  /** The search program to run, e.g., src/naturalli_search. */
+  public final String searchProgram;
+  /** The commands to send to every worker when it starts. */
+  private final List<String> setupCommands;
+  /** Every worker. */
+  private final List<Worker> workers = new ArrayList<>();
+  /** Where to start looking for the least loaded worker, so that ties are spread across the pool. */
+  private final AtomicInteger nextWorker = new AtomicInteger(0);
+  /** The shared writer for the stderr of every worker. */
+  private final Writer errWriter = new OutputStreamWriter(System.err);
+  /** The number of times we had to restart a worker. */
+  private final AtomicInteger restarts = new AtomicInteger(0);
+
+  /**
+   * Start a pool of NaturalLI search processes.
+   *
+   * @param searchProgram The search program to run.
+   * @param numWorkers The number of search processes to run.
+   * @param setupCommands The commands to send to each process when it starts, e.g., "%strictCosts = true".
+   *
+   * @throws IOException Thrown if we could not start the processes.
+   */
+  public NaturalLISearchPool(String searchProgram, int numWorkers, List<String> setupCommands) throws IOException {
+    this.searchProgram = searchProgram;
+    this.setupCommands = Collections.unmodifiableList(new ArrayList<>(setupCommands));
+    forceTrack("Creating " + numWorkers + " connection(s) to NaturalLI");
+    for (int i = 0; i < numWorkers; ++i) {
+      workers.add(new Worker(i));
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        close();
+      }
+    });
+    // Flush the stderr of the workers periodically
+    Thread flusher = new Thread() {
+      public void run() {
+        while (true) {
+          try {
+            errWriter.flush();
+            Thread.sleep(100);
+          } catch (IOException | InterruptedException ignored) {
+          }
+        }
+      }
+    };
+    flusher.setDaemon(true);
+    flusher.start();
+    endTrack("Creating " + numWorkers + " connection(s) to NaturalLI");
+  }
+
+  /**
+   * Run a query on the least loaded worker, without waiting for its response.
+   *
+   * @param request The full request to send, including the premises, the hypothesis, and the blank line
+   *                which starts the search.
+   * @return A future for the response line from NaturalLI (a JSON object). This fails with an IOException
+   *         if the query failed, even after restarting the worker, or with an IllegalArgumentException if the
+   *         request has no query in it (in which case the worker is left alone).
+   */
+  public CompletableFuture<String> queryAsync(String request) {
+    Worker worker = leastLoaded();
+    CompletableFuture<String> result = new CompletableFuture<>();
+    NaturalLIAsyncClient client;
+    try {
+      // Health check
+      client = worker.healthyClient();
+    } catch (IOException e) {
+      result.completeExceptionally(e);
+      return result;
+    }
+    // Run the query
+    client.query(request).whenComplete((response, error) -> {
+      if (error == null) {
+        result.complete(response);
+        return;
+      }
+      // Only a failed process is worth restarting; anything else (e.g., an empty request) is the caller's problem,
+      // and restarting would fail every other request in flight on a healthy process
+      Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+      if (!(cause instanceof IOException) && client.isHealthy()) {
+        result.completeExceptionally(cause);
+        return;
+      }
+      // Retry once on a fresh process
+      try {
+        worker.restart(client, cause.getMessage()).query(request).whenComplete((retryResponse, retryError) -> {
+          if (retryError == null) {
+            result.complete(retryResponse);
+          } else {
+            result.completeExceptionally(retryError);
+          }
+        });
+      } catch (IOException e) {
+        result.completeExceptionally(e);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Run a query, and wait for its response.
+   *
+   * @param request The full request to send, including the premises, the hypothesis, and the blank line
+   *                which starts the search.
+   * @return The response line from NaturalLI (a JSON object).
+   *
+   * @throws IOException Thrown if the query failed, even after restarting the worker.
+   */
+  public String query(String request) throws IOException {
+    try {
+      return queryAsync(request).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for NaturalLI");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /** The worker with the fewest outstanding requests. */
+  private Worker leastLoaded() {
+    int start = Math.floorMod(nextWorker.getAndIncrement(), workers.size());
+    Worker best = null;
+    int bestPending = Integer.MAX_VALUE;
+    for (int i = 0; i < workers.size(); ++i) {
+      Worker candidate = workers.get((start + i) % workers.size());
+      int pending = candidate.client.pending();
+      if (pending < bestPending) {
+        best = candidate;
+        bestPending = pending;
+      }
+    }
+    return best;
+  }
+
+  /** The number of search processes in the pool. */
+  public int size() {
+    return workers.size();
+  }
+
+  /** The number of times a worker has been restarted. */
+  public int restarts() {
+    return restarts.get();
+  }
+
+  /** Kill every search process. */
+  public void close() {
+    for (Worker worker : workers) {
+      worker.client.close();
+    }
+    try {
+      errWriter.flush();
+    } catch (IOException ignored) { }
+  }
+}
@@ -0,0 +1,103 @@
+package edu.stanford.nlp.naturalli.entail;
+
+import edu.stanford.nlp.simple.Sentence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * The scores of every premise against a single hypothesis, before they are reduced by
+ * {@link EntailmentClassifier#bestScore(List, String, Optional, Optional, java.util.function.Function, Executor)} or
+ * {@link EntailmentClassifier#aveScore(List, String, Optional, Optional, java.util.function.Function, Executor)}.
+ * The premises are scored on an executor, but the scores are always in the order of the premises, so the reduction
+ * over them is deterministic.
+ *
+ * @author Gabor Angeli
+ */
+class PremiseScores {
+
+  /** An executor which runs every task on the calling thread, for the sequential versions of the scoring methods. */
+  static final Executor DIRECT = Runnable::run;
+
+  /** The premises, in order. */
+  final Sentence[] premises;
+  /** The score of each premise, including the focus discount but not the decay. */
+  final double[] scores;
+
+  private PremiseScores(int size) {
+    this.premises = new Sentence[size];
+    this.scores = new double[size];
+  }
+
+  /**
+   * Score every premise against the hypothesis.
+   *
+   * @param classifier The classifier to score with.
+   * @param premises The premises to score.
+   * @param hypothesis The hypothesis being scored.
+   * @param focus The focus of the hypothesis, if any. A premise without a (single word) focus is discounted.
+   * @param luceneScores The Lucene score of each premise, if there are any.
+   * @param executor The executor to score premises on. With {@link PremiseScores#DIRECT}, the premises are scored
+   *                 in order on the calling thread, and the first failure is thrown without scoring the rest.
+   */
+  static PremiseScores compute(EntailmentClassifier classifier, List<String> premises, String hypothesis,
+                               Optional<String> focus, Optional<List<Double>> luceneScores, Executor executor) {
+    PremiseScores rtn = new PremiseScores(premises.size());
+    // The hypothesis is scored against every premise, so it computes its keyphrases only once
+    Sentence hypothesisSentence = new HypothesisSentence(hypothesis);
+    // Normalize the focus once, rather than for every premise
+    Optional<String> normalizedFocus = focus.isPresent() && !focus.get().contains(" ")
+        ? Optional.of(focus.get().toLowerCase().replaceAll("\\s+", " "))
+        : Optional.empty();
+
+    if (executor == DIRECT) {
+      // Score in order, stopping at the first premise which fails
+      for (int i = 0; i < premises.size(); ++i) {
+        rtn.score(i, classifier, premises, hypothesisSentence, focus, normalizedFocus, luceneScores);
+      }
+      return rtn;
+    }
+
+    // Sentences annotate themselves lazily, and not thread-safely, so annotate the shared hypothesis up front
+    classifier.prepareHypothesis(hypothesisSentence);
+    List<CompletableFuture<Void>> tasks = new ArrayList<>(premises.size());
+    for (int i = 0; i < premises.size(); ++i) {
+      final int premiseI = i;
+      tasks.add(CompletableFuture.runAsync(() ->
+          rtn.score(premiseI, classifier, premises, hypothesisSentence, focus, normalizedFocus, luceneScores), executor));
+    }
+
+    // Wait for every premise
+    try {
+      CompletableFuture.allOf(tasks.toArray(new CompletableFuture[tasks.size()])).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      } else if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+    return rtn;
+  }
+
+  /** Score the i'th premise against the hypothesis, discounting it if it does not contain the focus. */
+  private void score(int i, EntailmentClassifier classifier, List<String> premises, Sentence hypothesis,
+                     Optional<String> focus, Optional<String> normalizedFocus, Optional<List<Double>> luceneScores) {
+    Sentence premiseSentence = new Sentence(premises.get(i));
+    // Score the entailment pair
+    double score = classifier.truthScore(premiseSentence, hypothesis, focus,
+        luceneScores.isPresent() ? Optional.of(luceneScores.get().get(i)) : Optional.empty());
+    // Discount the score if the focus is not present
+    if (normalizedFocus.isPresent() &&
+        !premiseSentence.text().toLowerCase().replaceAll("\\s+", " ").contains(normalizedFocus.get())) {
+      score *= 0.25;
+    }
+    this.premises[i] = premiseSentence;
+    this.scores[i] = score;
+  }
+}
@@ -0,0 +1,120 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.stanford.nlp.util.Pair;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.AnnotationCache}.
+ *
+ * @author Gabor Angeli
+ */
+public class AnnotationCacheTest {
+
+  private static Pair<String, String> get(AnnotationCache cache, String line, AtomicInteger computed) {
+    return cache.get(AnnotationCache.key(QRewrite.FOR_PREMISE, line, true), () -> {
+      computed.incrementAndGet();
+      return Pair.makePair("conll of " + line, "readable " + line);
+    });
+  }
+
+  @Test
+  public void memoryOnly() throws IOException {
+    AnnotationCache cache = new AnnotationCache(100, null, "");
+    AtomicInteger computed = new AtomicInteger(0);
+    assertEquals("conll of cats have tails", get(cache, "cats have tails", computed).first);
+    assertEquals("conll of cats have tails", get(cache, "cats have tails", computed).first);
+    assertEquals(1, computed.get());
+    assertEquals(1, cache.memory().hits());
+  }
+
+  @Test
+  public void normalizedKey() {
+    assertEquals(AnnotationCache.key(QRewrite.FOR_PREMISE, " cats  have\ttails ", true),
+        AnnotationCache.key(QRewrite.FOR_PREMISE, "cats have tails", true));
+    assertEquals(AnnotationCache.key(new QRewrite("mods,therebe"), "cats have tails", true),
+        AnnotationCache.key(new QRewrite("therebe,mods"), "cats have tails", true));
+    assertNotEquals(AnnotationCache.key(QRewrite.FOR_PREMISE, "cats have tails", true),
+        AnnotationCache.key(QRewrite.FOR_PREMISE, "cats have tails", false));
+    assertNotEquals(AnnotationCache.key(QRewrite.FOR_PREMISE, "cats have tails", true),
+        AnnotationCache.key(new QRewrite(""), "cats have tails", true));
+  }
+
+  @Test
+  public void persistsAcrossRuns() throws IOException {
+    File dir = Files.createTempDirectory("annotations").toFile();
+    AtomicInteger computed = new AtomicInteger(0);
+    AnnotationCache cache = new AnnotationCache(100, dir, "vocab=1");
+    get(cache, "cats have tails", computed);
+    get(cache, "dogs have tails", computed);
+    cache.close();
+    assertEquals(2, computed.get());
+
+    AnnotationCache reopened = new AnnotationCache(100, dir, "vocab=1");
+    assertEquals(2, reopened.diskSize());
+    assertEquals("readable dogs have tails", get(reopened, "dogs have tails", computed).second);
+    assertEquals(2, computed.get());
+    get(reopened, "fish have fins", computed);
+    assertEquals(3, computed.get());
+    reopened.close();
+    assertEquals(3, new AnnotationCache(100, dir, "vocab=1").diskSize());
+  }
+
+  @Test
+  public void truncatesPartialRecord() throws IOException {
+    File dir = Files.createTempDirectory("annotations").toFile();
+    AtomicInteger computed = new AtomicInteger(0);
+    AnnotationCache cache = new AnnotationCache(100, dir, "vocab=1");
+    get(cache, "cats have tails", computed);
+    get(cache, "dogs have tails", computed);
+    cache.close();
+    // Simulate a crash in the middle of writing the last record
+    File segment = new File(dir, "segment-00000.log");
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.setLength(file.length() - 5);
+    }
+
+    AnnotationCache reopened = new AnnotationCache(100, dir, "vocab=1");
+    assertEquals(1, reopened.diskSize());
+    get(reopened, "cats have tails", computed);
+    assertEquals(2, computed.get());
+    get(reopened, "dogs have tails", computed);
+    assertEquals(3, computed.get());
+    reopened.close();
+    assertEquals(2, new AnnotationCache(100, dir, "vocab=1").diskSize());
+  }
+
+  @Test
+  public void discardsAnnotationsOfOtherModels() throws IOException {
+    File dir = Files.createTempDirectory("annotations").toFile();
+    AtomicInteger computed = new AtomicInteger(0);
+    AnnotationCache cache = new AnnotationCache(100, dir, "vocab=1\tannotators=parse");
+    get(cache, "cats have tails", computed);
+    cache.close();
+
+    AnnotationCache sameModels = new AnnotationCache(100, dir, "vocab=1\tannotators=parse");
+    assertEquals(1, sameModels.diskSize());
+    sameModels.close();
+    AnnotationCache otherAnnotators = new AnnotationCache(100, dir, "vocab=1\tannotators=depparse");
+    assertEquals(0, otherAnnotators.diskSize());
+    get(otherAnnotators, "cats have tails", computed);
+    assertEquals(2, computed.get());
+    otherAnnotators.close();
+    assertEquals(0, new AnnotationCache(100, dir, "vocab=2\tannotators=depparse").diskSize());
+  }
+
+  @Test
+  public void fingerprintDependsOnProperties() {
+    assertEquals(AnnotationCache.fingerprint(ProcessPremise.pipelineProperties("parse")),
+        AnnotationCache.fingerprint(ProcessPremise.pipelineProperties("parse")));
+    assertNotEquals(AnnotationCache.fingerprint(ProcessPremise.pipelineProperties("parse")),
+        AnnotationCache.fingerprint(ProcessPremise.pipelineProperties("depparse")));
+  }
+}
@@ -0,0 +1,115 @@
+package edu.stanford.nlp.naturalli;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.CBridgeServer}, with a fake annotator in place of CoreNLP.
+ *
+ * @author Gabor Angeli
+ */
+public class CBridgeServerTest {
+
+  /** Annotates a request into one "tree" per word, and fails on queries. */
+  private static List<String> annotate(String request) {
+    if (request.charAt(0) == 'Q') {
+      throw new IllegalArgumentException("queries are not supported");
+    }
+    List<String> trees = new ArrayList<>();
+    for (String word : request.substring(1).trim().split(" ")) {
+      trees.add(word + "\t0\troot\t0\n");
+    }
+    return trees;
+  }
+
+  private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+  }
+
+  private static void writeRequest(SocketChannel channel, int id, String request) throws IOException {
+    byte[] bytes = request.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(8 + bytes.length);
+    buffer.putInt(id).putInt(bytes.length).put(bytes).flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static Map.Entry<Integer, List<String>> readResponse(SocketChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(8);
+    readFully(channel, header);
+    int id = header.getInt();
+    int numTrees = header.getInt();
+    List<String> trees = new ArrayList<>();
+    for (int i = 0; i < numTrees; ++i) {
+      ByteBuffer length = ByteBuffer.allocate(4);
+      readFully(channel, length);
+      ByteBuffer tree = ByteBuffer.allocate(length.getInt());
+      readFully(channel, tree);
+      trees.add(StandardCharsets.UTF_8.decode(tree).toString());
+    }
+    return new AbstractMap.SimpleEntry<>(id, trees);
+  }
+
+  @Test
+  public void pipelinedRequests() throws Exception {
+    File dir = File.createTempFile("cbridge", ".d");
+    assertTrue(dir.delete() && dir.mkdir());
+    Path socket = new File(dir, "cbridge.sock").toPath();
+    ExecutorService workers = Executors.newFixedThreadPool(4);
+    try (CBridgeServer server = new CBridgeServer(socket, workers, CBridgeServerTest::annotate)) {
+      Thread serving = new Thread(() -> {
+        try {
+          server.serve();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      serving.setDaemon(true);
+      serving.start();
+
+      try (SocketChannel client = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+        client.connect(UnixDomainSocketAddress.of(socket));
+        // Send everything before reading anything
+        writeRequest(client, 7, "Pcats have tails");
+        writeRequest(client, 8, "Qdo cats have tails?");
+        writeRequest(client, 9, "Pdogs \u00e9t\u00e9");
+        client.shutdownOutput();
+
+        Map<Integer, List<String>> responses = new HashMap<>();
+        for (int i = 0; i < 3; ++i) {
+          Map.Entry<Integer, List<String>> response = readResponse(client);
+          responses.put(response.getKey(), response.getValue());
+        }
+        assertEquals(Arrays.asList("cats\t0\troot\t0\n", "have\t0\troot\t0\n", "tails\t0\troot\t0\n"), responses.get(7));
+        assertEquals(Collections.emptyList(), responses.get(8));
+        assertEquals(Arrays.asList("dogs\t0\troot\t0\n", "\u00e9t\u00e9\t0\troot\t0\n"), responses.get(9));
+        // The server closes the connection once everything is answered
+        assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+      }
+    } finally {
+      workers.shutdownNow();
+    }
+    assertFalse(socket.toFile().exists());
+    assertTrue(dir.delete());
+  }
+}
@@ -0,0 +1,51 @@
+package edu.stanford.nlp.naturalli;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for the request loop of {@link edu.stanford.nlp.naturalli.CBridge}, on requests which need no models.
+ *
+ * @author Gabor Angeli
+ */
+public class CBridgeTest {
+
+  private PrintStream stdout;
+  private ByteArrayOutputStream output;
+
+  @Before
+  public void captureOutput() {
+    stdout = System.out;
+    output = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(output, true));
+  }
+
+  @After
+  public void restoreOutput() {
+    System.setOut(stdout);
+  }
+
+  private String serve(String input) throws IOException {
+    CBridge.serve(new BufferedReader(new StringReader(input)), Runnable::run);
+    return output.toString();
+  }
+
+  @Test
+  public void taggedRequestWithoutASentence() throws IOException {
+    assertEquals("#42 0\n#43 0\n", serve("#42\n#43 \n"));
+  }
+
+  @Test
+  public void taggedRequestWithoutAnIdStopsServing() throws IOException {
+    assertEquals("#42 0\n", serve("#42\n#\n#43\n"));
+  }
+}
@@ -0,0 +1,120 @@
+package edu.stanford.nlp.naturalli;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for the text and binary encodings of {@link edu.stanford.nlp.naturalli.ConllTree}.
+ *
+ * @author Gabor Angeli
+ */
+public class ConllTreeTest {
+
+  private static final Map<String, Integer> DEPENDENCIES = ConllTree.readDependencyIndex("etc/depInsert2rel.tab");
+
+  /** "all cats have tails", with "all" scoping over "cats" and "have tails". */
+  private static ConllTree allCatsHaveTails() {
+    ConllTree tree = new ConllTree(4);
+    String[] gloss = {"all", "cats", "have", "tails"};
+    int[] word = {10, 20, 30, 40};
+    int[] governor = {2, 3, 0, 3};
+    String[] relation = {"det", "nsubj", "root", "dobj"};
+    char[] posTag = {'q', 'n', 'v', 'n'};
+    for (int i = 0; i < 4; ++i) {
+      tree.gloss[i] = gloss[i];
+      tree.word[i] = word[i];
+      tree.governor[i] = governor[i];
+      tree.relation[i] = relation[i];
+      tree.posTag[i] = posTag[i];
+    }
+    tree.sense[1] = 2;
+    tree.subjMono[0] = "anti-additive";
+    tree.subjBegin[0] = 2;
+    tree.subjEnd[0] = 3;
+    tree.objMono[0] = "multiplicative";
+    tree.objBegin[0] = 3;
+    tree.objEnd[0] = 5;
+    tree.location[3] = true;
+    return tree;
+  }
+
+  @Test
+  public void dependencyIndexMatchesModelsHeader() {
+    // The DEP_* constants generated by dep2header in rc
+    assertEquals(0, DEPENDENCIES.get("acl").intValue());
+    assertEquals(15, DEPENDENCIES.get("conj:and\\/or").intValue());
+    assertEquals(26, DEPENDENCIES.get("det").intValue());
+    assertEquals(28, DEPENDENCIES.get("dobj").intValue());
+    assertEquals(168, DEPENDENCIES.get("nmod:vs.").intValue());
+    assertEquals(177, DEPENDENCIES.get("nsubj").intValue());
+    assertEquals(194, DEPENDENCIES.get("root").intValue());
+    assertEquals(197, DEPENDENCIES.get("xcomp").intValue());
+    assertEquals(198, DEPENDENCIES.size());
+  }
+
+  @Test
+  public void textEncoding() {
+    StringBuilder readable = new StringBuilder();
+    assertEquals(
+        "10\t2\tdet\t0\tq\tanti-additive\t2-3\tmultiplicative\t3-5\n" +
+        "20\t3\tnsubj\t2\tn\t-\t-\t-\t-\n" +
+        "30\t0\troot\t0\tv\t-\t-\t-\t-\n" +
+        "40\t3\tdobj\t0\tn\t-\t-\t-\t-\tl\n",
+        allCatsHaveTails().toConll(readable));
+    assertTrue(readable.toString().startsWith("1\tall\t2\tdet\t0\tq\t"));
+  }
+
+  @Test
+  public void binaryEncoding() {
+    ByteBuffer buffer = allCatsHaveTails().encode(ByteBuffer.allocate(1024), DEPENDENCIES);
+    buffer.flip();
+    assertEquals(4 + 4 * ConllTree.BYTES_PER_TOKEN, buffer.remaining());
+    assertEquals(4, buffer.getInt());
+    // all
+    assertEquals(10, buffer.getInt());
+    assertArrayEquals(new byte[]{2, 26, 0, 'q', 1, 1, 2, 3, 0, 2, 3, 5, 0}, next(buffer, 13));
+    // cats
+    assertEquals(20, buffer.getInt());
+    assertArrayEquals(new byte[]{3, (byte) 177, 2, 'n', -1, -1, -1, -1, -1, -1, -1, -1, 0}, next(buffer, 13));
+    // have
+    assertEquals(30, buffer.getInt());
+    assertArrayEquals(new byte[]{0, (byte) 194, 0, 'v', -1, -1, -1, -1, -1, -1, -1, -1, 0}, next(buffer, 13));
+    // tails
+    assertEquals(40, buffer.getInt());
+    assertArrayEquals(new byte[]{3, 28, 0, 'n', -1, -1, -1, -1, -1, -1, -1, -1, 1}, next(buffer, 13));
+    assertFalse(buffer.hasRemaining());
+  }
+
+  @Test
+  public void binaryEncodingGrowsBuffer() {
+    ByteBuffer small = ByteBuffer.allocate(8);
+    small.putInt(42);
+    ByteBuffer grown = allCatsHaveTails().encode(small, DEPENDENCIES);
+    assertNotSame(small, grown);
+    grown.flip();
+    assertEquals(42, grown.getInt());
+    assertEquals(4, grown.getInt());
+    assertEquals(4 + 4 + 4 * ConllTree.BYTES_PER_TOKEN, grown.limit());
+  }
+
+  @Test
+  public void unknownDependencyArc() {
+    ConllTree tree = new ConllTree(1);
+    tree.gloss[0] = "cats";
+    tree.relation[0] = "not_an_arc";
+    tree.posTag[0] = 'n';
+    ByteBuffer buffer = tree.encode(ByteBuffer.allocate(64), DEPENDENCIES);
+    buffer.flip();
+    assertEquals((byte) 198, buffer.get(4 + 4 + 1));
+  }
+
+  private static byte[] next(ByteBuffer buffer, int length) {
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,169 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.stanford.nlp.io.RuntimeIOException;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.CorpusPipeline}.
+ *
+ * @author Gabor Angeli
+ */
+public class CorpusPipelineTest {
+
+  private static BufferedReader corpus(int numLines) {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < numLines; ++i) {
+      b.append("line ").append(i).append("\n");
+      if (i % 10 == 0) {
+        b.append("   \n");  // blank lines are skipped
+      }
+    }
+    return new BufferedReader(new StringReader(b.toString()));
+  }
+
+  /** Process a line slowly, and out of order. */
+  private static String slowly(String line) {
+    int index = Integer.parseInt(line.substring(5));
+    try {
+      Thread.sleep(index % 7 == 0 ? 5 : 0);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    return line.toUpperCase();
+  }
+
+  @Test
+  public void writesInOrder() throws IOException {
+    List<String> output = new ArrayList<>();
+    List<Long> indices = new ArrayList<>();
+    CorpusPipeline<Object, String> pipeline = new CorpusPipeline<>("test", 4, 8, true,
+        Object::new, (state, line) -> slowly(line), (index, line) -> { indices.add(index); output.add(line); });
+    assertEquals(200, pipeline.run(corpus(200)));
+    assertEquals(200, output.size());
+    for (int i = 0; i < 200; ++i) {
+      assertEquals("LINE " + i, output.get(i));
+      assertEquals(i, indices.get(i).longValue());
+    }
+    assertEquals(200, pipeline.processed());
+    assertEquals(200, pipeline.written());
+    assertEquals(0, pipeline.failed());
+  }
+
+  @Test
+  public void writesUnordered() throws IOException {
+    Set<String> output = new HashSet<>();
+    CorpusPipeline<Object, String> pipeline = new CorpusPipeline<>("test", 4, 8, false,
+        Object::new, (state, line) -> slowly(line), (index, line) -> assertTrue(output.add(line)));
+    pipeline.run(corpus(200));
+    assertEquals(200, output.size());
+  }
+
+  @Test
+  public void everyWorkerHasItsOwnState() throws IOException {
+    AtomicInteger created = new AtomicInteger(0);
+    Map<Thread, Set<Integer>> statesByThread = new ConcurrentHashMap<>();
+    Map<Integer, Set<Thread>> threadsByState = new ConcurrentHashMap<>();
+    CorpusPipeline<Integer, String> pipeline = new CorpusPipeline<>("test", 3, 8, true,
+        created::incrementAndGet,
+        (state, line) -> {
+          statesByThread.computeIfAbsent(Thread.currentThread(), x -> ConcurrentHashMap.newKeySet()).add(state);
+          threadsByState.computeIfAbsent(state, x -> ConcurrentHashMap.newKeySet()).add(Thread.currentThread());
+          return slowly(line);
+        },
+        (index, line) -> { });
+    pipeline.run(corpus(100));
+    assertEquals(3, created.get());
+    statesByThread.values().forEach(states -> assertEquals(1, states.size()));
+    threadsByState.values().forEach(threads -> assertEquals(1, threads.size()));
+  }
+
+  @Test
+  public void countsLinesByWorker() throws IOException {
+    CorpusPipeline<Object, String> pipeline = new CorpusPipeline<>("test", 3, 8, true,
+        Object::new, (state, line) -> slowly(line), (index, line) -> { });
+    pipeline.run(corpus(100));
+    long[] byWorker = pipeline.processedByWorker();
+    assertEquals(3, byWorker.length);
+    assertEquals(100, Arrays.stream(byWorker).sum());
+    assertTrue(pipeline.progress().contains("by worker {"));
+  }
+
+  @Test
+  public void failedLinesAreDropped() throws IOException {
+    List<String> output = new ArrayList<>();
+    CorpusPipeline<Object, String> pipeline = new CorpusPipeline<>("test", 2, 4, true,
+        Object::new,
+        (state, line) -> {
+          if (line.endsWith("3")) {
+            throw new IllegalArgumentException("no threes");
+          }
+          return line;
+        },
+        (index, line) -> output.add(line));
+    pipeline.run(corpus(20));
+    assertEquals(Arrays.asList("line 0", "line 1", "line 2", "line 4", "line 5", "line 6", "line 7", "line 8", "line 9",
+        "line 10", "line 11", "line 12", "line 14", "line 15", "line 16", "line 17", "line 18", "line 19"), output);
+    assertEquals(2, pipeline.failed());
+    assertEquals(20, pipeline.written());
+  }
+
+  @Test
+  public void writerFailureStopsThePipeline() {
+    List<String> output = new ArrayList<>();
+    CorpusPipeline<Object, String> pipeline = new CorpusPipeline<>("test", 2, 4, true,
+        Object::new, (state, line) -> line,
+        (index, line) -> {
+          if (index == 5) {
+            throw new RuntimeIOException(new IOException("disk full"));
+          }
+          output.add(line);
+        });
+    try {
+      pipeline.run(corpus(1000));
+      fail("The pipeline should have failed");
+    } catch (IOException e) {
+      assertEquals("disk full", e.getMessage());
+    }
+    assertEquals(Arrays.asList("line 0", "line 1", "line 2", "line 3", "line 4"), output);
+    // The reader stopped soon after the failure, rather than reading the whole input
+    assertTrue("Read too many lines: " + pipeline.read(), pipeline.read() < 100);
+  }
+
+  @Test
+  public void writerRuntimeExceptionIsRethrown() throws IOException {
+    CorpusPipeline<Object, String> pipeline = new CorpusPipeline<>("test", 2, 4, false,
+        Object::new, (state, line) -> line,
+        (index, line) -> { throw new IllegalStateException("bad output"); });
+    try {
+      pipeline.run(corpus(50));
+      fail("The pipeline should have failed");
+    } catch (IllegalStateException e) {
+      assertEquals("bad output", e.getMessage());
+    }
+  }
+
+  @Test
+  public void boundsLinesInFlight() throws IOException {
+    AtomicInteger maxInFlight = new AtomicInteger(0);
+    CorpusPipeline<Object, String> pipeline = new CorpusPipeline<>("test", 2, 3, true,
+        Object::new, (state, line) -> slowly(line), (index, line) -> { });
+    BufferedReader input = new BufferedReader(corpus(100)) {
+      @Override
+      public String readLine() throws IOException {
+        maxInFlight.accumulateAndGet((int) (pipeline.read() - pipeline.written()), Math::max);
+        return super.readLine();
+      }
+    };
+    pipeline.run(input);
+    assertTrue("Too many lines in flight: " + maxInFlight.get(), maxInFlight.get() <= 3 * 2 + 2);
+  }
+}
@@ -0,0 +1,171 @@
+package edu.stanford.nlp.naturalli;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static edu.stanford.nlp.naturalli.EntailmentCache.Field.*;
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.EntailmentCache}.
+ * The on-disk format itself is tested in {@link SegmentLogTest}.
+ *
+ * @author Gabor Angeli
+ */
+public class EntailmentCacheTest {
+
+  private static final Set<EntailmentCache.Field> ALL = EnumSet.allOf(EntailmentCache.Field.class);
+
+  /** A fake computation of the entailments of a premise, with only the given fields filled in. */
+  private static List<EntailmentCache.Entailment> entailments(String premise, Set<EntailmentCache.Field> fields) {
+    return Arrays.asList(
+        new EntailmentCache.Entailment(premise,
+            fields.contains(CONLL) ? "conll of " + premise : null,
+            fields.contains(READABLE) ? "readable " + premise : null,
+            fields.contains(HASH) ? 42L : TreeHash.NO_HASH),
+        new EntailmentCache.Entailment("cats have tails",
+            fields.contains(CONLL) ? "conll of cats have tails" : null,
+            fields.contains(READABLE) ? "" : null,
+            fields.contains(HASH) ? 7L : TreeHash.NO_HASH));
+  }
+
+  private static List<EntailmentCache.Entailment> get(EntailmentCache cache, String premise, Set<EntailmentCache.Field> fields, AtomicInteger computed) {
+    return cache.get(EntailmentCache.key("parse", false, fields, premise), fields, () -> {
+      computed.incrementAndGet();
+      return entailments(premise, fields);
+    });
+  }
+
+  @Test
+  public void memoryOnly() throws IOException {
+    EntailmentCache cache = new EntailmentCache(1 << 20, null, "");
+    AtomicInteger computed = new AtomicInteger(0);
+    assertEquals("conll of all cats have tails", get(cache, "all cats have tails", ALL, computed).get(0).conll);
+    assertEquals("conll of all cats have tails", get(cache, "all  cats have tails ", ALL, computed).get(0).conll);
+    assertEquals(1, computed.get());
+    assertEquals(1, cache.memory().hits());
+    assertEquals(0, cache.diskSize());
+  }
+
+  @Test
+  public void normalizedKey() {
+    assertEquals(EntailmentCache.key("parse", true, ALL, " cats  have\ttails "), EntailmentCache.key("parse", true, ALL, "cats have tails"));
+    assertEquals(EntailmentCache.key("parse", true, EnumSet.of(HASH, CONLL), "cats have tails"),
+        EntailmentCache.key("parse", true, new LinkedHashSet<>(Arrays.asList(CONLL, HASH)), "cats have tails"));
+    assertNotEquals(EntailmentCache.key("parse", true, ALL, "cats have tails"), EntailmentCache.key("parse", false, ALL, "cats have tails"));
+    assertNotEquals(EntailmentCache.key("parse", true, ALL, "cats have tails"), EntailmentCache.key("depparse", true, ALL, "cats have tails"));
+    assertNotEquals(EntailmentCache.key("parse", true, ALL, "cats have tails"), EntailmentCache.key("parse", true, EnumSet.of(HASH), "cats have tails"));
+  }
+
+  @Test
+  public void boundedByBytes() throws IOException {
+    long weight = EntailmentCache.weight(entailments("all cats have tails", ALL));
+    assertTrue(weight > 100);
+    assertTrue(EntailmentCache.weight(entailments("all cats have tails", EnumSet.of(HASH))) < weight);
+    // Room for a few premises in every segment of the LRU cache
+    EntailmentCache cache = new EntailmentCache(16 * 4 * weight, null, "");
+    AtomicInteger computed = new AtomicInteger(0);
+    for (int i = 0; i < 1000; ++i) {
+      get(cache, "all cats have tails " + i, ALL, computed);
+    }
+    assertTrue(cache.memory().weight() <= cache.memory().maxSize());
+    assertTrue(cache.memory().size() < 1000);
+  }
+
+  @Test
+  public void storesOnlyTheFieldsAskedFor() throws IOException {
+    File dir = Files.createTempDirectory("entailments").toFile();
+    AtomicInteger computed = new AtomicInteger(0);
+    EntailmentCache cache = new EntailmentCache(1 << 20, dir, "vocab=1");
+    get(cache, "all dogs have tails", EnumSet.of(HASH), computed);
+    get(cache, "all dogs have tails", EnumSet.of(CONLL), computed);
+    cache.close();
+    assertEquals(2, computed.get());
+
+    EntailmentCache reopened = new EntailmentCache(1 << 20, dir, "vocab=1");
+    assertEquals(2, reopened.diskSize());
+    List<EntailmentCache.Entailment> hashes = get(reopened, "all dogs have tails", EnumSet.of(HASH), computed);
+    assertEquals(2, computed.get());
+    assertEquals(2, hashes.size());
+    assertEquals("all dogs have tails", hashes.get(0).gloss);
+    assertNull(hashes.get(0).conll);
+    assertNull(hashes.get(0).readable);
+    assertEquals(42L, hashes.get(0).hash);
+    assertEquals(7L, hashes.get(1).hash);
+    List<EntailmentCache.Entailment> conll = get(reopened, "all dogs have tails", EnumSet.of(CONLL), computed);
+    assertEquals(2, computed.get());
+    assertEquals("conll of all dogs have tails", conll.get(0).conll);
+    assertNull(conll.get(0).readable);
+    assertEquals(TreeHash.NO_HASH, conll.get(0).hash);
+    // Asking for more fields is a different entry
+    get(reopened, "all dogs have tails", ALL, computed);
+    assertEquals(3, computed.get());
+    reopened.close();
+  }
+
+  @Test
+  public void discardsEntailmentsOfOtherModels() throws IOException {
+    File dir = Files.createTempDirectory("entailments").toFile();
+    AtomicInteger computed = new AtomicInteger(0);
+    EntailmentCache cache = new EntailmentCache(1 << 20, dir, "vocab=1");
+    get(cache, "all dogs have tails", EnumSet.of(HASH), computed);
+    cache.close();
+
+    EntailmentCache reopened = new EntailmentCache(1 << 20, dir, "vocab=2");
+    assertEquals(0, reopened.diskSize());
+    get(reopened, "all dogs have tails", EnumSet.of(HASH), computed);
+    assertEquals(2, computed.get());
+    reopened.close();
+  }
+
+  @Test
+  public void computesEachPremiseOnce() throws Exception {
+    EntailmentCache cache = new EntailmentCache(1 << 20, null, "");
+    AtomicInteger computed = new AtomicInteger(0);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService exec = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<List<EntailmentCache.Entailment>>> results = new ArrayList<>();
+      for (int i = 0; i < 4; ++i) {
+        results.add(exec.submit(() -> cache.get(EntailmentCache.key("parse", false, ALL, "all cats have tails"), ALL, () -> {
+          computed.incrementAndGet();
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          return Collections.singletonList(new EntailmentCache.Entailment("all cats have tails", "conll", "", 1L));
+        })));
+      }
+      started.await();
+      Thread.sleep(50);  // let the other threads find the computation in flight
+      release.countDown();
+      for (Future<List<EntailmentCache.Entailment>> result : results) {
+        assertEquals("conll", result.get().get(0).conll);
+      }
+      assertEquals(1, computed.get());
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  @Test
+  public void failuresAreNotCached() throws IOException {
+    EntailmentCache cache = new EntailmentCache(1 << 20, null, "");
+    try {
+      cache.get(EntailmentCache.key("parse", false, ALL, "all cats have tails"), ALL, () -> { throw new IllegalArgumentException("no parse"); });
+      fail();
+    } catch (IllegalArgumentException ignored) { }
+    AtomicInteger computed = new AtomicInteger(0);
+    get(cache, "all cats have tails", ALL, computed);
+    assertEquals(1, computed.get());
+  }
+}
@@ -0,0 +1,150 @@
+package edu.stanford.nlp.naturalli;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.FactRuns}.
+ *
+ * @author Gabor Angeli
+ */
+public class FactRunsTest {
+
+  private final List<File> tmpDirs = new ArrayList<>();
+
+  private File tmpDir() throws IOException {
+    File dir = Files.createTempDirectory("factruns").toFile();
+    tmpDirs.add(dir);
+    return dir;
+  }
+
+  @After
+  public void deleteTmpDirs() {
+    for (File dir : tmpDirs) {
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          assertTrue(file.delete());
+        }
+      }
+      assertTrue(dir.delete());
+    }
+  }
+
+  /** Read a run back, as "hash:sentence" strings. */
+  private static List<String> read(File run) throws IOException {
+    List<String> pairs = new ArrayList<>();
+    try (FactRuns.Reader reader = new FactRuns.Reader(run)) {
+      while (reader.next()) {
+        pairs.add(Long.toUnsignedString(reader.hash()) + ":" + reader.sentence());
+      }
+    }
+    return pairs;
+  }
+
+  @Test
+  public void runsAreSortedAndDeduplicated() throws IOException {
+    File dir = tmpDir();
+    try (FactRuns.Writer writer = new FactRuns.Writer(dir, "test", 100)) {
+      writer.add(5L, 1);
+      writer.add(-1L, 0);  // the largest unsigned hash
+      writer.add(5L, 0);
+      writer.add(3L, 7);
+      writer.add(5L, 1);
+      writer.close();
+      assertEquals(1, writer.runs().size());
+      assertEquals(5, writer.pairsAdded());
+      assertEquals(4, writer.pairsWritten());
+      assertEquals(Arrays.asList("3:7", "5:0", "5:1", "18446744073709551615:0"), read(writer.runs().get(0)));
+    }
+  }
+
+  @Test
+  public void sortsLargeRuns() throws IOException {
+    File dir = tmpDir();
+    Random rand = new Random(42);
+    TreeSet<String> expected = new TreeSet<>();
+    List<File> runs;
+    try (FactRuns.Writer writer = new FactRuns.Writer(dir, "test", 1000)) {
+      for (int i = 0; i < 5500; ++i) {
+        long hash = rand.nextInt(50) == 0 ? 7L : rand.nextLong();  // some duplicates
+        int sentence = rand.nextInt(3);
+        writer.add(hash, sentence);
+        expected.add(String.format("%020d:%d", new java.math.BigInteger(Long.toUnsignedString(hash)), sentence));
+      }
+      writer.close();
+      runs = writer.runs();
+    }
+    assertEquals(6, runs.size());
+    for (File run : runs) {
+      List<String> pairs = read(run);
+      List<String> sorted = new ArrayList<>(pairs);
+      sorted.sort((a, b) -> {
+        int order = Long.compareUnsigned(Long.parseUnsignedLong(a.split(":")[0]), Long.parseUnsignedLong(b.split(":")[0]));
+        return order != 0 ? order : a.split(":")[1].compareTo(b.split(":")[1]);
+      });
+      assertEquals(sorted, pairs);
+      assertEquals(pairs.size(), new HashSet<>(pairs).size());
+    }
+    // Merge
+    List<String> merged = new ArrayList<>();
+    long count = FactRuns.merge(runs, (hash, sentence) ->
+        merged.add(String.format("%020d:%d", new java.math.BigInteger(Long.toUnsignedString(hash)), sentence)));
+    assertEquals(expected.size(), count);
+    assertEquals(new ArrayList<>(expected), merged);
+  }
+
+  @Test
+  public void mergeToRunAndKB() throws IOException {
+    File dir = tmpDir();
+    List<File> runs;
+    try (FactRuns.Writer writer = new FactRuns.Writer(dir, "test", 2)) {
+      writer.add(9L, 1);
+      writer.add(2L, 1);
+      writer.add(9L, 1);
+      writer.add(9L, 2);
+      writer.add(4L, 0);
+      writer.close();
+      runs = writer.runs();
+    }
+    assertEquals(3, runs.size());
+
+    File merged = new File(dir, "merged.run");
+    assertEquals(4, FactRuns.mergeToRun(runs, merged));
+    assertEquals(Arrays.asList("2:1", "4:0", "9:1", "9:2"), read(merged));
+
+    // The knowledge base is every unique hash, as little-endian uint64_t
+    File kb = new File(dir, "kb.bin");
+    assertEquals(3, FactRuns.mergeToKB(runs, kb));
+    ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(kb.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(24, bytes.remaining());
+    assertEquals(2L, bytes.getLong());
+    assertEquals(4L, bytes.getLong());
+    assertEquals(9L, bytes.getLong());
+  }
+
+  @Test
+  public void emptyRuns() throws IOException {
+    File dir = tmpDir();
+    try (FactRuns.Writer writer = new FactRuns.Writer(dir, "test", 10)) {
+      writer.close();
+      assertTrue(writer.runs().isEmpty());
+    }
+    assertEquals(0, FactRuns.merge(Collections.emptyList(), (hash, sentence) -> fail()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void sentenceIndexMustFit() throws IOException {
+    try (FactRuns.Writer writer = new FactRuns.Writer(tmpDir(), "test", 10)) {
+      writer.add(1L, ((long) Integer.MAX_VALUE) + 1);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package edu.stanford.nlp.naturalli;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.LRUCache}.
+ *
+ * @author Gabor Angeli
+ */
+public class LRUCacheTest {
+
+  @Test
+  public void getAndPut() {
+    LRUCache<String, Integer> cache = new LRUCache<>(100);
+    assertNull(cache.get("a"));
+    cache.put("a", 1);
+    assertEquals(1, cache.get("a").intValue());
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void computeIfAbsent() {
+    LRUCache<String, Integer> cache = new LRUCache<>(100);
+    assertEquals(3, cache.computeIfAbsent("abc", String::length).intValue());
+    assertEquals(3, cache.computeIfAbsent("abc", x -> { throw new IllegalStateException(); }).intValue());
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  public void bounded() {
+    LRUCache<Integer, Integer> cache = new LRUCache<>(64);
+    for (int i = 0; i < 10000; ++i) {
+      cache.put(i, i);
+      assertEquals(i, cache.get(i).intValue());  // the most recent entry is never evicted
+    }
+    assertTrue(cache.size() <= 64);
+    assertTrue(cache.size() > 0);
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    LRUCache<Integer, Integer> cache = new LRUCache<>(16 * 2);
+    // 0, 16 and 32 fall into the same segment, which holds two entries
+    cache.put(0, 0);
+    cache.put(16, 16);
+    cache.get(0);
+    cache.put(32, 32);
+    assertNotNull(cache.get(0));
+    assertNull(cache.get(16));
+    assertNotNull(cache.get(32));
+  }
+
+  @Test
+  public void boundedByWeight() {
+    LRUCache<Integer, String> cache = new LRUCache<>(16 * 10, String::length);
+    // 0, 16 and 32 fall into the same segment, which holds a weight of 10
+    cache.put(0, "aaaa");
+    cache.put(16, "bbbb");
+    assertEquals(8, cache.weight());
+    cache.put(32, "cccc");
+    assertNull(cache.get(0));
+    assertNotNull(cache.get(16));
+    assertNotNull(cache.get(32));
+    assertEquals(8, cache.weight());
+    // Replacing a value re-weighs it
+    cache.put(32, "cccccc");
+    assertEquals(10, cache.weight());
+    // A value heavier than a segment is never cached
+    cache.put(48, "dddddddddddd");
+    assertNull(cache.get(48));
+    assertEquals(10, cache.weight());
+    cache.clear();
+    assertEquals(0, cache.weight());
+  }
+
+  @Test
+  public void zeroSize() {
+    LRUCache<String, Integer> cache = new LRUCache<>(0);
+    cache.put("a", 1);
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+  }
+}
@@ -0,0 +1,94 @@
+package edu.stanford.nlp.naturalli;
+
+import java.util.Random;
+
+/**
+ * A micro-benchmark of the greedy Lesk overlap: the nested span scan in {@link WSD#lesk(String[], String[], int, int)}
+ * against the n-gram hash index in {@link NgramOverlap}. Each operation scores 32 definitions against one
+ * context, as {@link WSD#sense(WSD.LeskContext, int, int, int, String)} does for a highly ambiguous word.
+ *
+ * Usage: java edu.stanford.nlp.naturalli.LeskBenchmark [contextLength] [vocabularySize]
+ *
+ * @author Gabor Angeli
+ */
+public class LeskBenchmark {
+
+  private static final int NUM_DEFINITIONS = 32;
+  private static final int WARMUP_ITERATIONS = 5;
+  private static final int MEASURED_ITERATIONS = 10;
+  private static final int OPERATIONS_PER_ITERATION = 2000;
+
+  /** Prevent the JIT from eliminating the benchmarked code. */
+  private static long blackhole = 0;
+
+  private interface Operation {
+    int run(int index);
+  }
+
+  private static void measure(String name, Operation operation) {
+    for (int iter = 0; iter < WARMUP_ITERATIONS; ++iter) {
+      for (int op = 0; op < OPERATIONS_PER_ITERATION; ++op) {
+        blackhole += operation.run(op);
+      }
+    }
+    long best = Long.MAX_VALUE;
+    long total = 0;
+    for (int iter = 0; iter < MEASURED_ITERATIONS; ++iter) {
+      long start = System.nanoTime();
+      for (int op = 0; op < OPERATIONS_PER_ITERATION; ++op) {
+        blackhole += operation.run(op);
+      }
+      long elapsed = (System.nanoTime() - start) / OPERATIONS_PER_ITERATION;
+      best = Math.min(best, elapsed);
+      total += elapsed;
+    }
+    System.out.println(String.format("%-12s %10d ns/op (mean)  %10d ns/op (best)", name, total / MEASURED_ITERATIONS, best));
+  }
+
+  public static void main(String[] args) {
+    int contextLength = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+    int vocabularySize = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    Random rand = new Random(42);
+
+    // Create the data
+    int numContexts = 64;
+    String[][] contexts = new String[numContexts][contextLength];
+    int[][] encodedContexts = new int[numContexts][contextLength];
+    for (int c = 0; c < numContexts; ++c) {
+      for (int i = 0; i < contextLength; ++i) {
+        encodedContexts[c][i] = rand.nextInt(vocabularySize);
+        contexts[c][i] = "w" + encodedContexts[c][i];
+      }
+    }
+    String[][] definitions = new String[NUM_DEFINITIONS][WSD.MAX_DEFINITION_LENGTH];
+    int[][] encodedDefinitions = new int[NUM_DEFINITIONS][WSD.MAX_DEFINITION_LENGTH];
+    for (int d = 0; d < NUM_DEFINITIONS; ++d) {
+      for (int i = 0; i < WSD.MAX_DEFINITION_LENGTH; ++i) {
+        encodedDefinitions[d][i] = rand.nextInt(vocabularySize);
+        definitions[d][i] = "w" + encodedDefinitions[d][i];
+      }
+    }
+
+    // Run the benchmarks
+    System.out.println("context length " + contextLength + "; vocabulary size " + vocabularySize);
+    measure("nested-scan", op -> {
+      String[] context = contexts[op % numContexts];
+      int sum = 0;
+      for (String[] definition : definitions) {
+        sum += WSD.lesk(definition, context, 0, 0);
+      }
+      return sum;
+    });
+    NgramOverlap overlap = new NgramOverlap();
+    measure("ngram-hash", op -> {
+      int[] context = encodedContexts[op % numContexts];
+      overlap.setContext(context, context.length);
+      int sum = 0;
+      for (int[] definition : encodedDefinitions) {
+        sum += overlap.overlap(definition, definition.length);
+      }
+      return sum;
+    });
+    System.err.println(blackhole);
+  }
+}
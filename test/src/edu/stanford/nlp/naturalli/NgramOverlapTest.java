@@ -0,0 +1,75 @@
+package edu.stanford.nlp.naturalli;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.NgramOverlap}.
+ *
+ * @author Gabor Angeli
+ */
+public class NgramOverlapTest {
+
+  private static int overlap(String a, String b) {
+    NgramOverlap overlap = new NgramOverlap();
+    int[] context = encode(b.split("\\s+"));
+    overlap.setContext(context, context.length);
+    int[] definition = encode(a.split("\\s+"));
+    return overlap.overlap(definition, definition.length);
+  }
+
+  /** Encode a whitespace-separated string of (non-stop) words, such as "t3", as their integer suffix. */
+  private static int[] encode(String[] tokens) {
+    int[] encoded = new int[tokens.length];
+    for (int i = 0; i < tokens.length; ++i) {
+      encoded[i] = Integer.parseInt(tokens[i].substring(1));
+    }
+    return encoded;
+  }
+
+  @Test
+  public void simpleMatches() {
+    assertEquals(1, overlap("t1 t2 t3", "t1 t4 t5"));
+    assertEquals(1, overlap("t1 t2 t3", "t1 t1 t1"));
+    assertEquals(2, overlap("t1 t1 t1", "t1 t3 t1"));
+    assertEquals(4, overlap("t1 t2", "t1 t2 t3"));
+    assertEquals(9, overlap("t0 t1 t2", "t0 t1 t2 t3"));
+    assertEquals(5, overlap("t1 t2 t0", "t1 t2 t3 t0"));
+  }
+
+  @Test
+  public void reusesContext() {
+    NgramOverlap overlap = new NgramOverlap();
+    int[] context = encode("t1 t2 t3 t4 t1 t2".split(" "));
+    overlap.setContext(context, context.length);
+    for (int trial = 0; trial < 3; ++trial) {
+      assertEquals(8, overlap.overlap(encode("t1 t2 t1 t2".split(" ")), 4));
+      assertEquals(0, overlap.overlap(encode("t9".split(" ")), 1));
+      assertEquals(25 + 1, overlap.overlap(encode("t9 t1 t2 t3 t4 t1 t2 t9 t2".split(" ")), 9));
+    }
+  }
+
+  @Test
+  public void matchesNestedScan() {
+    Random rand = new Random(42);
+    NgramOverlap overlap = new NgramOverlap();
+    for (int trial = 0; trial < 2000; ++trial) {
+      int alphabet = 1 + rand.nextInt(6);
+      String[] context = new String[rand.nextInt(40)];
+      for (int i = 0; i < context.length; ++i) {
+        context[i] = "t" + rand.nextInt(alphabet);
+      }
+      overlap.setContext(encode(context), context.length);
+      for (int k = 0; k < 5; ++k) {
+        String[] definition = new String[rand.nextInt(WSD.MAX_DEFINITION_LENGTH + 1)];
+        for (int i = 0; i < definition.length; ++i) {
+          definition[i] = "t" + rand.nextInt(alphabet);
+        }
+        assertEquals(WSD.lesk(definition, context, 0, 0), overlap.overlap(encode(definition), definition.length));
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.PipelinePool}, using tokenizer-only pipelines (which need no models).
+ *
+ * @author Gabor Angeli
+ */
+public class PipelinePoolTest {
+
+  private static StanfordCoreNLP tokenizer() {
+    Properties props = new Properties();
+    props.setProperty("annotators", "tokenize");
+    return new StanfordCoreNLP(props, false);
+  }
+
+  @Test
+  public void reusesPipelines() {
+    AtomicInteger constructed = new AtomicInteger(0);
+    PipelinePool pool = new PipelinePool("test", 4, () -> { constructed.incrementAndGet(); return tokenizer(); });
+    StanfordCoreNLP first;
+    try (PipelinePool.Lease lease = pool.lease()) {
+      first = lease.pipeline;
+    }
+    try (PipelinePool.Lease lease = pool.lease()) {
+      assertSame(first, lease.pipeline);
+    }
+    assertEquals(1, constructed.get());
+    assertEquals(2, pool.leases());
+    assertEquals(0, pool.waits());
+  }
+
+  @Test
+  public void neverExceedsMaxSize() throws Exception {
+    AtomicInteger constructed = new AtomicInteger(0);
+    PipelinePool pool = new PipelinePool("test", 2, () -> { constructed.incrementAndGet(); return tokenizer(); });
+    AtomicInteger inUse = new AtomicInteger(0);
+    AtomicInteger maxInUse = new AtomicInteger(0);
+    ExecutorService exec = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Integer>> futures = new ArrayList<>();
+      for (int i = 0; i < 64; ++i) {
+        futures.add(exec.submit(() -> pool.apply(pipeline -> {
+          maxInUse.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+          Annotation ann = new Annotation("cats have tails.");
+          pipeline.annotate(ann);
+          inUse.decrementAndGet();
+          return ann.get(CoreAnnotations.TokensAnnotation.class).size();
+        })));
+      }
+      for (Future<Integer> future : futures) {
+        assertEquals(4, future.get().intValue());
+      }
+    } finally {
+      exec.shutdownNow();
+    }
+    assertTrue(constructed.get() <= 2);
+    assertTrue(maxInUse.get() <= 2);
+    assertEquals(64, pool.leases());
+    assertTrue(pool.utilization() >= 0.0 && pool.utilization() <= 1.0);
+  }
+
+  @Test
+  public void addCountsTowardsSize() {
+    AtomicInteger constructed = new AtomicInteger(0);
+    PipelinePool pool = new PipelinePool("test", 1, () -> { constructed.incrementAndGet(); return tokenizer(); });
+    StanfordCoreNLP existing = tokenizer();
+    pool.add(existing);
+    pool.add(tokenizer());  // the pool is full; ignored
+    try (PipelinePool.Lease lease = pool.lease()) {
+      assertSame(existing, lease.pipeline);
+    }
+    assertEquals(0, constructed.get());
+    assertEquals(1, pool.size());
+  }
+
+  @Test
+  public void sharedPoolsAreKeyedByName() {
+    PipelinePool a = PipelinePool.of("test:shared", PipelinePoolTest::tokenizer);
+    PipelinePool b = PipelinePool.of("test:shared", PipelinePoolTest::tokenizer);
+    PipelinePool c = PipelinePool.of("test:other", PipelinePoolTest::tokenizer);
+    assertSame(a, b);
+    assertNotSame(a, c);
+  }
+}
@@ -6,6 +6,8 @@ import org.junit.Test;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 
@@ -40,6 +42,20 @@ public class ProcessPremiseITest {
     }
   }
 
+  @Test
+  public void streamMatchesCollection() throws IOException {
+    String premise = "Some Italian men are great tenors.";
+    List<String> all = ProcessPremise.forwardEntailments(premise, pipeline).stream()
+        .map(SentenceFragment::toString).collect(Collectors.toList());
+    assertTrue(all.size() > 2);
+    assertEquals(all, ProcessPremise.streamForwardEntailments(premise, pipeline)
+        .map(SentenceFragment::toString).collect(Collectors.toList()));
+    // The first entailment is the premise itself
+    assertEquals(all.subList(1, 3), ProcessPremise.forwardEntailments(premise, pipeline,
+        fragment -> !fragment.toString().equals(all.get(0)), 2)
+        .map(SentenceFragment::toString).collect(Collectors.toList()));
+  }
+
   @Test
   public void KennedyHasBeenKilled() throws IOException {
     for (SentenceFragment fragment : ProcessPremise.forwardEntailments("Kennedy has been killed.", pipeline)) {
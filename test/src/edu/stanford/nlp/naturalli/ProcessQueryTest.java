@@ -0,0 +1,238 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.stanford.nlp.international.Language;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.IndexedWord;
+import edu.stanford.nlp.semgraph.SemanticGraph;
+import edu.stanford.nlp.semgraph.SemanticGraphEdge;
+import edu.stanford.nlp.trees.GrammaticalRelation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for the parts of {@link edu.stanford.nlp.naturalli.ProcessQuery} which do not need the CoreNLP models;
+ * see {@link edu.stanford.nlp.naturalli.ProcessQueryITest} for the rest.
+ *
+ * @author Gabor Angeli
+ */
+public class ProcessQueryTest {
+
+  @Test
+  public void knownRelationsAreKept() {
+    assertEquals("nsubj", ProcessQuery.sanitizeRelation("nsubj"));
+    assertEquals("nmod:in", ProcessQuery.sanitizeRelation("nmod:in"));
+    assertEquals("op", ProcessQuery.sanitizeRelation("op"));
+    // Case is kept if the arc is known
+    assertEquals("DOBJ", ProcessQuery.sanitizeRelation("DOBJ"));
+  }
+
+  @Test
+  public void unknownRelationsAreCollapsed() {
+    assertEquals("nmod:dep", ProcessQuery.sanitizeRelation("nmod:not_a_preposition"));
+    assertEquals("dep", ProcessQuery.sanitizeRelation("not_an_arc"));
+    assertEquals("dep", ProcessQuery.sanitizeRelation("not_an_arc"));  // (again, without a table entry)
+  }
+
+  @Test
+  public void prepcIsRewrittenToPrep() {
+    // The Stanford Dependencies 'prep_' arcs are not in the (Universal Dependencies) insertion table, so these
+    // are rewritten to 'prep_in', and then collapsed as unknown arcs
+    assertFalse(NaturalLogicRelation.knownDependencyArc("prep_in"));
+    assertEquals("dep", ProcessQuery.sanitizeRelation("prepc_in"));
+    assertEquals("dep", ProcessQuery.sanitizeRelation("PREPC_IN"));
+  }
+
+  /** The vocabulary of the test trees, so that we do not need the real one. */
+  private static final List<String> VOCAB = Arrays.asList("all", "cat", "have", "tail", "chase", "and", "catch", "mouse", "Obama", "be", "bear", "in", "Hawaii");
+
+  private Function<String, Integer> realIndexer;
+
+  @Before
+  public void mockIndexer() {
+    realIndexer = StaticResources.INDEXER;
+    StaticResources.INDEXER = gloss -> VOCAB.indexOf(gloss) + 1 > 0 ? VOCAB.indexOf(gloss) + 1 : -1;
+  }
+
+  @After
+  public void restoreIndexer() {
+    StaticResources.INDEXER = realIndexer;
+  }
+
+  /** A word of a test tree, with the given (1-indexed) index. */
+  private static IndexedWord word(int index, String lemma, String tag) {
+    CoreLabel label = new CoreLabel();
+    label.setWord(lemma);
+    label.setValue(lemma);
+    label.setLemma(lemma);
+    label.setTag(tag);
+    label.setIndex(index);
+    label.setSentIndex(0);
+    return new IndexedWord(label);
+  }
+
+  /** An operator on a word. */
+  private static IndexedWord withOperator(IndexedWord word, Operator operator, int subjBegin, int subjEnd, int objBegin, int objEnd) {
+    word.set(NaturalLogicAnnotations.OperatorAnnotation.class,
+        new OperatorSpec(operator, word.index() - 1, word.index(), subjBegin, subjEnd, objBegin, objEnd));
+    return word;
+  }
+
+  private static void edge(SemanticGraph tree, IndexedWord governor, IndexedWord dependent, String relation, boolean isExtra) {
+    tree.addEdge(governor, dependent, GrammaticalRelation.valueOf(Language.English, relation), Double.NEGATIVE_INFINITY, isExtra);
+  }
+
+  /** All cats have tails: an arc into a quantifier. */
+  private static SemanticGraph quantifierTree() {
+    SemanticGraph tree = new SemanticGraph();
+    IndexedWord all = withOperator(word(1, "all", "DT"), Operator.ALL, 1, 2, 2, 4);
+    IndexedWord cats = word(2, "cat", "NNS");
+    IndexedWord have = word(3, "have", "VBP");
+    IndexedWord tails = word(4, "tail", "NNS");
+    tree.addRoot(have);
+    edge(tree, have, cats, "nsubj", false);
+    edge(tree, cats, all, "det", false);
+    edge(tree, have, tails, "dobj", false);
+    return tree;
+  }
+
+  /** Cats chase and catch mice: words with more than one governor, and arcs which are not in the insertion table. */
+  private static SemanticGraph multiParentTree() {
+    SemanticGraph tree = new SemanticGraph();
+    IndexedWord cats = word(1, "cat", "NNS");
+    IndexedWord chase = word(2, "chase", "VBP");
+    IndexedWord and = word(3, "and", "CC");
+    IndexedWord catchWord = word(4, "catch", "VBP");
+    IndexedWord mice = word(5, "mouse", "NNS");
+    tree.addRoot(chase);
+    edge(tree, chase, cats, "nsubj", false);
+    edge(tree, catchWord, cats, "nsubj:xsubj_not_an_arc", true);
+    edge(tree, chase, and, "cc", false);
+    edge(tree, chase, catchWord, "conj:and", false);
+    edge(tree, catchWord, mice, "prepc_not_an_arc", false);
+    edge(tree, chase, mice, "nmod:not_a_preposition", true);
+    return tree;
+  }
+
+  /** Obama was born in Hawaii: named entity operators, with and without a governor. */
+  private static SemanticGraph namedEntityTree() {
+    SemanticGraph tree = new SemanticGraph();
+    IndexedWord obama = withOperator(word(1, "Obama", "NNP"), Operator.IMPLICIT_NAMED_ENTITY, 1, 2, 2, 2);
+    IndexedWord was = word(2, "be", "VBD");
+    IndexedWord born = word(3, "bear", "VBN");
+    IndexedWord in = word(4, "in", "IN");
+    IndexedWord hawaii = withOperator(word(5, "Hawaii", "NNP"), Operator.IMPLICIT_NAMED_ENTITY, 5, 6, 6, 6);
+    tree.addRoot(born);
+    edge(tree, born, obama, "nsubjpass", false);
+    edge(tree, born, was, "auxpass", false);
+    edge(tree, hawaii, in, "case", false);
+    edge(tree, born, hawaii, "nmod:in", false);
+    return tree;
+  }
+
+  /** A named entity at the root of the tree keeps its operator. */
+  private static SemanticGraph namedEntityRootTree() {
+    SemanticGraph tree = new SemanticGraph();
+    IndexedWord hawaii = withOperator(word(1, "Hawaii", "NNP"), Operator.IMPLICIT_NAMED_ENTITY, 0, 1, 1, 1);
+    tree.addRoot(hawaii);
+    return tree;
+  }
+
+  /**
+   * The rewrite conllDump used to do to the tree, in place, before dumping it.
+   * This is kept here to check that sanitizing the arcs on the fly gives the same dump.
+   */
+  private static void oldSanitizeTreeForNaturalli(SemanticGraph tree) {
+    List<SemanticGraphEdge> toRemove = new ArrayList<>();
+    List<SemanticGraphEdge> toAdd = new ArrayList<>();
+    for (SemanticGraphEdge edge : tree.edgeIterable()) {
+      String rel = edge.getRelation().toString().toLowerCase();
+      OperatorSpec operator = edge.getDependent().backingLabel().get(NaturalLogicAnnotations.OperatorAnnotation.class);
+      if (operator != null && operator.instance == Operator.IMPLICIT_NAMED_ENTITY) {
+        operator = null;
+        edge.getDependent().backingLabel().remove(NaturalLogicAnnotations.OperatorAnnotation.class);
+      }
+      if (operator != null) {
+        toRemove.add(edge);
+        toAdd.add(new SemanticGraphEdge(edge.getGovernor(), edge.getDependent(), GrammaticalRelation.valueOf(Language.Any, "op"), edge.getWeight(), edge.isExtra()));
+      } else if (rel.startsWith("prepc_")) {
+        toRemove.add(edge);
+        toAdd.add(new SemanticGraphEdge(edge.getGovernor(), edge.getDependent(), GrammaticalRelation.valueOf(Language.Any, rel.replace("prepc_", "prep_")), edge.getWeight(), edge.isExtra()));
+      }
+    }
+    toRemove.forEach(tree::removeEdge);
+    toAdd.forEach(e -> tree.addEdge(e.getGovernor(), e.getDependent(), e.getRelation(), e.getWeight(), e.isExtra()));
+    toRemove.clear();
+    toAdd.clear();
+    for (SemanticGraphEdge edge : tree.edgeIterable()) {
+      String rel = edge.getRelation().toString().toLowerCase();
+      if (!NaturalLogicRelation.knownDependencyArc(rel)) {
+        toRemove.add(edge);
+        String newRel = rel.startsWith("nmod:") ? "nmod:dep" : "dep";
+        toAdd.add(new SemanticGraphEdge(edge.getGovernor(), edge.getDependent(), GrammaticalRelation.valueOf(Language.Any, newRel), edge.getWeight(), edge.isExtra()));
+      }
+    }
+    toRemove.forEach(tree::removeEdge);
+    toAdd.forEach(e -> tree.addEdge(e.getGovernor(), e.getDependent(), e.getRelation(), e.getWeight(), e.isExtra()));
+  }
+
+  /** Everything about a tree that the dump could have modified: its edges, and the operators on its words. */
+  private static String snapshot(SemanticGraph tree) {
+    List<String> state = new ArrayList<>();
+    for (SemanticGraphEdge edge : tree.edgeIterable()) {
+      state.add(edge.getGovernor().index() + " -" + edge.getRelation() + "-> " + edge.getDependent().index() + (edge.isExtra() ? " (extra)" : ""));
+    }
+    for (IndexedWord word : tree.vertexListSorted()) {
+      state.add(word.index() + ": " + word.get(NaturalLogicAnnotations.OperatorAnnotation.class));
+    }
+    Collections.sort(state);
+    return state.toString();
+  }
+
+  /** Check that the dump of a tree is the same as it was with the old in-place rewrite, and does not modify the tree. */
+  private static String assertSameAsOldRewrite(Supplier<SemanticGraph> mkTree) {
+    SemanticGraph old = mkTree.get();
+    oldSanitizeTreeForNaturalli(old);
+    SemanticGraph tree = mkTree.get();
+    String before = snapshot(tree);
+    String dump = ProcessQuery.conllDump(tree, false, false);
+    assertEquals(ProcessQuery.conllDump(old, false, false), dump);
+    assertEquals("The dump modified the tree", before, snapshot(tree));
+    return dump;
+  }
+
+  @Test
+  public void operatorArcs() {
+    String dump = assertSameAsOldRewrite(ProcessQueryTest::quantifierTree);
+    assertTrue(dump, dump.startsWith("1\t2\top\t"));
+  }
+
+  @Test
+  public void multiParentWords() {
+    String dump = assertSameAsOldRewrite(ProcessQueryTest::multiParentTree);
+    assertEquals(5, dump.trim().split("\n").length);
+  }
+
+  @Test
+  public void namedEntitiesWithAGovernorAreNotOperators() {
+    String dump = assertSameAsOldRewrite(ProcessQueryTest::namedEntityTree);
+    for (String line : dump.trim().split("\n")) {
+      assertFalse(line, line.contains("\top\t"));
+    }
+    assertSameAsOldRewrite(ProcessQueryTest::namedEntityRootTree);
+  }
+
+  @Test
+  public void binaryDumpDoesNotModifyTheTree() {
+    SemanticGraph tree = multiParentTree();
+    String before = snapshot(tree);
+    ProcessQuery.conllDump(tree, java.nio.ByteBuffer.allocate(16), false, false);
+    assertEquals(before, snapshot(tree));
+  }
+}
@@ -0,0 +1,149 @@
+package edu.stanford.nlp.naturalli;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.SegmentLog}.
+ *
+ * @author Gabor Angeli
+ */
+public class SegmentLogTest {
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String string(byte[] value) {
+    return new String(value, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void append() throws IOException {
+    File dir = Files.createTempDirectory("segments").toFile();
+    try (SegmentLog log = new SegmentLog(dir, "test", 2, "v1")) {
+      assertNull(log.read("cats"));
+      log.append("cats", bytes("have"), bytes("tails"));
+      log.append("dogs", bytes("have"), new byte[0]);
+      assertEquals(2, log.size());
+      byte[][] cats = log.read("cats");
+      assertEquals("have", string(cats[0]));
+      assertEquals("tails", string(cats[1]));
+      assertEquals(0, log.read("dogs")[1].length);
+      assertNull(log.read("fish"));
+      try {
+        log.append("fish", bytes("have"));
+        fail("A record must have every field");
+      } catch (IllegalArgumentException ignored) { }
+    }
+  }
+
+  @Test
+  public void reload() throws IOException {
+    File dir = Files.createTempDirectory("segments").toFile();
+    try (SegmentLog log = new SegmentLog(dir, "test", 1, "v1")) {
+      log.append("cats", bytes("tails"));
+      log.append("dogs", bytes("tails"));
+      log.append("cats", bytes("whiskers"));  // the later record wins
+    }
+    try (SegmentLog log = new SegmentLog(dir, "test", 1, "v1")) {
+      assertEquals(2, log.size());
+      assertEquals("whiskers", string(log.read("cats")[0]));
+      assertEquals("tails", string(log.read("dogs")[0]));
+      log.append("fish", bytes("fins"));
+    }
+    try (SegmentLog log = new SegmentLog(dir, "test", 1, "v1")) {
+      assertEquals(3, log.size());
+      assertEquals("fins", string(log.read("fish")[0]));
+    }
+    // Every record went to the one segment
+    assertTrue(new File(dir, "test-00000.log").exists());
+    assertFalse(new File(dir, "test-00001.log").exists());
+  }
+
+  @Test
+  public void truncatedTail() throws IOException {
+    File dir = Files.createTempDirectory("segments").toFile();
+    try (SegmentLog log = new SegmentLog(dir, "test", 2, "v1")) {
+      log.append("cats", bytes("have"), bytes("tails"));
+      log.append("dogs", bytes("have"), bytes("tails"));
+    }
+    // Simulate a crash in the middle of writing the last record
+    File segment = new File(dir, "test-00000.log");
+    long fullLength = segment.length();
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.setLength(fullLength - 3);
+    }
+
+    try (SegmentLog log = new SegmentLog(dir, "test", 2, "v1")) {
+      assertEquals(1, log.size());
+      assertEquals("tails", string(log.read("cats")[1]));
+      assertNull(log.read("dogs"));
+      // The partial record is gone, so new records are readable
+      assertTrue(segment.length() < fullLength - 3);
+      log.append("dogs", bytes("have"), bytes("paws"));
+    }
+    try (SegmentLog log = new SegmentLog(dir, "test", 2, "v1")) {
+      assertEquals(2, log.size());
+      assertEquals("paws", string(log.read("dogs")[1]));
+    }
+  }
+
+  @Test
+  public void fingerprintMismatch() throws IOException {
+    File dir = Files.createTempDirectory("segments").toFile();
+    try (SegmentLog log = new SegmentLog(dir, "test", 1, "v1")) {
+      log.append("cats", bytes("tails"));
+    }
+    try (SegmentLog log = new SegmentLog(dir, "test", 1, "v2")) {
+      assertEquals(0, log.size());
+      assertNull(log.read("cats"));
+      log.append("dogs", bytes("tails"));
+    }
+    try (SegmentLog log = new SegmentLog(dir, "test", 1, "v2")) {
+      assertEquals(1, log.size());
+      assertNull(log.read("cats"));
+      assertNotNull(log.read("dogs"));
+    }
+    // A different number of fields is a mismatch too
+    try (SegmentLog log = new SegmentLog(dir, "test", 2, "v2")) {
+      assertEquals(0, log.size());
+    }
+  }
+
+  @Test
+  public void missingManifest() throws IOException {
+    File dir = Files.createTempDirectory("segments").toFile();
+    try (SegmentLog log = new SegmentLog(dir, "test", 1, "v1")) {
+      log.append("cats", bytes("tails"));
+    }
+    assertTrue(new File(dir, "test.manifest").delete());
+    try (SegmentLog log = new SegmentLog(dir, "test", 1, "v1")) {
+      assertEquals(0, log.size());
+    }
+    assertFalse(new File(dir, "test-00000.log").exists());
+  }
+
+  @Test
+  public void prefixesShareADirectory() throws IOException {
+    File dir = Files.createTempDirectory("segments").toFile();
+    try (SegmentLog a = new SegmentLog(dir, "a", 1, "v1");
+         SegmentLog b = new SegmentLog(dir, "b", 1, "v2")) {
+      a.append("cats", bytes("tails"));
+      b.append("dogs", bytes("tails"));
+    }
+    try (SegmentLog a = new SegmentLog(dir, "a", 1, "v1");
+         SegmentLog b = new SegmentLog(dir, "b", 1, "v2")) {
+      assertNotNull(a.read("cats"));
+      assertNull(a.read("dogs"));
+      assertNotNull(b.read("dogs"));
+    }
+  }
+}
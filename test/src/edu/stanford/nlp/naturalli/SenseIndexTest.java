@@ -0,0 +1,60 @@
+package edu.stanford.nlp.naturalli;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.SenseIndex}.
+ *
+ * @author Gabor Angeli
+ */
+public class SenseIndexTest {
+
+  private SenseIndex load(String... lines) throws IOException {
+    File senses = File.createTempFile("sense", ".tab");
+    senses.deleteOnExit();
+    try (PrintWriter out = new PrintWriter(senses)) {
+      for (String line : lines) {
+        out.println(line);
+      }
+    }
+    return SenseIndex.load(senses.getPath());
+  }
+
+  @Test
+  public void lookup() throws IOException {
+    SenseIndex index = load(
+        "5\t1\ta domesticated carnivorous mammal",
+        "5\t2\ta dull unattractive unpleasant girl or woman",
+        "7\t1\tfeline mammal usually having thick soft fur",
+        "7\t2\ta domesticated carnivorous mammal");
+    assertEquals(1, index.sense(5, index.definitionId("a domesticated carnivorous mammal")));
+    assertEquals(2, index.sense(5, index.definitionId("a dull unattractive unpleasant girl or woman")));
+    assertEquals(1, index.sense(7, index.definitionId("feline mammal usually having thick soft fur")));
+    assertEquals(2, index.sense(7, index.definitionId("a domesticated carnivorous mammal")));
+  }
+
+  @Test
+  public void defaultSense() throws IOException {
+    SenseIndex index = load("5\t1\ta domesticated carnivorous mammal");
+    assertEquals(-1, index.definitionId("not a definition"));
+    assertEquals(0, index.sense(5, index.definitionId("not a definition")));
+    assertEquals(0, index.sense(4, index.definitionId("a domesticated carnivorous mammal")));
+    assertEquals(0, index.sense(6, index.definitionId("a domesticated carnivorous mammal")));
+    assertEquals(0, index.sense(-1, 0));
+  }
+
+  @Test
+  public void synsetLookup() throws IOException {
+    SenseIndex index = load("5\t3\ta domesticated carnivorous mammal");
+    MinimalSynset synset = new MinimalSynset((byte) 1, new String[]{"dog"}, "a domesticated carnivorous mammal");
+    assertEquals(3, index.sense(5, synset));
+    assertEquals(3, index.sense(5, synset));  // cached
+    assertEquals(0, index.sense(6, synset));
+  }
+}
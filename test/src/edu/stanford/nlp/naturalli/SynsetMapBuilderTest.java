@@ -0,0 +1,82 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.smu.tspell.wordnet.Synset;
+import edu.smu.tspell.wordnet.SynsetType;
+import edu.stanford.nlp.util.Pair;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.SynsetMapBuilder}.
+ *
+ * @author Gabor Angeli
+ */
+public class SynsetMapBuilderTest {
+
+  /** A fake WordNet, where every phrase ending in an even number is a noun, sharing one of ten synsets. */
+  private static SynsetMapBuilder.SynsetLookup fakeWordNet(AtomicInteger calls) {
+    return (phrase, type) -> {
+      calls.incrementAndGet();
+      int i = Integer.parseInt(phrase.substring(4));
+      if (i % 2 != 0 || (type != null && type != SynsetType.NOUN)) {
+        return null;
+      }
+      return new Synset[]{ new MinimalSynset((byte) SynsetType.NOUN.getCode(), new String[]{"word" + (i % 10)}, "definition " + (i % 10)) };
+    };
+  }
+
+  private static List<String> phrases(int count) {
+    List<String> phrases = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      phrases.add("word" + i);
+    }
+    return phrases;
+  }
+
+  @Test
+  public void buildAndResume() throws IOException {
+    File dir = Files.createTempDirectory("shards").toFile();
+    List<String> phrases = phrases(25000);
+    AtomicInteger calls = new AtomicInteger(0);
+    Map<Pair<String, Integer>, Synset[]> map = new SynsetMapBuilder(fakeWordNet(calls), dir, 4).build(phrases);
+    assertEquals(25000 * 6, calls.get());
+    assertEquals(25000, map.size());  // (noun, null) for half of the phrases
+    Synset[] synsets = map.get(Pair.makePair("word12", SynsetType.NOUN.getCode()));
+    assertEquals("definition 2", synsets[0].getDefinition());
+    assertSame(synsets[0], map.get(Pair.makePair("word22", (Integer) null))[0]);  // interned
+    assertNull(map.get(Pair.makePair("word13", SynsetType.NOUN.getCode())));
+
+    // Resume from the checkpoints
+    AtomicInteger resumedCalls = new AtomicInteger(0);
+    Map<Pair<String, Integer>, Synset[]> resumed = new SynsetMapBuilder(fakeWordNet(resumedCalls), dir, 4).build(phrases);
+    assertEquals(0, resumedCalls.get());
+    assertEquals(map.size(), resumed.size());
+    assertEquals(map.get(Pair.makePair("word24998", SynsetType.NOUN.getCode()))[0],
+        resumed.get(Pair.makePair("word24998", SynsetType.NOUN.getCode()))[0]);
+
+    // Resume after losing a shard
+    assertTrue(new File(dir, "shard-00001.ser.gz").delete());
+    resumedCalls.set(0);
+    new SynsetMapBuilder(fakeWordNet(resumedCalls), dir, 4).build(phrases);
+    assertEquals(10000 * 6, resumedCalls.get());
+  }
+
+  @Test
+  public void discardShardsFromOtherVocabulary() throws IOException {
+    File dir = Files.createTempDirectory("shards").toFile();
+    new SynsetMapBuilder(fakeWordNet(new AtomicInteger(0)), dir, 2).build(phrases(100));
+    AtomicInteger calls = new AtomicInteger(0);
+    Map<Pair<String, Integer>, Synset[]> map = new SynsetMapBuilder(fakeWordNet(calls), dir, 2).build(phrases(101));
+    assertEquals(101 * 6, calls.get());
+    assertEquals(102, map.size());
+  }
+}
@@ -0,0 +1,109 @@
+package edu.stanford.nlp.naturalli;
+
+import edu.smu.tspell.wordnet.Synset;
+import edu.smu.tspell.wordnet.SynsetType;
+import edu.stanford.nlp.util.Pair;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.SynsetStore}.
+ *
+ * @author Gabor Angeli
+ */
+public class SynsetStoreTest {
+
+  private static final MinimalSynset CAT_ANIMAL = new MinimalSynset((byte) SynsetType.NOUN.getCode(),
+      new String[]{"cat", "true cat"}, "feline mammal usually having thick soft fur");
+  private static final MinimalSynset CAT_PERSON = new MinimalSynset((byte) SynsetType.NOUN.getCode(),
+      new String[]{"guy", "cat", "hombre"}, "an informal term for a youth or man");
+  private static final MinimalSynset CAT_VERB = new MinimalSynset((byte) SynsetType.VERB.getCode(),
+      new String[]{"cat"}, "beat with a cat-o'-nine-tails");
+
+  private static Map<Pair<String, Integer>, Synset[]> synsets() {
+    Map<Pair<String, Integer>, Synset[]> map = new HashMap<>();
+    map.put(Pair.makePair("cat", SynsetType.NOUN.getCode()), new Synset[]{CAT_ANIMAL, CAT_PERSON});
+    map.put(Pair.makePair("cat", SynsetType.VERB.getCode()), new Synset[]{CAT_VERB});
+    map.put(Pair.makePair("cat", null), new Synset[]{CAT_ANIMAL, CAT_PERSON, CAT_VERB});
+    map.put(Pair.makePair("guy", SynsetType.NOUN.getCode()), new Synset[]{CAT_PERSON});
+    return map;
+  }
+
+  @Test
+  public void find() {
+    SynsetStore store = SynsetStore.fromMap(synsets());
+    assertEquals(3, store.numSynsets());
+    int key = store.find("cat", SynsetType.NOUN.getCode());
+    assertTrue(key >= 0);
+    assertEquals(2, store.numSynsets(key));
+    assertEquals(1, store.numSynsets(store.find("cat", SynsetType.VERB.getCode())));
+    assertEquals(1, store.numSynsets(store.find("guy", SynsetType.NOUN.getCode())));
+    assertEquals(-1, store.find("cat", SynsetType.ADJECTIVE.getCode()));
+    assertEquals(-1, store.find("dog", SynsetType.NOUN.getCode()));
+    assertEquals(-1, store.find("cat", -1));
+  }
+
+  @Test
+  public void synsetContents() {
+    SynsetStore store = SynsetStore.fromMap(synsets());
+    int key = store.find("cat", SynsetType.NOUN.getCode());
+    SynsetStore.StoredSynset animal = store.synset(key, 0);
+    SynsetStore.StoredSynset person = store.synset(key, 1);
+    assertEquals(CAT_ANIMAL.getDefinition(), animal.getDefinition());
+    assertEquals(SynsetType.NOUN, animal.getType());
+    assertArrayEquals(CAT_ANIMAL.getWordForms(), animal.getWordForms());
+    assertArrayEquals(CAT_ANIMAL.splitDefinition(), animal.splitDefinition());
+    assertEquals(CAT_ANIMAL.indexOf("cat"), animal.indexOf("cat"));
+    assertEquals(CAT_PERSON.indexOf("cat"), person.indexOf("cat"));
+    assertEquals(CAT_PERSON.indexOf("dog"), person.indexOf("dog"));
+    assertEquals(store.tokenId("feline"), animal.definitionToken(0));
+    assertEquals(-1, store.tokenId("dog"));
+  }
+
+  @Test
+  public void synsetsAreShared() {
+    SynsetStore store = SynsetStore.fromMap(synsets());
+    SynsetStore.StoredSynset fromCat = store.synset(store.find("cat", SynsetType.NOUN.getCode()), 1);
+    SynsetStore.StoredSynset fromGuy = store.synset(store.find("guy", SynsetType.NOUN.getCode()), 0);
+    assertSame(fromCat, fromGuy);
+  }
+
+  @Test
+  public void compileAndLoad() throws IOException {
+    File file = File.createTempFile("wordnet", ".idx");
+    file.deleteOnExit();
+    SynsetStore.compile(synsets(), "", file);
+    SynsetStore store = SynsetStore.load(file.getPath());
+    Synset[] all = store.get("cat", 0);
+    assertNotNull(all);
+    assertEquals(Arrays.asList(CAT_ANIMAL.getDefinition(), CAT_PERSON.getDefinition(), CAT_VERB.getDefinition()),
+        Arrays.asList(all[0].getDefinition(), all[1].getDefinition(), all[2].getDefinition()));
+    assertNull(store.get("dog", SynsetType.NOUN.getCode()));
+  }
+
+  @Test
+  public void staleStoreIsRecompiled() throws IOException {
+    File wordnet = File.createTempFile("wordnet", ".tab.gz");
+    wordnet.deleteOnExit();
+    File file = File.createTempFile("wordnet", ".idx");
+    file.deleteOnExit();
+    // A store compiled from some other synset map
+    Map<Pair<String, Integer>, Synset[]> old = new HashMap<>();
+    old.put(Pair.makePair("dog", SynsetType.NOUN.getCode()), new Synset[]{CAT_ANIMAL});
+    SynsetStore.compile(old, "0:0", file);
+    SynsetStore store = StaticResources.loadSynsets(wordnet.getPath(), file.getPath(), SynsetStoreTest::synsets);
+    assertNotNull(store.get("cat", SynsetType.NOUN.getCode()));
+    assertNull(store.get("dog", SynsetType.NOUN.getCode()));
+    // The recompiled store is up to date, so it is used as is
+    SynsetStore reloaded = StaticResources.loadSynsets(wordnet.getPath(), file.getPath(), () -> { throw new AssertionError("recompiled"); });
+    assertEquals(StaticResources.fileStamp(wordnet.getPath()), reloaded.source());
+    assertNotNull(reloaded.get("cat", SynsetType.NOUN.getCode()));
+  }
+}
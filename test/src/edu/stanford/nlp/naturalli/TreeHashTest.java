@@ -0,0 +1,136 @@
+package edu.stanford.nlp.naturalli;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.TreeHash}, checking the Java hash against the C++ one.
+ * The expected hashes were computed by hashEdge() and hashQuantifiers() in SynSearch.cc, compiled with the default
+ * configuration (TWO_PASS_HASH, 24 bit words), for the CoNLL trees below; i.e., what hash_tree prints for them.
+ *
+ * @author Gabor Angeli
+ */
+public class TreeHashTest {
+
+  private static final Map<String, Integer> DEPENDENCIES = ConllTree.readDependencyIndex("etc/depInsert2rel.tab");
+
+  /** Read a CoNLL tree, as dumped by {@link ConllTree#toConll(StringBuilder)}. */
+  private static ConllTree parse(String conll) {
+    String[] lines = conll.split("\n");
+    ConllTree tree = new ConllTree(lines.length);
+    for (int i = 0; i < lines.length; ++i) {
+      String[] fields = lines[i].split("\t");
+      tree.word[i] = Integer.parseInt(fields[0]);
+      tree.governor[i] = Integer.parseInt(fields[1]);
+      tree.relation[i] = fields[2];
+      if (fields.length > 5 && !fields[5].equals("-")) {
+        tree.subjMono[i] = fields[5];
+        tree.subjBegin[i] = Integer.parseInt(fields[6].split("-")[0]);
+        tree.subjEnd[i] = Integer.parseInt(fields[6].split("-")[1]);
+        if (!fields[7].equals("-")) {
+          tree.objMono[i] = fields[7];
+          tree.objBegin[i] = Integer.parseInt(fields[8].split("-")[0]);
+          tree.objEnd[i] = Integer.parseInt(fields[8].split("-")[1]);
+        }
+      }
+    }
+    return tree;
+  }
+
+  private static void assertHash(String expected, String conll) {
+    assertEquals(expected, Long.toUnsignedString(TreeHash.hash(parse(conll), DEPENDENCIES)));
+  }
+
+  @Test
+  public void universalQuantifier() {
+    assertHash("13888265044029549585",
+        "10\t2\tdet\t0\tq\tanti-additive\t2-3\tmultiplicative\t3-5\n" +
+        "20\t3\tnsubj\t2\tn\t-\t-\t-\t-\n" +
+        "30\t0\troot\t0\tv\t-\t-\t-\t-\n" +
+        "40\t3\tdobj\t0\tn\t-\t-\t-\t-\tl\n");
+  }
+
+  @Test
+  public void existentialQuantifier() {
+    assertHash("8059542508945384689",
+        "10\t2\tdet\t0\tq\tadditive\t2-3\tadditive\t3-5\n" +
+        "20\t3\tnsubj\t0\tn\t-\t-\t-\t-\n" +
+        "30\t0\troot\t0\tv\t-\t-\t-\t-\n" +
+        "40\t3\tdobj\t0\tn\t-\t-\t-\t-\n");
+    // The existential quantifier does not contribute to the hash
+    assertHash("8059542508945384689",
+        "10\t2\tdet\t0\tq\t-\t-\t-\t-\n" +
+        "20\t3\tnsubj\t0\tn\t-\t-\t-\t-\n" +
+        "30\t0\troot\t0\tv\t-\t-\t-\t-\n" +
+        "40\t3\tdobj\t0\tn\t-\t-\t-\t-\n");
+  }
+
+  @Test
+  public void specialArcs() {
+    // neg is hashed as det, op is not hashed, and an unknown arc is hashed as NUM_DEPENDENCY_LABELS
+    assertHash("17469919937323345502",
+        "20\t3\tnsubj\t0\tn\t-\t-\t-\t-\n" +
+        "50\t3\tneg\t0\tr\t-\t-\t-\t-\n" +
+        "30\t0\troot\t0\tv\t-\t-\t-\t-\n" +
+        "40\t3\tdobj\t0\tn\t-\t-\t-\t-\n" +
+        "60\t4\top\t0\tn\t-\t-\t-\t-\n" +
+        "70\t4\tnot_an_arc\t0\tn\t-\t-\t-\t-\n");
+  }
+
+  @Test
+  public void shortTrees() {
+    // The dump of an empty tree
+    assertHash("12347537785614917335", "0\t0\troot\t0\n");
+    // Words are truncated to 24 bits
+    assertHash("7050678928199060272",
+        "16777217\t0\troot\t0\tn\t-\t-\t-\t-\n" +
+        "9999999\t1\tconj:and\\/or\t0\tn\t-\t-\t-\t-\n");
+    // A unary quantifier
+    assertHash("16538075019226994853",
+        "7\t2\tdet\t0\tq\tantitone\t2-3\t-\t-\n" +
+        "8\t0\troot\t0\tn\t-\t-\t-\t-\n");
+  }
+
+  @Test
+  public void unhashableTrees() {
+    assertEquals(TreeHash.NO_HASH, TreeHash.hash(new ConllTree(0), DEPENDENCIES));
+    ConllTree tooLong = new ConllTree(TreeHash.MAX_QUERY_LENGTH + 1);
+    for (int i = 0; i < tooLong.length; ++i) {
+      tooLong.word[i] = i;
+      tooLong.relation[i] = i == 0 ? "root" : "dep";
+      tooLong.governor[i] = i == 0 ? 0 : 1;
+    }
+    assertEquals(TreeHash.NO_HASH, TreeHash.hash(tooLong, DEPENDENCIES));
+  }
+
+  @Test
+  public void arcsAreLookedUpOncePerTree() {
+    ConllTree tree = parse(
+        "20\t3\tnsubj\t0\tn\t-\t-\t-\t-\n" +
+        "50\t3\tneg\t0\tr\t-\t-\t-\t-\n" +
+        "30\t0\troot\t0\tv\t-\t-\t-\t-\n");
+    long hash = TreeHash.hash(tree, DEPENDENCIES);
+    int[] arcs = tree.arcs(DEPENDENCIES);
+    assertEquals(ConllTree.relationIndex("neg", DEPENDENCIES), arcs[1]);
+    // Hashing (or encoding) the tree again reuses its arcs
+    assertEquals(hash, TreeHash.hash(tree, DEPENDENCIES));
+    tree.encode(ByteBuffer.allocate(64), DEPENDENCIES);
+    assertSame(arcs, tree.arcs(DEPENDENCIES));
+    // ...unless they are asked for with another index
+    Map<String, Integer> otherIndex = new HashMap<>(DEPENDENCIES);
+    otherIndex.put("nsubj", 1);
+    assertEquals(1, tree.arcs(otherIndex)[0]);
+    assertNotEquals(hash, TreeHash.hash(tree, otherIndex));
+  }
+
+  @Test
+  public void mix() {
+    // Not used with the default TWO_PASS_HASH, but checked against the C++ mix() anyway
+    assertEquals("14558803520972736065", Long.toUnsignedString(TreeHash.mix(42L)));
+  }
+}
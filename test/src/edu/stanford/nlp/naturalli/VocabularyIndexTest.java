@@ -0,0 +1,161 @@
+package edu.stanford.nlp.naturalli;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.VocabularyIndex}.
+ *
+ * @author Gabor Angeli
+ */
+public class VocabularyIndexTest {
+
+  private File write(String... lines) throws IOException {
+    File vocab = File.createTempFile("vocab", ".tab");
+    vocab.deleteOnExit();
+    try (PrintWriter out = new PrintWriter(vocab)) {
+      for (String line : lines) {
+        out.println(line);
+      }
+    }
+    return vocab;
+  }
+
+  private VocabularyIndex compile(String... lines) throws IOException {
+    File index = File.createTempFile("vocab", ".idx");
+    index.deleteOnExit();
+    VocabularyIndex.compile(write(lines).getPath(), index);
+    return VocabularyIndex.load(index.getPath());
+  }
+
+  @Test
+  public void lookup() throws IOException {
+    VocabularyIndex index = compile("0\tcat", "1\tdog", "2\thave tail", "3\tcat food");
+    assertEquals(4, index.size());
+    assertEquals(0, index.get("cat"));
+    assertEquals(1, index.get("dog"));
+    assertEquals(2, index.get("have tail"));
+    assertEquals(3, index.get("cat food"));
+    assertEquals(-1, index.get("have"));
+    assertEquals(-1, index.get("cats"));
+    assertEquals(-1, index.get(""));
+  }
+
+  @Test
+  public void lowercase() throws IOException {
+    VocabularyIndex index = compile("0\tObama", "1\tcat", "2\tCat");
+    assertEquals(0, index.get("Obama"));
+    assertEquals(-1, index.get("obama"));
+    assertEquals(0, index.getLowercase("obama"));
+    assertEquals(1, index.get("cat"));
+    assertEquals(2, index.get("Cat"));
+    assertEquals(2, index.getLowercase("cat"));  // last one wins
+  }
+
+  @Test
+  public void surfaceForm() throws IOException {
+    VocabularyIndex index = compile("0\tcat", "1\tdog", "3\thave tail");
+    assertEquals("cat", index.gloss(0));
+    assertEquals("dog", index.gloss(1));
+    assertNull(index.gloss(2));
+    assertEquals("have tail", index.gloss(3));
+    assertNull(index.gloss(4));
+    Map<Integer, String> asMap = index.asSurfaceFormMap();
+    assertEquals("dog", asMap.get(1));
+    assertEquals(3, asMap.size());
+  }
+
+  @Test
+  public void manyEntries() throws IOException {
+    String[] lines = new String[10000];
+    for (int i = 0; i < lines.length; ++i) {
+      lines[i] = i + "\tword" + i;
+    }
+    VocabularyIndex index = compile(lines);
+    for (int i = 0; i < lines.length; ++i) {
+      assertEquals(i, index.get("word" + i));
+      assertEquals("word" + i, index.gloss(i));
+    }
+    assertEquals(-1, index.get("word" + lines.length));
+  }
+
+  @Test
+  public void matchesInMemoryVocabulary() throws IOException {
+    String[] lines = new String[200000];
+    for (int i = 0; i < lines.length; ++i) {
+      lines[i] = (i % 150000) + "\t" + (i % 3 == 0 ? "Word" : "word") + (i % 170000);
+    }
+    VocabularyIndex index = compile(lines);
+    InMemoryVocabulary inMemory = InMemoryVocabulary.load(write(lines).getPath());
+    assertEquals(index.size(), inMemory.size());
+    assertEquals(index.maxIndex(), inMemory.maxIndex());
+    for (int i = 0; i < 170000; ++i) {
+      assertEquals(index.get("word" + i), inMemory.get("word" + i));
+      assertEquals(index.get("Word" + i), inMemory.get("Word" + i));
+      assertEquals(index.getLowercase("word" + i), inMemory.getLowercase("word" + i));
+      assertEquals(index.gloss(i), inMemory.gloss(i));
+    }
+  }
+
+  @Test
+  public void readsUtf8RegardlessOfLocale() throws IOException {
+    File vocab = File.createTempFile("vocab", ".tab");
+    vocab.deleteOnExit();
+    Files.write(vocab.toPath(), "0\tcaf\u00e9\n1\t\u00fcber alles\n".getBytes(StandardCharsets.UTF_8));
+    File indexFile = File.createTempFile("vocab", ".idx");
+    indexFile.deleteOnExit();
+    VocabularyIndex.compile(vocab.getPath(), indexFile);
+    VocabularyIndex index = VocabularyIndex.load(indexFile.getPath());
+    InMemoryVocabulary inMemory = InMemoryVocabulary.load(vocab.getPath());
+    assertEquals(0, index.get("caf\u00e9"));
+    assertEquals(0, inMemory.get("caf\u00e9"));
+    assertEquals(1, index.getLowercase("\u00fcber alles"));
+    assertEquals(1, inMemory.getLowercase("\u00fcber alles"));
+  }
+
+  @Test
+  public void staleIndexIsRecompiled() throws IOException {
+    File vocab = write("0\tcat", "1\tdog");
+    File indexFile = File.createTempFile("vocab", ".idx");
+    indexFile.deleteOnExit();
+    VocabularyIndex.compile(vocab.getPath(), indexFile);
+    assertEquals(StaticResources.fileStamp(vocab.getPath()), VocabularyIndex.load(indexFile.getPath()).source());
+    // Regenerate the vocabulary, leaving the old index in place
+    try (PrintWriter out = new PrintWriter(vocab)) {
+      out.println("0\tdog");
+      out.println("1\tcat");
+      out.println("2\tfish");
+    }
+    assertTrue(vocab.setLastModified(vocab.lastModified() + 2000));
+    Vocabulary reloaded = StaticResources.loadVocabulary(vocab.getPath(), indexFile.getPath());
+    assertTrue(reloaded instanceof VocabularyIndex);
+    assertEquals(1, reloaded.get("cat"));
+    assertEquals(2, reloaded.get("fish"));
+    assertEquals(StaticResources.fileStamp(vocab.getPath()), VocabularyIndex.load(indexFile.getPath()).source());
+  }
+
+  @Test
+  public void oldFormatIndexIsRecompiled() throws IOException {
+    File vocab = write("0\tcat", "1\tdog");
+    File indexFile = File.createTempFile("vocab", ".idx");
+    indexFile.deleteOnExit();
+    // An index from before the header recorded its vocabulary file ("NLV1")
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile))) {
+      out.writeInt(0x4E4C5631);
+      out.writeInt(0);
+    }
+    Vocabulary loaded = StaticResources.loadVocabulary(vocab.getPath(), indexFile.getPath());
+    assertTrue(loaded instanceof VocabularyIndex);
+    assertEquals(1, loaded.get("dog"));
+  }
+}
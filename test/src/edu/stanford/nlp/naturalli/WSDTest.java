@@ -1,7 +1,14 @@
 package edu.stanford.nlp.naturalli;
 
+import edu.smu.tspell.wordnet.Synset;
+import edu.smu.tspell.wordnet.SynsetType;
+import edu.stanford.nlp.util.Pair;
 import org.junit.Test;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
 import static org.junit.Assert.assertEquals;
 
 
@@ -50,4 +57,73 @@ public class WSDTest {
     assertEquals(4, WSD.lesk("Bill the dog cat", "Bill dog fish"));
     assertEquals(4, WSD.lesk("Bill the dog cat", "Bill the dog fish"));
   }
+
+  @Test
+  public void intLeskMatchesStringLesk() {
+    String[] vocab = {"dog", "cat", "snail", "fuzzy", "the", "a", "of", "Bill", "fish", "camel", "have", "tail"};
+    Random rand = new Random(42);
+    // Create some synsets
+    MinimalSynset[] definitions = new MinimalSynset[50];
+    Map<Pair<String, Integer>, Synset[]> map = new HashMap<>();
+    for (int i = 0; i < definitions.length; ++i) {
+      StringBuilder definition = new StringBuilder();
+      int length = 1 + rand.nextInt(25);
+      for (int k = 0; k < length; ++k) {
+        definition.append(vocab[rand.nextInt(vocab.length)]).append(" ");
+      }
+      definitions[i] = new MinimalSynset((byte) SynsetType.NOUN.getCode(), new String[]{"word" + i}, definition.toString().trim());
+      map.put(Pair.makePair("word" + i, SynsetType.NOUN.getCode()), new Synset[]{definitions[i]});
+    }
+    SynsetStore store = SynsetStore.fromMap(map);
+    // Compare against random sentences
+    WSD.LeskContext context = new WSD.LeskContext();
+    for (int trial = 0; trial < 500; ++trial) {
+      String[] sentence = new String[1 + rand.nextInt(40)];
+      for (int k = 0; k < sentence.length; ++k) {
+        sentence[k] = rand.nextInt(5) == 0 ? "unknown" : vocab[rand.nextInt(vocab.length)];
+      }
+      context.encode(store, sentence);
+      int ignoreStart = rand.nextInt(sentence.length);
+      int ignoreEnd = ignoreStart + rand.nextInt(3);
+      for (int i = 0; i < definitions.length; ++i) {
+        SynsetStore.StoredSynset synset = store.synset(store.find("word" + i, SynsetType.NOUN.getCode()), 0);
+        assertEquals(WSD.lesk(definitions[i].splitDefinition(), sentence, ignoreStart, ignoreEnd),
+            WSD.lesk(context, synset.id, ignoreStart, ignoreEnd));
+      }
+    }
+  }
+
+  @Test
+  public void spanPos() {
+    String[] posTags = {"DT", "JJ", "NN", "VBZ", "RB", "IN"};
+    assertEquals("NN", WSD.spanPos(posTags, 0, 3));
+    assertEquals("JJ", WSD.spanPos(posTags, 1, 2));
+    assertEquals("VBZ", WSD.spanPos(posTags, 3, 5));
+    assertEquals("RB", WSD.spanPos(posTags, 4, 5));
+    assertEquals("???", WSD.spanPos(posTags, 5, 6));
+    assertEquals("???", WSD.spanPos(null, 0, 3));
+  }
+
+  @Test
+  public void senseIsCached() {
+    Map<Pair<String, Integer>, Synset[]> map = new HashMap<>();
+    map.put(Pair.makePair("bank", SynsetType.NOUN.getCode()), new Synset[]{
+        new MinimalSynset((byte) SynsetType.NOUN.getCode(), new String[]{"bank"}, "sloping land beside a river"),
+        new MinimalSynset((byte) SynsetType.NOUN.getCode(), new String[]{"bank"}, "financial institution that accepts deposits money")
+    });
+    SynsetStore store = SynsetStore.fromMap(map);
+    int key = store.find("bank", SynsetType.NOUN.getCode());
+    WSD.LeskContext context = new WSD.LeskContext();
+    long misses = WSD.senseCache().misses();
+    long hits = WSD.senseCache().hits();
+    context.encode(store, "I put money in the bank".split(" "));
+    assertEquals(0, WSD.sense(context, 5, 6, key, "bank"));  // the penalty for the second sense outweighs the overlap
+    assertEquals(misses + 1, WSD.senseCache().misses());
+    context.encode(store, "I put money in the bank".split(" "));
+    assertEquals(0, WSD.sense(context, 5, 6, key, "bank"));
+    assertEquals(hits + 1, WSD.senseCache().hits());
+    context.encode(store, "money money financial institution deposits the bank".split(" "));
+    assertEquals(1, WSD.sense(context, 6, 7, key, "bank"));
+    assertEquals(misses + 2, WSD.senseCache().misses());
+  }
 }
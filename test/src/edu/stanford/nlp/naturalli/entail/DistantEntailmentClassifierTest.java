@@ -0,0 +1,30 @@
+package edu.stanford.nlp.naturalli.entail;
+
+import edu.stanford.nlp.naturalli.PipelinePool;
+import edu.stanford.nlp.naturalli.ProcessPremise;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.entail.DistantEntailmentClassifier}.
+ *
+ * @author Gabor Angeli
+ */
+public class DistantEntailmentClassifierTest {
+
+  @Test
+  public void ownPipelineIsNotShared() {
+    PipelinePool shared = ProcessPremise.pipelinePool("depparse");
+    int sharedSize = shared.size();
+    for (int i = 0; i < shared.maxSize() + 1; ++i) {
+      Properties props = new Properties();
+      props.setProperty("annotators", "tokenize");
+      new DistantEntailmentClassifier(new EntailmentFeaturizer(new String[0]), null, new StanfordCoreNLP(props, false));
+    }
+    assertEquals(sharedSize, shared.size());
+  }
+}
@@ -0,0 +1,138 @@
+package edu.stanford.nlp.naturalli.entail;
+
+import edu.stanford.nlp.simple.Sentence;
+import edu.stanford.nlp.util.Pair;
+import edu.stanford.nlp.util.Trilean;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for the default scoring methods on {@link edu.stanford.nlp.naturalli.entail.EntailmentClassifier}.
+ *
+ * @author Gabor Angeli
+ */
+public class EntailmentClassifierTest {
+
+  /**
+   * A classifier which scores a premise by the number at its end (e.g., "cats have 3"), so that premises can tie.
+   * It needs no annotations on the hypothesis, and so no models.
+   */
+  private static final EntailmentClassifier classifier = new EntailmentClassifier() {
+    @Override
+    public Trilean classify(Sentence premise, Sentence hypothesis, Optional<String> focus, Optional<Double> luceneScore) {
+      return Trilean.UNKNOWN;
+    }
+
+    @Override
+    public double truthScore(Sentence premise, Sentence hypothesis, Optional<String> focus, Optional<Double> luceneScore) {
+      String text = premise.text();
+      return Double.parseDouble(text.substring(text.lastIndexOf(' ') + 1)) / 10.0 + luceneScore.orElse(0.0);
+    }
+
+    @Override
+    public void prepareHypothesis(Sentence hypothesis) {
+    }
+
+    @Override
+    public Object serialize() {
+      return null;
+    }
+  };
+
+  private static List<String> premises() {
+    List<String> premises = new ArrayList<>();
+    for (int i = 0; i < 60; ++i) {
+      premises.add((i % 2 == 0 ? "cats have " : "dogs have ") + ((i * 7) % 9));
+    }
+    return premises;
+  }
+
+  @Test
+  public void parallelBestScoreMatchesSequential() {
+    ExecutorService exec = Executors.newFixedThreadPool(4);
+    try {
+      List<String> premises = premises();
+      Pair<Sentence, Double> sequential = classifier.bestScore(premises, "cats have tails", Optional.of("cats"), Optional.empty(), i -> 1.0 - i * 0.001);
+      Pair<Sentence, Double> parallel = classifier.bestScore(premises, "cats have tails", Optional.of("cats"), Optional.empty(), i -> 1.0 - i * 0.001, exec);
+      assertEquals(sequential.first.text(), parallel.first.text());
+      assertEquals(sequential.second, parallel.second, 1e-10);
+    } finally {
+      exec.shutdownNow();
+    }
+  }
+
+  @Test
+  public void tiesGoToTheFirstPremise() {
+    ExecutorService exec = Executors.newFixedThreadPool(4);
+    try {
+      List<String> premises = new ArrayList<>();
+      premises.add("birds have 1");
+      premises.add("cats have 8");
+      premises.add("dogs have 8");
+      premises.add("fish have 8");
+      Pair<Sentence, Double> best = classifier.bestScore(premises, "cats have tails", Optional.empty(), Optional.empty(), i -> 1.0, exec);
+      assertEquals("cats have 8", best.first.text());
+      assertEquals(0.8, best.second, 1e-10);
+    } finally {
+      exec.shutdownNow();
+    }
+  }
+
+  @Test
+  public void parallelAveScoreMatchesSequential() {
+    ExecutorService exec = Executors.newFixedThreadPool(4);
+    try {
+      List<String> premises = premises();
+      List<Double> luceneScores = new ArrayList<>();
+      for (int i = 0; i < premises.size(); ++i) {
+        luceneScores.add(i / 100.0);
+      }
+      Pair<Sentence, Double> sequential = classifier.aveScore(premises, "cats have tails", Optional.of("dogs"), Optional.of(luceneScores), i -> 1.0);
+      Pair<Sentence, Double> parallel = classifier.aveScore(premises, "cats have tails", Optional.of("dogs"), Optional.of(luceneScores), i -> 1.0, exec);
+      assertEquals(sequential.first.text(), parallel.first.text());
+      assertEquals(sequential.second, parallel.second, 1e-10);
+    } finally {
+      exec.shutdownNow();
+    }
+  }
+
+  @Test
+  public void sequentialScoringStopsAtTheFirstFailure() {
+    AtomicInteger scored = new AtomicInteger(0);
+    EntailmentClassifier failing = new EntailmentClassifier() {
+      @Override
+      public Trilean classify(Sentence premise, Sentence hypothesis, Optional<String> focus, Optional<Double> luceneScore) {
+        return Trilean.UNKNOWN;
+      }
+
+      @Override
+      public double truthScore(Sentence premise, Sentence hypothesis, Optional<String> focus, Optional<Double> luceneScore) {
+        scored.incrementAndGet();
+        if (premise.text().startsWith("dogs")) {
+          throw new IllegalStateException("Could not score " + premise.text());
+        }
+        return 0.5;
+      }
+
+      @Override
+      public Object serialize() {
+        return null;
+      }
+    };
+    try {
+      failing.bestScore(premises(), "cats have tails", Optional.empty(), Optional.empty());
+      fail("Expected the failure of the second premise to be thrown");
+    } catch (IllegalStateException e) {
+      assertEquals("Could not score dogs have 7", e.getMessage());
+    }
+    assertEquals(2, scored.get());
+  }
+}
@@ -0,0 +1,139 @@
+package edu.stanford.nlp.naturalli.entail;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.entail.NaturalLIAsyncClient}, using shell scripts in place of
+ * the real search program.
+ *
+ * @author Gabor Angeli
+ */
+public class NaturalLIAsyncClientTest {
+
+  /** Write an executable shell script with the given body. */
+  private static String script(String... lines) throws IOException {
+    File script = File.createTempFile("naturalli_search", ".sh");
+    script.deleteOnExit();
+    try (PrintWriter out = new PrintWriter(script)) {
+      out.println("#!/bin/sh");
+      for (String line : lines) {
+        out.println(line);
+      }
+    }
+    assertTrue(script.setExecutable(true));
+    return script.getPath();
+  }
+
+  /**
+   * A fake search program which waits for two requests, and then answers them in the reverse order.
+   * Each request is a request id line followed by a query line.
+   */
+  private static String reversingSearch() throws IOException {
+    return script(
+        "read id1; read query1",
+        "read id2; read query2",
+        "echo \"{\\\"id\\\": ${id2#%requestId = }, \\\"query\\\": \\\"$query2\\\"}\"",
+        "echo \"{\\\"id\\\": ${id1#%requestId = }, \\\"query\\\": \\\"$query1\\\"}\"",
+        "cat > /dev/null");
+  }
+
+  @Test
+  public void matchesResponsesById() throws Exception {
+    NaturalLIAsyncClient client = new NaturalLIAsyncClient(reversingSearch(), Collections.emptyList(), new OutputStreamWriter(System.err));
+    try {
+      CompletableFuture<String> first = client.query("cats have tails\n");
+      CompletableFuture<String> second = client.query("dogs have tails\n");
+      assertEquals("{\"query\": \"cats have tails\"}", first.get(10, TimeUnit.SECONDS));
+      assertEquals("{\"query\": \"dogs have tails\"}", second.get(10, TimeUnit.SECONDS));
+      assertEquals(0, client.pending());
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void untaggedResponsesAreAnsweredInOrder() throws Exception {
+    String search = script(
+        "while read line; do",
+        "  case \"$line\" in",
+        "    %*) ;;",
+        "    *) echo \"{\\\"query\\\": \\\"$line\\\"}\" ;;",
+        "  esac",
+        "done");
+    NaturalLIAsyncClient client = new NaturalLIAsyncClient(search, Collections.singletonList("%strictCosts = true"), new OutputStreamWriter(System.err));
+    try {
+      CompletableFuture<String> first = client.query("a\n");
+      CompletableFuture<String> second = client.query("b\n");
+      assertEquals("{\"query\": \"a\"}", first.get(10, TimeUnit.SECONDS));
+      assertEquals("{\"query\": \"b\"}", second.get(10, TimeUnit.SECONDS));
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void rejectsEmptyRequests() throws Exception {
+    assertFalse(NaturalLIAsyncClient.hasQuery("\n\n"));
+    assertFalse(NaturalLIAsyncClient.hasQuery("%strictCosts = true\n# a comment\n\n"));
+    assertTrue(NaturalLIAsyncClient.hasQuery("%strictCosts = true\ncats\t0\troot\t0\n\n"));
+    // The fake search program would hang forever on an empty request
+    NaturalLIAsyncClient client = new NaturalLIAsyncClient(reversingSearch(), Collections.emptyList(), new OutputStreamWriter(System.err));
+    try {
+      CompletableFuture<String> response = client.query("\n\n");
+      try {
+        response.get(10, TimeUnit.SECONDS);
+        fail("Expected the query to be rejected");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IllegalArgumentException);
+      }
+      assertEquals(0, client.pending());
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void readsEmptyTaggedResponses() throws Exception {
+    // An (older) client may still send an empty request; the search program answers it with just its id
+    String search = script(
+        "while read line; do",
+        "  case \"$line\" in",
+        "    %requestId*) echo \"{\\\"id\\\": ${line#%requestId = }}\" ;;",
+        "  esac",
+        "done");
+    NaturalLIAsyncClient client = new NaturalLIAsyncClient(search, Collections.emptyList(), new OutputStreamWriter(System.err));
+    try {
+      assertEquals("{}", client.query("cats\n").get(10, TimeUnit.SECONDS));
+      assertEquals("{}", client.query("dogs\n").get(10, TimeUnit.SECONDS));
+      assertEquals(0, client.pending());
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void failsOutstandingRequestsOnCrash() throws Exception {
+    NaturalLIAsyncClient client = new NaturalLIAsyncClient(script("read line", "exit 1"), Collections.emptyList(), new OutputStreamWriter(System.err));
+    try {
+      CompletableFuture<String> response = client.query("cats have tails\n");
+      try {
+        response.get(10, TimeUnit.SECONDS);
+        fail("Expected the query to fail");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+      assertFalse(client.isHealthy());
+      assertTrue(client.query("dogs have tails\n").isCompletedExceptionally());
+    } finally {
+      client.close();
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package edu.stanford.nlp.naturalli.entail;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * A test for {@link edu.stanford.nlp.naturalli.entail.NaturalLISearchPool}, using a shell script in place of
+ * the real search program.
+ *
+ * @author Gabor Angeli
+ */
+public class NaturalLISearchPoolTest {
+
+  /**
+   * A fake search program, which remembers the last parameter it was sent and the last query line,
+   * and responds with both (tagged with the request id) when it sees a line "GO". A line "WAIT" sleeps for a second.
+   * If oneShot is true, the program exits after every response, as if it had crashed.
+   */
+  private static String fakeSearch(boolean oneShot) throws IOException {
+    File script = File.createTempFile("naturalli_search", ".sh");
+    script.deleteOnExit();
+    try (PrintWriter out = new PrintWriter(script)) {
+      out.println("#!/bin/sh");
+      out.println("id=\"\"");
+      out.println("param=\"\"");
+      out.println("last=\"\"");
+      out.println("while read line; do");
+      out.println("  case \"$line\" in");
+      out.println("    %requestId*) id=\"${line#%requestId = }\" ;;");
+      out.println("    %*) param=\"$line\" ;;");
+      out.println("    WAIT) sleep 1 ;;");
+      out.println("    GO) echo \"{\\\"id\\\": $id, \\\"param\\\": \\\"$param\\\", \\\"query\\\": \\\"$last\\\"}\"" + (oneShot ? "; exit 0" : "") + " ;;");
+      out.println("    *) last=\"$line\" ;;");
+      out.println("  esac");
+      out.println("done");
+    }
+    assertTrue(script.setExecutable(true));
+    return script.getPath();
+  }
+
+  @Test
+  public void query() throws IOException {
+    NaturalLISearchPool pool = new NaturalLISearchPool(fakeSearch(false), 2, Collections.singletonList("%strictCosts = true"));
+    try {
+      assertEquals(2, pool.size());
+      assertEquals("{\"param\": \"%strictCosts = true\", \"query\": \"cats have tails\"}", pool.query("cats have tails\nGO\n"));
+      assertEquals("{\"param\": \"%strictCosts = true\", \"query\": \"dogs have tails\"}", pool.query("dogs have tails\nGO\n"));
+      assertEquals(0, pool.restarts());
+    } finally {
+      pool.close();
+    }
+  }
+
+  @Test
+  public void restartsCrashedWorkers() throws IOException {
+    NaturalLISearchPool pool = new NaturalLISearchPool(fakeSearch(true), 1, Collections.singletonList("%strictCosts = true"));
+    try {
+      for (int i = 0; i < 5; ++i) {
+        assertEquals("{\"param\": \"%strictCosts = true\", \"query\": \"query " + i + "\"}", pool.query("query " + i + "\nGO\n"));
+      }
+      assertEquals(4, pool.restarts());
+    } finally {
+      pool.close();
+    }
+  }
+
+  @Test
+  public void concurrentQueries() throws Exception {
+    NaturalLISearchPool pool = new NaturalLISearchPool(fakeSearch(false), 3, Collections.emptyList());
+    ExecutorService exec = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> responses = new ArrayList<>();
+      for (int i = 0; i < 100; ++i) {
+        final int queryI = i;
+        responses.add(exec.submit(() -> pool.query("query " + queryI + "\nGO\n")));
+      }
+      for (int i = 0; i < 100; ++i) {
+        assertEquals("{\"param\": \"\", \"query\": \"query " + i + "\"}", responses.get(i).get(10, TimeUnit.SECONDS));
+      }
+    } finally {
+      exec.shutdownNow();
+      pool.close();
+    }
+  }
+
+  @Test
+  public void emptyRequestsDoNotRestartWorkers() throws Exception {
+    NaturalLISearchPool pool = new NaturalLISearchPool(fakeSearch(false), 1, Collections.emptyList());
+    try {
+      CompletableFuture<String> inFlight = pool.queryAsync("cats have tails\nWAIT\nGO\n");
+      try {
+        pool.query("%strictCosts = true\n\n");
+        fail("Expected an empty request to fail");
+      } catch (RuntimeException e) {
+        assertTrue(e.getCause() instanceof IllegalArgumentException);
+      }
+      // The request in flight is answered by the same process
+      assertEquals("{\"param\": \"\", \"query\": \"cats have tails\"}", inFlight.get(10, TimeUnit.SECONDS));
+      assertEquals(0, pool.restarts());
+    } finally {
+      pool.close();
+    }
+  }
+}